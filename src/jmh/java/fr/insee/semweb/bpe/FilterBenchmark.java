@@ -0,0 +1,94 @@
+package fr.insee.semweb.bpe;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Benchmark of the filters on equipment types built from the chunk expressions of <code>SASLauncher</code>:
+ * chains of predicates on prefixes (as initially built by the launcher), compiled type filters and chunk router.
+ *
+ * @author Franck
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark {
+
+	static final List<String> CHUNKS = Arrays.asList("A1+A2", "A3", "A401+A402", "A403+A404", "A405+A406", "A501+A502+A503", "A504", "A505+A506+A507", "B1+B2", "B3", "C", "D-D2", "D2", "E", "F", "G");
+	static final int TYPE_COUNT = 10000;
+
+	private String[] types;
+	private List<Predicate<String>> prefixPredicates;
+	private List<Predicate<String>> typeFilters;
+	private ChunkRouter router;
+
+	@Setup
+	public void setup() {
+
+		List<String> codes = new ArrayList<>();
+		for (String code : TypeFilter.listTypeCodes()) if (code.length() == 4) codes.add(code);
+		Random random = new Random(42);
+		types = new String[TYPE_COUNT];
+		for (int index = 0; index < TYPE_COUNT; index++) types[index] = codes.get(random.nextInt(codes.size()));
+
+		prefixPredicates = new ArrayList<>();
+		typeFilters = new ArrayList<>();
+		Map<String, Predicate<String>> filtersByChunk = new LinkedHashMap<>();
+		for (String chunk : CHUNKS) {
+			prefixPredicates.add(prefixPredicate(chunk));
+			typeFilters.add(TypeFilter.compile(chunk));
+			filtersByChunk.put(chunk, TypeFilter.compile(chunk));
+		}
+		router = new ChunkRouter(filtersByChunk);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TYPE_COUNT)
+	public int prefixPredicates() {
+		return countRoutes(prefixPredicates);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TYPE_COUNT)
+	public int typeFilters() {
+		return countRoutes(typeFilters);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TYPE_COUNT)
+	public int chunkRouter() {
+
+		int routes = 0;
+		for (String type : types) routes += router.route(type).length;
+		return routes;
+	}
+
+	private int countRoutes(List<Predicate<String>> predicates) {
+
+		int routes = 0;
+		for (String type : types) for (Predicate<String> predicate : predicates) if (predicate.test(type)) routes++;
+		return routes;
+	}
+
+	/** Predicate chain as initially built by <code>SASLauncher</code> for a chunk expression */
+	static Predicate<String> prefixPredicate(String chunk) {
+
+		Predicate<String> predicate;
+		final String[] componentsMinus = chunk.split("-");
+		if (componentsMinus.length == 2) {
+			predicate = type -> type.startsWith(componentsMinus[0]);
+			predicate = predicate.and(type -> !type.startsWith(componentsMinus[1]));
+		} else {
+			final String[] componentsPlus = chunk.split("\\+");
+			predicate = type -> false;
+			for (final String filter : componentsPlus) predicate = predicate.or(type -> type.startsWith(filter));
+		}
+		return predicate;
+	}
+}
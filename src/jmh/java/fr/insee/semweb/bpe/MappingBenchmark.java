@@ -0,0 +1,95 @@
+package fr.insee.semweb.bpe;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Benchmark of the mapping of SAS lines into triples, as done in the main loop of <code>RowMapper</code>.
+ * The triples are consumed by a black hole, so that the measure does not include serialization.
+ *
+ * @author Franck
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MappingBenchmark {
+
+	static final int ROW_COUNT = 10000;
+
+	/** Number of chunks the lines are routed to: one for all types, or the chunks of the production run */
+	@Param({"1", "16"})
+	public int chunkCount;
+
+	private List<Object[]> rows;
+	private RowMapper rowMapper;
+	private SASMappingPlan plan;
+	private ChunkRouter router;
+	private RowFormatter formatter;
+	private StreamRDF[] bpeStreams;
+	private StreamRDF[] qualityStreams;
+
+	@Setup
+	public void setup(Blackhole blackhole) {
+
+		SortedMap<String, SortedSet<String>> featuresAndPropertiesByType = Configuration.listFeaturesAndPropertiesByType();
+		List<String> columns = RowMapper.getRequiredColumns(featuresAndPropertiesByType, true, true);
+		rows = new SyntheticBPEGenerator(columns, ROW_COUNT, 42).readRemaining();
+		rowMapper = new RowMapper(1);
+		plan = SASMappingPlan.compile(featuresAndPropertiesByType, columns);
+		Map<String, Predicate<String>> typeFilters = new LinkedHashMap<>();
+		if (chunkCount == 1) typeFilters.put("", type -> true);
+		else for (String chunk : FilterBenchmark.CHUNKS) typeFilters.put(chunk, TypeFilter.compile(chunk));
+		router = new ChunkRouter(typeFilters);
+		formatter = new RowFormatter();
+		StreamRDF sink = new StreamRDFBase() {
+			@Override
+			public void triple(Triple triple) {
+				blackhole.consume(triple);
+			}
+		};
+		bpeStreams = new StreamRDF[typeFilters.size()];
+		qualityStreams = new StreamRDF[typeFilters.size()];
+		Arrays.fill(bpeStreams, sink);
+		Arrays.fill(qualityStreams, sink);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROW_COUNT)
+	public int mapLines() {
+
+		int selected = 0;
+		for (Object[] values : rows) if (rowMapper.mapLine(values, plan, formatter, router, bpeStreams, qualityStreams)) selected++;
+		return selected;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROW_COUNT)
+	public void mapEquipments() {
+
+		for (Object[] values : rows) {
+			String equipmentType = plan.getEquipmentType(values);
+			String equipmentId = formatter.equipmentId(values[plan.idetabIndex], values[plan.idserviceIndex]);
+			rowMapper.addEquipment(bpeStreams[0], values, plan, formatter, equipmentType, equipmentId);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROW_COUNT)
+	public void mapQualityAnnotations() {
+
+		for (Object[] values : rows) {
+			String equipmentId = formatter.equipmentId(values[plan.idetabIndex], values[plan.idserviceIndex]);
+			rowMapper.addQualityAnnotation(qualityStreams[0], values, plan, equipmentId);
+		}
+	}
+}
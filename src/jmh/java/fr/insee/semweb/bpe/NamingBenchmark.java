@@ -0,0 +1,92 @@
+package fr.insee.semweb.bpe;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the creation of URIs and literals: URI builders of <code>Configuration</code>, WKT literals and node cache.
+ *
+ * @author Franck
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NamingBenchmark {
+
+	static final int ROW_COUNT = 10000;
+
+	private List<Object[]> rows;
+	private SASMappingPlan plan;
+	private RowFormatter formatter;
+
+	@Setup
+	public void setup() {
+
+		List<String> columns = Arrays.asList("idetab", "idservice", "typequ", "depcom", "date_creation", "lambert_x", "lambert_y");
+		rows = new SyntheticBPEGenerator(columns, ROW_COUNT, 42).readRemaining();
+		plan = SASMappingPlan.compile(new TreeMap<>(), columns);
+		formatter = new RowFormatter();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROW_COUNT)
+	public void uriBuilders(Blackhole blackhole) {
+
+		for (Object[] values : rows) {
+			String equipmentId = values[plan.idetabIndex].toString().trim() + values[plan.idserviceIndex].toString().trim();
+			blackhole.consume(Configuration.inseeEquipmentURI(equipmentId));
+			blackhole.consume(Configuration.inseeEquipmentGeometryURI(equipmentId));
+			blackhole.consume(Configuration.inseeGeometryQualityAnnotationURI(equipmentId));
+			blackhole.consume(Configuration.inseeEquipmentTypeURI(plan.getEquipmentType(values)));
+			blackhole.consume(Configuration.inseeMunicipalityURI(values[plan.depcomIndex].toString()));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROW_COUNT)
+	public void nodeCache(Blackhole blackhole) {
+
+		for (Object[] values : rows) {
+			blackhole.consume(NodeCache.equipmentType(plan.getEquipmentType(values)));
+			blackhole.consume(NodeCache.municipality(values[plan.depcomIndex].toString()));
+			Date date = (Date) values[plan.dateIndex];
+			if (date != null) blackhole.consume(NodeCache.dateLiteral(date));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROW_COUNT)
+	public void equipmentIdConcatenation(Blackhole blackhole) {
+		for (Object[] values : rows) blackhole.consume(values[plan.idetabIndex].toString().trim() + values[plan.idserviceIndex].toString().trim());
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROW_COUNT)
+	public void equipmentIdFormatter(Blackhole blackhole) {
+		for (Object[] values : rows) blackhole.consume(formatter.equipmentId(values[plan.idetabIndex], values[plan.idserviceIndex]));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROW_COUNT)
+	public void pointWKTLiteral(Blackhole blackhole) {
+		for (Object[] values : rows) {
+			if (values[plan.xIndex] == null) continue; // Equipment not geolocalized
+			blackhole.consume(Configuration.getPointWKTLiteral(((Number) values[plan.xIndex]).doubleValue(), ((Number) values[plan.yIndex]).doubleValue(), values[plan.depcomIndex].toString()));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROW_COUNT)
+	public void pointWKTLiteralFormatter(Blackhole blackhole) {
+		for (Object[] values : rows) {
+			if (values[plan.xIndex] == null) continue; // Equipment not geolocalized
+			blackhole.consume(formatter.pointWKTLiteral(((Number) values[plan.xIndex]).doubleValue(), ((Number) values[plan.yIndex]).doubleValue(), values[plan.depcomIndex].toString()));
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package fr.insee.semweb.bpe;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the serialization of a model generated from synthetic lines in the different output formats.
+ *
+ * @author Franck
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+	@Param({"10000"})
+	public int rowCount;
+
+	@Param({"TURTLE_PRETTY", "TURTLE_BLOCKS", "NTRIPLES"})
+	public String format;
+
+	private Model model;
+	private RDFFormat rdfFormat;
+
+	@Setup
+	public void setup() {
+
+		SortedMap<String, SortedSet<String>> featuresAndPropertiesByType = Configuration.listFeaturesAndPropertiesByType();
+		List<String> columns = RowMapper.getRequiredColumns(featuresAndPropertiesByType, true, false);
+		SASModelMaker modelMaker = new SASModelMaker();
+		RowMapper rowMapper = new RowMapper(1);
+		SASMappingPlan plan = SASMappingPlan.compile(featuresAndPropertiesByType, columns);
+		RowFormatter formatter = new RowFormatter();
+		model = modelMaker.initBPEModel();
+		for (Object[] values : new SyntheticBPEGenerator(columns, rowCount, 42).readRemaining()) {
+			String equipmentId = formatter.equipmentId(values[plan.idetabIndex], values[plan.idserviceIndex]);
+			rowMapper.addEquipment(StreamRDFLib.graph(model.getGraph()), values, plan, formatter, plan.getEquipmentType(values), equipmentId);
+		}
+		switch (format) {
+			case "TURTLE_PRETTY": rdfFormat = RDFFormat.TURTLE_PRETTY; break;
+			case "TURTLE_BLOCKS": rdfFormat = RDFFormat.TURTLE_BLOCKS; break;
+			default: rdfFormat = RDFFormat.NTRIPLES;
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		model.close();
+	}
+
+	@Benchmark
+	public void write() {
+		RDFDataMgr.write(NullOutputStream.NULL_OUTPUT_STREAM, model, rdfFormat);
+	}
+}
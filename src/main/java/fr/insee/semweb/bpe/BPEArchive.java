@@ -0,0 +1,236 @@
+package fr.insee.semweb.bpe;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <code>BPEArchive</code> reads the data files contained in a zip archive of the BPE publication without extracting them to disk.
+ *
+ * Entries are either streamed into the readers (CSV files, SAS databases and dBase files read sequentially) or decompressed in memory (dBase files read by random access).
+ * The archive is accessed through its central directory, so that several entries can be decompressed at the same time by different threads.
+ *
+ * @author Franck
+ */
+public class BPEArchive implements Closeable {
+
+	public static Logger logger = LogManager.getLogger(BPEArchive.class);
+
+	final static int STREAM_BUFFER_SIZE = 1 << 16;
+
+	private final Path archivePath;
+	private final ZipFile zipFile;
+
+	/**
+	 * Opens a zip archive.
+	 *
+	 * @param archivePath The path of the archive.
+	 * @return The archive.
+	 * @throws IOException In case of problem reading the archive.
+	 */
+	public static BPEArchive open(Path archivePath) throws IOException {
+		return new BPEArchive(archivePath);
+	}
+
+	private BPEArchive(Path archivePath) throws IOException {
+
+		this.archivePath = archivePath;
+		this.zipFile = new ZipFile(archivePath.toFile());
+	}
+
+	/**
+	 * Returns the names of the file entries of the archive.
+	 *
+	 * @return The list of entry names, in the order of the archive.
+	 */
+	public List<String> getEntryNames() {
+
+		List<String> names = new ArrayList<>();
+		for (ZipArchiveEntry entry : Collections.list(zipFile.getEntries())) if (!entry.isDirectory()) names.add(entry.getName());
+
+		return names;
+	}
+
+	/**
+	 * Finds the entry corresponding to a file name, whatever the directory of the entry in the archive.
+	 *
+	 * @param fileName The name of the file (case is ignored).
+	 * @return The name of the first entry corresponding to the file, or <code>null</code> if there is none.
+	 */
+	public String findEntry(String fileName) {
+
+		for (String name : getEntryNames()) if (fileName(name).equalsIgnoreCase(fileName)) return name;
+		return null;
+	}
+
+	/**
+	 * Opens a stream on the decompressed content of an entry.
+	 *
+	 * @param entryName The name of the entry.
+	 * @return The stream, which must be closed by the caller.
+	 * @throws IOException If the entry does not exist or cannot be read.
+	 */
+	public InputStream openEntry(String entryName) throws IOException {
+
+		return new BufferedInputStream(zipFile.getInputStream(getEntry(entryName)), STREAM_BUFFER_SIZE);
+	}
+
+	/**
+	 * Decompresses an entry in memory.
+	 *
+	 * @param entryName The name of the entry.
+	 * @return The decompressed content of the entry.
+	 * @throws IOException If the entry does not exist, cannot be read or is too large.
+	 */
+	public ByteBuffer readEntry(String entryName) throws IOException {
+
+		ZipArchiveEntry entry = getEntry(entryName);
+		if (entry.getSize() > Integer.MAX_VALUE) throw new IOException("Entry " + entryName + " of " + archivePath + " is too large to be read in memory");
+		try (InputStream stream = zipFile.getInputStream(entry)) {
+			return ByteBuffer.wrap((entry.getSize() >= 0) ? IOUtils.toByteArray(stream, entry.getSize()) : IOUtils.toByteArray(stream));
+		}
+	}
+
+	/**
+	 * Processor of the stream of an entry.
+	 *
+	 * @param <T> The type of the results of the processing.
+	 */
+	@FunctionalInterface
+	public interface EntryProcessor<T> {
+
+		/**
+		 * Processes the decompressed content of an entry.
+		 *
+		 * @param entryName The name of the entry.
+		 * @param stream The stream of the entry, which is closed by the caller.
+		 * @return The result of the processing.
+		 * @throws IOException In case of problem reading the stream.
+		 */
+		T process(String entryName, InputStream stream) throws IOException;
+	}
+
+	/**
+	 * Streams the entries selected by a filter to a processor, several entries being decompressed at the same time.
+	 *
+	 * @param <T> The type of the results of the processing.
+	 * @param nameFilter The filter as a predicate on the entry names.
+	 * @param parallelism The maximum number of entries decompressed at the same time.
+	 * @param processor The processor of the entries, which is called by several threads.
+	 * @return The results of the processor, indexed by entry name in the order of the archive.
+	 * @throws IOException If an entry cannot be read or processed.
+	 */
+	public <T> Map<String, T> processEntries(Predicate<String> nameFilter, int parallelism, EntryProcessor<T> processor) throws IOException {
+
+		List<String> names = new ArrayList<>();
+		for (String name : getEntryNames()) if (nameFilter.test(name)) names.add(name);
+		Map<String, T> results = new LinkedHashMap<>();
+		if ((parallelism <= 1) || (names.size() <= 1)) {
+			for (String name : names) results.put(name, processEntry(name, processor));
+			return results;
+		}
+		logger.debug("Decompressing " + names.size() + " entries of " + archivePath + " with " + Math.min(parallelism, names.size()) + " threads");
+		Map<String, Future<T>> futureResults = new LinkedHashMap<>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, names.size()));
+		try {
+			for (String name : names) futureResults.put(name, executor.submit(() -> processEntry(name, processor)));
+			for (String name : names) results.put(name, futureResults.get(name).get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while decompressing " + archivePath, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException("Error decompressing " + archivePath, e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return results;
+	}
+
+	/**
+	 * Decompresses a dBase file entry in memory and opens a record reader on it.
+	 *
+	 * @param entryName The name of the entry.
+	 * @return The record reader.
+	 * @throws IOException If the entry does not exist, cannot be read or is not a dBase file.
+	 */
+	public DBFRecordReader readDBF(String entryName) throws IOException {
+
+		return new DBFRecordReader(readEntry(entryName), archivePath + "!" + entryName, Configuration.STRING_CHARSET);
+	}
+
+	/**
+	 * Opens a row reader streaming a CSV file entry.
+	 *
+	 * @param entryName The name of the entry.
+	 * @param columns The names of the columns to decode (case is ignored), in the order of the values returned.
+	 * @param typeFilter The filter as a predicate on the equipment type code, or <code>null</code> to read all lines.
+	 * @param charset The character set of the CSV file.
+	 * @return The row reader.
+	 * @throws IOException If the entry does not exist or cannot be read.
+	 */
+	public CSVRowReader openCSV(String entryName, Collection<String> columns, Predicate<String> typeFilter, Charset charset) throws IOException {
+
+		return CSVRowReader.open(openEntry(entryName), columns, typeFilter, charset);
+	}
+
+	/**
+	 * Opens a row reader streaming a SAS database entry (two streams are opened on the entry if there is a filter).
+	 *
+	 * @param entryName The name of the entry.
+	 * @param columns The names of the columns to decode (case is ignored), or <code>null</code> for all columns.
+	 * @param typeFilter The filter as a predicate on the equipment type code, or <code>null</code> to read all lines.
+	 * @return The row reader.
+	 * @throws IOException If the entry does not exist or cannot be read, or if a column is not found.
+	 */
+	public SASRowReader openSAS(String entryName, Collection<String> columns, Predicate<String> typeFilter) throws IOException {
+
+		return SASRowReader.open(openEntry(entryName), (typeFilter == null) ? null : openEntry(entryName), columns, typeFilter);
+	}
+
+	@Override
+	public void close() throws IOException {
+		zipFile.close();
+	}
+
+	/**
+	 * Returns the file name of an entry, without its directory.
+	 *
+	 * @param entryName The name of the entry.
+	 * @return The file name.
+	 */
+	public static String fileName(String entryName) {
+
+		return entryName.substring(entryName.lastIndexOf('/') + 1);
+	}
+
+	private <T> T processEntry(String entryName, EntryProcessor<T> processor) throws IOException {
+
+		try (InputStream stream = openEntry(entryName)) {
+			return processor.process(entryName, stream);
+		}
+	}
+
+	private ZipArchiveEntry getEntry(String entryName) throws IOException {
+
+		ZipArchiveEntry entry = zipFile.getEntry(entryName);
+		if (entry == null) throw new IOException("No entry " + entryName + " in archive " + archivePath);
+		return entry;
+	}
+}
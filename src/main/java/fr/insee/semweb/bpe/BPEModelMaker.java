@@ -6,10 +6,15 @@ import com.epam.parso.impl.SasFileReaderImpl;
 import fr.insee.semweb.bpe.Configuration.Domain;
 import fr.insee.semweb.bpe.Configuration.QualityLevel;
 import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Graph;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.riot.system.StreamRDFOps;
+import org.apache.jena.sparql.graph.GraphFactory;
 import org.apache.jena.vocabulary.DCTerms;
 import org.apache.jena.vocabulary.RDF;
 import org.apache.jena.vocabulary.RDFS;
@@ -32,6 +37,20 @@ public abstract class BPEModelMaker {
 
 	final static String DEFAULT_FILTER = "E102"; // Will only produce equipment whose type starts with the filter (set to empty for all equipments)
 
+	/**
+	 * Creates a new empty Jena model, which is held in a compact graph if <code>Configuration.COMPACT_MODELS</code> is set (see {@link CompactGraph}),
+	 * and moved to a temporary TDB2 store if it exceeds <code>Configuration.SPILL_THRESHOLD</code> triples (see {@link SpillingGraph}).
+	 * The model must then be closed after use in order to delete the store.
+	 *
+	 * @return The newly created Jena model.
+	 */
+	protected static Model createModel() {
+
+		Graph memoryGraph = Configuration.COMPACT_MODELS ? new CompactGraph(Configuration.OFF_HEAP_MODELS) : GraphFactory.createGraphMem();
+		if (Configuration.SPILL_THRESHOLD <= 0) return ModelFactory.createModelForGraph(memoryGraph);
+		return ModelFactory.createModelForGraph(new SpillingGraph(Configuration.SPILL_THRESHOLD, memoryGraph));
+	}
+
 	/**
 	 * Creates a new Jena model and sets the prefix-namespace associations used in the BPE context.
 	 *
@@ -39,7 +58,7 @@ public abstract class BPEModelMaker {
 	 */
 	protected Model initBPEModel() {
 
-		Model bpeModel = ModelFactory.createDefaultModel();
+		Model bpeModel = createModel();
 		bpeModel.setNsPrefix("dcterms", DCTerms.getURI());
 		bpeModel.setNsPrefix("rdfs", RDFS.getURI());
 		bpeModel.setNsPrefix("ibpe", BPEOnto.getURI());
@@ -54,6 +73,22 @@ public abstract class BPEModelMaker {
 		return bpeModel;
 	}
 
+	/**
+	 * Creates a new Jena model and sets the prefix-namespace associations used for the quality metadata.
+	 *
+	 * @return The newly created Jena model.
+	 */
+	protected Model initQualityModel() {
+
+		Model qualityModel = createModel();
+		if (!Configuration.CREATE_GEOMETRY) qualityModel.setNsPrefix("ibpe-eq", Configuration.INSEE_EQUIPMENT_BASE_URI);
+		qualityModel.setNsPrefix("icod-qlt", Configuration.INSEE_QUALITY_CODES_BASE_URI);
+		qualityModel.setNsPrefix("oa", Annotations.getURI());
+		qualityModel.setNsPrefix("dqv", DQV.getURI());
+
+		return qualityModel;
+	}
+
 	/**
 	 * Creates the BPE model with a custom filter on the type of equipments.
 	 * 
@@ -78,6 +113,21 @@ public abstract class BPEModelMaker {
 		return makeBPEModel(type -> type.startsWith(DEFAULT_FILTER));
 	}
 
+	/**
+	 * Creates several BPE models corresponding to different filters on the type of equipments.
+	 * The base implementation creates the models one after the other: subclasses should override it in order to read the source only once.
+	 *
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @return The BPE extracts as Jena models, indexed by chunk name (in the iteration order of the filters).
+	 * @throws IOException In case of problem reading the database.
+	 */
+	public Map<String, Model> makeBPEModels(Map<String, Predicate<String>> typeFilters) throws IOException {
+
+		Map<String, Model> bpeModels = new LinkedHashMap<>();
+		for (String chunk : typeFilters.keySet()) bpeModels.put(chunk, makeBPEModel(typeFilters.get(chunk)));
+
+		return bpeModels;
+	}
 
 	/**
 	 * Creates the BPE quality model with a custom filter on the type of equipments.
@@ -103,4 +153,139 @@ public abstract class BPEModelMaker {
 
 		return makeQualityModel(type -> type.startsWith(DEFAULT_FILTER));
 	}
+
+	/**
+	 * Creates several BPE quality models corresponding to different filters on the type of equipments.
+	 * The base implementation creates the models one after the other: subclasses should override it in order to read the source only once.
+	 *
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @return The BPE quality extracts as Jena models, indexed by chunk name (in the iteration order of the filters).
+	 * @throws IOException In case of problem reading the database.
+	 */
+	public Map<String, Model> makeQualityModels(Map<String, Predicate<String>> typeFilters) throws IOException {
+
+		Map<String, Model> qualityModels = new LinkedHashMap<>();
+		for (String chunk : typeFilters.keySet()) qualityModels.put(chunk, makeQualityModel(typeFilters.get(chunk)));
+
+		return qualityModels;
+	}
+
+	/**
+	 * Fills BPE data and quality models in one go, for several filters on the type of equipments.
+	 * Data and quality models are separate sinks: either map can be null if the corresponding models are not required.
+	 * The base implementation creates the data and quality models separately: subclasses should override it in order to read the source only once.
+	 *
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @param bpeModels The Jena models that will receive the equipments, indexed by chunk name (can be null).
+	 * @param qualityModels The Jena models that will receive the quality annotations, indexed by chunk name (can be null).
+	 * @throws IOException In case of problem reading the database.
+	 */
+	public void makeModels(Map<String, Predicate<String>> typeFilters, Map<String, Model> bpeModels, Map<String, Model> qualityModels) throws IOException {
+
+		if (bpeModels != null) {
+			Map<String, Model> created = makeBPEModels(typeFilters);
+			for (String chunk : created.keySet()) bpeModels.get(chunk).add(created.get(chunk));
+		}
+		if (qualityModels != null) {
+			Map<String, Model> created = makeQualityModels(typeFilters);
+			for (String chunk : created.keySet()) qualityModels.get(chunk).add(created.get(chunk));
+		}
+	}
+
+	/**
+	 * Fills BPE data and quality models in one go, with a custom filter on the type of equipments.
+	 *
+	 * @param typeFilter The filter as a predicate on the equipment type code.
+	 * @param bpeModel The Jena model that will receive the equipments (can be null).
+	 * @param qualityModel The Jena model that will receive the quality annotations (can be null).
+	 * @throws IOException In case of problem reading the database.
+	 */
+	public void makeModels(Predicate<String> typeFilter, Model bpeModel, Model qualityModel) throws IOException {
+
+		makeModels(Collections.singletonMap("", typeFilter),
+				(bpeModel == null) ? null : Collections.singletonMap("", bpeModel),
+				(qualityModel == null) ? null : Collections.singletonMap("", qualityModel));
+	}
+
+	/**
+	 * Streams BPE data and quality triples for several filters on the type of equipments.
+	 * Data and quality streams are separate sinks: either map can be null if the corresponding triples are not required.
+	 * Streams are not started or finished by this method, which is the responsibility of the caller.
+	 * The base implementation materializes the models before sending their triples: subclasses should override it in order to send triples as they are created.
+	 *
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @param bpeStreams The streams that will receive the equipment triples, indexed by chunk name (can be null).
+	 * @param qualityStreams The streams that will receive the quality annotation triples, indexed by chunk name (can be null).
+	 * @throws IOException In case of problem reading the database.
+	 */
+	public void streamModels(Map<String, Predicate<String>> typeFilters, Map<String, StreamRDF> bpeStreams, Map<String, StreamRDF> qualityStreams) throws IOException {
+
+		Map<String, Model> bpeModels = (bpeStreams == null) ? null : new LinkedHashMap<>();
+		Map<String, Model> qualityModels = (qualityStreams == null) ? null : new LinkedHashMap<>();
+		for (String chunk : typeFilters.keySet()) {
+			if (bpeModels != null) bpeModels.put(chunk, createModel());
+			if (qualityModels != null) qualityModels.put(chunk, createModel());
+		}
+		makeModels(typeFilters, bpeModels, qualityModels);
+		for (String chunk : typeFilters.keySet()) {
+			if (bpeModels != null) {
+				StreamRDFOps.sendGraphToStream(bpeModels.get(chunk).getGraph(), bpeStreams.get(chunk));
+				bpeModels.get(chunk).close();
+			}
+			if (qualityModels != null) {
+				StreamRDFOps.sendGraphToStream(qualityModels.get(chunk).getGraph(), qualityStreams.get(chunk));
+				qualityModels.get(chunk).close();
+			}
+		}
+	}
+
+	/**
+	 * Streams BPE data and quality triples with a custom filter on the type of equipments.
+	 *
+	 * @param typeFilter The filter as a predicate on the equipment type code.
+	 * @param bpeStream The stream that will receive the equipment triples (can be null).
+	 * @param qualityStream The stream that will receive the quality annotation triples (can be null).
+	 * @throws IOException In case of problem reading the database.
+	 */
+	public void streamModels(Predicate<String> typeFilter, StreamRDF bpeStream, StreamRDF qualityStream) throws IOException {
+
+		streamModels(Collections.singletonMap("", typeFilter),
+				(bpeStream == null) ? null : Collections.singletonMap("", bpeStream),
+				(qualityStream == null) ? null : Collections.singletonMap("", qualityStream));
+	}
+
+	/**
+	 * Sends to a stream the prefix-namespace associations used in the BPE context.
+	 *
+	 * @param bpeStream The stream that will receive the equipment triples.
+	 */
+	public void initBPEStream(StreamRDF bpeStream) {
+
+		initBPEModel().getNsPrefixMap().forEach(bpeStream::prefix);
+	}
+
+	/**
+	 * Sends to a stream the prefix-namespace associations used for the quality metadata.
+	 *
+	 * @param qualityStream The stream that will receive the quality annotation triples.
+	 */
+	public void initQualityStream(StreamRDF qualityStream) {
+
+		initQualityModel().getNsPrefixMap().forEach(qualityStream::prefix);
+	}
+
+	/**
+	 * Wraps Jena models into streams that add the triples received to the models.
+	 *
+	 * @param models The Jena models, indexed by chunk name (can be null).
+	 * @return The corresponding streams, indexed by chunk name, or <code>null</code> if there are no models.
+	 */
+	protected static Map<String, StreamRDF> toStreams(Map<String, Model> models) {
+
+		if (models == null) return null;
+		Map<String, StreamRDF> streams = new LinkedHashMap<>();
+		for (String chunk : models.keySet()) streams.put(chunk, StreamRDFLib.graph(models.get(chunk).getGraph()));
+
+		return streams;
+	}
 }
@@ -0,0 +1,230 @@
+package fr.insee.semweb.bpe;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.function.Predicate;
+
+/**
+ * <code>CSVModelMaker</code> creates the BPE data and quality Jena models from a CSV file in the format of the BPE publication.
+ * The file is read through memory mappings (see {@link CSVRowReader}), possibly split into ranges of lines parsed in parallel, or streamed from a zip archive,
+ * and the lines are mapped exactly as the lines of the SAS database (see {@link RowMapper}).
+ *
+ * @author Franck
+ */
+public class CSVModelMaker extends BPEModelMaker {
+
+	public static Logger logger = LogManager.getLogger(CSVModelMaker.class);
+
+	final static int RANGES_PER_THREAD = 4; // In parallel mode, smaller ranges balance the load between threads
+	final static long MIN_RANGE_SIZE = 1L << 24; // Files smaller than this are read sequentially
+
+	private final Path csvFilePath;
+	private final Charset charset;
+	private final int parallelism;
+	/** Mapper of the lines into triples, shared with the SAS model maker, with the threads for parallel parsing */
+	private final RowMapper rowMapper;
+
+	/**
+	 * Creates a model maker that reads sequentially the CSV file specified in the configuration.
+	 */
+	public CSVModelMaker() {
+		this(1);
+	}
+
+	/**
+	 * Creates a model maker that parses in parallel ranges of the CSV file specified in the configuration.
+	 * The order of the triples in the output then varies from one run to another.
+	 *
+	 * @param parallelism The number of threads (1 for sequential reading).
+	 */
+	public CSVModelMaker(int parallelism) {
+		this(Configuration.getCSVDataFilePath(), StandardCharsets.UTF_8, parallelism);
+	}
+
+	/**
+	 * Creates a model maker that parses in parallel ranges of a given CSV file.
+	 *
+	 * @param csvFilePath The path of the CSV file, or of a zip archive containing it (the archive is then read sequentially).
+	 * @param charset The character set of the file.
+	 * @param parallelism The number of threads (1 for sequential reading).
+	 */
+	public CSVModelMaker(Path csvFilePath, Charset charset, int parallelism) {
+
+		this.csvFilePath = csvFilePath;
+		this.charset = charset;
+		this.parallelism = Math.max(1, parallelism);
+		this.rowMapper = new RowMapper(this.parallelism);
+	}
+
+	/**
+	 * Creates the BPE model with a custom filter on the type of equipments.
+	 *
+	 * @param typeFilter The filter as a predicate on the equipment type code.
+	 * @return The BPE extract as a Jena model.
+	 * @throws IOException In case of problem reading the file.
+	 */
+	@Override
+	public Model makeBPEModel(Predicate<String> typeFilter) throws IOException {
+
+		return makeBPEModels(Collections.singletonMap("", typeFilter)).get("");
+	}
+
+	/**
+	 * Creates in one pass on the CSV file the BPE models corresponding to several filters on the type of equipments.
+	 *
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @return The BPE extracts as Jena models, indexed by chunk name (in the iteration order of the filters).
+	 * @throws IOException In case of problem reading the file.
+	 */
+	@Override
+	public Map<String, Model> makeBPEModels(Map<String, Predicate<String>> typeFilters) throws IOException {
+
+		Map<String, Model> bpeModels = new LinkedHashMap<>();
+		for (String chunk : typeFilters.keySet()) bpeModels.put(chunk, initBPEModel());
+		makeModels(typeFilters, bpeModels, null);
+
+		return bpeModels;
+	}
+
+	/**
+	 * Creates the BPE quality model with a custom filter on the type of equipments.
+	 *
+	 * @param typeFilter The filter as a predicate on the equipment type code.
+	 * @return The BPE quality extract as a Jena model.
+	 * @throws IOException In case of problem reading the file.
+	 */
+	@Override
+	public Model makeQualityModel(Predicate<String> typeFilter) throws IOException {
+
+		return makeQualityModels(Collections.singletonMap("", typeFilter)).get("");
+	}
+
+	/**
+	 * Creates in one pass on the CSV file the BPE quality models corresponding to several filters on the type of equipments.
+	 *
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @return The BPE quality extracts as Jena models, indexed by chunk name (in the iteration order of the filters).
+	 * @throws IOException In case of problem reading the file.
+	 */
+	@Override
+	public Map<String, Model> makeQualityModels(Map<String, Predicate<String>> typeFilters) throws IOException {
+
+		Map<String, Model> qualityModels = new LinkedHashMap<>();
+		for (String chunk : typeFilters.keySet()) qualityModels.put(chunk, initQualityModel());
+		makeModels(typeFilters, null, qualityModels);
+
+		return qualityModels;
+	}
+
+	/**
+	 * Fills in one pass on the CSV file the BPE data and quality models corresponding to several filters on the type of equipments.
+	 *
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @param bpeModels The Jena models that will receive the equipments, indexed by chunk name (can be null).
+	 * @param qualityModels The Jena models that will receive the quality annotations, indexed by chunk name (can be null).
+	 * @throws IOException In case of problem reading the file.
+	 */
+	@Override
+	public void makeModels(Map<String, Predicate<String>> typeFilters, Map<String, Model> bpeModels, Map<String, Model> qualityModels) throws IOException {
+
+		streamModels(typeFilters, toStreams(bpeModels), toStreams(qualityModels));
+		if (bpeModels != null) for (String chunk : bpeModels.keySet()) logger.info("Model for filter " + chunk + " contains " + bpeModels.get(chunk).size() + " triples");
+		if (qualityModels != null) for (String chunk : qualityModels.keySet()) logger.info("Quality model for filter " + chunk + " contains " + qualityModels.get(chunk).size() + " triples");
+	}
+
+	/**
+	 * Streams in one pass on the CSV file the BPE data and quality triples corresponding to several filters on the type of equipments.
+	 * In parallel mode, the file is split into ranges of lines, and the streams receive blocks of triples from the different threads, one thread at a time.
+	 *
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @param bpeStreams The streams that will receive the equipment triples, indexed by chunk name (can be null).
+	 * @param qualityStreams The streams that will receive the quality annotation triples, indexed by chunk name (can be null).
+	 * @throws IOException In case of problem reading the file.
+	 */
+	@Override
+	public void streamModels(Map<String, Predicate<String>> typeFilters, Map<String, StreamRDF> bpeStreams, Map<String, StreamRDF> qualityStreams) throws IOException {
+
+		SortedMap<String, SortedSet<String>> featuresAndPropertiesByType = retainColumns(Configuration.listFeaturesAndPropertiesByType(), readHeader());
+		List<String> columns = RowMapper.getRequiredColumns(featuresAndPropertiesByType, bpeStreams != null, qualityStreams != null);
+		ChunkRouter router = new ChunkRouter(typeFilters);
+
+		if (isArchive(csvFilePath)) {
+			// The CSV entry is streamed from the archive, which can only be read sequentially
+			try (BPEArchive archive = BPEArchive.open(csvFilePath)) {
+				String entryName = findCSVEntry(archive);
+				try (CSVRowReader rowReader = archive.openCSV(entryName, columns, router.getReadFilter(), charset)) {
+					logger.debug("Streaming " + entryName + " from archive " + csvFilePath + " to create models for " + typeFilters.size() + " filter(s)");
+					rowMapper.streamRows(rowReader, columns, featuresAndPropertiesByType, router, typeFilters, bpeStreams, qualityStreams);
+					logger.info(rowReader.getLinesSkipped() + " lines skipped by the filters");
+				}
+			}
+			NodeCache.logStatistics();
+			return;
+		}
+		long fileSize = Files.size(csvFilePath);
+		if ((parallelism > 1) && (fileSize >= 2 * MIN_RANGE_SIZE)) {
+			int rangeCount = (int) Math.min(parallelism * RANGES_PER_THREAD, fileSize / MIN_RANGE_SIZE);
+			List<CSVRowReader.Range> ranges = CSVRowReader.split(csvFilePath, rangeCount);
+			logger.debug("Reading " + fileSize + " bytes from " + csvFilePath + " in " + ranges.size() + " ranges with " + parallelism + " threads");
+			Map<String, Callable<RowSource>> sources = new LinkedHashMap<>();
+			for (CSVRowReader.Range range : ranges) sources.put(range.toString(), () -> CSVRowReader.open(csvFilePath, range, columns, router.getReadFilter(), charset));
+			rowMapper.streamRowsParallel(sources, columns, featuresAndPropertiesByType, router, typeFilters, bpeStreams, qualityStreams);
+		} else {
+			try (CSVRowReader rowReader = CSVRowReader.open(csvFilePath, null, columns, router.getReadFilter(), charset)) {
+				logger.debug("Reading " + fileSize + " bytes from " + csvFilePath + " to create models for " + typeFilters.size() + " filter(s)");
+				rowMapper.streamRows(rowReader, columns, featuresAndPropertiesByType, router, typeFilters, bpeStreams, qualityStreams);
+				logger.info(rowReader.getLinesSkipped() + " lines skipped by the filters");
+			}
+		}
+		NodeCache.logStatistics();
+	}
+
+	// Reads the names of the columns of the CSV file or archive entry
+	private List<String> readHeader() throws IOException {
+
+		if (isArchive(csvFilePath)) {
+			try (BPEArchive archive = BPEArchive.open(csvFilePath)) {
+				return CSVRowReader.readHeader(archive.openEntry(findCSVEntry(archive)), charset);
+			}
+		}
+		return CSVRowReader.readHeader(csvFilePath, charset);
+	}
+
+	// Removes from the lists of features and properties the columns absent from the header (the public files do not contain the sector or capacity columns, for example)
+	private SortedMap<String, SortedSet<String>> retainColumns(SortedMap<String, SortedSet<String>> featuresAndPropertiesByType, List<String> header) {
+
+		Set<String> headerColumns = new HashSet<>();
+		for (String column : header) headerColumns.add(column.toLowerCase());
+		SortedSet<String> absentColumns = new TreeSet<>();
+		SortedMap<String, SortedSet<String>> retained = new TreeMap<>();
+		for (Map.Entry<String, SortedSet<String>> entry : featuresAndPropertiesByType.entrySet()) {
+			SortedSet<String> columns = new TreeSet<>();
+			for (String column : entry.getValue()) {
+				if (headerColumns.contains(column)) columns.add(column);
+				else absentColumns.add(column);
+			}
+			retained.put(entry.getKey(), columns);
+		}
+		if (!absentColumns.isEmpty()) logger.warn("Columns " + absentColumns + " not found in " + csvFilePath + ", the corresponding features and properties will not be produced");
+
+		return retained;
+	}
+
+	private String findCSVEntry(BPEArchive archive) throws IOException {
+		return archive.getEntryNames().stream().filter(name -> name.toLowerCase().endsWith(".csv")).findFirst().orElseThrow(() -> new IOException("No CSV file in archive " + csvFilePath));
+	}
+
+	private static boolean isArchive(Path path) {
+		return path.getFileName().toString().toLowerCase().endsWith(".zip");
+	}
+}
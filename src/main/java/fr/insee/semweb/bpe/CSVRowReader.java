@@ -0,0 +1,597 @@
+package fr.insee.semweb.bpe;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * <code>CSVRowReader</code> reads the lines of a BPE CSV file (separator ';', column names in the first line) through a memory mapping of the file.
+ *
+ * The tokenizer works directly on the mapped bytes: it only records the boundaries of the fields of a line, then decodes the type of equipment
+ * and, if the line is accepted by the filter, the columns required. Numbers and dates are parsed from the bytes without creating strings.
+ * Values have the same Java types as those returned by the SAS parser (see {@link RowSource}), so that the lines can be mapped like SAS lines.
+ * A file can be split into ranges of bytes starting at line boundaries, each range being read by its own reader (for example in a different thread).
+ * Fields can be quoted, but must not contain line breaks.
+ * Public files have no 'idetab' column: the identifier of an equipment is then the number of its line in the file (starting at 1 with the header line).
+ * A reader can also consume a stream (for example an entry of an archive, see {@link BPEArchive}): the window is then a buffer refilled from the stream.
+ *
+ * @author Franck
+ */
+public class CSVRowReader implements RowSource {
+
+	final static byte SEPARATOR = ';';
+	final static byte QUOTE = '"';
+	final static String TYPE_COLUMN = "typequ";
+	final static String ID_COLUMN = "idetab";
+	final static int WINDOW_SIZE = 1 << 28; // Size of the mapped windows (a line must be shorter)
+	final static int MAX_HEADER_SIZE = 1 << 16;
+	final static int STREAM_WINDOW_SIZE = 1 << 22; // Size of the buffer when reading a stream (a line must be shorter)
+
+	// Kinds of values, according to the column name
+	private static final int STRING = 0, DECIMAL = 1, INTEGER = 2, DATE = 3;
+	private static final Map<String, Integer> COLUMN_KINDS = new HashMap<>();
+	static {
+		COLUMN_KINDS.put("lambert_x", DECIMAL);
+		COLUMN_KINDS.put("lambert_y", DECIMAL);
+		COLUMN_KINDS.put("capacite", INTEGER);
+		COLUMN_KINDS.put("nbsalles", INTEGER);
+		COLUMN_KINDS.put("date_creation", DATE);
+	}
+	// Strings of one ASCII character (feature markers for example) are shared
+	private static final String[] ASCII_STRINGS = new String[128];
+	static {
+		for (int code = 0; code < ASCII_STRINGS.length; code++) ASCII_STRINGS[code] = String.valueOf((char) code);
+	}
+	private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+	private final FileChannel channel; // Null when reading a stream
+	private final ReadableByteChannel input; // Null when reading a file
+	private final Charset charset;
+	private final Predicate<String> typeFilter;
+	private long rangeEnd; // When reading a stream, only known once the end of the stream is reached
+	private final int[] projection; // For each column required, the position of the field in the line (-1 if absent)
+	private final int[] kinds;
+	private final int typeField;
+	private final int idIndex; // Position of the identifier in the values if it is replaced by the number of the line (-1 otherwise)
+	private final int fieldCount;
+	private final int[] fieldStarts;
+	private final int[] fieldEnds;
+	private final boolean[] fieldQuoted;
+	private ByteBuffer window = null;
+	private long windowStart;
+	private int windowLength = 0;
+	private int position = 0; // Position in the window of the next line
+	private byte[] decodingBuffer = new byte[256];
+	private long lineNumber; // Number in the file of the last line tokenized, blank lines included
+	private long linesRead = 0;
+	private long linesSkipped = 0;
+
+	/**
+	 * Range of bytes of a CSV file, starting at the beginning of a line and ending after the end of a line (or at the end of the file).
+	 */
+	public static class Range {
+
+		final long start;
+		final long end;
+		final long firstLine; // Number in the file of the first line of the range, 0 if the lines are not numbered
+
+		Range(long start, long end, long firstLine) {
+			this.start = start;
+			this.end = end;
+			this.firstLine = firstLine;
+		}
+
+		/** Returns the number of bytes of the range */
+		public long size() {
+			return end - start;
+		}
+
+		@Override
+		public String toString() {
+			return "Range [" + start + ", " + end + "[";
+		}
+	}
+
+	/**
+	 * Opens a row reader on a whole CSV file.
+	 *
+	 * @param csvFilePath The path of the CSV file.
+	 * @param columns The names of the columns to decode (case is ignored), in the order of the values returned.
+	 * @param typeFilter The filter as a predicate on the equipment type code, or <code>null</code> to read all lines.
+	 * @return The row reader.
+	 * @throws IOException In case of problem reading the file, or if the type column is not found.
+	 */
+	public static CSVRowReader open(Path csvFilePath, Collection<String> columns, Predicate<String> typeFilter) throws IOException {
+
+		return open(csvFilePath, null, columns, typeFilter, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Opens a row reader on a range of a CSV file.
+	 * Columns absent from the file are read as missing values, except 'idetab' whose value is then the number of the line in the file, which identifies the line.
+	 *
+	 * @param csvFilePath The path of the CSV file.
+	 * @param range The range to read (as returned by <code>split</code>), or <code>null</code> for the whole file.
+	 * @param columns The names of the columns to decode (case is ignored), in the order of the values returned.
+	 * @param typeFilter The filter as a predicate on the equipment type code, or <code>null</code> to read all lines.
+	 * @param charset The character set of the file.
+	 * @return The row reader.
+	 * @throws IOException In case of problem reading the file, or if the type column is not found.
+	 */
+	public static CSVRowReader open(Path csvFilePath, Range range, Collection<String> columns, Predicate<String> typeFilter, Charset charset) throws IOException {
+
+		FileChannel channel = FileChannel.open(csvFilePath, StandardOpenOption.READ);
+		try {
+			List<String> header = readHeader(channel, charset);
+			if (range == null) range = new Range(headerSize(channel), channel.size(), 2);
+			return new CSVRowReader(channel, null, header, range, columns, typeFilter, charset);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a row reader on a CSV stream, which is read sequentially and closed with the reader.
+	 * Columns absent from the stream are read as missing values, except 'idetab' whose value is then the number of the line in the stream.
+	 *
+	 * @param csvStream The stream of the CSV content.
+	 * @param columns The names of the columns to decode (case is ignored), in the order of the values returned.
+	 * @param typeFilter The filter as a predicate on the equipment type code, or <code>null</code> to read all lines.
+	 * @param charset The character set of the stream.
+	 * @return The row reader.
+	 * @throws IOException In case of problem reading the stream, or if the type column is not found.
+	 */
+	public static CSVRowReader open(InputStream csvStream, Collection<String> columns, Predicate<String> typeFilter, Charset charset) throws IOException {
+
+		ReadableByteChannel input = Channels.newChannel(csvStream);
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(STREAM_WINDOW_SIZE);
+			boolean ended = fill(input, buffer);
+			int headerEnd = 0;
+			while ((headerEnd < buffer.position()) && (buffer.get(headerEnd) != '\n')) headerEnd++;
+			if ((headerEnd == buffer.position()) && !ended) throw new IOException("Header line longer than " + STREAM_WINDOW_SIZE + " bytes in CSV stream");
+			List<String> header = parseHeader(buffer.array(), Math.min(headerEnd, MAX_HEADER_SIZE), charset);
+			CSVRowReader reader = new CSVRowReader(null, input, header, new Range(0, ended ? buffer.position() : Long.MAX_VALUE, 2), columns, typeFilter, charset);
+			reader.window = buffer;
+			reader.windowLength = buffer.position();
+			reader.position = Math.min(headerEnd + 1, buffer.position());
+			return reader;
+		} catch (IOException | RuntimeException e) {
+			input.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the names of the columns in the header line of a CSV file.
+	 *
+	 * @param csvFilePath The path of the CSV file.
+	 * @param charset The character set of the file.
+	 * @return The names of the columns, in the order of the file.
+	 * @throws IOException In case of problem reading the file.
+	 */
+	public static List<String> readHeader(Path csvFilePath, Charset charset) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(csvFilePath, StandardOpenOption.READ)) {
+			return readHeader(channel, charset);
+		}
+	}
+
+	/**
+	 * Reads the names of the columns in the header line of a CSV stream, which is closed afterwards.
+	 *
+	 * @param csvStream The stream of the CSV content.
+	 * @param charset The character set of the stream.
+	 * @return The names of the columns, in the order of the stream.
+	 * @throws IOException In case of problem reading the stream.
+	 */
+	public static List<String> readHeader(InputStream csvStream, Charset charset) throws IOException {
+
+		try (InputStream input = new BufferedInputStream(csvStream)) {
+			byte[] bytes = new byte[MAX_HEADER_SIZE];
+			int length = 0;
+			int read;
+			while ((length < bytes.length) && ((read = input.read()) >= 0) && (read != '\n')) bytes[length++] = (byte) read;
+			return parseHeader(bytes, length, charset);
+		}
+	}
+
+	/**
+	 * Splits the lines of a CSV file (header excluded) into ranges of approximately equal sizes.
+	 * If the file has no 'idetab' column, the lines are counted so that each range knows the number of its first line.
+	 *
+	 * @param csvFilePath The path of the CSV file.
+	 * @param count The number of ranges wanted (there can be less ranges for small files).
+	 * @return The list of ranges, in the order of the file.
+	 * @throws IOException In case of problem reading the file.
+	 */
+	public static List<Range> split(Path csvFilePath, int count) throws IOException {
+
+		List<Range> ranges = new ArrayList<>();
+		try (FileChannel channel = FileChannel.open(csvFilePath, StandardOpenOption.READ)) {
+			boolean numbered = readHeader(channel, StandardCharsets.UTF_8).stream().noneMatch(ID_COLUMN::equalsIgnoreCase); // Column names are ASCII
+			long start = headerSize(channel);
+			long size = channel.size();
+			long step = Math.max(1, (size - start) / Math.max(1, count));
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 12);
+			long firstLine = 2;
+			while (start < size) {
+				long end = (size - start <= step) ? size : nextLineStart(channel, start + step, buffer);
+				ranges.add(new Range(start, end, numbered ? firstLine : 0));
+				if (numbered) firstLine += countLines(channel, start, end);
+				start = end;
+			}
+		}
+		return ranges;
+	}
+
+	private CSVRowReader(FileChannel channel, ReadableByteChannel input, List<String> header, Range range, Collection<String> columns, Predicate<String> typeFilter, Charset charset) throws IOException {
+
+		this.channel = channel;
+		this.input = input;
+		this.charset = charset;
+		this.typeFilter = typeFilter;
+		this.rangeEnd = range.end;
+		this.windowStart = range.start;
+		this.lineNumber = range.firstLine - 1;
+
+		Map<String, Integer> fieldPositions = new HashMap<>();
+		for (int field = 0; field < header.size(); field++) fieldPositions.putIfAbsent(header.get(field).toLowerCase(), field);
+		fieldCount = header.size();
+		typeField = fieldPositions.getOrDefault(TYPE_COLUMN, -1);
+		if (typeField < 0) throw new IOException("Column " + TYPE_COLUMN + " not found in CSV file");
+		projection = new int[columns.size()];
+		kinds = new int[columns.size()];
+		int index = 0;
+		for (String column : columns) {
+			projection[index] = fieldPositions.getOrDefault(column.toLowerCase(), -1);
+			kinds[index++] = COLUMN_KINDS.getOrDefault(column.toLowerCase(), STRING);
+		}
+		fieldStarts = new int[fieldCount];
+		fieldEnds = new int[fieldCount];
+		fieldQuoted = new boolean[fieldCount];
+		idIndex = (fieldPositions.containsKey(ID_COLUMN)) ? -1 : new ArrayList<>(columns).indexOf(ID_COLUMN);
+		if ((idIndex >= 0) && (range.firstLine <= 0)) throw new IllegalArgumentException("Lines of range " + range + " are not numbered");
+	}
+
+	/**
+	 * Returns the values of the next line accepted by the filter.
+	 *
+	 * @return The values of the columns required, or <code>null</code> if there are no more lines in the range.
+	 * @throws IOException In case of problem reading the file.
+	 */
+	@Override
+	public Object[] readNext() throws IOException {
+
+		while (true) {
+			int lineStart = nextLine();
+			if (lineStart < 0) return null;
+			linesRead++;
+			if ((typeFilter != null) && !typeFilter.test(decodeString(typeField).trim())) {
+				linesSkipped++;
+				continue;
+			}
+			Object[] values = new Object[projection.length];
+			for (int index = 0; index < projection.length; index++) {
+				int field = projection[index];
+				if (field < 0) {
+					if (index == idIndex) values[index] = Long.toString(lineNumber);
+					else values[index] = (kinds[index] == STRING) ? "" : null;
+					continue;
+				}
+				switch (kinds[index]) {
+					case DECIMAL: values[index] = decodeNumber(field, true); break;
+					case INTEGER: values[index] = decodeNumber(field, false); break;
+					case DATE: values[index] = decodeDate(field); break;
+					default: values[index] = decodeString(field);
+				}
+			}
+			return values;
+		}
+	}
+
+	/** Returns the number of lines read in the range, including the lines skipped by the filter */
+	public long getLinesRead() {
+		return linesRead;
+	}
+
+	/** Returns the number of lines skipped by the filter */
+	public long getLinesSkipped() {
+		return linesSkipped;
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		window = null;
+		if (channel != null) channel.close();
+		else input.close();
+	}
+
+	/**
+	 * Tokenizes the next line of the range, remapping the window if the line is not entirely in the current window.
+	 *
+	 * @return The position of the beginning of the line in the window, or -1 if there are no more lines.
+	 */
+	private int nextLine() throws IOException {
+
+		while (true) {
+			if ((window == null) || (position >= windowLength)) {
+				if (windowStart + position >= rangeEnd) return -1;
+				remap();
+			}
+			int lineEnd = tokenize(position);
+			if (lineEnd >= 0) {
+				lineNumber++;
+				int lineStart = position;
+				position = lineEnd;
+				if (isBlank(lineStart, lineEnd)) continue;
+				return lineStart;
+			}
+			if (position == 0) throw new IOException("Line longer than " + window.capacity() + " bytes at offset " + windowStart);
+			remap(); // Line truncated by the end of the window
+		}
+	}
+
+	private boolean isBlank(int lineStart, int lineEnd) {
+
+		for (int index = lineStart; index < lineEnd; index++) if ((window.get(index) != '\r') && (window.get(index) != '\n')) return false;
+		return true;
+	}
+
+	private void remap() throws IOException {
+
+		if (input != null) {
+			refill();
+			return;
+		}
+		windowStart += position;
+		windowLength = (int) Math.min(WINDOW_SIZE, rangeEnd - windowStart);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+		position = 0;
+	}
+
+	// Moves the remaining bytes to the beginning of the buffer and reads the stream after them
+	private void refill() throws IOException {
+
+		window.limit(windowLength).position(position);
+		window.compact();
+		windowStart += position;
+		if (fill(input, window)) rangeEnd = windowStart + window.position();
+		windowLength = window.position();
+		position = 0;
+	}
+
+	// Reads the channel into the buffer until the buffer is full, and returns true if the end of the channel is reached
+	private static boolean fill(ReadableByteChannel input, ByteBuffer buffer) throws IOException {
+
+		while (buffer.hasRemaining()) if (input.read(buffer) < 0) return true;
+		return false;
+	}
+
+	/**
+	 * Records the boundaries of the fields of the line starting at a given position of the window.
+	 *
+	 * @return The position following the end of the line, or -1 if the end of the line is not in the window (and the window does not end the range).
+	 */
+	private int tokenize(int lineStart) {
+
+		boolean lastWindow = (windowStart + windowLength >= rangeEnd);
+		int current = lineStart;
+		int field = 0;
+		while (true) {
+			boolean quoted = (current < windowLength) && (window.get(current) == QUOTE);
+			int start = quoted ? current + 1 : current;
+			int end;
+			if (quoted) {
+				end = start;
+				while (true) {
+					if (end >= windowLength) return lastWindow ? endOfLine(field, start, windowLength, true) : -1;
+					if (window.get(end) == QUOTE) {
+						if ((end + 1 < windowLength) && (window.get(end + 1) == QUOTE)) end += 2;
+						else break;
+					} else end++;
+				}
+				current = end + 1;
+			} else {
+				end = start;
+				while ((end < windowLength) && (window.get(end) != SEPARATOR) && (window.get(end) != '\n')) end++;
+				current = end;
+			}
+			if (field < fieldCount) {
+				fieldStarts[field] = start;
+				fieldEnds[field] = ((end > start) && !quoted && (window.get(end - 1) == '\r')) ? end - 1 : end;
+				fieldQuoted[field] = quoted;
+			}
+			field++;
+			// Move to the next separator (after a closing quote) or end of line
+			while ((current < windowLength) && (window.get(current) != SEPARATOR) && (window.get(current) != '\n')) current++;
+			if (current >= windowLength) {
+				if (!lastWindow) return -1;
+				return endOfLine(field, 0, windowLength, false);
+			}
+			if (window.get(current) == '\n') return endOfLine(field, 0, current + 1, false);
+			current++; // Skip separator
+		}
+	}
+
+	// Marks the missing fields of a short line as empty, and returns the position following the line
+	private int endOfLine(int field, int start, int next, boolean truncatedQuote) {
+
+		if (truncatedQuote && (field < fieldCount)) {
+			fieldStarts[field] = start;
+			fieldEnds[field] = next;
+			fieldQuoted[field] = true;
+			field++;
+		}
+		for (; field < fieldCount; field++) {
+			fieldStarts[field] = 0;
+			fieldEnds[field] = 0;
+			fieldQuoted[field] = false;
+		}
+		return next;
+	}
+
+	private String decodeString(int field) {
+
+		int start = fieldStarts[field];
+		int length = fieldEnds[field] - start;
+		if (length == 0) return "";
+		if (length == 1) {
+			byte single = window.get(start);
+			if (single >= 0) return ASCII_STRINGS[single];
+		}
+		if (decodingBuffer.length < length) decodingBuffer = new byte[Math.max(length, 2 * decodingBuffer.length)];
+		int decoded = 0;
+		for (int index = start; index < start + length; index++) {
+			byte current = window.get(index);
+			decodingBuffer[decoded++] = current;
+			if (fieldQuoted[field] && (current == QUOTE)) index++; // Escaped quote
+		}
+		return new String(decodingBuffer, 0, decoded, charset);
+	}
+
+	/**
+	 * Parses a number from the bytes of a field: integers are returned as <code>Long</code>, decimal numbers (with '.' or ',') as <code>Double</code> if allowed.
+	 */
+	private Object decodeNumber(int field, boolean decimalAllowed) {
+
+		int index = fieldStarts[field];
+		int end = fieldEnds[field];
+		while ((index < end) && (window.get(index) == ' ')) index++;
+		while ((end > index) && (window.get(end - 1) == ' ')) end--;
+		if (index == end) return null;
+		boolean negative = false;
+		if ((window.get(index) == '-') || (window.get(index) == '+')) negative = (window.get(index++) == '-');
+		long mantissa = 0;
+		int digits = 0;
+		int decimals = -1;
+		for (; index < end; index++) {
+			byte current = window.get(index);
+			if ((current >= '0') && (current <= '9')) {
+				mantissa = 10 * mantissa + (current - '0');
+				digits++;
+				if (decimals >= 0) decimals++;
+			} else if (((current == '.') || (current == ',')) && (decimals < 0) && decimalAllowed) decimals = 0;
+			else return parseNumberSlowly(field, decimalAllowed);
+		}
+		if ((digits == 0) || (digits > 15)) return parseNumberSlowly(field, decimalAllowed);
+		if (negative) mantissa = -mantissa;
+		if (decimals <= 0) return mantissa; // Integer values are of type Long, as with the SAS parser
+		// Both operands are exact doubles, so the quotient is correctly rounded, as with Double.parseDouble
+		return mantissa / POWERS_OF_TEN[decimals];
+	}
+
+	private Object parseNumberSlowly(int field, boolean decimalAllowed) {
+
+		String value = decodeString(field).trim().replace(',', '.');
+		try {
+			if (!decimalAllowed) return Long.parseLong(value);
+			double number = Double.parseDouble(value);
+			if ((number == Math.rint(number)) && (Math.abs(number) < 1e15) && !value.contains(".")) return (long) number;
+			return number;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Parses a date in ISO format (yyyy-MM-dd) from the bytes of a field, as the start of the day in the zone of the creation dates.
+	 */
+	private Date decodeDate(int field) {
+
+		int start = fieldStarts[field];
+		if (fieldEnds[field] - start < 10) return null;
+		int year = digitsValue(start, 4);
+		int month = digitsValue(start + 5, 2);
+		int day = digitsValue(start + 8, 2);
+		if ((year < 0) || (month < 1) || (month > 12) || (day < 1) || (day > 31) || (window.get(start + 4) != '-') || (window.get(start + 7) != '-')) return null;
+		try {
+			return new Date(LocalDate.of(year, month, day).atStartOfDay(RowFormatter.dateZone).toInstant().toEpochMilli());
+		} catch (java.time.DateTimeException e) {
+			return null;
+		}
+	}
+
+	private int digitsValue(int start, int length) {
+
+		int value = 0;
+		for (int index = start; index < start + length; index++) {
+			byte current = window.get(index);
+			if ((current < '0') || (current > '9')) return -1;
+			value = 10 * value + (current - '0');
+		}
+		return value;
+	}
+
+	private static List<String> readHeader(FileChannel channel, Charset charset) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(MAX_HEADER_SIZE, channel.size()));
+		channel.read(buffer, 0);
+		byte[] bytes = buffer.array();
+		int length = 0;
+		while ((length < buffer.position()) && (bytes[length] != '\n')) length++;
+
+		return parseHeader(bytes, length, charset);
+	}
+
+	// Returns the names of the columns in the header line contained in the first bytes of an array
+	private static List<String> parseHeader(byte[] bytes, int length, Charset charset) {
+
+		if ((length > 0) && (bytes[length - 1] == '\r')) length--;
+		int start = ((length >= 3) && (bytes[0] == (byte) 0xEF) && (bytes[1] == (byte) 0xBB) && (bytes[2] == (byte) 0xBF)) ? 3 : 0; // Byte order mark
+		List<String> names = new ArrayList<>();
+		for (String name : new String(bytes, start, length - start, charset).split(String.valueOf((char) SEPARATOR), -1)) {
+			names.add(name.trim().replace("\"", ""));
+		}
+		return names;
+	}
+
+	private static long headerSize(FileChannel channel) throws IOException {
+		return nextLineStart(channel, 0, ByteBuffer.allocate(1 << 12));
+	}
+
+	// Returns the number of line breaks between two positions
+	private static long countLines(FileChannel channel, long from, long to) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		long lines = 0;
+		long offset = from;
+		while (offset < to) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), to - offset));
+			int read = channel.read(buffer, offset);
+			if (read <= 0) break;
+			for (int index = 0; index < read; index++) if (buffer.get(index) == '\n') lines++;
+			offset += read;
+		}
+		return lines;
+	}
+
+	// Returns the position following the first line break found at or after a given position (or the size of the file)
+	private static long nextLineStart(FileChannel channel, long from, ByteBuffer buffer) throws IOException {
+
+		long size = channel.size();
+		long offset = from;
+		while (offset < size) {
+			buffer.clear();
+			int read = channel.read(buffer, offset);
+			if (read <= 0) break;
+			for (int index = 0; index < read; index++) if (buffer.get(index) == '\n') return offset + index + 1;
+			offset += read;
+		}
+		return size;
+	}
+}
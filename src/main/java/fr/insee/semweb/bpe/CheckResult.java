@@ -0,0 +1,153 @@
+package fr.insee.semweb.bpe;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * <code>CheckResult</code> collects the result of a {@link RowCheck} on the lines of the BPE database.
+ *
+ * Findings are counted by category, and only the first messages of each category are kept as samples, so that the size of the result does not depend on the number of lines.
+ * A check can also count lines by key (for example by equipment type). Results computed on different parts of the database are merged into one.
+ *
+ * @author Franck
+ */
+public class CheckResult {
+
+	final static int DEFAULT_MAX_SAMPLES = 20; // Number of messages kept for each category of findings
+	final static String NULL_KEY = "(null)"; // Key under which missing values are counted
+
+	private final String checkName;
+	private final int maxSamples;
+	private long rowsChecked = 0;
+	private final Map<String, long[]> counts = new HashMap<>(); // Counters are mutable, so that counting a line does not create objects
+	private final SortedMap<String, Long> findingCounts = new TreeMap<>();
+	private final Map<String, List<String>> samples = new HashMap<>();
+
+	/**
+	 * Creates an empty result.
+	 *
+	 * @param checkName The name of the check.
+	 * @param maxSamples The maximum number of messages kept for each category of findings.
+	 */
+	public CheckResult(String checkName, int maxSamples) {
+
+		this.checkName = checkName;
+		this.maxSamples = maxSamples;
+	}
+
+	/**
+	 * Records a finding.
+	 *
+	 * @param category The category of the finding.
+	 * @param message Supplies the message describing the finding, which is only formatted if there are less than the maximum number of samples for the category.
+	 */
+	public void report(String category, Supplier<String> message) {
+
+		findingCounts.merge(category, 1L, Long::sum);
+		List<String> categorySamples = samples.computeIfAbsent(category, key -> new ArrayList<>());
+		if (categorySamples.size() < maxSamples) categorySamples.add(message.get());
+	}
+
+	/**
+	 * Increments the count of a key.
+	 *
+	 * @param key The key counted (a <code>null</code> key is counted as <code>NULL_KEY</code>).
+	 */
+	public void count(String key) {
+
+		if (key == null) key = NULL_KEY; // The counts are sorted, null keys cannot be compared
+		long[] counter = counts.get(key);
+		if (counter == null) counts.put(key, counter = new long[1]);
+		counter[0]++;
+	}
+
+	/**
+	 * Adds another result of the same check to this result (the samples of this result come first).
+	 *
+	 * @param other The other result.
+	 */
+	public void merge(CheckResult other) {
+
+		rowsChecked += other.rowsChecked;
+		for (Map.Entry<String, long[]> count : other.counts.entrySet()) counts.computeIfAbsent(count.getKey(), key -> new long[1])[0] += count.getValue()[0];
+		for (Map.Entry<String, Long> count : other.findingCounts.entrySet()) findingCounts.merge(count.getKey(), count.getValue(), Long::sum);
+		for (Map.Entry<String, List<String>> otherSamples : other.samples.entrySet()) {
+			List<String> categorySamples = samples.computeIfAbsent(otherSamples.getKey(), key -> new ArrayList<>());
+			for (String message : otherSamples.getValue()) if (categorySamples.size() < maxSamples) categorySamples.add(message);
+		}
+	}
+
+	void incrementRowsChecked() {
+		rowsChecked++;
+	}
+
+	/** Returns the name of the check */
+	public String getCheckName() {
+		return checkName;
+	}
+
+	/** Returns the number of lines checked */
+	public long getRowsChecked() {
+		return rowsChecked;
+	}
+
+	/** Returns the counts recorded by the check, sorted by key */
+	public SortedMap<String, Long> getCounts() {
+
+		SortedMap<String, Long> sortedCounts = new TreeMap<>();
+		for (Map.Entry<String, long[]> count : counts.entrySet()) sortedCounts.put(count.getKey(), count.getValue()[0]);
+
+		return sortedCounts;
+	}
+
+	/** Returns the number of findings in each category, sorted by category */
+	public SortedMap<String, Long> getFindingCounts() {
+		return Collections.unmodifiableSortedMap(findingCounts);
+	}
+
+	/**
+	 * Returns the messages kept for a category of findings.
+	 *
+	 * @param category The category of findings.
+	 * @return The list of messages, empty if there are no findings in this category.
+	 */
+	public List<String> getSamples(String category) {
+		return Collections.unmodifiableList(samples.getOrDefault(category, Collections.emptyList()));
+	}
+
+	/**
+	 * Returns the total number of findings.
+	 *
+	 * @return The number of findings in all categories.
+	 */
+	public long getFindingCount() {
+		return findingCounts.values().stream().mapToLong(Long::longValue).sum();
+	}
+
+	/**
+	 * Indicates if the check found nothing.
+	 *
+	 * @return <code>true</code> if there are no findings, <code>false</code> otherwise.
+	 */
+	public boolean isPassed() {
+		return findingCounts.isEmpty();
+	}
+
+	/**
+	 * Returns a report of the result, with the number of findings and the samples of each category.
+	 *
+	 * @return The report, on several lines.
+	 */
+	@Override
+	public String toString() {
+
+		StringBuilder report = new StringBuilder();
+		report.append("Check ").append(checkName).append(": ").append(rowsChecked).append(" lines checked, ").append(getFindingCount()).append(" finding(s)");
+		for (String category : findingCounts.keySet()) {
+			report.append("\n\t").append(category).append(": ").append(findingCounts.get(category));
+			for (String message : samples.get(category)) report.append("\n\t\t").append(message);
+			if (findingCounts.get(category) > samples.get(category).size()) report.append("\n\t\t...");
+		}
+		return report.toString();
+	}
+}
@@ -0,0 +1,143 @@
+package fr.insee.semweb.bpe;
+
+import java.util.*;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import fr.insee.semweb.bpe.Configuration.Domain;
+
+/**
+ * <code>ChunkPlanner</code> computes the chunks of equipment types from the number of equipments of each type, so that the model of each chunk stays under a budget of triples.
+ *
+ * The number of triples of an equipment is estimated from its type: general properties, domain class, specialized features and properties of the type
+ * (as listed in the file of features by types) and geometry if created. The types are grouped by domain (first letter of the code), split into sub-domains
+ * (first two characters) and then into individual types only when a group exceeds the budget, so that the chunk expressions stay short.
+ * The groups are then packed into chunks by decreasing size (first fit decreasing), and the chunks are returned largest first, so that chunks created in parallel finish evenly.
+ * Only the types of the code list of equipment types are planned, since the chunk expressions must compile into type filters (see {@link TypeFilter}).
+ *
+ * @author Franck
+ */
+public class ChunkPlanner {
+
+	public static Logger logger = LogManager.getLogger(ChunkPlanner.class);
+
+	final static int GENERAL_TRIPLES = 4; // Equipment class, type, municipality and creation date
+	final static int GEOMETRY_TRIPLES = 4; // Spatial object class, geometry class, WKT literal and link to the geometry
+	final static int[] PREFIX_LENGTHS = {1, 2}; // Lengths of the prefixes grouping the types, from the largest groups to the smallest
+
+	private final SortedMap<String, Long> triplesByType = new TreeMap<>();
+
+	/**
+	 * Creates a planner.
+	 * Types absent from the code list of equipment types are ignored with a warning.
+	 *
+	 * @param countsByType The number of equipments of each type (as returned by <code>SASUtils.countEquipmentsByType</code>).
+	 * @param featuresAndPropertiesByType The features and properties of each type (as returned by <code>Configuration.listFeaturesAndPropertiesByType</code>).
+	 */
+	public ChunkPlanner(Map<String, Integer> countsByType, Map<String, SortedSet<String>> featuresAndPropertiesByType) {
+
+		SortedSet<String> unknownTypes = new TreeSet<>();
+		long unknownCount = 0;
+		for (Map.Entry<String, Integer> count : countsByType.entrySet()) {
+			if (count.getValue() <= 0) continue;
+			if (TypeFilter.getTypeIndex(count.getKey()) < 0) {
+				unknownTypes.add(count.getKey());
+				unknownCount += count.getValue();
+				continue;
+			}
+			triplesByType.put(count.getKey(), (long) count.getValue() * estimateTriplesPerEquipment(count.getKey(), featuresAndPropertiesByType.get(count.getKey())));
+		}
+		if (!unknownTypes.isEmpty()) logger.warn("Types " + unknownTypes + " (" + unknownCount + " equipments) are not in the code list of equipment types and will not be included in the chunks");
+	}
+
+	/**
+	 * Estimates the number of triples of the main model describing an equipment of a given type.
+	 * The estimate is an upper bound, since features and properties can be absent for an equipment.
+	 *
+	 * @param equipmentType The equipment type code.
+	 * @param featuresAndProperties The features and properties of the type, can be null if there are none.
+	 * @return The estimated number of triples.
+	 */
+	public static int estimateTriplesPerEquipment(String equipmentType, Set<String> featuresAndProperties) {
+
+		int triples = GENERAL_TRIPLES;
+		if (Configuration.getDomain(equipmentType) != Domain.ENSEMBLE) triples++; // Domain class
+		if (featuresAndProperties != null) triples += featuresAndProperties.size();
+		if (Configuration.CREATE_GEOMETRY) triples += GEOMETRY_TRIPLES;
+
+		return triples;
+	}
+
+	/**
+	 * Returns the estimated number of triples of the main model for each type.
+	 *
+	 * @return The estimated numbers of triples, indexed by type code.
+	 */
+	public SortedMap<String, Long> getTriplesByType() {
+		return Collections.unmodifiableSortedMap(triplesByType);
+	}
+
+	/**
+	 * Plans chunks whose main models do not exceed a number of triples (except for types which exceed it alone).
+	 *
+	 * @param maxTriples The maximum number of triples of a chunk.
+	 * @return The estimated numbers of triples of the chunks, indexed by chunk expression (see {@link TypeFilter}), largest chunks first.
+	 */
+	public LinkedHashMap<String, Long> plan(long maxTriples) {
+
+		// Split the groups of types until they fit in the budget
+		Map<String, Long> groups = new TreeMap<>();
+		for (String type : triplesByType.keySet()) groups.merge(type.substring(0, Math.min(PREFIX_LENGTHS[0], type.length())), triplesByType.get(type), Long::sum);
+		for (int level = 1; level <= PREFIX_LENGTHS.length; level++) {
+			Map<String, Long> splitGroups = new TreeMap<>();
+			for (Map.Entry<String, Long> group : groups.entrySet()) {
+				if ((group.getValue() <= maxTriples) || (group.getKey().length() < PREFIX_LENGTHS[level - 1])) {
+					splitGroups.put(group.getKey(), group.getValue()); // Group fits, or is already a type shorter than the prefix
+					continue;
+				}
+				for (String type : triplesByType.subMap(group.getKey(), group.getKey() + Character.MAX_VALUE).keySet()) {
+					String prefix = (level < PREFIX_LENGTHS.length) ? type.substring(0, Math.min(PREFIX_LENGTHS[level], type.length())) : type;
+					splitGroups.merge(prefix, triplesByType.get(type), Long::sum);
+				}
+			}
+			groups = splitGroups;
+		}
+
+		// First fit decreasing: each group goes to the first chunk with room left, or to a new chunk
+		List<Map.Entry<String, Long>> sortedGroups = new ArrayList<>(groups.entrySet());
+		sortedGroups.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+		List<SortedSet<String>> chunkGroups = new ArrayList<>();
+		List<Long> chunkTriples = new ArrayList<>();
+		for (Map.Entry<String, Long> group : sortedGroups) {
+			if (group.getValue() > maxTriples) logger.warn("Type group " + group.getKey() + " has an estimated " + group.getValue() + " triples, more than the maximum of " + maxTriples + " for a chunk");
+			int chunk = 0;
+			while ((chunk < chunkGroups.size()) && (chunkTriples.get(chunk) + group.getValue() > maxTriples)) chunk++;
+			if (chunk == chunkGroups.size()) {
+				chunkGroups.add(new TreeSet<>());
+				chunkTriples.add(0L);
+			}
+			chunkGroups.get(chunk).add(group.getKey());
+			chunkTriples.set(chunk, chunkTriples.get(chunk) + group.getValue());
+		}
+
+		List<Integer> order = new ArrayList<>();
+		for (int chunk = 0; chunk < chunkGroups.size(); chunk++) order.add(chunk);
+		order.sort((first, second) -> Long.compare(chunkTriples.get(second), chunkTriples.get(first)));
+		LinkedHashMap<String, Long> chunks = new LinkedHashMap<>();
+		for (int chunk : order) chunks.put(String.join("+", chunkGroups.get(chunk)), chunkTriples.get(chunk));
+		logger.info(chunks.size() + " chunks planned for a maximum of " + maxTriples + " triples per chunk: " + chunks);
+
+		return chunks;
+	}
+
+	/**
+	 * Plans chunks whose in-memory main models fit in a heap budget (see <code>ChunkScheduler.getBytesPerTriple</code>).
+	 *
+	 * @param heapBytes The heap available for the model of a chunk, in bytes.
+	 * @return The estimated numbers of triples of the chunks, indexed by chunk expression, largest chunks first.
+	 */
+	public LinkedHashMap<String, Long> planForHeap(long heapBytes) {
+		return plan(heapBytes / ChunkScheduler.getBytesPerTriple());
+	}
+}
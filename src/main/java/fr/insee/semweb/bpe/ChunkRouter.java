@@ -0,0 +1,96 @@
+package fr.insee.semweb.bpe;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * <code>ChunkRouter</code> gives for each equipment type the list of the chunks whose filter accepts the type.
+ *
+ * The filters are evaluated once for each code of the code list of equipment types, so that routing a line is a table lookup
+ * instead of one predicate evaluation per chunk. Types absent from the code list are evaluated when first met.
+ * Chunks are designated by their position in the iteration order of the map of filters.
+ *
+ * @author Franck
+ */
+class ChunkRouter {
+
+	private static final int[] NO_CHUNK = new int[0];
+
+	private final List<Predicate<String>> filters;
+	/** Positions of the chunks accepting each type, indexed by type index (see <code>TypeFilter.getTypeIndex</code>) */
+	private final int[][] routes;
+	private final Map<String, int[]> otherRoutes = new ConcurrentHashMap<>();
+	private final boolean acceptsAllCodes; // True if each code of the code list is accepted by at least one chunk
+
+	/**
+	 * Creates the router for a set of filters.
+	 *
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 */
+	ChunkRouter(Map<String, Predicate<String>> typeFilters) {
+
+		filters = new ArrayList<>(typeFilters.values());
+		List<String> typeCodes = TypeFilter.listTypeCodes();
+		routes = new int[typeCodes.size()][];
+		boolean allAccepted = true;
+		for (int index = 0; index < routes.length; index++) {
+			routes[index] = evaluate(typeCodes.get(index));
+			allAccepted &= (routes[index].length > 0);
+		}
+		acceptsAllCodes = allAccepted;
+	}
+
+	/**
+	 * Returns the chunks whose filter accepts an equipment type.
+	 *
+	 * @param equipmentType The equipment type code.
+	 * @return The positions of the chunks, in increasing order (empty if the type is not selected).
+	 */
+	int[] route(String equipmentType) {
+
+		int index = TypeFilter.getTypeIndex(equipmentType);
+		if (index >= 0) return routes[index];
+
+		return otherRoutes.computeIfAbsent(equipmentType, this::evaluate);
+	}
+
+	/**
+	 * Indicates if an equipment type is accepted by at least one chunk.
+	 *
+	 * @param equipmentType The equipment type code.
+	 * @return <code>true</code> if at least one chunk accepts the type.
+	 */
+	boolean accepts(String equipmentType) {
+		return route(equipmentType).length > 0;
+	}
+
+	/**
+	 * Returns the filter to push down to the readers of lines.
+	 * Lines are routed after being read anyway, so no filter is pushed down when all the codes of the code list are accepted:
+	 * the readers then avoid the cost of the filtering (a second decoding of the pages for the SAS database).
+	 *
+	 * @return The filter as a predicate on the equipment type code, or <code>null</code> if all the codes are accepted.
+	 */
+	Predicate<String> getReadFilter() {
+		return acceptsAllCodes ? null : this::accepts;
+	}
+
+	/**
+	 * Returns the number of chunks.
+	 *
+	 * @return The number of chunks.
+	 */
+	int size() {
+		return filters.size();
+	}
+
+	private int[] evaluate(String equipmentType) {
+
+		int[] chunks = new int[filters.size()];
+		int count = 0;
+		for (int position = 0; position < filters.size(); position++) if (filters.get(position).test(equipmentType)) chunks[count++] = position;
+
+		return (count == 0) ? NO_CHUNK : Arrays.copyOf(chunks, count);
+	}
+}
@@ -0,0 +1,251 @@
+package fr.insee.semweb.bpe;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <code>ChunkScheduler</code> runs the creation of several chunks concurrently, admitting a new chunk only when the heap has room for it.
+ *
+ * Each chunk is built (for example as an in-memory model) by a pool of threads, then written by another executor, which uses virtual threads when the JVM provides them.
+ * The heap memory estimated for a chunk is reserved from its admission until the end of its writing. A chunk is admitted when fewer chunks than the concurrency are being built
+ * and the estimate fits in the free heap, i.e. the maximum heap minus a safety margin, minus the memory held by live objects, minus the reservations of the chunks in progress.
+ * The decision is reconsidered each time a chunk completes and each time a garbage collection ends (GC notifications), instead of pausing between chunks.
+ * When no chunk is in progress, the next chunk is always admitted, so that a chunk larger than the estimated free heap is still processed, alone.
+ *
+ * @author Franck
+ */
+public class ChunkScheduler {
+
+	public static Logger logger = LogManager.getLogger(ChunkScheduler.class);
+
+	final static long ADMISSION_WAIT = 1000; // Maximum time in milliseconds between two admission attempts without any event
+	final static double HEAP_MARGIN = 0.1; // Part of the maximum heap that is never reserved
+	final static int BYTES_PER_TRIPLE = 300; // Approximate heap used by a triple in an in-memory Jena model, with its share of nodes and indexes
+	final static int COMPACT_BYTES_PER_TRIPLE = 100; // Approximate heap used by a triple in a compact graph, with its share of the dictionary and the sorting when the graph is first read
+
+	/**
+	 * A chunk to create in two steps: building, then writing.
+	 *
+	 * @param <M> The type of the result of the building step, for example a model.
+	 */
+	public interface Chunk<M> {
+
+		/**
+		 * Builds the chunk (called in a thread of the building pool).
+		 *
+		 * @return The result of the building step.
+		 * @throws Exception In case of problem.
+		 */
+		M build() throws Exception;
+
+		/**
+		 * Writes the chunk and releases its resources (called in a thread of the writing executor).
+		 *
+		 * @param built The result of the building step.
+		 * @return The number of items written (for example triples).
+		 * @throws Exception In case of problem.
+		 */
+		long write(M built) throws Exception;
+	}
+
+	private final int concurrency;
+	private final Object lock = new Object();
+	private int building = 0; // Number of chunks admitted whose building is not finished
+	private long reserved = 0; // Heap reserved by the chunks admitted whose writing is not finished
+
+	/**
+	 * Creates a scheduler.
+	 *
+	 * @param concurrency The maximum number of chunks built at the same time.
+	 */
+	public ChunkScheduler(int concurrency) {
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * Creates chunks, in the order of the map for admission.
+	 *
+	 * @param <M> The type of the result of the building step.
+	 * @param chunks The chunks to create, indexed by name.
+	 * @param estimatedBytes The estimated heap used by each chunk, indexed by chunk name (a default estimate is used for the chunks absent from the map).
+	 * @return The numbers of items written, indexed by chunk name in the order of the chunks.
+	 * @throws IOException In case of problem with a chunk, in which case the chunks not yet admitted are abandoned.
+	 */
+	public <M> Map<String, Long> run(Map<String, Chunk<M>> chunks, Map<String, Long> estimatedBytes) throws IOException {
+
+		long defaultEstimate = getDefaultEstimate(estimatedBytes);
+		ExecutorService builders = Executors.newFixedThreadPool(concurrency);
+		ExecutorService writers = newWriterExecutor();
+		NotificationListener listener = (notification, handback) -> {
+			synchronized (lock) {
+				lock.notifyAll();
+			}
+		};
+		List<NotificationEmitter> emitters = addGCListener(listener);
+		Map<String, CompletableFuture<Long>> results = new LinkedHashMap<>();
+		try {
+			for (Map.Entry<String, Chunk<M>> entry : chunks.entrySet()) {
+				String name = entry.getKey();
+				Chunk<M> chunk = entry.getValue();
+				long estimate = estimatedBytes.getOrDefault(name, defaultEstimate);
+				admit(name, estimate, results.values());
+				CompletableFuture<Long> result = CompletableFuture.supplyAsync(() -> {
+					try {
+						return chunk.build();
+					} catch (Exception e) {
+						throw new CompletionException(e);
+					} finally {
+						release(0, true);
+					}
+				}, builders).thenApplyAsync(built -> {
+					try {
+						return chunk.write(built);
+					} catch (Exception e) {
+						throw new CompletionException(e);
+					}
+				}, writers);
+				results.put(name, result.whenComplete((count, exception) -> release(estimate, false)));
+			}
+			Map<String, Long> counts = new LinkedHashMap<>();
+			for (Map.Entry<String, CompletableFuture<Long>> result : results.entrySet()) counts.put(result.getKey(), result.getValue().get());
+
+			return counts;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while creating the chunks", e);
+		} catch (ExecutionException e) {
+			Throwable cause = (e.getCause() instanceof CompletionException) ? e.getCause().getCause() : e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw new IOException("Error while creating a chunk", cause);
+		} finally {
+			for (CompletableFuture<Long> result : results.values()) result.cancel(true);
+			builders.shutdownNow();
+			writers.shutdownNow();
+			for (NotificationEmitter emitter : emitters) {
+				try {
+					emitter.removeNotificationListener(listener);
+				} catch (ListenerNotFoundException ignored) {
+					// Nothing to remove
+				}
+			}
+		}
+	}
+
+	/**
+	 * Estimates the heap used by in-memory models from their number of triples (see <code>getBytesPerTriple</code>).
+	 * Models larger than <code>Configuration.SPILL_THRESHOLD</code> are moved to disk, so they are counted at the threshold.
+	 *
+	 * @param triples The numbers of triples (for example from the metrics of a previous run), indexed by chunk name.
+	 * @return The estimated sizes in bytes, indexed by chunk name.
+	 */
+	public static Map<String, Long> estimateModelSizes(Map<String, Long> triples) {
+
+		Map<String, Long> sizes = new LinkedHashMap<>();
+		for (Map.Entry<String, Long> chunk : triples.entrySet()) sizes.put(chunk.getKey(), ((Configuration.SPILL_THRESHOLD > 0) ? Math.min(chunk.getValue(), Configuration.SPILL_THRESHOLD) : chunk.getValue()) * getBytesPerTriple());
+
+		return sizes;
+	}
+
+	/**
+	 * Returns the approximate heap used by a triple of the in-memory models, which depends on the type of graph used (see <code>Configuration.COMPACT_MODELS</code>).
+	 *
+	 * @return The number of bytes per triple.
+	 */
+	public static int getBytesPerTriple() {
+		return Configuration.COMPACT_MODELS ? COMPACT_BYTES_PER_TRIPLE : BYTES_PER_TRIPLE;
+	}
+
+	/**
+	 * Returns the heap that can be reserved for new chunks: maximum heap minus the safety margin, the memory held by the surviving objects and the reservations in progress.
+	 *
+	 * @return The free heap in bytes (can be negative).
+	 */
+	long getFreeHeap() {
+
+		long maxHeap = Runtime.getRuntime().maxMemory();
+		synchronized (lock) {
+			return (long) (maxHeap * (1 - HEAP_MARGIN)) - getSurvivingHeap() - reserved;
+		}
+	}
+
+	// Waits until the chunk can be admitted, or throws the exception of a chunk that failed meanwhile
+	private void admit(String name, long estimate, Collection<CompletableFuture<Long>> started) throws InterruptedException, ExecutionException {
+
+		synchronized (lock) {
+			while (true) {
+				for (CompletableFuture<Long> result : started) if (result.isCompletedExceptionally()) result.get();
+				if ((building < concurrency) && ((reserved == 0) || (getFreeHeap() >= estimate))) break;
+				lock.wait(ADMISSION_WAIT);
+			}
+			if ((reserved == 0) && (getFreeHeap() < estimate)) logger.warn("Chunk " + name + " admitted alone, its estimated size (" + (estimate >> 20) + " MB) exceeds the free heap");
+			building++;
+			reserved += estimate;
+			if (logger.isDebugEnabled()) logger.debug("Chunk " + name + " admitted with " + (estimate >> 20) + " MB reserved, " + building + " chunk(s) being built, " + (reserved >> 20) + " MB reserved in total");
+		}
+	}
+
+	private void release(long estimate, boolean built) {
+
+		synchronized (lock) {
+			if (built) building--;
+			reserved -= estimate;
+			lock.notifyAll();
+		}
+		RunMetrics.get().sampleHeap();
+	}
+
+	// Objects in the eden space are mostly garbage and do not count, other pools (survivor, old generation or single pools) count with their current usage
+	private static long getSurvivingHeap() {
+
+		long surviving = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if ((pool.getType() != MemoryType.HEAP) || pool.getName().contains("Eden")) continue;
+			surviving += pool.getUsage().getUsed();
+		}
+		return surviving;
+	}
+
+	// Chunks without estimate are supposed as large as the largest estimate, or as a share of the heap if there is no estimate at all
+	private long getDefaultEstimate(Map<String, Long> estimatedBytes) {
+
+		if (!estimatedBytes.isEmpty()) return Collections.max(estimatedBytes.values());
+		return (long) (Runtime.getRuntime().maxMemory() * (1 - HEAP_MARGIN) / concurrency);
+	}
+
+	private static List<NotificationEmitter> addGCListener(NotificationListener listener) {
+
+		List<NotificationEmitter> emitters = new ArrayList<>();
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (!(collector instanceof NotificationEmitter)) continue;
+			((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+			emitters.add((NotificationEmitter) collector);
+		}
+		return emitters;
+	}
+
+	// Writing is mostly waiting for the disk: virtual threads are used if the JVM provides them (Java 21 and later), otherwise a cached pool
+	private static ExecutorService newWriterExecutor() {
+
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+}
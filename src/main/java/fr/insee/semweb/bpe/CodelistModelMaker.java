@@ -1,8 +1,6 @@
 package fr.insee.semweb.bpe;
 
 import fr.insee.semweb.bpe.Configuration.Domain;
-import net.iryndin.jdbf.core.DbfRecord;
-import net.iryndin.jdbf.reader.DbfReader;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.Resource;
@@ -71,7 +69,7 @@ public class CodelistModelMaker {
 		// Create the resources corresponding to individual codes
 		Map<String, String> equipmentTypes = useDBF ? readEquipmentTypesDBF() : readEquipmentTypesTSV() ;
 		for (String equipmentTypeCode : equipmentTypes.keySet()) {
-			Resource codeResource = codeListModel.createResource(Configuration.inseeEquipmentTypeURI(equipmentTypeCode), SKOS.Concept);
+			Resource codeResource = NodeCache.equipmentType(equipmentTypeCode).inModel(codeListModel).addProperty(RDF.type, SKOS.Concept);
 			codeResource.addProperty(RDF.type, BPEOnto.TypeEquipement); // The codes are instances of the code concept class
 			codeResource.addProperty(SKOS.notation, equipmentTypeCode);
 			codeResource.addProperty(SKOS.prefLabel, codeListModel.createLiteral(equipmentTypes.get(equipmentTypeCode), "fr"));
@@ -92,7 +90,7 @@ public class CodelistModelMaker {
 					continue;
 				}
 				int parentCodeLength = (equipmentTypeCode.length() == 2) ? 1 : 2;
-				Resource parentResource = codeListModel.createResource(Configuration.inseeEquipmentTypeURI(equipmentTypeCode.substring(0, parentCodeLength)));
+				Resource parentResource = NodeCache.equipmentType(equipmentTypeCode.substring(0, parentCodeLength)).inModel(codeListModel);
 				codeResource.addProperty(SKOS.broader, parentResource);
 				parentResource.addProperty(SKOS.narrower, codeResource);
 			} else schemeResource.addProperty(SKOS.hasTopConcept, codeResource);
@@ -143,7 +141,7 @@ public class CodelistModelMaker {
 				String[] tokens = line.split("\t");
 				if (tokens.length == 3) {
 					String featureCode = tokens[0];
-					Resource codeResource = codeListModel.createResource(Configuration.inseeFeatureURI(featureCode), SKOS.Concept);
+					Resource codeResource = NodeCache.feature(featureCode).inModel(codeListModel).addProperty(RDF.type, SKOS.Concept);
 					codeResource.addProperty(RDF.type, BPEOnto.Caractere); // The codes are instances of the code concept class
 					codeResource.addProperty(SKOS.notation, featureCode);
 					codeResource.addProperty(SKOS.prefLabel, codeListModel.createLiteral(tokens[2], "fr"));
@@ -193,14 +191,14 @@ public class CodelistModelMaker {
 		classResource.addProperty(RDFS.seeAlso, schemeResource);
 		schemeResource.addProperty(RDFS.seeAlso, classResource);
 
-    	Resource codeResource = codeListModel.createResource(Configuration.inseeSectorURI("PR"), SKOS.Concept);
+    	Resource codeResource = NodeCache.sector("PR").inModel(codeListModel).addProperty(RDF.type, SKOS.Concept);
 		codeResource.addProperty(RDF.type, BPEOnto.Secteur); // The codes are instances of the code concept class
 		codeResource.addProperty(SKOS.notation, "PR");
 		codeResource.addProperty(SKOS.prefLabel, codeListModel.createLiteral("Privé", "fr"));
 		codeResource.addProperty(SKOS.prefLabel, codeListModel.createLiteral("Private", "en"));
 		codeResource.addProperty(SKOS.inScheme, schemeResource);
 		schemeResource.addProperty(SKOS.hasTopConcept, codeResource);
-		codeResource = codeListModel.createResource(Configuration.inseeSectorURI("PU"), SKOS.Concept);
+		codeResource = NodeCache.sector("PU").inModel(codeListModel).addProperty(RDF.type, SKOS.Concept);
 		codeResource.addProperty(RDF.type, BPEOnto.Secteur); // The codes are instances of the code concept class
 		codeResource.addProperty(SKOS.notation, "PU");
 		codeResource.addProperty(SKOS.prefLabel, codeListModel.createLiteral("Public", "fr"));
@@ -239,7 +237,7 @@ public class CodelistModelMaker {
 
 		// Add the three modalities used in the BPE datasets
 		for (QualityLevel qualityLevel : QualityLevel.values()) {
-			Resource codeResource = codeListModel.createResource(Configuration.inseeQualityLevelURI(qualityLevel.getCode()), SKOS.Concept);
+			Resource codeResource = NodeCache.qualityLevel(qualityLevel).inModel(codeListModel).addProperty(RDF.type, SKOS.Concept);
 			codeResource.addProperty(RDF.type, classResource); // The codes are instances of the code concept class
 			codeResource.addProperty(SKOS.notation, qualityLevel.getCode());
 			codeResource.addProperty(SKOS.prefLabel, codeListModel.createLiteral(qualityLevel.getLabel("fr"), "fr"));
@@ -273,24 +271,21 @@ public class CodelistModelMaker {
 		Map<String, String> equipmentTypes = new HashMap<>();
 
 		Path codelistFilePath = Configuration.getBDFTypesCodelistFilePath(Domain.ENSEMBLE);
-		DbfRecord record = null;
-		try {
-			InputStream dbf = new FileInputStream(codelistFilePath.toString());
-			try (DbfReader reader = new DbfReader(dbf)) {
-				while ((record = reader.read()) != null) {
-					record.setStringCharset(Configuration.STRING_CHARSET);
-					logger.debug("Processing record " + record.toMap());
-					logger.debug("VARIABLE field value: " + record.getString("VARIABLE"));
-					if (record.getString("VARIABLE").equals("TYPEQU")) {
-						String typeCode = record.getString("MODALITE");
-						String typeLabel = Configuration.normalizeString(record.getString("MODLIBELLE"));
-						equipmentTypes.put(typeCode, typeLabel);
-					}
+		int record = -1;
+		try (DBFRecordReader reader = DBFRecordReader.open(codelistFilePath)) {
+			int variableField = reader.getFieldIndex("VARIABLE");
+			int codeField = reader.getFieldIndex("MODALITE");
+			int labelField = reader.getFieldIndex("MODLIBELLE");
+			for (record = 0; record < reader.getRecordCount(); record++) {
+				logger.debug("Processing record " + reader.getRecordMap(record));
+				if ("TYPEQU".equals(reader.getString(record, variableField))) {
+					String typeCode = reader.getString(record, codeField);
+					String typeLabel = Configuration.normalizeString(reader.getString(record, labelField));
+					equipmentTypes.put(typeCode, typeLabel);
 				}
 			}
-			dbf.close();
 		} catch (Exception e) {
-			logger.error("Error processing " + record + " - " + e.getMessage());
+			logger.error("Error processing record " + DBFRecordReader.getRecordNumber(record) + " of " + codelistFilePath + " - " + e.getMessage());
 		}
 		return equipmentTypes;
 	}
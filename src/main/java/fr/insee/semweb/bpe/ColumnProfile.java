@@ -0,0 +1,179 @@
+package fr.insee.semweb.bpe;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+
+/**
+ * <code>ColumnProfile</code> accumulates statistics on the values of a column of the BPE database: number of missing values, minimum and maximum,
+ * estimated number of distinct values (see {@link HyperLogLog}) and estimated most frequent values (see {@link CountMinSketch}).
+ *
+ * Counters are primitive fields, and the memory used does not depend on the number of lines. Profiles computed on different parts of the database are merged into one.
+ *
+ * @author Franck
+ */
+public class ColumnProfile {
+
+	final static int DEFAULT_TOP_COUNT = 10; // Number of most frequent values reported
+
+	private final String columnName;
+	private final int topCount;
+	private long valueCount = 0;
+	private long nullCount = 0;
+	private double minNumber = Double.POSITIVE_INFINITY;
+	private double maxNumber = Double.NEGATIVE_INFINITY;
+	private long numberCount = 0;
+	private long minDate = Long.MAX_VALUE;
+	private long maxDate = Long.MIN_VALUE;
+	private long dateCount = 0;
+	private String minString = null;
+	private String maxString = null;
+	private final HyperLogLog distinctValues = new HyperLogLog();
+	private final CountMinSketch frequencies;
+
+	/**
+	 * Creates an empty profile.
+	 *
+	 * @param columnName The name of the column.
+	 * @param topCount The number of most frequent values to report.
+	 */
+	public ColumnProfile(String columnName, int topCount) {
+
+		this.columnName = columnName;
+		this.topCount = topCount;
+		this.frequencies = new CountMinSketch(topCount);
+	}
+
+	/**
+	 * Adds a value to the profile.
+	 *
+	 * @param value The value, as returned by the readers (<code>String</code>, <code>Number</code> or <code>Date</code>), null or empty string for a missing value.
+	 */
+	public void add(Object value) {
+
+		valueCount++;
+		String string;
+		if (value instanceof String) {
+			string = ((String) value).trim();
+			if (string.isEmpty()) {
+				nullCount++;
+				return;
+			}
+			if ((minString == null) || (string.compareTo(minString) < 0)) minString = string;
+			if ((maxString == null) || (string.compareTo(maxString) > 0)) maxString = string;
+			value = string;
+		} else if (value instanceof Number) {
+			double number = ((Number) value).doubleValue();
+			if (Double.isNaN(number)) {
+				nullCount++;
+				return;
+			}
+			numberCount++;
+			if (number < minNumber) minNumber = number;
+			if (number > maxNumber) maxNumber = number;
+			string = formatNumber(number);
+		} else if (value instanceof Date) {
+			long time = ((Date) value).getTime();
+			dateCount++;
+			if (time < minDate) minDate = time;
+			if (time > maxDate) maxDate = time;
+			string = RowFormatter.formatDate(time);
+		} else if (value == null) {
+			nullCount++;
+			return;
+		} else string = value.toString();
+		long hash = HyperLogLog.hash(value);
+		distinctValues.add(hash);
+		frequencies.add(string, hash);
+	}
+
+	/**
+	 * Merges another profile of the same column into this one.
+	 *
+	 * @param other The other profile.
+	 */
+	public void merge(ColumnProfile other) {
+
+		valueCount += other.valueCount;
+		nullCount += other.nullCount;
+		numberCount += other.numberCount;
+		minNumber = Math.min(minNumber, other.minNumber);
+		maxNumber = Math.max(maxNumber, other.maxNumber);
+		dateCount += other.dateCount;
+		minDate = Math.min(minDate, other.minDate);
+		maxDate = Math.max(maxDate, other.maxDate);
+		if ((other.minString != null) && ((minString == null) || (other.minString.compareTo(minString) < 0))) minString = other.minString;
+		if ((other.maxString != null) && ((maxString == null) || (other.maxString.compareTo(maxString) > 0))) maxString = other.maxString;
+		distinctValues.merge(other.distinctValues);
+		frequencies.merge(other.frequencies);
+	}
+
+	/** Returns the name of the column */
+	public String getColumnName() {
+		return columnName;
+	}
+
+	/** Returns the number of values profiled, missing values included */
+	public long getValueCount() {
+		return valueCount;
+	}
+
+	/** Returns the number of missing values (null, empty strings or NaN) */
+	public long getNullCount() {
+		return nullCount;
+	}
+
+	/** Returns the estimated number of distinct values (missing values excluded) */
+	public long getDistinctCount() {
+		return distinctValues.estimate();
+	}
+
+	/**
+	 * Returns the minimum value of the column: the smallest number if there are numbers, otherwise the earliest date or the first string in lexicographic order.
+	 *
+	 * @return The minimum value formatted as a string, or <code>null</code> if all values are missing.
+	 */
+	public String getMin() {
+
+		if (numberCount > 0) return formatNumber(minNumber);
+		if (dateCount > 0) return RowFormatter.formatDate(minDate);
+		return minString;
+	}
+
+	/**
+	 * Returns the maximum value of the column (see <code>getMin</code>).
+	 *
+	 * @return The maximum value formatted as a string, or <code>null</code> if all values are missing.
+	 */
+	public String getMax() {
+
+		if (numberCount > 0) return formatNumber(maxNumber);
+		if (dateCount > 0) return RowFormatter.formatDate(maxDate);
+		return maxString;
+	}
+
+	/**
+	 * Returns the estimated most frequent values of the column.
+	 *
+	 * @return The values and their estimated frequencies, by decreasing frequency.
+	 */
+	public LinkedHashMap<String, Long> getTopValues() {
+		return frequencies.getHeavyHitters(topCount);
+	}
+
+	/**
+	 * Returns a one-line summary of the profile.
+	 *
+	 * @return The summary.
+	 */
+	@Override
+	public String toString() {
+
+		return columnName + ": " + valueCount + " values, " + nullCount + " missing, ~" + getDistinctCount() + " distinct, min " + getMin() + ", max " + getMax() + ", top " + getTopValues();
+	}
+
+	private static String formatNumber(double number) {
+
+		if ((number == Math.rint(number)) && (Math.abs(number) < 1e15)) return Long.toString((long) number);
+		return Double.toString(number);
+	}
+}
@@ -0,0 +1,138 @@
+package fr.insee.semweb.bpe;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.epam.parso.Column;
+
+/**
+ * <code>ColumnProfiler</code> computes in one scan of the BPE database a profile of each column (see {@link ColumnProfile}).
+ *
+ * In parallel mode, each thread profiles the ranges of lines it reads into its own profiles, which are merged at the end, so that the threads never share counters.
+ *
+ * @author Franck
+ */
+public class ColumnProfiler {
+
+	public static Logger logger = LogManager.getLogger(ColumnProfiler.class);
+
+	private final int parallelism;
+	private int topCount = ColumnProfile.DEFAULT_TOP_COUNT;
+
+	/**
+	 * Creates a profiler.
+	 *
+	 * @param parallelism The number of threads (1 for a sequential scan).
+	 */
+	public ColumnProfiler(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Sets the number of most frequent values reported for each column.
+	 *
+	 * @param topCount The number of values.
+	 * @return This profiler.
+	 */
+	public ColumnProfiler setTopCount(int topCount) {
+
+		this.topCount = topCount;
+		return this;
+	}
+
+	/**
+	 * Profiles all the columns of the BPE database (or of its columnar cache if it is up to date).
+	 *
+	 * @return The profiles, indexed by column name in the order of the database.
+	 * @throws IOException In case of problem reading the database.
+	 */
+	public Map<String, ColumnProfile> profile() throws IOException {
+
+		List<String> columns = new ArrayList<>();
+		for (Column column : SASUtils.listColumns().values()) columns.add(column.getName().toLowerCase());
+
+		return profile(columns);
+	}
+
+	/**
+	 * Profiles some columns of the BPE database (or of its columnar cache if it is up to date).
+	 *
+	 * @param columns The names of the columns to profile (in lower case, without duplicates).
+	 * @return The profiles, indexed by column name in the order of the list.
+	 * @throws IOException In case of problem reading the database.
+	 */
+	public Map<String, ColumnProfile> profile(List<String> columns) throws IOException {
+
+		if (parallelism > 1) {
+			Map<String, Callable<RowSource>> sources = RowValidator.splitSources(columns, null, parallelism);
+			if (sources != null) return profile(sources, columns);
+		}
+		try (RowSource rows = SASColumnCache.openRows(columns, null)) {
+			return profile(rows, columns);
+		}
+	}
+
+	/**
+	 * Profiles the lines of any source (for example synthetic lines, see {@link SyntheticBPEGenerator}).
+	 *
+	 * @param rows The source of lines.
+	 * @param columns The names of the columns of the lines, which are all profiled.
+	 * @return The profiles, indexed by column name in the order of the list.
+	 * @throws IOException In case of problem reading the source.
+	 */
+	public Map<String, ColumnProfile> profile(RowSource rows, List<String> columns) throws IOException {
+
+		ColumnProfile[] profiles = newProfiles(columns);
+		addRows(rows, profiles);
+
+		return toMap(profiles);
+	}
+
+	/**
+	 * Profiles several sources of lines in parallel (see <code>RowValidator.scanSources</code>).
+	 *
+	 * @param sources The sources of lines, indexed by name (each source is opened in the thread that reads it).
+	 * @param columns The names of the columns of the lines.
+	 * @return The profiles, merged in the order of the threads.
+	 * @throws IOException In case of problem reading a source.
+	 */
+	Map<String, ColumnProfile> profile(Map<String, Callable<RowSource>> sources, List<String> columns) throws IOException {
+
+		ColumnProfile[] profiles = newProfiles(columns);
+		for (ColumnProfile[] partialProfiles : RowValidator.scanSources(sources, parallelism, () -> newProfiles(columns), ColumnProfiler::addRows, "profiling")) {
+			for (int index = 0; index < profiles.length; index++) profiles[index].merge(partialProfiles[index]);
+		}
+		return toMap(profiles);
+	}
+
+	// Profiles are in an array indexed like the values, so that there is no lookup for each value
+	private ColumnProfile[] newProfiles(List<String> columns) {
+
+		ColumnProfile[] profiles = new ColumnProfile[columns.size()];
+		for (int index = 0; index < profiles.length; index++) profiles[index] = new ColumnProfile(columns.get(index), topCount);
+
+		return profiles;
+	}
+
+	private static void addRows(RowSource rows, ColumnProfile[] profiles) throws IOException {
+
+		Object[] values;
+		long lineCount = 0;
+		while ((values = rows.readNext()) != null) {
+			for (int index = 0; index < profiles.length; index++) profiles[index].add(values[index]);
+			if (((++lineCount % SASModelMaker.LOGGING_STEP) == 0) && logger.isDebugEnabled()) logger.debug(lineCount + " lines profiled");
+		}
+	}
+
+	private static Map<String, ColumnProfile> toMap(ColumnProfile[] profiles) {
+
+		Map<String, ColumnProfile> profileMap = new LinkedHashMap<>();
+		for (ColumnProfile profile : profiles) profileMap.putIfAbsent(profile.getColumnName(), profile);
+
+		return profileMap;
+	}
+}
@@ -0,0 +1,303 @@
+package fr.insee.semweb.bpe;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+
+import org.apache.jena.datatypes.RDFDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.GraphBase;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+import org.apache.jena.util.iterator.NullIterator;
+
+/**
+ * <code>CompactGraph</code> is an append-only Jena graph that stores its triples as triples of integer identifiers in a buffer, on or off the heap.
+ *
+ * Predicates and object URIs other than equipments and their geometries are identified in a dictionary shared by all the graphs, since they are repeated across the equipments,
+ * the other nodes (subjects, literals, blank nodes) in a dictionary local to the graph, where they are stored as bytes (see {@link NodeDictionary}). Shared identifiers are stored as negative numbers.
+ * The graph has no index while triples are added. On the first read after additions, the triples are sorted by subject, duplicates are removed, and a permutation sorted by object is built:
+ * patterns with a subject are answered from the first order, patterns with an object from the second, others by a scan.
+ * The graph is not modified while it is read: adding a triple invalidates the iterators in progress, and triples cannot be deleted.
+ *
+ * @author Franck
+ */
+public class CompactGraph extends GraphBase {
+
+	final static int INITIAL_CAPACITY = 3 * 1024; // In identifiers (three per triple)
+	final static int MAX_SHARED_NODES = 100000; // Same order of magnitude as the tables of NodeCache
+	final static int MAX_SHARED_STRINGS = 100000;
+	final static int MAX_SHARED_DATATYPES = 1000;
+
+	private static final SharedDictionary<Node> sharedNodes = new SharedDictionary<>(MAX_SHARED_NODES);
+	private static final SharedDictionary<String> sharedStrings = new SharedDictionary<>(MAX_SHARED_STRINGS);
+	private static final SharedDictionary<RDFDatatype> sharedDatatypes = new SharedDictionary<>(MAX_SHARED_DATATYPES);
+
+	private final boolean offHeap;
+	private final NodeDictionary localDictionary = new NodeDictionary(sharedStrings, sharedDatatypes);
+	private IntBuffer triples;
+	private int count = 0; // Number of triples in the buffer
+	private int sorted = 0; // Number of triples at the beginning of the buffer that are sorted by subject and without duplicates
+	private int[] objectOrder = new int[0]; // Positions of the sorted triples, by object
+	private int modifications = 0;
+
+	/**
+	 * Creates an empty graph on the heap.
+	 */
+	public CompactGraph() {
+		this(false);
+	}
+
+	/**
+	 * Creates an empty graph.
+	 *
+	 * @param offHeap Indicates if the triples are stored in direct memory, outside the heap (the dictionaries stay on the heap).
+	 */
+	public CompactGraph(boolean offHeap) {
+
+		this.offHeap = offHeap;
+		this.triples = allocate(INITIAL_CAPACITY);
+	}
+
+	@Override
+	public synchronized void performAdd(Triple triple) {
+
+		if (3 * (count + 1) > triples.capacity()) {
+			IntBuffer larger = allocate(2 * triples.capacity());
+			for (int index = 0; index < 3 * count; index++) larger.put(index, triples.get(index));
+			triples = larger;
+		}
+		triples.put(3 * count, encodeLocal(triple.getSubject()));
+		triples.put(3 * count + 1, encodeShared(triple.getPredicate()));
+		triples.put(3 * count + 2, encodeShared(triple.getObject()));
+		count++;
+		modifications++;
+	}
+
+	@Override
+	protected synchronized ExtendedIterator<Triple> graphBaseFind(Triple pattern) {
+
+		index();
+		Node subject = pattern.getSubject();
+		Node predicate = pattern.getPredicate();
+		Node object = pattern.getObject();
+		int subjectId = subject.isConcrete() ? lookupLocal(subject) : 0;
+		int predicateId = predicate.isConcrete() ? lookupShared(predicate) : 0;
+		int objectId = object.isConcrete() ? lookupShared(object) : 0;
+		if ((subjectId == Integer.MIN_VALUE) || (predicateId == Integer.MIN_VALUE) || (objectId == Integer.MIN_VALUE)) return NullIterator.instance();
+
+		if (subject.isConcrete()) {
+			int first = firstBySubject(subjectId);
+			int last = first;
+			while ((last < count) && (triples.get(3 * last) == subjectId)) last++;
+			return new TripleIterator(null, first, last, predicate.isConcrete(), predicateId, object.isConcrete(), objectId);
+		}
+		if (object.isConcrete()) {
+			int first = firstByObject(objectId);
+			int last = first;
+			while ((last < count) && (triples.get(3 * objectOrder[last] + 2) == objectId)) last++;
+			return new TripleIterator(objectOrder, first, last, predicate.isConcrete(), predicateId, false, 0);
+		}
+		return new TripleIterator(null, 0, count, predicate.isConcrete(), predicateId, false, 0);
+	}
+
+	@Override
+	protected synchronized int graphBaseSize() {
+
+		index();
+		return count;
+	}
+
+	@Override
+	public synchronized void close() {
+
+		triples = allocate(0);
+		objectOrder = new int[0];
+		count = 0;
+		sorted = 0;
+		super.close();
+	}
+
+	/**
+	 * Returns the memory used by the triples, the index and the local dictionary, on or off the heap.
+	 *
+	 * @return The size of the buffer, of the object index and of the arrays of the local dictionary, in bytes.
+	 */
+	public synchronized long getMemorySize() {
+		return 4L * (triples.capacity() + objectOrder.length) + localDictionary.getMemorySize();
+	}
+
+	// Sorts the triples by subject, predicate and object, removes the duplicates and sorts the positions by object, if triples were added since the last time
+	private void index() {
+
+		if (sorted == count) return;
+		int[] order = new int[count];
+		for (int position = 0; position < count; position++) order[position] = position;
+		sort(order, 0);
+		IntBuffer sortedTriples = allocate(triples.capacity());
+		int distinct = 0;
+		for (int position : order) {
+			if ((distinct > 0) && (compare(position, sortedTriples, distinct - 1, 0) == 0)) continue;
+			for (int element = 0; element < 3; element++) sortedTriples.put(3 * distinct + element, triples.get(3 * position + element));
+			distinct++;
+		}
+		triples = sortedTriples;
+		count = distinct;
+		sorted = distinct;
+		objectOrder = new int[count];
+		for (int position = 0; position < count; position++) objectOrder[position] = position;
+		sort(objectOrder, 2);
+	}
+
+	// Merge sort of positions of triples, ordered by their elements starting at the given element (0 for subject, predicate, object, 2 for object, subject, predicate)
+	private void sort(int[] positions, int firstElement) {
+
+		int[] buffer = new int[positions.length];
+		for (int width = 1; width < positions.length; width *= 2) {
+			for (int start = 0; start < positions.length; start += 2 * width) {
+				int middle = Math.min(start + width, positions.length);
+				int end = Math.min(start + 2 * width, positions.length);
+				int left = start, right = middle, target = start;
+				while ((left < middle) && (right < end)) {
+					buffer[target++] = (compare(positions[right], triples, positions[left], firstElement) < 0) ? positions[right++] : positions[left++];
+				}
+				while (left < middle) buffer[target++] = positions[left++];
+				while (right < end) buffer[target++] = positions[right++];
+			}
+			System.arraycopy(buffer, 0, positions, 0, positions.length);
+		}
+	}
+
+	// Compares a triple of the main buffer with a triple of another buffer, element by element starting at the given element
+	private int compare(int position, IntBuffer otherTriples, int otherPosition, int firstElement) {
+
+		for (int offset = 0; offset < 3; offset++) {
+			int element = (firstElement + offset) % 3;
+			int comparison = Integer.compare(triples.get(3 * position + element), otherTriples.get(3 * otherPosition + element));
+			if (comparison != 0) return comparison;
+		}
+		return 0;
+	}
+
+	private int firstBySubject(int subjectId) {
+
+		int low = 0, high = count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (triples.get(3 * middle) < subjectId) low = middle + 1;
+			else high = middle;
+		}
+		return low;
+	}
+
+	private int firstByObject(int objectId) {
+
+		int low = 0, high = count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (triples.get(3 * objectOrder[middle] + 2) < objectId) low = middle + 1;
+			else high = middle;
+		}
+		return low;
+	}
+
+	// Subjects are specific to the graph: local dictionary
+	private int encodeLocal(Node node) {
+		return localDictionary.encode(node);
+	}
+
+	// Predicates and objects that are not equipments or geometries are repeated: shared dictionary if it is not full, local dictionary otherwise
+	private int encodeShared(Node node) {
+
+		if (isRepeated(node)) {
+			int identifier = sharedNodes.encode(node);
+			if (identifier >= 0) return -identifier - 1;
+		}
+		return localDictionary.encode(node);
+	}
+
+	private int lookupLocal(Node node) {
+
+		int identifier = localDictionary.lookup(node);
+		return (identifier < 0) ? Integer.MIN_VALUE : identifier;
+	}
+
+	private int lookupShared(Node node) {
+
+		if (isRepeated(node)) {
+			int identifier = sharedNodes.lookup(node);
+			if (identifier >= 0) return -identifier - 1;
+		}
+		return lookupLocal(node);
+	}
+
+	private Node decode(int identifier) {
+		return (identifier < 0) ? sharedNodes.decode(-identifier - 1) : localDictionary.decode(identifier);
+	}
+
+	private static boolean isRepeated(Node node) {
+		return node.isURI() && !node.getURI().startsWith(Configuration.INSEE_EQUIPMENT_BASE_URI);
+	}
+
+	private IntBuffer allocate(int capacity) {
+
+		if (offHeap) return ByteBuffer.allocateDirect(4 * capacity).order(ByteOrder.nativeOrder()).asIntBuffer();
+		return IntBuffer.allocate(capacity);
+	}
+
+	/** Iterator on a range of the triples, in subject order or in the order of a permutation, filtered on the predicate and the object */
+	private class TripleIterator extends NiceIterator<Triple> {
+
+		private final int[] order;
+		private final int end;
+		private final boolean matchPredicate;
+		private final int predicateId;
+		private final boolean matchObject;
+		private final int objectId;
+		private final int expectedModifications = modifications;
+		private final IntBuffer buffer = triples;
+		private int next;
+
+		TripleIterator(int[] order, int start, int end, boolean matchPredicate, int predicateId, boolean matchObject, int objectId) {
+
+			this.order = order;
+			this.next = start;
+			this.end = end;
+			this.matchPredicate = matchPredicate;
+			this.predicateId = predicateId;
+			this.matchObject = matchObject;
+			this.objectId = objectId;
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+
+			if (modifications != expectedModifications) throw new ConcurrentModificationException();
+			return next < end;
+		}
+
+		@Override
+		public Triple next() {
+
+			if (!hasNext()) throw new NoSuchElementException();
+			int position = 3 * ((order == null) ? next : order[next]);
+			Triple triple = Triple.create(decode(buffer.get(position)), decode(buffer.get(position + 1)), decode(buffer.get(position + 2)));
+			next++;
+			advance();
+			return triple;
+		}
+
+		private void advance() {
+
+			while (next < end) {
+				int position = 3 * ((order == null) ? next : order[next]);
+				if ((!matchPredicate || (buffer.get(position + 1) == predicateId)) && (!matchObject || (buffer.get(position + 2) == objectId))) return;
+				next++;
+			}
+		}
+	}
+}
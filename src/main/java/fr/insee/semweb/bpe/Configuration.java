@@ -21,6 +21,9 @@ public class Configuration {
 	public static final boolean CREATE_GEOMETRY = true; // Create GeoSPARQL Geometry resources
 	public static final boolean QUALITY_ANNOTATIONS = true; // Create DQV quality annotations
 	public static final boolean BETA_NAMING = true; // Creates URI in a 'beta' namespace
+	public static final boolean COMPACT_MODELS = false; // Hold the BPE models in dictionary-encoded graphs (see CompactGraph) instead of Jena default graphs (the models are then append-only)
+	public static final boolean OFF_HEAP_MODELS = false; // Store the triples of the compact graphs outside the heap
+	public static final long SPILL_THRESHOLD = Long.getLong("bpe.spill.threshold", 0L); // Number of triples above which a BPE model is moved to a temporary TDB2 store, zero (default) to keep models in memory (set with -Dbpe.spill.threshold)
 
 	/** Input data will be read in this folder */
 	public static final Path DATA_RESOURCE_PATH_IN = Paths.get("src/main/resources/data/in");
@@ -30,11 +33,13 @@ public class Configuration {
 	public static final Path CONF_RESOURCE_PATH = Paths.get("src/main/resources/conf");
 
 	
-	/** Mappings between feature markers and OWL properties */
-	public static Map<String, OntProperty> featurePresence = new HashMap<>();
+	/** Mappings between feature markers and OWL properties (read-only, can be shared between threads) */
+	public static final Map<String, OntProperty> featurePresence;
 	static {
-		Configuration.featurePresence.put("0", BPEOnto.caractereAbsent);
-		Configuration.featurePresence.put("1", BPEOnto.caracterePresent);
+		Map<String, OntProperty> markers = new HashMap<>();
+		markers.put("0", BPEOnto.caractereAbsent);
+		markers.put("1", BPEOnto.caracterePresent);
+		featurePresence = Collections.unmodifiableMap(markers);
 	}
 
 	// Configuration files
@@ -78,6 +83,11 @@ public class Configuration {
 		return DATA_RESOURCE_PATH_IN.resolve("bpe_" + domain.toString() + "_xy.dbf");
 	}
 
+	/** Path of the zip archive containing the dBase files for a given domain (as downloaded from insee.fr) */
+	public static Path getDBFArchivePath(Domain domain) {
+		return DATA_RESOURCE_PATH_IN.resolve("bpe17_" + domain.toString() + "_xy_dbase.zip");
+	}
+
 	// SAS files
 
 	/** Path of the SAS file containing the data */
@@ -85,12 +95,46 @@ public class Configuration {
 		return DATA_RESOURCE_PATH_IN.resolve("detail_diffxy_internet.sas7bdat");
 	}
 
-	/** Names of the SAS variables corresponding to the main features in the different domains */
-	static Map<Domain, List<String>> sasFeatures = new HashMap<>();
+	/** Path of the zip archive containing the SAS file, which is streamed if the SAS file has not been extracted */
+	public static Path getSASArchivePath() {
+		return DATA_RESOURCE_PATH_IN.resolve("detail_diffxy_internet.zip");
+	}
+
+	/** Path of the columnar cache of the SAS file (see <code>SASColumnCache</code>) */
+	public static Path getSASCacheFilePath() {
+		return DATA_RESOURCE_PATH_OUT.resolve("detail_diffxy_internet.cache");
+	}
+
+	// CSV files
+
+	/** Path of the CSV file containing the data (format of the files published on insee.fr) */
+	public static Path getCSVDataFilePath() {
+		return DATA_RESOURCE_PATH_IN.resolve("bpe18_ensemble_xy.csv");
+	}
+
+	/** Path of the compressed CSV export of the SAS file */
+	public static Path getCSVExportFilePath() {
+		return DATA_RESOURCE_PATH_OUT.resolve("bpe.csv.gz");
+	}
+
+	/** Path of the zip archive containing the CSV file (as downloaded from insee.fr) */
+	public static Path getCSVArchivePath() {
+		return DATA_RESOURCE_PATH_IN.resolve("bpe18_ensemble_xy_csv.zip");
+	}
+
+	/** Path of the JSON file containing the metrics of the last conversion run */
+	public static Path getRunMetricsFilePath() {
+		return DATA_RESOURCE_PATH_OUT.resolve("run-metrics.json");
+	}
+
+	/** Names of the SAS variables corresponding to the main features in the different domains (read-only) */
+	static final Map<Domain, List<String>> sasFeatures;
 	static {
-		sasFeatures.put(Domain.ENSEIGNEMENT, Arrays.asList("cantine", "internat", "rpic", "cl_pelem", "cl_pge", "ep"));
-		sasFeatures.put(Domain.SPORT_LOISIR, Arrays.asList("couvert", "eclaire"));
-		sasFeatures.put(Domain.ENSEMBLE, new ArrayList<>());
+		Map<Domain, List<String>> features = new EnumMap<>(Domain.class);
+		features.put(Domain.ENSEIGNEMENT, Collections.unmodifiableList(Arrays.asList("cantine", "internat", "rpic", "cl_pelem", "cl_pge", "ep")));
+		features.put(Domain.SPORT_LOISIR, Collections.unmodifiableList(Arrays.asList("couvert", "eclaire")));
+		features.put(Domain.ENSEMBLE, Collections.emptyList());
+		sasFeatures = Collections.unmodifiableMap(features);
 	}
 
 	// Naming
@@ -188,14 +232,17 @@ public class Configuration {
 	 * See example at https://www.w3.org/2015/spatial/wiki/Coordinate_Reference_Systems.
 	 */
 	public static String getPointWKTLiteral(double x, double y, String municipalityCode) {
-		String crs = LAMBERT_93_URI; // Majority of cases
-		if (municipalityCode.startsWith("97")) { // There are some equipments in Mayotte, but they are not geolocalized
-			if (municipalityCode.startsWith("971")) crs = UTM20N_URI;
-			else if (municipalityCode.startsWith("972")) crs = UTM20N_URI;
-			else if (municipalityCode.startsWith("973")) crs = UTM22N_URI;
-			else if (municipalityCode.startsWith("974")) crs = UTM40S_URI;
-		}
-		return "<" + crs + "> Point(" + x + " " + y + ")";
+		return "<" + getCRSURI(municipalityCode) + "> Point(" + x + " " + y + ")";
+	}
+
+	/** CRS of the overseas departments, indexed by the third character of the department code (there are some equipments in Mayotte, but they are not geolocalized) */
+	private static final String[] overseasCRS = {LAMBERT_93_URI, UTM20N_URI, UTM20N_URI, UTM22N_URI, UTM40S_URI, LAMBERT_93_URI, LAMBERT_93_URI, LAMBERT_93_URI, LAMBERT_93_URI, LAMBERT_93_URI};
+
+	/** Returns the URI of the coordinate reference system used for the points in a given municipality */
+	public static String getCRSURI(String municipalityCode) {
+		if ((municipalityCode.length() < 3) || (municipalityCode.charAt(0) != '9') || (municipalityCode.charAt(1) != '7')) return LAMBERT_93_URI; // Majority of cases
+		int digit = municipalityCode.charAt(2) - '0';
+		return ((digit >= 0) && (digit <= 9)) ? overseasCRS[digit] : LAMBERT_93_URI;
 	}
 
 	/** Returns the domain of an equipment type */
@@ -285,11 +332,12 @@ public class Configuration {
 	    	return inseeQualityLevelURI(this.code);
 	    }
 
-	    public static Map<QualityLevel, Resource> RESOURCE_MAP;
+	    public static final Map<QualityLevel, Resource> RESOURCE_MAP;
 	    static {
-	    	RESOURCE_MAP = new HashMap<>();
+	    	Map<QualityLevel, Resource> resources = new EnumMap<>(QualityLevel.class);
 	    	for (QualityLevel qualityLevel : QualityLevel.values())
-				RESOURCE_MAP.put(qualityLevel, ResourceFactory.createResource(inseeQualityLevelURI(qualityLevel.code)));
+				resources.put(qualityLevel, ResourceFactory.createResource(inseeQualityLevelURI(qualityLevel.code)));
+	    	RESOURCE_MAP = Collections.unmodifiableMap(resources);
 	    }
 	}
 }
@@ -1,27 +1,18 @@
 package fr.insee.semweb.bpe;
 
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.PrintStream;
-import java.nio.file.Files;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
-import org.apache.commons.compress.archivers.ArchiveEntry;
-import org.apache.commons.compress.archivers.ArchiveInputStream;
-import org.apache.commons.compress.archivers.ArchiveStreamFactory;
-import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import net.iryndin.jdbf.core.DbfRecord;
-import net.iryndin.jdbf.reader.DbfReader;
-
 /**
  * BPE files can be downloaded from https://www.insee.fr/fr/statistiques/3568638
  * https://www.insee.fr/fr/statistiques/fichier/3568638/bpe17_ensemble_xy_dbase.zip
@@ -47,42 +38,44 @@ public class ContentExplorer {
 
 	public void exploreArchive(Configuration.Domain domain, PrintStream report) {
 
-		Path archivePath = Configuration.DATA_RESOURCE_PATH_IN.resolve("bpe17_" + domain + "_xy_dbase.zip");
+		Path archivePath = Configuration.getDBFArchivePath(domain);
 		logger.info("Exploring archive " + archivePath);
 
-		// Unzip the archive in the 'resources' directory
-		try (ArchiveInputStream archiveStream = new ArchiveStreamFactory().createArchiveInputStream(ArchiveStreamFactory.ZIP, new BufferedInputStream(new FileInputStream(archivePath.toFile())))) {
-			ArchiveEntry entry = null;
-			while ((entry = archiveStream.getNextEntry()) != null) {
-				Path outputPath = Configuration.DATA_RESOURCE_PATH_IN.resolve(entry.getName()); // We know there are no directories in the BPE archives
-				try (OutputStream outputStream = Files.newOutputStream(outputPath)) {
-					IOUtils.copy(archiveStream, outputStream);
-				}
-			}
+		// The dBase files are streamed from the archive, concurrently, instead of being extracted on disk or decompressed in memory
+		Map<String, Boolean> sampled = new HashMap<>();
+		for (Map.Entry<Path, Boolean> path : Configuration.getDBFFilePaths(domain).entrySet()) sampled.put(path.getKey().getFileName().toString().toLowerCase(), path.getValue());
+		Map<String, String> entryReports;
+		try (BPEArchive archive = BPEArchive.open(archivePath)) {
+			entryReports = archive.processEntries(name -> sampled.containsKey(BPEArchive.fileName(name).toLowerCase()), Runtime.getRuntime().availableProcessors(), (name, stream) -> {
+				int samplingRate = sampled.get(BPEArchive.fileName(name).toLowerCase()) ? Configuration.SAMPLING_RATE : 1;
+				return reportEntry(archivePath + "!" + name, stream, samplingRate);
+			});
 		} catch (Exception e) {
 			logger.error("Error unzipping " + archivePath + " - " + e.getMessage());
 			return;
 		}
-		Map<Path, Boolean> paths = Configuration.getDBFFilePaths(domain);
-		for (Path path : paths.keySet()) {
-			try {
-				InputStream dbf = new FileInputStream(path.toString());
-				DbfRecord record;
-				try (DbfReader reader = new DbfReader(dbf)) {
-					report.println("Metadata for file " + path.toString() + ":\n" + reader.getMetadata());
-					while ((record = reader.read()) != null) {
-						if (!paths.get(path) || (record.getRecordNumber() % Configuration.SAMPLING_RATE == 0)) {
-							record.setStringCharset(Configuration.STRING_CHARSET);
-							report.println("Record #" + record.getRecordNumber() + ": " + record.toMap());
-						}
-					}
-					report.println();
-					dbf.close();
-				}
-			} catch (Exception e) {
-				logger.error("Error processing " + path + " - " + e.getMessage());
+		for (String entryReport : entryReports.values()) report.print(entryReport);
+	}
+
+	// Returns the report on an entry, which is kept apart since the entries are read concurrently
+	private String reportEntry(String source, InputStream stream, int samplingRate) {
+
+		StringWriter entryReport = new StringWriter();
+		PrintWriter writer = new PrintWriter(entryReport);
+		try (DBFRecordReader reader = DBFRecordReader.open(stream, source, Configuration.STRING_CHARSET)) {
+			writer.println("Metadata for " + reader);
+			// Sampled files are read by skipping directly from one sampled record to the next
+			DBFRecordReader.Range range = reader.all();
+			for (int record = DBFRecordReader.firstSampledRecord(range, samplingRate); reader.readRecord(record); record += samplingRate) {
+				writer.println("Record #" + DBFRecordReader.getRecordNumber(record) + ": " + reader.getRecordMap(record));
 			}
+			writer.println();
+		} catch (Exception e) {
+			logger.error("Error processing " + source + " - " + e.getMessage());
 		}
+		writer.flush();
+
+		return entryReport.toString();
 	}
 
 	public Map<String, String> listCharacteristics(Configuration.Domain domain) {
@@ -92,16 +85,15 @@ public class ContentExplorer {
 
 		try {
 			logger.info("Opening " + Configuration.getBDFTypesCodelistFilePath(domain).toString());
-			InputStream dbf = new FileInputStream(Configuration.getBDFTypesCodelistFilePath(domain).toString());
-			DbfRecord record;
-			try (DbfReader reader = new DbfReader(dbf)) {
-				while ((record = reader.read()) != null) {
-					if (record.getString("MODALITE") == null) continue;
-					if (record.getString("MODALITE").equals("1")) {
-						characteristics.put(record.getString("VARIABLE"), record.getString("MODLIBELLE"));
+			try (DBFRecordReader reader = DBFRecordReader.open(Configuration.getBDFTypesCodelistFilePath(domain))) {
+				int variableField = reader.getFieldIndex("VARIABLE");
+				int valueField = reader.getFieldIndex("MODALITE");
+				int labelField = reader.getFieldIndex("MODLIBELLE");
+				for (int record = 0; record < reader.getRecordCount(); record++) {
+					if ("1".equals(reader.getString(record, valueField))) {
+						characteristics.put(reader.getString(record, variableField), reader.getString(record, labelField));
 					}
 				}
-				dbf.close();
 			}
 		} catch (Exception e) {
 			logger.error("Error processing file - " + e.getMessage());
@@ -117,11 +109,9 @@ public class ContentExplorer {
 
 		try {
 			logger.info("Opening " + Configuration.getDBFDataFilePath(domain).toString());
-			InputStream dbf = new FileInputStream(Configuration.getDBFDataFilePath(domain).toString());
-			DbfRecord record;
-			try (DbfReader reader = new DbfReader(dbf)) {
-				while ((record = reader.read()) != null) ratings.add(record.getString("qualite_xy"));
-				dbf.close();
+			try (DBFRecordReader reader = DBFRecordReader.open(Configuration.getDBFDataFilePath(domain))) {
+				int qualityField = reader.getFieldIndex("qualite_xy");
+				for (int record = 0; record < reader.getRecordCount(); record++) ratings.add(reader.getString(record, qualityField));
 			}
 		} catch (Exception e) {
 			logger.error("Error processing file - " + e.getMessage());
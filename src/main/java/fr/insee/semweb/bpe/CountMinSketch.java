@@ -0,0 +1,160 @@
+package fr.insee.semweb.bpe;
+
+import java.util.*;
+
+/**
+ * <code>CountMinSketch</code> estimates the frequencies of the values in a stream with a fixed amount of memory, and keeps track of the most frequent values.
+ *
+ * Each value increments one counter in each row of the sketch, the column being given by a hash of the value: the estimated frequency is the minimum of these counters,
+ * which can only overestimate the actual frequency (by at most e/width of the total count with high probability).
+ * The values whose estimated frequency is the highest are kept as candidates for the heavy hitters, in a table of bounded size.
+ * Values whose estimated frequency is not above the error bound are not reported, since their estimate can be mostly due to collisions.
+ * Sketches built on different parts of the stream are merged by adding their counters.
+ *
+ * @author Franck
+ */
+public class CountMinSketch {
+
+	final static int DEPTH = 4; // Number of rows
+	final static int WIDTH = 1 << 12; // Number of counters in each row (a power of 2)
+	final static int CANDIDATE_FACTOR = 4; // The table of candidates is this number of times larger than the number of heavy hitters wanted
+
+	private final long[][] counters = new long[DEPTH][WIDTH];
+	private final int candidateCount;
+	private final Map<String, long[]> candidates = new HashMap<>(); // Estimated frequency and hash of the candidates
+	private long threshold = 0; // Lowest estimated frequency in a full table of candidates
+	private long total = 0;
+
+	/**
+	 * Creates an empty sketch.
+	 *
+	 * @param topCount The number of heavy hitters wanted.
+	 */
+	public CountMinSketch(int topCount) {
+		this.candidateCount = Math.max(1, topCount * CANDIDATE_FACTOR);
+	}
+
+	/**
+	 * Adds an occurrence of a value to the sketch.
+	 *
+	 * @param value The value, as a string.
+	 * @param hash The 64-bit hash of the value (see <code>HyperLogLog.hash</code>), which must always be the same for a given value.
+	 */
+	public void add(String value, long hash) {
+
+		total++;
+		long estimate = increment(hash);
+		long[] candidate = candidates.get(value);
+		if (candidate != null) candidate[0] = estimate;
+		else if (candidates.size() < candidateCount) candidates.put(value, new long[] {estimate, hash});
+		else if ((estimate > threshold) && (estimate > errorBound())) {
+			// Replace the candidate with the lowest frequency, and compute the new threshold
+			String lowest = null;
+			long lowestEstimate = Long.MAX_VALUE;
+			for (Map.Entry<String, long[]> entry : candidates.entrySet()) {
+				if (entry.getValue()[0] < lowestEstimate) {
+					lowest = entry.getKey();
+					lowestEstimate = entry.getValue()[0];
+				}
+			}
+			if (estimate > lowestEstimate) {
+				candidates.remove(lowest);
+				candidates.put(value, new long[] {estimate, hash});
+			}
+			threshold = Long.MAX_VALUE;
+			for (long[] frequency : candidates.values()) threshold = Math.min(threshold, frequency[0]);
+		}
+	}
+
+	/**
+	 * Returns the estimated frequency of a value.
+	 *
+	 * @param hash The 64-bit hash of the value.
+	 * @return The estimated number of occurrences of the value.
+	 */
+	public long estimate(long hash) {
+
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) estimate = Math.min(estimate, counters[row][column(hash, row)]);
+
+		return estimate;
+	}
+
+	/**
+	 * Merges another sketch into this one: the counters are added, and the candidates of both sketches are estimated again.
+	 *
+	 * @param other The other sketch (with the same dimensions).
+	 */
+	public void merge(CountMinSketch other) {
+
+		total += other.total;
+		for (int row = 0; row < DEPTH; row++) for (int column = 0; column < WIDTH; column++) counters[row][column] += other.counters[row][column];
+		Map<String, Long> hashes = new HashMap<>();
+		for (Map.Entry<String, long[]> candidate : candidates.entrySet()) hashes.put(candidate.getKey(), candidate.getValue()[1]);
+		for (Map.Entry<String, long[]> candidate : other.candidates.entrySet()) hashes.put(candidate.getKey(), candidate.getValue()[1]);
+		candidates.clear();
+		List<Map.Entry<String, Long>> estimates = new ArrayList<>();
+		for (String value : hashes.keySet()) estimates.add(new AbstractMap.SimpleEntry<>(value, estimate(hashes.get(value))));
+		estimates.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+		for (Map.Entry<String, Long> estimate : estimates.subList(0, Math.min(candidateCount, estimates.size()))) candidates.put(estimate.getKey(), new long[] {estimate.getValue(), hashes.get(estimate.getKey())});
+		threshold = 0;
+		if (candidates.size() == candidateCount) {
+			threshold = Long.MAX_VALUE;
+			for (long[] frequency : candidates.values()) threshold = Math.min(threshold, frequency[0]);
+		}
+	}
+
+	/**
+	 * Returns the most frequent values with their estimated frequencies (only values whose estimate is above the error bound).
+	 *
+	 * @param count The maximum number of values returned.
+	 * @return The values and their estimated frequencies, by decreasing frequency.
+	 */
+	public LinkedHashMap<String, Long> getHeavyHitters(int count) {
+
+		List<Map.Entry<String, Long>> estimates = new ArrayList<>();
+		long errorBound = errorBound();
+		for (Map.Entry<String, long[]> candidate : candidates.entrySet()) {
+			// The estimates of the candidates are computed again, since the counters may have been incremented by other values since their last occurrence
+			long estimate = estimate(candidate.getValue()[1]);
+			if (estimate > errorBound) estimates.add(new AbstractMap.SimpleEntry<>(candidate.getKey(), estimate));
+		}
+		estimates.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+		LinkedHashMap<String, Long> heavyHitters = new LinkedHashMap<>();
+		for (Map.Entry<String, Long> estimate : estimates.subList(0, Math.min(count, estimates.size()))) heavyHitters.put(estimate.getKey(), estimate.getValue());
+
+		return heavyHitters;
+	}
+
+	/**
+	 * Returns the total number of occurrences added to the sketch.
+	 *
+	 * @return The total count.
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	// Maximum overestimate of a frequency, with high probability
+	private long errorBound() {
+		return (long) (Math.E * total / WIDTH);
+	}
+
+	// Increments the counters of a value and returns its new estimated frequency
+	private long increment(long hash) {
+
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			long counter = ++counters[row][column(hash, row)];
+			if (counter < estimate) estimate = counter;
+		}
+		return estimate;
+	}
+
+	// The rows use different combinations of the two halves of the hash (Kirsch-Mitzenmacher)
+	private static int column(long hash, int row) {
+
+		int combined = (int) hash + row * (int) (hash >>> 32);
+		return (combined ^ (combined >>> 16)) & (WIDTH - 1);
+	}
+}
@@ -1,16 +1,23 @@
 package fr.insee.semweb.bpe;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.apache.jena.rdf.model.Model;
-import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.Resource;
-import org.apache.jena.rdf.model.ResourceFactory;
 import org.apache.jena.vocabulary.DCTerms;
 import org.apache.jena.vocabulary.RDF;
 import org.apache.jena.vocabulary.RDFS;
@@ -19,13 +26,12 @@ import org.apache.logging.log4j.Logger;
 
 import fr.insee.semweb.bpe.Configuration.Domain;
 import fr.insee.semweb.bpe.Configuration.QualityLevel;
-import net.iryndin.jdbf.core.DbfRecord;
-import net.iryndin.jdbf.reader.DbfReader;
 
 /**
  * <code>DBFModelMaker</code> creates the BPE data and quality Jena models from the dBase files.
  *
  * The BPE is now published as CSV, so this class should not be used anymore.
+ * The files are read through memory mappings (see {@link DBFRecordReader}).
  *
  * @author Franck
  */
@@ -33,6 +39,8 @@ public class DBFModelMaker {
 
 	public static Logger logger = LogManager.getLogger(DBFModelMaker.class);
 
+	final static int MIN_RANGE_RECORDS = 50000; // Files with less sampled records than this are read by one thread
+
 	/**
 	 * Reads the list of equipments (other than specific ones) from the DBF file into a Jena model.
 	 * 
@@ -40,33 +48,8 @@ public class DBFModelMaker {
 	 */
 	public static Model makeOtherEquipmentsModel(boolean forceAll) {
 
-		Model equipmentsModel = ModelFactory.createDefaultModel();
-		equipmentsModel.setNsPrefix("dcterms", DCTerms.getURI());
-		equipmentsModel.setNsPrefix("rdfs", RDFS.getURI());
-		equipmentsModel.setNsPrefix("ibpe", BPEOnto.getURI());
-		equipmentsModel.setNsPrefix("ibpe-eq", "http://id.insee.fr/territoire/equipement/");
-		equipmentsModel.setNsPrefix("icod-teq", "http://id.insee.fr/codes/territoire/typeEquipement/");
-
-		// Read the DBF file to get the list of equipments 
-		Path allEquipmentsFilePath = Configuration.getDBFDataFilePath(Domain.ENSEMBLE);
-		DbfRecord record = null;
-		try {
-			InputStream dbf = new FileInputStream(allEquipmentsFilePath.toString());
-			try (DbfReader reader = new DbfReader(dbf)) {
-				while ((record = reader.read()) != null) {
-					if (forceAll || (record.getRecordNumber() % Configuration.SAMPLING_RATE == 0)) {
-						// Get the equipment type code and check that it is not in a specific domain
-						String typeCode = record.getString("typequ");
-						if (Configuration.getDomain(typeCode) != Domain.ENSEMBLE) continue;
-						Resource equipmentResource = equipmentsModel.createResource(Configuration.inseeEquipmentURI(String.valueOf(record.getRecordNumber())), BPEOnto.Equipement);
-						equipmentResource.addProperty(DCTerms.type, equipmentsModel.createResource(Configuration.inseeEquipmentTypeURI(typeCode)));
-					}
-				}
-			}
-			dbf.close();
-		} catch (Exception e) {
-			logger.error("Error processing record " + record.getRecordNumber() + " - " + e.getMessage());
-		}
+		Model equipmentsModel = initEquipmentsModel(Domain.ENSEMBLE);
+		readDomainFile(Domain.ENSEMBLE, forceAll, equipmentsModel, null);
 
 		return equipmentsModel;
 	}
@@ -79,123 +62,316 @@ public class DBFModelMaker {
 	 */
 	public static Model makeEductionEquipmentsModel(boolean forceAll) throws IOException {
 
-		// Get the list of features for the education domain (features are in lower case in data files)
-		List<String> featureCodes = CodelistModelMaker.getFeaturesList(Domain.ENSEIGNEMENT).stream().map(String::toLowerCase).collect(Collectors.toList());
+		Model equipmentsModel = initEquipmentsModel(Domain.ENSEIGNEMENT);
+		readDomainFile(Domain.ENSEIGNEMENT, forceAll, equipmentsModel, null);
 
-		Model equipmentsModel = ModelFactory.createDefaultModel();
-		equipmentsModel.setNsPrefix("dcterms", DCTerms.getURI());
-		equipmentsModel.setNsPrefix("rdfs", RDFS.getURI());
-		equipmentsModel.setNsPrefix("ibpe", BPEOnto.getURI());
-		equipmentsModel.setNsPrefix("ibpe-eq", "http://id.insee.fr/territoire/equipement/");
-		equipmentsModel.setNsPrefix("icod-teq", "http://id.insee.fr/codes/territoire/typeEquipement/");
-		equipmentsModel.setNsPrefix("icod-car", "http://id.insee.fr/codes/territoire/caractere/");
-		equipmentsModel.setNsPrefix("icod-sec", "http://id.insee.fr/codes/territoire/secteur/");
-		equipmentsModel.setNsPrefix("igeo-com", "http://id.insee.fr/geo/commune/");
+		return equipmentsModel;
+	}
+
+	/**
+	 * Reads the list of sports and leisure equipments from the DBF file into a Jena model.
+	 * 
+	 * @return A Jena <code>Model</code> containing the list of equipments.
+	 * @throws IOException In case of problem reading the data.
+	 */
+	public static Model makeSportsLeisureEquipmentsModel(boolean forceAll) throws IOException {
+
+		Model equipmentsModel = initEquipmentsModel(Domain.SPORT_LOISIR);
+		readDomainFile(Domain.SPORT_LOISIR, forceAll, equipmentsModel, null);
 
-		// Read the DBF file to get the list of education equipments 
-		Path educationEquipmentsFilePath = Configuration.getDBFDataFilePath(Domain.ENSEIGNEMENT);
-		DbfRecord record = null;
+		return equipmentsModel;
+	}
+
+	/**
+	 * Reads the quality information in a given domain from the DBF file and creates quality annotations into a Jena model.
+	 * Depending on the configuration, quality information can be simple links to quality level codes, or full-fledged DQV annotations.
+	 * Also depending on the configuration, quality information is attached to the equipment or to the geometry.
+	 * 
+	 * @return A Jena <code>Model</code> containing the quality information.
+	 */
+	public static Model makeQualityModel(Domain domain, boolean forceAll) {
+
+		Model qualityModel = initQualityModel();
+		readDomainFile(domain, forceAll, null, qualityModel);
+
+		return qualityModel;
+	}
+
+	/**
+	 * Reads the DBF files of all domains and fills the equipment and quality models in one go.
+	 * Each file is read exactly once, and the files of the different domains are read concurrently, each into its own models, which are then added to the models passed.
+	 * 
+	 * @param forceAll If <code>false</code>, only a sample of the records is read: stratified sample if defined by the system properties (see {@link Sampling}), one record every <code>Configuration.SAMPLING_RATE</code> otherwise.
+	 * @param equipmentsModel The Jena model that will receive the equipments of all domains (can be null).
+	 * @param qualityModel The Jena model that will receive the quality information of all domains (can be null).
+	 * @throws IOException If the reading of a file is interrupted or fails unexpectedly.
+	 */
+	public static void makeModels(boolean forceAll, Model equipmentsModel, Model qualityModel) throws IOException {
+
+		Map<Domain, Future<Model[]>> results = new EnumMap<>(Domain.class);
+		ExecutorService executor = Executors.newFixedThreadPool(Domain.values().length);
+		for (Domain domain : Domain.values()) {
+			results.put(domain, executor.submit(() -> {
+				Model domainEquipmentsModel = (equipmentsModel == null) ? null : initEquipmentsModel(domain);
+				Model domainQualityModel = (qualityModel == null) ? null : initQualityModel();
+				readDomainFile(domain, forceAll, domainEquipmentsModel, domainQualityModel);
+				return new Model[] {domainEquipmentsModel, domainQualityModel};
+			}));
+		}
+		executor.shutdown();
 		try {
-			InputStream dbf = new FileInputStream(educationEquipmentsFilePath.toString());
-			try (DbfReader reader = new DbfReader(dbf)) {
-				while ((record = reader.read()) != null) {
-					if (forceAll || (record.getRecordNumber() % Configuration.SAMPLING_RATE == 0)) {
-						// Get the equipment type code and check that it is in the education domain
-						String typeCode = record.getString("typequ");
-						if (Configuration.getDomain(typeCode) != Domain.ENSEIGNEMENT) continue;
-						Resource equipmentResource = equipmentsModel.createResource(Configuration.inseeEquipmentURI(String.valueOf(record.getRecordNumber())), BPEOnto.Equipement);
-						equipmentResource.addProperty(RDF.type, BPEOnto.EquipementEnseignement);
-						equipmentResource.addProperty(DCTerms.type, equipmentsModel.createResource(Configuration.inseeEquipmentTypeURI(typeCode)));
-						for (String featureCode : featureCodes) {
-							String featureMarker = record.getString(featureCode);
-							if (Configuration.featurePresence.containsKey(featureMarker)) {
-								equipmentResource.addProperty(Configuration.featurePresence.get(featureMarker), ResourceFactory.createResource(Configuration.inseeFeatureURI(featureCode)));
-							}
-						}
-						// Remaining variables are AN, DCIRIS, DEP, DEPCOM, LAMBERT_X, LAMBERT_Y, QUALITE_XY, REG and SECT
-						// Add sector and municipality
-						String sectorCode = record.getString("sect");
-						if ("PR".equals(sectorCode) || "PU".equals(sectorCode))
-							equipmentResource.addProperty(BPEOnto.secteurEquipement, ResourceFactory.createResource(Configuration.inseeSectorURI(sectorCode)));
-						String municipalityCode = record.getString("depcom");
-						equipmentResource.addProperty(BPEOnto.communeEquipement, ResourceFactory.createResource(Configuration.inseeMunicipalityURI(municipalityCode)));
-					}
+			// Models are merged in the order of the domains, so that the result does not depend on the scheduling
+			for (Domain domain : Domain.values()) {
+				Model[] domainModels = results.get(domain).get();
+				if (equipmentsModel != null) {
+					equipmentsModel.setNsPrefixes(domainModels[0].getNsPrefixMap());
+					equipmentsModel.add(domainModels[0]);
+				}
+				if (qualityModel != null) {
+					qualityModel.setNsPrefixes(domainModels[1].getNsPrefixMap());
+					qualityModel.add(domainModels[1]);
 				}
+				logger.info("Domain " + domain + ": " + ((domainModels[0] == null) ? 0 : domainModels[0].size()) + " equipment triples, " + ((domainModels[1] == null) ? 0 : domainModels[1].size()) + " quality triples");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading the DBF files", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Error while reading the DBF files", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads the DBF file of a domain and adds the equipments and/or the quality information it contains to Jena models.
+	 * Equipments are only created for the records whose type belongs to the domain of the file, as for quality information in the general file.
+	 * The file is mapped in memory (or decompressed in memory from the archive of the domain) and large files are split into ranges of records read in parallel, each into its own models, which are then added in the order of the file.
+	 * 
+	 * @param domain The domain of the file.
+	 * @param forceAll If <code>false</code>, only a sample of the records is read.
+	 * @param equipmentsModel The Jena model that will receive the equipments (can be null).
+	 * @param qualityModel The Jena model that will receive the quality information (can be null).
+	 */
+	private static void readDomainFile(Domain domain, boolean forceAll, Model equipmentsModel, Model qualityModel) {
+
+		Path equipmentsFilePath = Configuration.getDBFDataFilePath(domain);
+		ExecutorService executor = null;
+		try (DBFRecordReader reader = openDomainFile(domain)) {
+			// Get the list of features for the domain (features are in lower case in data files)
+			List<String> featureCodes = (domain == Domain.ENSEMBLE) ? Collections.emptyList() : CodelistModelMaker.getFeaturesList(domain).stream().map(String::toLowerCase).collect(Collectors.toList());
+			Sampling sampling = forceAll ? null : Sampling.fromSystemProperties();
+			if (sampling != null) {
+				// The sample is small, it is read sequentially so that the strata are counted over the whole file
+				readRecords(reader, sampledBlocks(reader, sampling), sampling.newStratifier(), domain, featureCodes, equipmentsModel, qualityModel);
+				return;
+			}
+			int samplingRate = forceAll ? 1 : Configuration.SAMPLING_RATE;
+			int threads = Runtime.getRuntime().availableProcessors();
+			int rangeCount = Math.min(threads, reader.getRecordCount() / (MIN_RANGE_RECORDS * samplingRate));
+			if (rangeCount <= 1) {
+				readRecords(reader, sampledRecords(reader.all(), samplingRate), null, domain, featureCodes, equipmentsModel, qualityModel);
+				return;
+			}
+			List<DBFRecordReader.Range> ranges = reader.split(rangeCount);
+			logger.debug("Reading " + reader.getRecordCount() + " records from " + equipmentsFilePath + " in " + ranges.size() + " ranges");
+			List<Future<Model[]>> results = new ArrayList<>();
+			executor = Executors.newFixedThreadPool(ranges.size());
+			for (DBFRecordReader.Range range : ranges) {
+				results.add(executor.submit(() -> {
+					Model rangeEquipmentsModel = (equipmentsModel == null) ? null : initEquipmentsModel(domain);
+					Model rangeQualityModel = (qualityModel == null) ? null : initQualityModel();
+					readRecords(reader, sampledRecords(range, samplingRate), null, domain, featureCodes, rangeEquipmentsModel, rangeQualityModel);
+					return new Model[] {rangeEquipmentsModel, rangeQualityModel};
+				}));
+			}
+			for (Future<Model[]> result : results) {
+				Model[] rangeModels = result.get();
+				if (equipmentsModel != null) equipmentsModel.add(rangeModels[0]);
+				if (qualityModel != null) qualityModel.add(rangeModels[1]);
 			}
-			dbf.close();
+		} catch (ExecutionException e) {
+			logger.error("Error processing file " + equipmentsFilePath + " - " + e.getCause().getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("Interrupted while processing file " + equipmentsFilePath);
 		} catch (Exception e) {
-			logger.error("Error processing record " + record.getRecordNumber() + " - " + e.getMessage());
+			logger.error("Error processing file " + equipmentsFilePath + " - " + e.getMessage());
+		} finally {
+			if (executor != null) executor.shutdownNow();
 		}
+	}
 
-		return equipmentsModel;
+	/**
+	 * Opens the DBF file of a domain, or, if the file has not been extracted, decompresses it in memory from the archive of the domain.
+	 * 
+	 * @param domain The domain of the file.
+	 * @return The record reader on the file.
+	 * @throws IOException In case of problem reading the file or the archive.
+	 */
+	private static DBFRecordReader openDomainFile(Domain domain) throws IOException {
+
+		Path equipmentsFilePath = Configuration.getDBFDataFilePath(domain);
+		Path archivePath = Configuration.getDBFArchivePath(domain);
+		if (Files.exists(equipmentsFilePath) || !Files.exists(archivePath)) return DBFRecordReader.open(equipmentsFilePath);
+
+		try (BPEArchive archive = BPEArchive.open(archivePath)) {
+			String entryName = archive.findEntry(equipmentsFilePath.getFileName().toString());
+			if (entryName == null) throw new IOException("File " + equipmentsFilePath.getFileName() + " not found in archive " + archivePath);
+			logger.debug("Reading " + entryName + " from archive " + archivePath);
+			return archive.readDBF(entryName);
+		}
 	}
 
 	/**
-	 * Reads the list of sports and leisure equipments from the DBF file into a Jena model.
+	 * Returns the indexes of the records of a range whose number is a multiple of a sampling rate.
 	 * 
-	 * @return A Jena <code>Model</code> containing the list of equipments.
-	 * @throws IOException In case of problem reading the data.
+	 * @param range The range of records.
+	 * @param samplingRate The sampling rate (1 for all records).
+	 * @return The indexes of the records, in increasing order.
 	 */
-	public static Model makeSportsLeisureEquipmentsModel(boolean forceAll) throws IOException {
+	private static PrimitiveIterator.OfInt sampledRecords(DBFRecordReader.Range range, int samplingRate) {
 
-		// Get the list of features for the sports and leisure domain (features are in lower case in data files)
-		List<String> featureCodes = CodelistModelMaker.getFeaturesList(Domain.SPORT_LOISIR).stream().map(String::toLowerCase).collect(Collectors.toList());
+		int first = DBFRecordReader.firstSampledRecord(range, samplingRate);
+		int count = (first < range.getTo()) ? (range.getTo() - 1 - first) / samplingRate + 1 : 0;
 
-		Model equipmentsModel = ModelFactory.createDefaultModel();
-		equipmentsModel.setNsPrefix("dcterms", DCTerms.getURI());
-		equipmentsModel.setNsPrefix("rdfs", RDFS.getURI());
-		equipmentsModel.setNsPrefix("ibpe", BPEOnto.getURI());
-		equipmentsModel.setNsPrefix("ibpe-eq", "http://id.insee.fr/territoire/equipement/");
-		equipmentsModel.setNsPrefix("icod-teq", "http://id.insee.fr/codes/territoire/typeEquipement/");
-		equipmentsModel.setNsPrefix("icod-car", "http://id.insee.fr/codes/territoire/caractere/");
-		equipmentsModel.setNsPrefix("igeo-com", "http://id.insee.fr/geo/commune/");
+		return IntStream.iterate(first, record -> record + samplingRate).limit(count).iterator();
+	}
 
-		// Read the DBF file to get the list of education equipments 
-		Path sportLeisureEquipmentsFilePath = Configuration.getDBFDataFilePath(Domain.SPORT_LOISIR);
-		DbfRecord record = null;
+	/**
+	 * Returns the indexes of the records of the blocks selected by a sampling (see <code>Sampling.DBF_BLOCK_RECORDS</code>).
+	 * 
+	 * @param reader The reader on the DBF file.
+	 * @param sampling The sampling definition.
+	 * @return The indexes of the records, in increasing order.
+	 */
+	private static PrimitiveIterator.OfInt sampledBlocks(DBFRecordReader reader, Sampling sampling) {
+
+		int recordCount = reader.getRecordCount();
+		List<int[]> blocks = sampling.selectBlocks((recordCount + Sampling.DBF_BLOCK_RECORDS - 1) / Sampling.DBF_BLOCK_RECORDS);
+		logger.debug(blocks.size() + " ranges of blocks of " + Sampling.DBF_BLOCK_RECORDS + " records selected in " + reader);
+
+		return blocks.stream().flatMapToInt(range -> IntStream.range(range[0] * Sampling.DBF_BLOCK_RECORDS, Math.min(range[1] * Sampling.DBF_BLOCK_RECORDS, recordCount))).iterator();
+	}
+
+	/**
+	 * Reads records of a DBF file, going directly from one record to the next, and adds the equipments and/or the quality information to Jena models.
+	 * Records marked as deleted are read like the others.
+	 * 
+	 * @param reader The reader on the DBF file.
+	 * @param records The indexes of the records to read, in increasing order.
+	 * @param stratifier If not null, records are only kept if their stratum (type and department) is not full.
+	 * @param domain The domain of the file.
+	 * @param featureCodes The codes of the features of the domain (in lower case).
+	 * @param equipmentsModel The Jena model that will receive the equipments (can be null).
+	 * @param qualityModel The Jena model that will receive the quality information (can be null).
+	 */
+	private static void readRecords(DBFRecordReader reader, PrimitiveIterator.OfInt records, Sampling.Stratifier stratifier, Domain domain, List<String> featureCodes, Model equipmentsModel, Model qualityModel) {
+
+		// Field indexes are resolved once for all records
+		int typeField = reader.getFieldIndex("typequ");
+		int qualityField = reader.getFieldIndex("qualite_xy");
+		int sectorField = reader.getFieldIndex("sect");
+		int municipalityField = reader.getFieldIndex("depcom");
+		int[] featureFields = featureCodes.stream().mapToInt(reader::getFieldIndex).toArray();
+
+		int record = -1;
 		try {
-			InputStream dbf = new FileInputStream(sportLeisureEquipmentsFilePath.toString());
-			try (DbfReader reader = new DbfReader(dbf)) {
-				while ((record = reader.read()) != null) {
-					if (forceAll || (record.getRecordNumber() % Configuration.SAMPLING_RATE == 0)) {
-						// Get the equipment type code and check that it is in the education domain
-						String typeCode = record.getString("typequ");
-						if (Configuration.getDomain(typeCode) != Domain.SPORT_LOISIR) continue;
-						Resource equipmentResource = equipmentsModel.createResource(Configuration.inseeEquipmentURI(String.valueOf(record.getRecordNumber())), BPEOnto.Equipement);
-						equipmentResource.addProperty(RDF.type, BPEOnto.EquipementSportLoisir);
-						equipmentResource.addProperty(DCTerms.type, equipmentsModel.createResource(Configuration.inseeEquipmentTypeURI(typeCode)));
-						for (String featureCode : featureCodes) {
-							String featureMarker = record.getString(featureCode);
+			while (records.hasNext()) {
+				record = records.nextInt();
+				String typeCode = reader.getString(record, typeField);
+				if ((stratifier != null) && !stratifier.accept(typeCode, reader.getString(record, municipalityField))) continue;
+				String equipmentCode = String.valueOf(DBFRecordReader.getRecordNumber(record));
+				if ((equipmentsModel != null) && (Configuration.getDomain(typeCode) == domain)) {
+					Resource equipmentResource = addEquipment(equipmentsModel, domain, typeCode, equipmentCode);
+					if (domain != Domain.ENSEMBLE) {
+						for (int index = 0; index < featureFields.length; index++) {
+							String featureMarker = reader.getString(record, featureFields[index]);
 							if (Configuration.featurePresence.containsKey(featureMarker)) {
-								equipmentResource.addProperty(Configuration.featurePresence.get(featureMarker), ResourceFactory.createResource(Configuration.inseeFeatureURI(featureCode)));
+								equipmentResource.addProperty(Configuration.featurePresence.get(featureMarker), NodeCache.feature(featureCodes.get(index)));
 							}
 						}
-						// TODO Add nb_aire_je and nb_salle (check that not null)
-						// Remaining variables are AN, DCIRIS, DEP, DEPCOM, LAMBERT_X, LAMBERT_Y, QUALITE_XY, REG and SECT
-						// Add municipality
-						String municipalityCode = record.getString("depcom");
-						equipmentResource.addProperty(BPEOnto.communeEquipement, ResourceFactory.createResource(Configuration.inseeMunicipalityURI(municipalityCode)));
+						addLocation(equipmentResource, domain, reader.getString(record, sectorField), reader.getString(record, municipalityField));
 					}
 				}
+				// Specific equipments of the general file will be treated with the files of their domains
+				if ((qualityModel != null) && !((domain == Domain.ENSEMBLE) && (Configuration.isSpecific(typeCode)))) addQuality(qualityModel, reader.getString(record, qualityField), equipmentCode);
 			}
-			dbf.close();
-		} catch (Exception e) {
-			logger.error("Error processing record " + record.getRecordNumber() + " - " + e.getMessage());
+			if (stratifier != null) logger.info(reader + ": " + stratifier);
+		} catch (RuntimeException e) {
+			logger.error("Error processing record " + DBFRecordReader.getRecordNumber(record) + " - " + e.getMessage());
+			throw e;
 		}
+	}
+
+	private static Resource addEquipment(Model equipmentsModel, Domain domain, String typeCode, String equipmentCode) {
+
+		Resource equipmentResource = equipmentsModel.createResource(Configuration.inseeEquipmentURI(equipmentCode), BPEOnto.Equipement);
+		if (domain == Domain.ENSEIGNEMENT) equipmentResource.addProperty(RDF.type, BPEOnto.EquipementEnseignement);
+		else if (domain == Domain.SPORT_LOISIR) equipmentResource.addProperty(RDF.type, BPEOnto.EquipementSportLoisir);
+		equipmentResource.addProperty(DCTerms.type, NodeCache.equipmentType(typeCode));
+
+		return equipmentResource;
+	}
+
+	private static void addLocation(Resource equipmentResource, Domain domain, String sectorCode, String municipalityCode) {
+
+		// Remaining variables are AN, DCIRIS, DEP, DEPCOM, LAMBERT_X, LAMBERT_Y, QUALITE_XY, REG and SECT
+		// Add sector (education only) and municipality
+		// TODO For sports and leisure, add nb_aire_je and nb_salle (check that not null)
+		if (domain == Domain.ENSEIGNEMENT) {
+			if ("PR".equals(sectorCode) || "PU".equals(sectorCode))
+				equipmentResource.addProperty(BPEOnto.secteurEquipement, NodeCache.sector(sectorCode));
+		}
+		equipmentResource.addProperty(BPEOnto.communeEquipement, NodeCache.municipality(municipalityCode));
+	}
+
+	private static void addQuality(Model qualityModel, String qualityCode, String equipmentCode) {
+
+		// Get the value of the quality level
+		QualityLevel qualityLevelValue;
+		try {
+			qualityLevelValue = QualityLevel.valueOf(qualityCode.toUpperCase());
+		} catch (IllegalArgumentException | NullPointerException e) {
+			return; // No quality information for this record
+		}
+		// Create the resource to which quality information will be attached
+		Resource targetResource = null;
+		if (Configuration.CREATE_GEOMETRY) targetResource = qualityModel.createResource(Configuration.inseeEquipmentGeometryURI(equipmentCode));
+		else targetResource = qualityModel.createResource(Configuration.inseeEquipmentURI(equipmentCode));
+		Resource qualityLevelResource = NodeCache.qualityLevel(qualityLevelValue);
+		if (Configuration.QUALITY_ANNOTATIONS) {
+			// Create annotation instance
+			Resource qualityAnnotationResource = qualityModel.createResource(Configuration.inseeGeometryQualityAnnotationURI(equipmentCode), DQV.QualityAnnotation);
+			targetResource.addProperty(DQV.hasQualityAnnotation, qualityAnnotationResource);
+			qualityAnnotationResource.addProperty(Annotations.hasTarget, targetResource);
+			qualityAnnotationResource.addProperty(Annotations.hasBody, qualityLevelResource);
+			qualityAnnotationResource.addProperty(Annotations.motivatedBy, DQV.qualityAssessment);
+		} else { // Simpler model: direct predicate between target and quality level
+			targetResource.addProperty(BPEOnto.qualiteGeometrie, qualityLevelResource);
+		}
+	}
+
+	// Prefixes of the equipment models, depending on the domain
+	private static Model initEquipmentsModel(Domain domain) {
+
+		Model equipmentsModel = BPEModelMaker.createModel();
+		equipmentsModel.setNsPrefix("dcterms", DCTerms.getURI());
+		equipmentsModel.setNsPrefix("rdfs", RDFS.getURI());
+		equipmentsModel.setNsPrefix("ibpe", BPEOnto.getURI());
+		equipmentsModel.setNsPrefix("ibpe-eq", "http://id.insee.fr/territoire/equipement/");
+		equipmentsModel.setNsPrefix("icod-teq", "http://id.insee.fr/codes/territoire/typeEquipement/");
+		if (domain == Domain.ENSEMBLE) return equipmentsModel;
+		equipmentsModel.setNsPrefix("icod-car", "http://id.insee.fr/codes/territoire/caractere/");
+		if (domain == Domain.ENSEIGNEMENT) equipmentsModel.setNsPrefix("icod-sec", "http://id.insee.fr/codes/territoire/secteur/");
+		equipmentsModel.setNsPrefix("igeo-com", "http://id.insee.fr/geo/commune/");
 
 		return equipmentsModel;
 	}
 
-	/**
-	 * Reads the quality information in a given domain from the DBF file and creates quality annotations into a Jena model.
-	 * Depending on the configuration, quality information can be simple links to quality level codes, or full-fledged DQV annotations.
-	 * Also depending on the configuration, quality information is attached to the equipment or to the geometry.
-	 * 
-	 * @return A Jena <code>Model</code> containing the quality information.
-	 */
-	public static Model makeQualityModel(Domain domain, boolean forceAll) {
+	private static Model initQualityModel() {
 
-		Model qualityModel = ModelFactory.createDefaultModel();
+		Model qualityModel = BPEModelMaker.createModel();
 		if (!Configuration.CREATE_GEOMETRY) qualityModel.setNsPrefix("ibpe-eq", "http://id.insee.fr/territoire/equipement/");
 		qualityModel.setNsPrefix("icod-qlt", "http://id.insee.fr/codes/qualite/");
 		if (Configuration.QUALITY_ANNOTATIONS) {
@@ -203,45 +379,6 @@ public class DBFModelMaker {
 			qualityModel.setNsPrefix("dqv", DQV.getURI());
 		} else qualityModel.setNsPrefix("ibpe", BPEOnto.getURI());
 
-		// Read the DBF file to get the list of equipments 
-		Path equipmentsFilePath = Configuration.getDBFDataFilePath(domain);
-		DbfRecord record = null;
-		try {
-			InputStream dbf = new FileInputStream(equipmentsFilePath.toString());
-			try (DbfReader reader = new DbfReader(dbf)) {
-				while ((record = reader.read()) != null) {
-					if (forceAll || (record.getRecordNumber() % Configuration.SAMPLING_RATE == 0)) {
-						// Get the value of the quality level
-						QualityLevel qualityLevelValue = QualityLevel.valueOf(record.getString("qualite_xy").toUpperCase());
-						if (qualityLevelValue == null) continue; // No quality information for this record
-						// Get the equipment type code and check that it is not in a specific domain
-						String typeCode = record.getString("typequ");
-						if ((domain == Domain.ENSEMBLE) && (Configuration.isSpecific(typeCode))) continue; // Specific equipments will be treated separately
-						// Create the resource to which quality information will be attached
-						Resource targetResource = null;
-						String equipmentCode = String.valueOf(record.getRecordNumber());
-						if (Configuration.CREATE_GEOMETRY) targetResource = qualityModel.createResource(Configuration.inseeEquipmentGeometryURI(equipmentCode));
-						else targetResource = qualityModel.createResource(Configuration.inseeEquipmentURI(equipmentCode));
-						Resource qualityLevelResource = qualityModel.createResource(qualityLevelValue.getURI());
-						if (Configuration.QUALITY_ANNOTATIONS) {
-							// Create annotation instance
-							Resource qualityAnnotationResource = qualityModel.createResource(Configuration.inseeGeometryQualityAnnotationURI(equipmentCode), DQV.QualityAnnotation);
-							targetResource.addProperty(DQV.hasQualityAnnotation, qualityAnnotationResource);
-							qualityAnnotationResource.addProperty(Annotations.hasTarget, targetResource);
-							qualityAnnotationResource.addProperty(Annotations.hasBody, qualityLevelResource);
-							qualityAnnotationResource.addProperty(Annotations.motivatedBy, DQV.qualityAssessment);
-						} else { // Simpler model: direct predicate between target and quality level
-							targetResource.addProperty(BPEOnto.qualiteGeometrie, qualityLevelResource);
-						}
-					}
-				}
-			}
-			dbf.close();
-		} catch (Exception e) {
-			logger.error("Error processing record " + record.getRecordNumber() + " - " + e.getMessage());
-		}
-
 		return qualityModel;
 	}
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,376 @@
+package fr.insee.semweb.bpe;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * <code>DBFRecordReader</code> gives random access to the records of a dBase file mapped in memory.
+ *
+ * Records have a fixed length after the header, so the position of a record is computed from its index and fields are decoded directly from the mapped bytes,
+ * with the character set of the dBase files (<code>Configuration.STRING_CHARSET</code>). Fields are designated by their index, resolved once from their name.
+ * The reader does not modify the state of the mapping, so it can be used by several threads, each one reading a different range of records.
+ * A reader can also be created on the bytes of a file already in memory, for example a file decompressed from an archive (see {@link BPEArchive}),
+ * or on a stream, in which case the records are read in increasing order with <code>readRecord</code> and only the last record read is held in memory.
+ *
+ * @author Franck
+ */
+public class DBFRecordReader implements Closeable {
+
+	final static byte DELETED_FLAG = '*';
+	final static byte HEADER_TERMINATOR = 0x0D;
+
+	private final String source; // Name of the file, for messages
+	private final Charset charset;
+	private final ByteBuffer buffer;
+	private final InputStream input; // Null when the file is in memory
+	private int streamRecord = -1; // When reading a stream, index of the record in the buffer
+	private final int recordCount;
+	private final int headerLength;
+	private final int recordLength;
+	private final List<String> fieldNames = new ArrayList<>();
+	private final Map<String, Integer> fieldIndexes = new HashMap<>();
+	private final int[] fieldOffsets; // Offset of each field in a record (the first byte of a record is the deletion flag)
+	private final int[] fieldLengths;
+	private final char[] fieldTypes;
+
+	/**
+	 * Range of records of a dBase file.
+	 */
+	public static class Range {
+
+		final int from;
+		final int to;
+
+		Range(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		/** Returns the index of the first record of the range */
+		public int getFrom() {
+			return from;
+		}
+
+		/** Returns the index following the last record of the range */
+		public int getTo() {
+			return to;
+		}
+
+		@Override
+		public String toString() {
+			return "Records [" + from + ", " + to + "[";
+		}
+	}
+
+	/**
+	 * Opens a dBase file with the character set of the configuration.
+	 *
+	 * @param dbfFilePath The path of the dBase file.
+	 * @return The reader.
+	 * @throws IOException In case of problem reading the file, or if the header is invalid.
+	 */
+	public static DBFRecordReader open(Path dbfFilePath) throws IOException {
+		return new DBFRecordReader(dbfFilePath, Configuration.STRING_CHARSET);
+	}
+
+	/**
+	 * Opens a dBase file and maps it in memory.
+	 *
+	 * @param dbfFilePath The path of the dBase file.
+	 * @param charset The character set of the character fields.
+	 * @throws IOException In case of problem reading the file, or if the header is invalid.
+	 */
+	public DBFRecordReader(Path dbfFilePath, Charset charset) throws IOException {
+
+		this(map(dbfFilePath), dbfFilePath.toString(), charset);
+	}
+
+	/**
+	 * Creates a reader on the content of a dBase file.
+	 *
+	 * @param buffer The bytes of the dBase file, from position 0 to the limit of the buffer (the buffer is not modified).
+	 * @param source The name of the file, for messages.
+	 * @param charset The character set of the character fields.
+	 * @throws IOException If the header is invalid.
+	 */
+	public DBFRecordReader(ByteBuffer buffer, String source, Charset charset) throws IOException {
+
+		this(buffer, null, source, charset);
+	}
+
+	/**
+	 * Opens a reader on a dBase stream, for example an entry of an archive. The stream is closed with the reader.
+	 * The records must be read in increasing order with <code>readRecord</code>, and only the last record read can be decoded.
+	 *
+	 * @param stream The stream of the dBase file.
+	 * @param source The name of the file, for messages.
+	 * @param charset The character set of the character fields.
+	 * @return The reader.
+	 * @throws IOException In case of problem reading the stream, or if the header is invalid.
+	 */
+	public static DBFRecordReader open(InputStream stream, String source, Charset charset) throws IOException {
+
+		try {
+			// The header and the field descriptors are read first, then the buffer receives one record after them
+			byte[] header = new byte[32];
+			IOUtils.readFully(stream, header);
+			ByteBuffer numbers = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+			int headerLength = numbers.getShort(8) & 0xFFFF;
+			int recordLength = numbers.getShort(10) & 0xFFFF;
+			if ((headerLength < 33) || (recordLength < 1)) throw new IOException("Invalid header in dBase file " + source);
+			byte[] bytes = new byte[headerLength + recordLength];
+			System.arraycopy(header, 0, bytes, 0, header.length);
+			IOUtils.readFully(stream, bytes, header.length, headerLength - header.length);
+			return new DBFRecordReader(ByteBuffer.wrap(bytes), stream, source, charset);
+		} catch (IOException | RuntimeException e) {
+			stream.close();
+			throw e;
+		}
+	}
+
+	private DBFRecordReader(ByteBuffer buffer, InputStream input, String source, Charset charset) throws IOException {
+
+		this.buffer = buffer;
+		this.input = input;
+		this.source = source;
+		this.charset = charset;
+		// The numbers of the header are in little endian order
+		ByteBuffer header = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		if (header.limit() < 32) throw new IOException("File " + source + " is not a dBase file");
+		int declaredCount = header.getInt(4);
+		headerLength = header.getShort(8) & 0xFFFF;
+		recordLength = header.getShort(10) & 0xFFFF;
+		if ((headerLength < 33) || (recordLength < 1) || (headerLength > header.limit())) throw new IOException("Invalid header in dBase file " + source);
+		// Some files declare more records than they contain (when reading a stream, this is only known when the end of the stream is reached)
+		recordCount = (input == null) ? Math.min(declaredCount, (header.limit() - headerLength) / recordLength) : declaredCount;
+
+		// Field descriptors (32 bytes each) follow the header, until the terminator
+		List<int[]> descriptors = new ArrayList<>();
+		List<Character> types = new ArrayList<>();
+		int offset = 1;
+		for (int descriptor = 32; (descriptor + 32 <= headerLength) && (buffer.get(descriptor) != HEADER_TERMINATOR); descriptor += 32) {
+			int nameLength = 0;
+			while ((nameLength < 11) && (buffer.get(descriptor + nameLength) != 0)) nameLength++;
+			byte[] nameBytes = new byte[nameLength];
+			for (int index = 0; index < nameLength; index++) nameBytes[index] = buffer.get(descriptor + index);
+			String name = new String(nameBytes, charset).trim();
+			int length = buffer.get(descriptor + 16) & 0xFF;
+			if (buffer.get(descriptor + 11) == 'C') length += (buffer.get(descriptor + 17) & 0xFF) << 8; // Long character fields use the decimal count byte
+			fieldIndexes.putIfAbsent(name.toLowerCase(), fieldNames.size());
+			fieldNames.add(name);
+			types.add((char) buffer.get(descriptor + 11));
+			descriptors.add(new int[] {offset, length});
+			offset += length;
+		}
+		if (offset > recordLength) throw new IOException("Fields of dBase file " + source + " are longer than the records");
+		fieldOffsets = descriptors.stream().mapToInt(descriptor -> descriptor[0]).toArray();
+		fieldLengths = descriptors.stream().mapToInt(descriptor -> descriptor[1]).toArray();
+		fieldTypes = new char[types.size()];
+		for (int index = 0; index < fieldTypes.length; index++) fieldTypes[index] = types.get(index);
+	}
+
+	/**
+	 * Returns the number of records in the file.
+	 *
+	 * @return The number of records.
+	 */
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * Returns the names of the fields, in the order of the records.
+	 *
+	 * @return The list of field names.
+	 */
+	public List<String> getFieldNames() {
+		return Collections.unmodifiableList(fieldNames);
+	}
+
+	/**
+	 * Returns the index of a field, which should be resolved once before reading the records.
+	 *
+	 * @param fieldName The name of the field (case is ignored).
+	 * @return The index of the field, or -1 if there is no field with this name.
+	 */
+	public int getFieldIndex(String fieldName) {
+		return fieldIndexes.getOrDefault(fieldName.toLowerCase(), -1);
+	}
+
+	/**
+	 * Makes a record available for decoding. When reading a stream, the records before it are skipped, and the previous records cannot be decoded anymore.
+	 *
+	 * @param record The index of the record, which must be greater than the index of the last record read when reading a stream.
+	 * @return <code>true</code> if the record exists, <code>false</code> if the file or the stream ends before it.
+	 * @throws IOException In case of problem reading the stream.
+	 */
+	public boolean readRecord(int record) throws IOException {
+
+		if (record >= recordCount) return false;
+		if (input == null) return true;
+		if (record <= streamRecord) throw new IllegalArgumentException("Record " + record + " of stream " + source + " is not after the last record read");
+		try {
+			IOUtils.skipFully(input, (long) (record - streamRecord - 1) * recordLength);
+			IOUtils.readFully(input, buffer.array(), headerLength, recordLength);
+		} catch (EOFException e) {
+			return false;
+		}
+		streamRecord = record;
+
+		return true;
+	}
+
+	/**
+	 * Returns the number of a record, as given by the sequential dBase readers (numbers start at 1).
+	 *
+	 * @param record The index of the record.
+	 * @return The number of the record.
+	 */
+	public static int getRecordNumber(int record) {
+		return record + 1;
+	}
+
+	/**
+	 * Indicates if a record is marked as deleted.
+	 *
+	 * @param record The index of the record.
+	 * @return <code>true</code> if the record is deleted, <code>false</code> otherwise.
+	 */
+	public boolean isDeleted(int record) {
+		return buffer.get(position(record)) == DELETED_FLAG;
+	}
+
+	/**
+	 * Decodes the value of a field of a record as a string.
+	 *
+	 * @param record The index of the record.
+	 * @param field The index of the field (-1 for a field that does not exist).
+	 * @return The value without padding spaces, or <code>null</code> if the field is empty or does not exist.
+	 */
+	public String getString(int record, int field) {
+
+		if (field < 0) return null;
+		int start = position(record) + fieldOffsets[field];
+		int end = start + fieldLengths[field];
+		while ((start < end) && isPadding(buffer.get(start))) start++;
+		while ((end > start) && isPadding(buffer.get(end - 1))) end--;
+		if (start == end) return null;
+		byte[] bytes = new byte[end - start];
+		for (int index = 0; index < bytes.length; index++) bytes[index] = buffer.get(start + index);
+
+		return new String(bytes, charset);
+	}
+
+	/**
+	 * Decodes all the fields of a record (for reports).
+	 *
+	 * @param record The index of the record.
+	 * @return The values of the fields indexed by field name, in the order of the fields.
+	 */
+	public Map<String, String> getRecordMap(int record) {
+
+		Map<String, String> values = new LinkedHashMap<>();
+		for (int field = 0; field < fieldNames.size(); field++) values.put(fieldNames.get(field), getString(record, field));
+
+		return values;
+	}
+
+	/**
+	 * Splits the records into ranges of approximately equal sizes, for example for parallel workers.
+	 *
+	 * @param count The number of ranges wanted (there can be less ranges for small files).
+	 * @return The list of ranges, in the order of the file.
+	 */
+	public List<Range> split(int count) {
+
+		List<Range> ranges = new ArrayList<>();
+		count = Math.max(1, Math.min(count, recordCount));
+		for (int range = 0; range < count; range++) {
+			int from = (int) ((long) recordCount * range / count);
+			int to = (int) ((long) recordCount * (range + 1) / count);
+			if (to > from) ranges.add(new Range(from, to));
+		}
+		return ranges;
+	}
+
+	/**
+	 * Returns the index of the first record of a range to read when the records are sampled, that is the first index whose record number is a multiple of the sampling rate.
+	 * Following records are found by adding the sampling rate to the index.
+	 *
+	 * @param range The range of records.
+	 * @param samplingRate The sampling rate (1 for all records).
+	 * @return The index of the first sampled record, which can be beyond the range.
+	 */
+	public static int firstSampledRecord(Range range, int samplingRate) {
+
+		if (samplingRate <= 1) return range.from;
+		int number = getRecordNumber(range.from);
+		int remainder = number % samplingRate;
+
+		return (remainder == 0) ? range.from : range.from + samplingRate - remainder;
+	}
+
+	/**
+	 * Returns the range of all the records.
+	 *
+	 * @return The range of all records.
+	 */
+	public Range all() {
+		return new Range(0, recordCount);
+	}
+
+	/**
+	 * Returns a description of the structure of the file.
+	 *
+	 * @return The description of the file and its fields.
+	 */
+	@Override
+	public String toString() {
+
+		StringBuilder description = new StringBuilder();
+		description.append("File ").append(source).append(": ").append(recordCount).append(" records of ").append(recordLength).append(" bytes, fields");
+		for (int field = 0; field < fieldNames.size(); field++) description.append(' ').append(fieldNames.get(field)).append(" (").append(fieldTypes[field]).append(fieldLengths[field]).append(')');
+
+		return description.toString();
+	}
+
+	@Override
+	public void close() throws IOException {
+		// The mapping or the buffer is released when the reader is garbage collected
+		if (input != null) input.close();
+	}
+
+	private static MappedByteBuffer map(Path dbfFilePath) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(dbfFilePath, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) throw new IOException("File " + dbfFilePath + " is too large for a dBase file");
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	private int position(int record) {
+
+		if ((record < 0) || (record >= recordCount)) throw new IndexOutOfBoundsException("Record " + record + " not in file " + source);
+		if (input != null) {
+			if (record != streamRecord) throw new IllegalStateException("Record " + record + " of stream " + source + " is not the last record read");
+			return headerLength;
+		}
+		return headerLength + record * recordLength;
+	}
+
+	private static boolean isPadding(byte value) {
+		return (value == ' ') || (value == 0);
+	}
+}
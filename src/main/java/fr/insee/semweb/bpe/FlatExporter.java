@@ -0,0 +1,185 @@
+package fr.insee.semweb.bpe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <code>FlatExporter</code> writes lines of the BPE database to a flat file (CSV or TSV), possibly compressed with gzip.
+ *
+ * Lines are read in batches by the calling thread, and the batches are formatted (and compressed) by a pool of threads, then written in order to a file channel.
+ * A compressed file is a sequence of gzip members, one per batch, which is a valid gzip file that the usual tools and <code>GZIPInputStream</code> read as a whole.
+ * The number of batches in progress is bounded, so that the memory used does not depend on the size of the export.
+ *
+ * @author Franck
+ */
+public class FlatExporter {
+
+	public static Logger logger = LogManager.getLogger(FlatExporter.class);
+
+	final static char CSV_SEPARATOR = ';'; // As in the files published on insee.fr
+	final static char TSV_SEPARATOR = '\t';
+	final static int BATCH_SIZE = 10000; // Number of lines formatted together
+	final static int BATCHES_PER_THREAD = 2; // Maximum number of batches in progress for each thread
+
+	private final List<String> columns;
+	private final char separator;
+	private final int parallelism;
+
+	/**
+	 * Creates an exporter.
+	 *
+	 * @param columns The names of the columns, in the order of the values of the lines.
+	 * @param separator The separator of the fields (<code>CSV_SEPARATOR</code> or <code>TSV_SEPARATOR</code>).
+	 * @param parallelism The number of threads formatting the lines (1 to format them in the calling thread).
+	 */
+	public FlatExporter(List<String> columns, char separator, int parallelism) {
+
+		this.columns = columns;
+		this.separator = separator;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Exports lines to a file, with the names of the columns on the first line.
+	 * The file is compressed with gzip if its name ends with '.gz'.
+	 *
+	 * @param rows The source of lines, whose values are in the order of the columns.
+	 * @param outputPath The path of the file to write (which is replaced if it exists).
+	 * @param maxRows The maximum number of lines exported, zero for no limit.
+	 * @return The number of lines exported.
+	 * @throws IOException In case of problem reading the lines or writing the file.
+	 */
+	public long export(RowSource rows, Path outputPath, long maxRows) throws IOException {
+
+		boolean compressed = outputPath.getFileName().toString().endsWith(".gz");
+		long exported = 0;
+		try (FileChannel channel = FileChannel.open(outputPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			StringBuilder header = new StringBuilder();
+			for (String column : columns) {
+				if (header.length() > 0) header.append(separator);
+				appendField(header, column);
+			}
+			write(channel, encode(header.append('\n'), compressed));
+
+			ExecutorService executor = (parallelism > 1) ? Executors.newFixedThreadPool(parallelism) : null;
+			Deque<Future<byte[]>> pending = new ArrayDeque<>();
+			try {
+				List<Object[]> batch = new ArrayList<>(BATCH_SIZE);
+				Object[] values;
+				while (((maxRows <= 0) || (exported < maxRows)) && ((values = rows.readNext()) != null)) {
+					batch.add(values);
+					exported++;
+					if (batch.size() < BATCH_SIZE) continue;
+					submit(batch, compressed, executor, pending, channel);
+					batch = new ArrayList<>(BATCH_SIZE);
+					if (((exported % SASModelMaker.LOGGING_STEP) == 0) && logger.isDebugEnabled()) logger.debug(exported + " lines exported to " + outputPath);
+				}
+				if (!batch.isEmpty()) submit(batch, compressed, executor, pending, channel);
+				while (!pending.isEmpty()) write(channel, pending.removeFirst().get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while exporting to " + outputPath, e);
+			} catch (ExecutionException e) {
+				throw new IOException("Error while formatting lines for " + outputPath, e.getCause());
+			} finally {
+				if (executor != null) executor.shutdownNow();
+			}
+		}
+		logger.info(exported + " lines exported to " + outputPath);
+
+		return exported;
+	}
+
+	// Formats a batch in the pool (or directly without pool), after writing the oldest batches if too many are in progress
+	private void submit(List<Object[]> batch, boolean compressed, ExecutorService executor, Deque<Future<byte[]>> pending, FileChannel channel) throws IOException, InterruptedException, ExecutionException {
+
+		if (executor == null) {
+			write(channel, format(batch, compressed));
+			return;
+		}
+		while (pending.size() >= parallelism * BATCHES_PER_THREAD) write(channel, pending.removeFirst().get());
+		pending.addLast(executor.submit(() -> format(batch, compressed)));
+	}
+
+	/**
+	 * Formats a batch of lines.
+	 *
+	 * @param batch The values of the lines.
+	 * @param compressed Indicates if the result must be compressed as a gzip member.
+	 * @return The bytes to write.
+	 * @throws IOException In case of problem compressing the bytes.
+	 */
+	byte[] format(List<Object[]> batch, boolean compressed) throws IOException {
+
+		StringBuilder text = new StringBuilder(batch.size() * 16 * columns.size());
+		for (Object[] values : batch) {
+			for (int index = 0; index < values.length; index++) {
+				if (index > 0) text.append(separator);
+				Object value = values[index];
+				if (value == null) continue;
+				if (value instanceof Date) text.append(RowFormatter.formatDate(((Date) value).getTime()));
+				else if (value instanceof Double) appendNumber(text, (Double) value);
+				else if (value instanceof Number) text.append(value.toString());
+				else appendField(text, value.toString());
+			}
+			text.append('\n');
+		}
+		return encode(text, compressed);
+	}
+
+	private static byte[] encode(CharSequence text, boolean compressed) throws IOException {
+
+		byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+		if (!compressed) return bytes;
+		ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length / 4 + 64);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(output, 1 << 16)) {
+			gzip.write(bytes);
+		}
+		return output.toByteArray();
+	}
+
+	private static void write(FileChannel channel, byte[] bytes) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) channel.write(buffer);
+	}
+
+	// Strings containing the separator, quotes or line breaks are quoted in CSV, and have these characters replaced by spaces in TSV
+	private void appendField(StringBuilder text, String value) {
+
+		boolean special = false;
+		for (int index = 0; (index < value.length()) && !special; index++) {
+			char character = value.charAt(index);
+			special = (character == separator) || (character == '"') || (character == '\n') || (character == '\r');
+		}
+		if (!special) text.append(value);
+		else if (separator == TSV_SEPARATOR) {
+			for (int index = 0; index < value.length(); index++) {
+				char character = value.charAt(index);
+				text.append(((character == '\t') || (character == '\n') || (character == '\r')) ? ' ' : character);
+			}
+		} else text.append('"').append(value.replace("\"", "\"\"")).append('"');
+	}
+
+	// Integral numbers are written without decimals (SAS numbers are all doubles), NaN values as missing
+	private static void appendNumber(StringBuilder text, double number) {
+
+		if (Double.isNaN(number)) return;
+		if ((number == Math.rint(number)) && (Math.abs(number) < 1e15)) text.append((long) number);
+		else text.append(number);
+	}
+}
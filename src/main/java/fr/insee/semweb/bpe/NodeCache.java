@@ -0,0 +1,192 @@
+package fr.insee.semweb.bpe;
+
+import fr.insee.semweb.bpe.Configuration.QualityLevel;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * <code>NodeCache</code> holds the resources and literals that are repeated across the equipments: types, features, sectors, municipalities,
+ * quality levels, creation dates and small integers.
+ *
+ * Each code is converted into a URI and a Jena resource only once, which saves allocations when mapping millions of lines.
+ * The cache is shared by all the model makers and is thread-safe.
+ *
+ * @author Franck
+ */
+public class NodeCache {
+
+	public static Logger logger = LogManager.getLogger(NodeCache.class);
+
+	final static int MAX_ENTRIES = 100000; // Per table, beyond that new values are created but not cached
+	final static int SMALL_INT_LIMIT = 1024; // Integer literals from 0 to this limit (excluded) are cached
+
+	private static final Table<String, Resource> equipmentTypes = new Table<>("equipment types", code -> ResourceFactory.createResource(Configuration.inseeEquipmentTypeURI(code)));
+	private static final Table<String, Resource> features = new Table<>("features", code -> ResourceFactory.createResource(Configuration.inseeFeatureURI(code)));
+	private static final Table<String, Resource> sectors = new Table<>("sectors", code -> {
+		String sectorURI = Configuration.inseeSectorURI(code);
+		return (sectorURI == null) ? null : ResourceFactory.createResource(sectorURI);
+	});
+	private static final Table<String, Resource> municipalities = new Table<>("municipalities", code -> ResourceFactory.createResource(Configuration.inseeMunicipalityURI(code)));
+	private static final Table<Long, Node> dates = new Table<>("creation dates", time -> NodeFactory.createLiteral(RowFormatter.formatDate(time), XSDDatatype.XSDdate));
+
+	private static final Node[] smallInts = new Node[SMALL_INT_LIMIT];
+	static {
+		for (int value = 0; value < SMALL_INT_LIMIT; value++) smallInts[value] = NodeFactory.createLiteral(String.valueOf(value), XSDDatatype.XSDint);
+	}
+
+	/**
+	 * Returns the resource corresponding to an equipment type.
+	 *
+	 * @param typeCode The code of the equipment type.
+	 * @return The resource representing the equipment type.
+	 */
+	public static Resource equipmentType(String typeCode) {
+		return equipmentTypes.get(typeCode);
+	}
+
+	/**
+	 * Returns the resource corresponding to an equipment feature.
+	 *
+	 * @param featureCode The code of the feature.
+	 * @return The resource representing the feature.
+	 */
+	public static Resource feature(String featureCode) {
+		return features.get(featureCode);
+	}
+
+	/**
+	 * Returns the resource corresponding to an education sector.
+	 *
+	 * @param sectorCode The code of the sector ("PU" or "PR").
+	 * @return The resource representing the sector, or <code>null</code> if the code is invalid.
+	 */
+	public static Resource sector(String sectorCode) {
+		return sectors.get(sectorCode);
+	}
+
+	/**
+	 * Returns the resource corresponding to a municipality.
+	 *
+	 * @param municipalityCode The code of the municipality.
+	 * @return The resource representing the municipality.
+	 */
+	public static Resource municipality(String municipalityCode) {
+		return municipalities.get(municipalityCode);
+	}
+
+	/**
+	 * Returns the resource corresponding to a quality level.
+	 *
+	 * @param qualityLevel The quality level.
+	 * @return The resource representing the quality level.
+	 */
+	public static Resource qualityLevel(QualityLevel qualityLevel) {
+		return QualityLevel.RESOURCE_MAP.get(qualityLevel);
+	}
+
+	/**
+	 * Returns the xsd:date literal corresponding to a date.
+	 *
+	 * @param date The date.
+	 * @return The literal node representing the date.
+	 */
+	public static Node dateLiteral(Date date) {
+		return dates.get(date.getTime());
+	}
+
+	/**
+	 * Returns the xsd:int literal corresponding to an integer.
+	 *
+	 * @param value The integer value.
+	 * @return The literal node representing the value.
+	 */
+	public static Node intLiteral(int value) {
+
+		if ((value >= 0) && (value < SMALL_INT_LIMIT)) return smallInts[value];
+		return NodeFactory.createLiteral(String.valueOf(value), XSDDatatype.XSDint);
+	}
+
+	/**
+	 * Returns the statistics of the cache: for each table, the number of entries, hits and misses.
+	 *
+	 * @return A list of lines describing the use of each table.
+	 */
+	public static List<String> getStatistics() {
+
+		List<String> statistics = new ArrayList<>();
+		for (Table<?, ?> table : new Table<?, ?>[] {equipmentTypes, features, sectors, municipalities, dates}) statistics.add(table.toString());
+
+		return statistics;
+	}
+
+	/**
+	 * Logs the statistics of the cache.
+	 */
+	public static void logStatistics() {
+		for (String line : getStatistics()) logger.info(line);
+	}
+
+	/**
+	 * Empties the cache and resets the statistics.
+	 */
+	public static void clear() {
+		for (Table<?, ?> table : new Table<?, ?>[] {equipmentTypes, features, sectors, municipalities, dates}) table.clear();
+	}
+
+	/** Concurrent table of values created from keys, with counts of hits and misses */
+	private static class Table<K, V> {
+
+		private final String name;
+		private final Function<K, V> factory;
+		private final ConcurrentHashMap<K, V> values = new ConcurrentHashMap<>();
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+
+		Table(String name, Function<K, V> factory) {
+			this.name = name;
+			this.factory = factory;
+		}
+
+		V get(K key) {
+
+			V value = values.get(key);
+			if (value != null) {
+				hits.increment();
+				return value;
+			}
+			misses.increment();
+			value = factory.apply(key);
+			if ((value != null) && (values.size() < MAX_ENTRIES)) {
+				V previous = values.putIfAbsent(key, value);
+				if (previous != null) value = previous;
+			}
+			return value;
+		}
+
+		void clear() {
+			values.clear();
+			hits.reset();
+			misses.reset();
+		}
+
+		@Override
+		public String toString() {
+
+			long hitCount = hits.sum();
+			long total = hitCount + misses.sum();
+			return "Cache of " + name + ": " + values.size() + " entries, " + hitCount + " hits out of " + total + " lookups" + ((total == 0) ? "" : String.format(" (%.1f%%)", 100.0 * hitCount / total));
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package fr.insee.semweb.bpe;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.jena.datatypes.RDFDatatype;
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+
+/**
+ * <code>NodeDictionary</code> assigns consecutive integer identifiers to the nodes of a graph, and stores the nodes as bytes instead of Jena objects.
+ *
+ * Each node is stored as its kind followed by the identifier of a string in a shared dictionary (namespace of a URI or language of a literal) and the UTF-8 bytes of the rest,
+ * the string being stored inline if the shared dictionary is full, so that the long URIs of the equipments are not repeated. Typed literals are stored with the identifier of their datatype
+ * in another shared dictionary, which keeps the datatype instances (custom datatypes such as <code>GeoSPARQL.wktLiteral</code> are not registered in the <code>TypeMapper</code>). Nodes are looked up in a hash table of identifiers (open addressing) on their bytes.
+ * Nodes are created again when they are decoded. The dictionary is not thread-safe.
+ *
+ * @author Franck
+ */
+class NodeDictionary {
+
+	final static int INITIAL_CAPACITY = 1024; // In nodes
+	final static int BYTES_PER_NODE = 32; // Initial size of the storage of a node
+	final static byte URI = 0, TYPED_LITERAL = 1, LANGUAGE_LITERAL = 2, BLANK_NODE = 3, DATATYPE_URI_LITERAL = 4; // The last one when the dictionary of datatypes is full
+
+	private final SharedDictionary<String> strings;
+	private final SharedDictionary<RDFDatatype> datatypes;
+	private byte[] bytes = new byte[INITIAL_CAPACITY * BYTES_PER_NODE];
+	private int[] offsets = new int[INITIAL_CAPACITY + 1]; // Start of each node in the bytes, followed by the end of the last node
+	private int size = 0;
+	private int[] table = newTable(2 * INITIAL_CAPACITY); // Identifiers of the nodes by hash code, -1 for empty slots
+	private byte[] scratch = new byte[BYTES_PER_NODE]; // Bytes of the node being encoded or looked up
+	private int scratchLength = 0;
+
+	/**
+	 * Creates an empty dictionary.
+	 *
+	 * @param strings The shared dictionary of namespaces and languages.
+	 * @param datatypes The shared dictionary of datatypes.
+	 */
+	NodeDictionary(SharedDictionary<String> strings, SharedDictionary<RDFDatatype> datatypes) {
+
+		this.strings = strings;
+		this.datatypes = datatypes;
+	}
+
+	/**
+	 * Returns the identifier of a node, adding the node to the dictionary if it is absent.
+	 *
+	 * @param node The node (URI, literal or blank node).
+	 * @return The identifier of the node.
+	 */
+	int encode(Node node) {
+
+		serialize(node, true);
+		int slot = find();
+		if (table[slot] >= 0) return table[slot];
+
+		if (size + 1 == offsets.length) offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+		if (offsets[size] + scratchLength > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, offsets[size] + scratchLength));
+		System.arraycopy(scratch, 0, bytes, offsets[size], scratchLength);
+		offsets[size + 1] = offsets[size] + scratchLength;
+		table[slot] = size;
+		if (2 * ++size > table.length) rehash();
+		return size - 1;
+	}
+
+	/**
+	 * Returns the identifier of a node without adding it to the dictionary.
+	 *
+	 * @param node The node.
+	 * @return The identifier of the node, or -1 if the node is not in the dictionary.
+	 */
+	int lookup(Node node) {
+
+		if (!(node.isURI() || node.isLiteral() || node.isBlank())) return -1;
+		serialize(node, false);
+		return table[find()];
+	}
+
+	/**
+	 * Returns the node corresponding to an identifier.
+	 *
+	 * @param identifier The identifier, as returned by <code>encode</code>.
+	 * @return The node.
+	 */
+	Node decode(int identifier) {
+
+		int position = offsets[identifier];
+		int end = offsets[identifier + 1];
+		byte kind = bytes[position++];
+		if (kind == BLANK_NODE) return NodeFactory.createBlankNode(new String(bytes, position, end - position, StandardCharsets.UTF_8));
+
+		int[] cursor = {position};
+		if (kind == TYPED_LITERAL) {
+			RDFDatatype datatype = datatypes.decode(readInteger(cursor));
+			return NodeFactory.createLiteral(new String(bytes, cursor[0], end - cursor[0], StandardCharsets.UTF_8), datatype);
+		}
+		int stringId = readInteger(cursor);
+		String string;
+		if (stringId == 0) {
+			int length = readInteger(cursor);
+			string = new String(bytes, cursor[0], length, StandardCharsets.UTF_8);
+			cursor[0] += length;
+		} else string = strings.decode(stringId - 1);
+		position = cursor[0];
+		String rest = new String(bytes, position, end - position, StandardCharsets.UTF_8);
+		if (kind == URI) return NodeFactory.createURI(string + rest);
+		if (kind == LANGUAGE_LITERAL) return NodeFactory.createLiteral(rest, string);
+		return NodeFactory.createLiteral(rest, TypeMapper.getInstance().getSafeTypeByName(string));
+	}
+
+	/**
+	 * Returns the number of nodes in the dictionary.
+	 *
+	 * @return The number of nodes.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the memory used by the dictionary, without the shared strings.
+	 *
+	 * @return The size of the arrays of the dictionary, in bytes.
+	 */
+	long getMemorySize() {
+		return bytes.length + 4L * (offsets.length + table.length);
+	}
+
+	// Writes the bytes of a node in the scratch array: kind, identifier of the datatype or of the shared string plus one (or zero followed by the length and bytes of the string) and UTF-8 bytes of the rest
+	private void serialize(Node node, boolean add) {
+
+		scratchLength = 0;
+		if (node.isBlank()) {
+			write(BLANK_NODE);
+			write(node.getBlankNodeLabel().getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+		String string, rest;
+		if (node.isURI()) {
+			write(URI);
+			String uri = node.getURI();
+			int split = uri.startsWith(Configuration.INSEE_EQUIPMENT_BASE_URI) ? Configuration.INSEE_EQUIPMENT_BASE_URI.length() : Math.max(uri.lastIndexOf('/'), uri.lastIndexOf('#')) + 1;
+			string = uri.substring(0, split);
+			rest = uri.substring(split);
+		} else if (node.isLiteral()) {
+			String language = node.getLiteralLanguage();
+			boolean hasLanguage = (language != null) && !language.isEmpty();
+			rest = node.getLiteralLexicalForm();
+			if (!hasLanguage) {
+				int datatypeId = add ? datatypes.encode(node.getLiteralDatatype()) : datatypes.lookup(node.getLiteralDatatype());
+				if (datatypeId >= 0) {
+					write(TYPED_LITERAL);
+					writeInteger(datatypeId);
+					write(rest.getBytes(StandardCharsets.UTF_8));
+					return;
+				}
+			}
+			write(hasLanguage ? LANGUAGE_LITERAL : DATATYPE_URI_LITERAL);
+			string = hasLanguage ? language : node.getLiteralDatatypeURI();
+		} else throw new IllegalArgumentException("Node cannot be stored in a dictionary: " + node);
+
+		int stringId = add ? strings.encode(string) : strings.lookup(string); // A string absent from the full shared dictionary is stored inline
+		writeInteger(stringId + 1);
+		if (stringId < 0) { // Shared dictionary full: the string is stored inline
+			byte[] stringBytes = string.getBytes(StandardCharsets.UTF_8);
+			writeInteger(stringBytes.length);
+			write(stringBytes);
+		}
+		write(rest.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Variable-length integer, seven bits per byte
+	private void writeInteger(int value) {
+
+		for (; value >= 0x80; value >>>= 7) write((byte) ((value & 0x7F) | 0x80));
+		write((byte) value);
+	}
+
+	private int readInteger(int[] cursor) {
+
+		int value = 0, shift = 0;
+		byte next;
+		do {
+			next = bytes[cursor[0]++];
+			value |= (next & 0x7F) << shift;
+			shift += 7;
+		} while (next < 0);
+		return value;
+	}
+
+	private void write(byte value) {
+
+		if (scratchLength == scratch.length) scratch = Arrays.copyOf(scratch, 2 * scratch.length);
+		scratch[scratchLength++] = value;
+	}
+
+	private void write(byte[] values) {
+
+		if (scratchLength + values.length > scratch.length) scratch = Arrays.copyOf(scratch, Math.max(2 * scratch.length, scratchLength + values.length));
+		System.arraycopy(values, 0, scratch, scratchLength, values.length);
+		scratchLength += values.length;
+	}
+
+	// Returns the slot of the node of the scratch array in the table, or the empty slot where it would be (linear probing)
+	private int find() {
+
+		int mask = table.length - 1;
+		int slot = hash(scratch, 0, scratchLength) & mask;
+		while (table[slot] >= 0) {
+			int identifier = table[slot];
+			int start = offsets[identifier];
+			if ((offsets[identifier + 1] - start == scratchLength) && equals(start)) break;
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private boolean equals(int start) {
+
+		for (int index = 0; index < scratchLength; index++) if (bytes[start + index] != scratch[index]) return false;
+		return true;
+	}
+
+	private void rehash() {
+
+		table = newTable(2 * table.length);
+		int mask = table.length - 1;
+		for (int identifier = 0; identifier < size; identifier++) {
+			int slot = hash(bytes, offsets[identifier], offsets[identifier + 1]) & mask;
+			while (table[slot] >= 0) slot = (slot + 1) & mask;
+			table[slot] = identifier;
+		}
+	}
+
+	private static int hash(byte[] values, int start, int end) {
+
+		int hash = 0x811C9DC5; // FNV-1a
+		for (int index = start; index < end; index++) hash = (hash ^ values[index]) * 0x01000193;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static int[] newTable(int capacity) {
+
+		int[] table = new int[capacity];
+		Arrays.fill(table, -1);
+		return table;
+	}
+}
@@ -0,0 +1,46 @@
+package fr.insee.semweb.bpe;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * A <code>RowCheck</code> is a check made on each line of the BPE database by a {@link RowValidator}, together with the other checks registered.
+ *
+ * Checks do not keep any state: the findings and counts are recorded in the result passed with each line, so that a check can visit lines in several threads at once.
+ *
+ * @author Franck
+ */
+public interface RowCheck {
+
+	/**
+	 * Returns the name of the check, which identifies its result.
+	 *
+	 * @return The name of the check.
+	 */
+	String getName();
+
+	/**
+	 * Returns the columns that the check reads.
+	 *
+	 * @return The names of the columns (in lower case).
+	 */
+	List<String> getColumns();
+
+	/**
+	 * Returns the filter on the equipment type of the lines that the check needs to visit.
+	 * When the check is run alone, the filter is pushed down to the reader of lines, and the lines rejected are neither decoded nor counted as checked.
+	 *
+	 * @return The filter as a predicate on the equipment type code, or <code>null</code> if the check visits all the lines (default).
+	 */
+	default Predicate<String> getTypeFilter() {
+		return null;
+	}
+
+	/**
+	 * Checks a line.
+	 *
+	 * @param row The values of the line.
+	 * @param result The result in which findings and counts are recorded.
+	 */
+	void check(RowValidator.Row row, CheckResult result);
+}
@@ -0,0 +1,90 @@
+package fr.insee.semweb.bpe;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+/**
+ * <code>RowFormatter</code> formats the strings derived from the values of a line (equipment identifier, WKT literal) into a reusable buffer.
+ *
+ * An instance is not thread-safe: it is meant to be used by one thread, which creates it before mapping its lines.
+ *
+ * @author Franck
+ */
+class RowFormatter {
+
+	/** Zone used to convert creation dates into local dates */
+	final static ZoneId dateZone = ZoneId.systemDefault();
+
+	private final StringBuilder buffer = new StringBuilder(128);
+
+	/**
+	 * Returns the equipment identifier, which is the concatenation of the trimmed values of the first two columns.
+	 *
+	 * @param idetab The value of the 'idetab' column.
+	 * @param idservice The value of the 'idservice' column.
+	 * @return The equipment identifier.
+	 */
+	String equipmentId(Object idetab, Object idservice) {
+
+		buffer.setLength(0);
+		appendTrimmed(idetab.toString());
+		appendTrimmed(idservice.toString());
+
+		return buffer.toString();
+	}
+
+	/**
+	 * Returns the value of the WKT literal representing a point in a given municipality (same value as <code>Configuration.getPointWKTLiteral</code>).
+	 *
+	 * @param x The first coordinate.
+	 * @param y The second coordinate.
+	 * @param municipalityCode The code of the municipality where the point is.
+	 * @return The WKT literal.
+	 */
+	String pointWKTLiteral(double x, double y, String municipalityCode) {
+
+		buffer.setLength(0);
+		buffer.append('<').append(Configuration.getCRSURI(municipalityCode)).append("> Point(").append(x).append(' ').append(y).append(')');
+
+		return buffer.toString();
+	}
+
+	/**
+	 * Formats a date as an ISO local date (yyyy-MM-dd) in the zone of the creation dates.
+	 * This method has no state and can be called from any thread.
+	 *
+	 * @param epochMillis The date as a number of milliseconds since the epoch.
+	 * @return The formatted date.
+	 */
+	static String formatDate(long epochMillis) {
+
+		int offsetSeconds = dateZone.getRules().getOffset(Instant.ofEpochMilli(epochMillis)).getTotalSeconds();
+		LocalDate date = LocalDate.ofEpochDay(Math.floorDiv(Math.floorDiv(epochMillis, 1000L) + offsetSeconds, 86400L));
+		int year = date.getYear();
+		if ((year < 0) || (year > 9999)) return date.toString(); // Not expected in the BPE
+
+		char[] chars = new char[10];
+		chars[0] = (char) ('0' + year / 1000);
+		chars[1] = (char) ('0' + year / 100 % 10);
+		chars[2] = (char) ('0' + year / 10 % 10);
+		chars[3] = (char) ('0' + year % 10);
+		chars[4] = '-';
+		chars[5] = (char) ('0' + date.getMonthValue() / 10);
+		chars[6] = (char) ('0' + date.getMonthValue() % 10);
+		chars[7] = '-';
+		chars[8] = (char) ('0' + date.getDayOfMonth() / 10);
+		chars[9] = (char) ('0' + date.getDayOfMonth() % 10);
+
+		return new String(chars);
+	}
+
+	private void appendTrimmed(String value) {
+
+		int start = 0;
+		int end = value.length();
+		while ((start < end) && (value.charAt(start) <= ' ')) start++;
+		while ((end > start) && (value.charAt(end - 1) <= ' ')) end--;
+		buffer.append(value, start, end);
+	}
+}
@@ -0,0 +1,340 @@
+package fr.insee.semweb.bpe;
+
+import fr.insee.semweb.bpe.Configuration.QualityLevel;
+import fr.insee.semweb.bpe.RunMetrics.Stage;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.vocabulary.DCTerms;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+/**
+ * <code>RowMapper</code> maps the lines of the BPE, whatever their source (SAS database, CSV file, synthetic lines), into the equipment and quality annotation triples.
+ *
+ * The lines are sequences of values in the order of a list of columns, with the Java types of the SAS parser (see {@link RowSource}).
+ * Each line is routed to the streams of the chunks whose filter accepts the equipment type. Several sources can be mapped in parallel with the threads of the mapper.
+ *
+ * @author Franck
+ */
+class RowMapper {
+
+	public static Logger logger = LogManager.getLogger(RowMapper.class);
+
+	final static int FLUSH_SIZE = 10000; // In parallel mode, number of triples buffered by a thread before being sent to the shared streams
+
+	/** Number of threads mapping sources in parallel */
+	private final int parallelism;
+
+	/**
+	 * Creates a mapper.
+	 *
+	 * @param parallelism The number of threads used to map several sources in parallel.
+	 */
+	RowMapper(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Streams the BPE data and quality triples corresponding to the lines of a source, read sequentially.
+	 * 
+	 * @param rows The source of lines, whose values are in the order of the columns.
+	 * @param columns The names of the columns of the lines.
+	 * @param featuresAndPropertiesByType The columns to process for each type of equipment.
+	 * @param router The router giving the chunks accepting each type.
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @param bpeStreams The streams that will receive the equipment triples, indexed by chunk name (can be null).
+	 * @param qualityStreams The streams that will receive the quality annotation triples, indexed by chunk name (can be null).
+	 * @return The number of equipments processed.
+	 * @throws IOException In case of problem reading the source.
+	 */
+	long streamRows(RowSource rows, List<String> columns, SortedMap<String, SortedSet<String>> featuresAndPropertiesByType, ChunkRouter router,
+							Map<String, Predicate<String>> typeFilters, Map<String, StreamRDF> bpeStreams, Map<String, StreamRDF> qualityStreams) throws IOException {
+
+		SASMappingPlan plan = SASMappingPlan.compile(featuresAndPropertiesByType, columns);
+		RunMetrics.Probe probe = new RunMetrics.Probe();
+		StreamRDF[] bpeChunkStreams = toArray(typeFilters, bpeStreams, probe);
+		StreamRDF[] qualityChunkStreams = toArray(typeFilters, qualityStreams, probe);
+		RowFormatter formatter = new RowFormatter();
+
+		long lineNumber = 0L;
+		long equipmentCreated = 0L;
+		Object[] values;
+		probe.start();
+		while ((values = rows.readNext()) != null) {
+			probe.stop(Stage.DECODE);
+			lineNumber++;
+			probe.row();
+			boolean selected = mapLine(values, plan, formatter, router, bpeChunkStreams, qualityChunkStreams);
+			probe.stop(Stage.MAPPING);
+			if (!selected) continue;
+			probe.equipment();
+			if (++equipmentCreated % SASModelMaker.LOGGING_STEP == 1) {
+				probe.commit();
+				if (logger.isDebugEnabled()) logger.debug("Just processed equipment number " + equipmentCreated + " (line number " + lineNumber + ")");
+				probe.start();
+			}
+		}
+		probe.stop(Stage.DECODE);
+		probe.commit();
+		logger.info(equipmentCreated + " equipments processed");
+
+		return equipmentCreated;
+	}
+
+	/**
+	 * Streams the BPE data and quality triples corresponding to the lines of several sources read in parallel with the threads of this mapper.
+	 * Each thread maps its lines into private buffers which are regularly flushed to the shared streams.
+	 * 
+	 * @param sources The functions opening the sources, indexed by source name (the sources are closed after being read).
+	 * @param columns The names of the columns of the lines.
+	 * @param featuresAndPropertiesByType The columns to process for each type of equipment.
+	 * @param router The router giving the chunks accepting each type.
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @param bpeStreams The streams that will receive the equipment triples, indexed by chunk name (can be null).
+	 * @param qualityStreams The streams that will receive the quality annotation triples, indexed by chunk name (can be null).
+	 * @return The number of equipments processed.
+	 * @throws IOException In case of problem reading a source.
+	 */
+	long streamRowsParallel(Map<String, Callable<RowSource>> sources, List<String> columns, SortedMap<String, SortedSet<String>> featuresAndPropertiesByType, ChunkRouter router,
+							Map<String, Predicate<String>> typeFilters, Map<String, StreamRDF> bpeStreams, Map<String, StreamRDF> qualityStreams) throws IOException {
+
+		SASMappingPlan plan = SASMappingPlan.compile(featuresAndPropertiesByType, columns);
+		StreamRDF[] bpeChunkStreams = toArray(typeFilters, bpeStreams, null);
+		StreamRDF[] qualityChunkStreams = toArray(typeFilters, qualityStreams, null);
+
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		List<Future<Long>> results = new ArrayList<>();
+		for (Map.Entry<String, Callable<RowSource>> source : sources.entrySet()) {
+			results.add(executor.submit(() -> {
+				TripleBuffer[] bpeBuffers = toBuffers(bpeChunkStreams);
+				TripleBuffer[] qualityBuffers = toBuffers(qualityChunkStreams);
+				RowFormatter formatter = new RowFormatter();
+				RunMetrics.Probe probe = new RunMetrics.Probe();
+				long equipmentCreated = 0L;
+				try (RowSource rows = source.getValue().call()) {
+					Object[] values;
+					probe.start();
+					while ((values = rows.readNext()) != null) {
+						probe.stop(Stage.DECODE);
+						probe.row();
+						if (mapLine(values, plan, formatter, router, bpeBuffers, qualityBuffers)) {
+							probe.equipment();
+							if (++equipmentCreated % SASModelMaker.LOGGING_STEP == 0) probe.commit();
+						}
+						probe.stop(Stage.MAPPING);
+						flushBuffers(bpeBuffers, FLUSH_SIZE, probe);
+						flushBuffers(qualityBuffers, FLUSH_SIZE, probe);
+					}
+					probe.stop(Stage.DECODE);
+				}
+				flushBuffers(bpeBuffers, 0, probe);
+				flushBuffers(qualityBuffers, 0, probe);
+				probe.commit();
+				if (logger.isDebugEnabled()) logger.debug(source.getKey() + ": " + equipmentCreated + " equipments processed");
+				return equipmentCreated;
+			}));
+		}
+		executor.shutdown();
+		long equipmentCreated = 0L;
+		try {
+			for (Future<Long> result : results) equipmentCreated += result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading sources in parallel", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Error while reading a source in parallel", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		logger.info(equipmentCreated + " equipments processed");
+
+		return equipmentCreated;
+	}
+
+	/**
+	 * Maps a line of the SAS database: the line is routed to the streams of the chunks whose filter accepts the equipment type.
+	 * 
+	 * @param values The values of the SAS line.
+	 * @param plan The compiled mapping plan.
+	 * @param formatter The formatter of the thread mapping the line.
+	 * @param router The router giving the chunks accepting each type.
+	 * @param bpeStreams The streams that will receive the equipment triples, indexed by chunk position (can be null).
+	 * @param qualityStreams The streams that will receive the quality annotation triples, indexed by chunk position (can be null).
+	 * @return <code>true</code> if the line was selected by at least one filter, <code>false</code> otherwise.
+	 */
+	boolean mapLine(Object[] values, SASMappingPlan plan, RowFormatter formatter, ChunkRouter router, StreamRDF[] bpeStreams, StreamRDF[] qualityStreams) {
+
+		// Read equipment type and route the line to the streams whose filter accepts it
+		String equipmentType = plan.getEquipmentType(values);
+		int[] chunks = router.route(equipmentType);
+		if (chunks.length == 0) return false;
+		String equipmentId = formatter.equipmentId(values[plan.idetabIndex], values[plan.idserviceIndex]);
+		for (int chunk : chunks) {
+			if (bpeStreams != null) addEquipment(bpeStreams[chunk], values, plan, formatter, equipmentType, equipmentId);
+			if (qualityStreams != null) addQualityAnnotation(qualityStreams[chunk], values, plan, equipmentId);
+		}
+		return true;
+	}
+
+	/**
+	 * Lists the columns of the lines that are needed to create the models.
+	 * Other columns (origin of the coordinates, IRIS codes...) will not be decoded.
+	 * 
+	 * @param featuresAndPropertiesByType The columns to process for each type of equipment.
+	 * @param equipments Indicates if the equipment triples are required.
+	 * @param quality Indicates if the quality triples are required.
+	 * @return The list of the names of the columns needed.
+	 */
+	static List<String> getRequiredColumns(SortedMap<String, SortedSet<String>> featuresAndPropertiesByType, boolean equipments, boolean quality) {
+
+		Set<String> columns = new LinkedHashSet<>(Arrays.asList("idetab", "idservice", "typequ"));
+		if (equipments) {
+			columns.addAll(Arrays.asList("depcom", "date_creation", "lambert_x", "lambert_y"));
+			for (SortedSet<String> featuresAndProperties : featuresAndPropertiesByType.values()) columns.addAll(featuresAndProperties);
+		}
+		if (quality) columns.add("qualite_xy");
+
+		return new ArrayList<>(columns);
+	}
+
+	/**
+	 * Arranges streams indexed by chunk name into an array indexed by chunk position (see <code>ChunkRouter</code>).
+	 * 
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @param streams The streams indexed by chunk name (can be null).
+	 * @param probe If not null, the streams are wrapped so that the triples they receive are counted by the probe (they must then be used by the thread of the probe only).
+	 * @return The array of streams in the iteration order of the filters, or <code>null</code> if the streams are null.
+	 */
+	private static StreamRDF[] toArray(Map<String, Predicate<String>> typeFilters, Map<String, StreamRDF> streams, RunMetrics.Probe probe) {
+
+		if (streams == null) return null;
+		StreamRDF[] chunkStreams = new StreamRDF[typeFilters.size()];
+		int position = 0;
+		for (String chunk : typeFilters.keySet()) chunkStreams[position++] = (probe == null) ? streams.get(chunk) : probe.counting(streams.get(chunk));
+
+		return chunkStreams;
+	}
+
+	private static TripleBuffer[] toBuffers(StreamRDF[] streams) {
+
+		if (streams == null) return null;
+		TripleBuffer[] buffers = new TripleBuffer[streams.length];
+		for (int position = 0; position < streams.length; position++) buffers[position] = new TripleBuffer(streams[position]);
+
+		return buffers;
+	}
+
+	// The time spent flushing (including waiting for the lock of the shared streams) is counted in the insert stage
+	private static void flushBuffers(TripleBuffer[] buffers, int threshold, RunMetrics.Probe probe) {
+
+		if (buffers == null) return;
+		for (TripleBuffer buffer : buffers) {
+			if (buffer.size() < threshold) continue;
+			probe.triples(buffer.size());
+			buffer.flush();
+			probe.stop(Stage.INSERT);
+		}
+	}
+
+	/**
+	 * Sends to a stream the triples describing the equipment contained in a line of the SAS database.
+	 * 
+	 * @param bpeStream The stream that will receive the equipment triples.
+	 * @param values The values of the SAS line.
+	 * @param plan The compiled mapping plan.
+	 * @param formatter The formatter of the thread mapping the line.
+	 * @param equipmentType The type of the equipment (already read from the line).
+	 * @param equipmentId The identifier of the equipment (already computed from the line).
+	 */
+	void addEquipment(StreamRDF bpeStream, Object[] values, SASMappingPlan plan, RowFormatter formatter, String equipmentType, String equipmentId) {
+
+		SASMappingPlan.TypePlan typePlan = plan.getTypePlan(equipmentType);
+
+		// Create equipment resource with relevant types
+		Node equipmentNode = NodeFactory.createURI(Configuration.inseeEquipmentURI(equipmentId));
+		bpeStream.triple(Triple.create(equipmentNode, RDF.type.asNode(), BPEOnto.Equipement.asNode()));
+		bpeStream.triple(Triple.create(equipmentNode, DCTerms.type.asNode(), typePlan.typeNode));
+		if (typePlan.domainClass != null) bpeStream.triple(Triple.create(equipmentNode, RDF.type.asNode(), typePlan.domainClass));
+		// Add general properties (municipality code, creation date)
+		String municipalityCode = values[plan.depcomIndex].toString();
+		bpeStream.triple(Triple.create(equipmentNode, BPEOnto.communeEquipement.asNode(), NodeCache.municipality(municipalityCode).asNode()));
+		// Add creation date (type java.util.Date)
+		Date dateValue = (Date) values[plan.dateIndex];
+		if (dateValue != null) {
+			bpeStream.triple(Triple.create(equipmentNode, DCTerms.created.asNode(), NodeCache.dateLiteral(dateValue)));
+		}
+		// Add specialized properties and features for equipments of specific domains
+		for (int column = 0; column < typePlan.emitters.length; column++) {
+			Object columnValue = values[typePlan.indexes[column]];
+			if (columnValue == null) {
+				// Data checks indicate that this does not happen for 2018
+				logger.warn("Null value of column " + typePlan.columns[column] + " for equipment " + equipmentId + " of type " + equipmentType);
+				continue;
+			}
+			typePlan.emitters[column].emit(bpeStream, equipmentNode, columnValue, equipmentId, equipmentType);
+		}
+
+		// Add geometry (lambert_x and lambert_y are of type java.lang.Double, or java.lang.Long if no decimal)
+		Object xLambert = values[plan.xIndex];
+		Object yLambert = values[plan.yIndex];
+		if ((xLambert != null) && (yLambert != null)) {
+			double xLambertDouble = (xLambert instanceof Double) ? (Double) xLambert : (Long) xLambert; // Harmonize to double
+			double yLambertDouble = (yLambert instanceof Double) ? (Double) yLambert : (Long) yLambert;
+			// If creation of GeoSPARQL geometries is required, create the corresponding resource
+			if (Configuration.CREATE_GEOMETRY) {
+				bpeStream.triple(Triple.create(equipmentNode, RDF.type.asNode(), GeoSPARQL.SpatialObject.asNode()));
+				Node geometryNode = NodeFactory.createURI(Configuration.inseeEquipmentGeometryURI(equipmentId));
+				bpeStream.triple(Triple.create(geometryNode, RDF.type.asNode(), GeoSPARQL.Geometry.asNode()));
+				String wktLiteral = formatter.pointWKTLiteral(xLambertDouble, yLambertDouble, municipalityCode);
+				bpeStream.triple(Triple.create(geometryNode, GeoSPARQL.asWKT.asNode(), NodeFactory.createLiteral(wktLiteral, GeoSPARQL.wktLiteral)));
+				bpeStream.triple(Triple.create(equipmentNode, GeoSPARQL.hasGeometry.asNode(), geometryNode));
+			}
+			// For now, we don't do anything in the 'else' case
+		}
+	}
+
+	/**
+	 * Sends to a stream the triples of the annotation on the geolocation of the equipment contained in a line of the SAS database.
+	 * Nothing is sent if the line does not contain valid quality information.
+	 * 
+	 * @param qualityStream The stream that will receive the quality annotation triples.
+	 * @param values The values of the SAS line.
+	 * @param plan The compiled mapping plan.
+	 * @param equipmentId The identifier of the equipment (already computed from the line).
+	 */
+	void addQualityAnnotation(StreamRDF qualityStream, Object[] values, SASMappingPlan plan, String equipmentId) {
+
+		// Get the value of the quality level
+		QualityLevel qualityLevelValue;
+		try {
+			qualityLevelValue = QualityLevel.valueOf(values[plan.qualityIndex].toString().trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			// Equipment is not geolocalized or quality value is invalid
+			return;
+		}
+		if (qualityLevelValue == null) return; // No quality information for this record
+		// The quality annotation target is the equipment or the geometry itself
+		Node targetNode;
+		if (Configuration.CREATE_GEOMETRY) targetNode = NodeFactory.createURI(Configuration.inseeEquipmentGeometryURI(equipmentId));
+		else targetNode = NodeFactory.createURI(Configuration.inseeEquipmentURI(equipmentId));
+		// Create annotation instance
+		Node qualityAnnotationNode = NodeFactory.createURI(Configuration.inseeGeometryQualityAnnotationURI(equipmentId));
+		qualityStream.triple(Triple.create(qualityAnnotationNode, RDF.type.asNode(), DQV.QualityAnnotation.asNode()));
+		qualityStream.triple(Triple.create(targetNode, DQV.hasQualityAnnotation.asNode(), qualityAnnotationNode));
+		qualityStream.triple(Triple.create(qualityAnnotationNode, Annotations.hasTarget.asNode(), targetNode));
+		qualityStream.triple(Triple.create(qualityAnnotationNode, Annotations.hasBody.asNode(), NodeCache.qualityLevel(qualityLevelValue).asNode()));
+		qualityStream.triple(Triple.create(qualityAnnotationNode, Annotations.motivatedBy.asNode(), DQV.qualityAssessment.asNode()));
+	}
+}
@@ -0,0 +1,22 @@
+package fr.insee.semweb.bpe;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A source of BPE lines, each line being an array of values in the order of a list of columns known by the caller.
+ * Values have the Java types returned by the SAS parser: <code>String</code> for character columns, <code>Long</code> or <code>Double</code>
+ * for numeric columns and <code>java.util.Date</code> for dates, <code>null</code> for missing values.
+ *
+ * @author Franck
+ */
+public interface RowSource extends Closeable {
+
+	/**
+	 * Returns the values of the next line.
+	 *
+	 * @return The values of the line, or <code>null</code> if there are no more lines.
+	 * @throws IOException In case of problem reading the source.
+	 */
+	Object[] readNext() throws IOException;
+}
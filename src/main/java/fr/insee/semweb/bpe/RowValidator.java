@@ -0,0 +1,322 @@
+package fr.insee.semweb.bpe;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <code>RowValidator</code> runs a set of checks on the lines of the BPE database in a single scan.
+ *
+ * The checks are registered as line visitors (see {@link RowCheck}), and only the columns they need are decoded. A check run alone can also restrict the lines decoded to some equipment types. In parallel mode, ranges of lines
+ * (of the columnar cache if it is up to date, or partitions of the SAS database) are checked by different threads, each with its own results, which are merged at the end.
+ *
+ * @author Franck
+ */
+public class RowValidator {
+
+	public static Logger logger = LogManager.getLogger(RowValidator.class);
+
+	private final int parallelism;
+	private final Map<String, RowCheck> checks = new LinkedHashMap<>();
+	private int maxSamples = CheckResult.DEFAULT_MAX_SAMPLES;
+
+	/**
+	 * Values of a line, accessed by column name.
+	 */
+	public static class Row {
+
+		private final Map<String, Integer> colIndexes;
+		private Object[] values;
+
+		Row(Map<String, Integer> colIndexes) {
+			this.colIndexes = colIndexes;
+		}
+
+		/**
+		 * Returns the value of a column.
+		 *
+		 * @param column The name of the column (in lower case).
+		 * @return The value of the column, or <code>null</code> if the value is missing.
+		 */
+		public Object get(String column) {
+			return values[colIndexes.get(column)];
+		}
+
+		/**
+		 * Returns the value of a column as a trimmed string.
+		 *
+		 * @param column The name of the column (in lower case).
+		 * @return The value of the column as a string, or <code>null</code> if the value is missing.
+		 */
+		public String getString(String column) {
+
+			Object value = values[colIndexes.get(column)];
+			return (value == null) ? null : value.toString().trim();
+		}
+	}
+
+	/**
+	 * Creates a validator.
+	 *
+	 * @param parallelism The number of threads (1 for a sequential scan).
+	 */
+	public RowValidator(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Registers a check, which replaces any check with the same name.
+	 *
+	 * @param check The check to run.
+	 * @return This validator.
+	 */
+	public RowValidator register(RowCheck check) {
+
+		checks.put(check.getName(), check);
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of messages kept for each category of findings.
+	 *
+	 * @param maxSamples The maximum number of messages.
+	 * @return This validator.
+	 */
+	public RowValidator setMaxSamples(int maxSamples) {
+
+		this.maxSamples = maxSamples;
+		return this;
+	}
+
+	/**
+	 * Returns the columns read by the checks registered.
+	 *
+	 * @return The names of the columns, without duplicates.
+	 */
+	public List<String> getColumns() {
+
+		Set<String> columns = new LinkedHashSet<>();
+		for (RowCheck check : checks.values()) for (String column : check.getColumns()) columns.add(column.toLowerCase());
+
+		return new ArrayList<>(columns);
+	}
+
+	/**
+	 * Returns the filter on the equipment type of the lines to read: the filter of the check if there is only one check registered.
+	 *
+	 * @return The filter as a predicate on the equipment type code, or <code>null</code> to read all the lines.
+	 */
+	public Predicate<String> getTypeFilter() {
+
+		if (checks.size() != 1) return null;
+		return checks.values().iterator().next().getTypeFilter();
+	}
+
+	/**
+	 * Runs the checks on the BPE database (or on its columnar cache if it is up to date).
+	 * If only one check is registered, its filter on the equipment type is pushed down to the reader.
+	 *
+	 * @return The results of the checks, indexed by check name in the order of registration.
+	 * @throws IOException In case of problem reading the database.
+	 */
+	public Map<String, CheckResult> run() throws IOException {
+
+		List<String> columns = getColumns();
+		Predicate<String> typeFilter = getTypeFilter();
+		if (parallelism > 1) {
+			Map<String, Callable<RowSource>> sources = splitSources(columns, typeFilter, parallelism);
+			if (sources != null) return run(sources, columns);
+		}
+		try (RowSource rows = SASColumnCache.openRows(columns, typeFilter)) {
+			return run(rows, columns);
+		}
+	}
+
+	/**
+	 * Runs the checks on the lines of any source (for example synthetic lines, see {@link SyntheticBPEGenerator}).
+	 *
+	 * @param rows The source of lines.
+	 * @param columns The names of the columns of the lines (in lower case), including at least those returned by <code>getColumns</code>.
+	 * @return The results of the checks, indexed by check name in the order of registration.
+	 * @throws IOException In case of problem reading the source.
+	 */
+	public Map<String, CheckResult> run(RowSource rows, List<String> columns) throws IOException {
+
+		Map<String, CheckResult> results = newResults();
+		run(rows, columns, results);
+
+		return results;
+	}
+
+	/**
+	 * Runs the checks on several sources of lines in parallel (see <code>scanSources</code>).
+	 *
+	 * @param sources The sources of lines, indexed by name (each source is opened in the thread that reads it).
+	 * @param columns The names of the columns of the lines (in lower case).
+	 * @return The results of the checks, merged in the order of the threads.
+	 * @throws IOException In case of problem reading a source.
+	 */
+	Map<String, CheckResult> run(Map<String, Callable<RowSource>> sources, List<String> columns) throws IOException {
+
+		Map<String, CheckResult> results = newResults();
+		for (Map<String, CheckResult> partialResults : scanSources(sources, parallelism, this::newResults, (rows, partialResults) -> run(rows, columns, partialResults), "checking")) {
+			for (Map.Entry<String, CheckResult> result : partialResults.entrySet()) results.get(result.getKey()).merge(result.getValue());
+		}
+		return results;
+	}
+
+	/**
+	 * Consumer of the lines of a source, which accumulates them into a partial result.
+	 *
+	 * @param <T> The type of the partial results.
+	 */
+	@FunctionalInterface
+	interface SourceScanner<T> {
+
+		/**
+		 * Reads all the lines of a source into a partial result.
+		 *
+		 * @param rows The source of lines.
+		 * @param partialResult The partial result of the thread reading the source.
+		 * @throws IOException In case of problem reading the source.
+		 */
+		void scan(RowSource rows, T partialResult) throws IOException;
+	}
+
+	/**
+	 * Reads several sources of lines in parallel.
+	 * Each thread reads sources until there are none left, into a partial result of its own: there are as many partial results to merge as threads, whatever the number of sources.
+	 *
+	 * @param <T> The type of the partial results.
+	 * @param sources The sources of lines, indexed by name (each source is opened in the thread that reads it).
+	 * @param parallelism The maximum number of threads.
+	 * @param newResult Creates the empty partial result of a thread.
+	 * @param scanner Reads the lines of a source into a partial result.
+	 * @param action The action performed on the lines (for messages).
+	 * @return The partial results, one for each thread.
+	 * @throws IOException In case of problem reading a source.
+	 */
+	static <T> List<T> scanSources(Map<String, Callable<RowSource>> sources, int parallelism, Supplier<T> newResult, SourceScanner<T> scanner, String action) throws IOException {
+
+		int threads = Math.max(1, Math.min(parallelism, sources.size()));
+		logger.debug(action.substring(0, 1).toUpperCase() + action.substring(1) + " " + sources.size() + " ranges of lines with " + threads + " threads");
+		Queue<Callable<RowSource>> pendingSources = new ConcurrentLinkedQueue<>(sources.values());
+		List<Future<T>> futureResults = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<T> partialResults = new ArrayList<>();
+		try {
+			for (int thread = 0; thread < threads; thread++) {
+				futureResults.add(executor.submit(() -> {
+					T partialResult = newResult.get();
+					Callable<RowSource> source;
+					while ((source = pendingSources.poll()) != null) {
+						try (RowSource rows = source.call()) {
+							scanner.scan(rows, partialResult);
+						}
+					}
+					return partialResult;
+				}));
+			}
+			for (Future<T> futureResult : futureResults) partialResults.add(futureResult.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while " + action + " the lines", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException("Error while " + action + " the lines", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return partialResults;
+	}
+
+	/**
+	 * Logs the results of checks: a summary for each check, then the findings of the checks that did not pass.
+	 *
+	 * @param results The results of the checks.
+	 */
+	public static void logResults(Map<String, CheckResult> results) {
+
+		for (CheckResult result : results.values()) {
+			if (result.isPassed()) logger.info("Check " + result.getCheckName() + " passed on " + result.getRowsChecked() + " lines");
+			else logger.warn(result.toString());
+		}
+	}
+
+	/**
+	 * Splits the lines of the BPE database into sources which can be read in parallel: ranges of the columnar cache if it is up to date and contains the columns,
+	 * partitions of the SAS database otherwise.
+	 *
+	 * @param columns The names of the columns to read (in lower case), in the order of the values returned.
+	 * @param typeFilter The filter as a predicate on the equipment type code, or <code>null</code> to read all lines.
+	 * @param parallelism The number of threads that will read the sources.
+	 * @return The sources of lines, indexed by name, or <code>null</code> if the database cannot be partitioned.
+	 * @throws IOException In case of problem reading the cache or the database.
+	 */
+	static Map<String, Callable<RowSource>> splitSources(List<String> columns, Predicate<String> typeFilter, int parallelism) throws IOException {
+
+		int count = parallelism * SASModelMaker.PARTITIONS_PER_THREAD;
+		Map<String, Callable<RowSource>> sources = new LinkedHashMap<>();
+		if (SASColumnCache.isUpToDate(Configuration.getSASDataFilePath(), Configuration.getSASCacheFilePath())) {
+			SASColumnCache cache = SASColumnCache.open(Configuration.getSASCacheFilePath());
+			if (cache.hasColumns(columns)) {
+				long rowCount = cache.getRowCount();
+				for (int range = 0; range < count; range++) {
+					long fromRow = rowCount * range / count;
+					long toRow = rowCount * (range + 1) / count;
+					sources.put("Lines " + fromRow + " to " + toRow, () -> cache.rows(columns, typeFilter, fromRow, toRow));
+				}
+				return sources;
+			}
+		}
+		SASPartitionReader partitionReader = new SASPartitionReader(Configuration.getSASDataFilePath());
+		if (!partitionReader.isPartitionable()) {
+			logger.warn("SAS file " + Configuration.getSASDataFilePath() + " cannot be partitioned, it will be read sequentially");
+			return null;
+		}
+		for (SASPartitionReader.Partition partition : partitionReader.split(count)) sources.put(partition.toString(), () -> SASRowReader.open(partitionReader, partition, columns, typeFilter));
+
+		return sources;
+	}
+
+	private void run(RowSource rows, List<String> columns, Map<String, CheckResult> results) throws IOException {
+
+		Row row = new Row(getColumnIndexes(columns));
+		long lineCount = 0;
+		while ((row.values = rows.readNext()) != null) {
+			for (RowCheck check : checks.values()) {
+				CheckResult result = results.get(check.getName());
+				result.incrementRowsChecked();
+				check.check(row, result);
+			}
+			if (((++lineCount % SASModelMaker.LOGGING_STEP) == 0) && logger.isDebugEnabled()) logger.debug(lineCount + " lines checked");
+		}
+	}
+
+	private Map<String, CheckResult> newResults() {
+
+		Map<String, CheckResult> results = new LinkedHashMap<>();
+		for (String name : checks.keySet()) results.put(name, new CheckResult(name, maxSamples));
+
+		return results;
+	}
+
+	// Columns are read in the order of the list (the first occurrence of a name is used)
+	private static Map<String, Integer> getColumnIndexes(List<String> columns) {
+
+		Map<String, Integer> colIndexes = new HashMap<>();
+		for (int index = 0; index < columns.size(); index++) colIndexes.putIfAbsent(columns.get(index).toLowerCase(), index);
+
+		return colIndexes;
+	}
+}
@@ -0,0 +1,455 @@
+package fr.insee.semweb.bpe;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <code>RunMetrics</code> gathers the counters and timers of a conversion run: lines read, equipments mapped, triples produced, time spent in each stage,
+ * triples of each chunk, heap memory and garbage collections.
+ *
+ * The metrics of the current run are exposed over JMX (see {@link RunMetricsMXBean}) and can be written as JSON at the end of the run.
+ * The threads that process lines accumulate their figures in a private {@link Probe}, which is added to the shared counters from time to time,
+ * so that the instrumentation costs a few clock reads per line and no contention.
+ *
+ * @author Franck
+ */
+public class RunMetrics implements RunMetricsMXBean {
+
+	public static Logger logger = LogManager.getLogger(RunMetrics.class);
+
+	final static String OBJECT_NAME = "fr.insee.semweb.bpe:type=RunMetrics";
+	final static Pattern CHUNK_PATTERN = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\": \\{\"triples\": (\\d+)"); // Chunk entries in the JSON output
+
+	/** Stages of a conversion */
+	public enum Stage {
+		/** Decoding of the lines of the source (SAS database, columnar cache...) */
+		DECODE,
+		/** Mapping of the lines to triples (including the sending to the target streams in sequential mode) */
+		MAPPING,
+		/** Sending of the buffered triples to the target streams (models or writers) in parallel mode */
+		INSERT,
+		/** Writing of the models to the output files, or completion of the output streams */
+		SERIALIZATION
+	}
+
+	private static final RunMetrics current = new RunMetrics();
+
+	private volatile long startTime = System.nanoTime();
+	private volatile long endTime = 0;
+	private final LongAdder rowsRead = new LongAdder();
+	private final LongAdder equipmentsProcessed = new LongAdder();
+	private final LongAdder triplesProduced = new LongAdder();
+	private final LongAdder[] stageNanos = new LongAdder[Stage.values().length];
+	private final Map<String, Long> chunkTriples = Collections.synchronizedMap(new LinkedHashMap<>()); // In the order of recording
+	private final Map<String, Long> chunkMillis = new ConcurrentHashMap<>();
+	private final AtomicLong peakHeapUsed = new AtomicLong();
+	private volatile Map<String, long[]> startGc = new LinkedHashMap<>(); // Count and time of the collections of each collector at the start of the run
+
+	private RunMetrics() {
+		for (Stage stage : Stage.values()) stageNanos[stage.ordinal()] = new LongAdder();
+	}
+
+	/**
+	 * Figures accumulated by one thread, to be added to the metrics of the run with <code>commit</code>.
+	 */
+	public static class Probe {
+
+		private long rows = 0;
+		private long equipments = 0;
+		private long triples = 0;
+		private final long[] nanos = new long[Stage.values().length];
+		private long lastTime = System.nanoTime();
+
+		/** Starts timing a stage */
+		public void start() {
+			lastTime = System.nanoTime();
+		}
+
+		/**
+		 * Adds the time elapsed since the last call to <code>start</code> or <code>stop</code> to a stage.
+		 *
+		 * @param stage The stage to which the time is added.
+		 */
+		public void stop(Stage stage) {
+
+			long time = System.nanoTime();
+			nanos[stage.ordinal()] += time - lastTime;
+			lastTime = time;
+		}
+
+		/** Counts a line read */
+		public void row() {
+			rows++;
+		}
+
+		/** Counts an equipment mapped */
+		public void equipment() {
+			equipments++;
+		}
+
+		/**
+		 * Counts triples produced.
+		 *
+		 * @param count The number of triples.
+		 */
+		public void triples(long count) {
+			triples += count;
+		}
+
+		/**
+		 * Adds the figures of the probe to the metrics of the current run, and resets the probe.
+		 */
+		public void commit() {
+
+			RunMetrics metrics = current;
+			metrics.rowsRead.add(rows);
+			metrics.equipmentsProcessed.add(equipments);
+			metrics.triplesProduced.add(triples);
+			for (int stage = 0; stage < nanos.length; stage++) {
+				metrics.stageNanos[stage].add(nanos[stage]);
+				nanos[stage] = 0;
+			}
+			rows = equipments = triples = 0;
+			metrics.sampleHeap();
+		}
+
+		/**
+		 * Wraps a stream so that the triples it receives are counted by the probe (the stream must only be used by the thread of the probe).
+		 *
+		 * @param stream The stream to wrap, can be null.
+		 * @return The counting stream, or null if the stream is null.
+		 */
+		public StreamRDF counting(StreamRDF stream) {
+
+			if (stream == null) return null;
+			return new StreamRDFWrapper(stream) {
+				@Override
+				public void triple(Triple triple) {
+					triples++;
+					super.triple(triple);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Returns the metrics of the current run.
+	 *
+	 * @return The metrics.
+	 */
+	public static RunMetrics get() {
+		return current;
+	}
+
+	/**
+	 * Starts a new run: resets the metrics and registers them with the platform MBean server if this is not already done.
+	 *
+	 * @return The metrics of the run.
+	 */
+	public static RunMetrics start() {
+
+		current.reset();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) server.registerMBean(current, name);
+		} catch (JMException e) {
+			logger.warn("Run metrics could not be registered with the MBean server: " + e.getMessage());
+		}
+		return current;
+	}
+
+	/**
+	 * Resets all the counters and timers, and restarts the clock.
+	 */
+	public synchronized void reset() {
+
+		rowsRead.reset();
+		equipmentsProcessed.reset();
+		triplesProduced.reset();
+		for (LongAdder adder : stageNanos) adder.reset();
+		chunkTriples.clear();
+		chunkMillis.clear();
+		peakHeapUsed.set(0);
+		startGc = getGcFigures();
+		endTime = 0;
+		startTime = System.nanoTime();
+		sampleHeap();
+	}
+
+	/**
+	 * Stops the clock of the run.
+	 */
+	public void finish() {
+
+		sampleHeap();
+		endTime = System.nanoTime();
+	}
+
+	/**
+	 * Adds time to a stage, for stages timed outside of the line processing loops.
+	 *
+	 * @param stage The stage.
+	 * @param nanos The time to add, in nanoseconds.
+	 */
+	public void addTime(Stage stage, long nanos) {
+		stageNanos[stage.ordinal()].add(nanos);
+	}
+
+	/**
+	 * Records the figures of a completed chunk.
+	 *
+	 * @param chunk The name of the chunk.
+	 * @param triples The number of triples of the chunk (added to the previous figure if the chunk has several outputs).
+	 * @param nanos The time spent creating the chunk in nanoseconds, or zero if the chunks are created together.
+	 */
+	public void recordChunk(String chunk, long triples, long nanos) {
+
+		chunkTriples.merge(chunk, triples, Long::sum);
+		if (nanos > 0) chunkMillis.merge(chunk, nanos / 1000000, Long::sum);
+		sampleHeap();
+	}
+
+	/**
+	 * Samples the heap memory used, so that the peak usage is known at the end of the run.
+	 */
+	public void sampleHeap() {
+		peakHeapUsed.accumulateAndGet(heapUsage().getUsed(), Math::max);
+	}
+
+	@Override
+	public long getElapsedMillis() {
+		return (((endTime > 0) ? endTime : System.nanoTime()) - startTime) / 1000000;
+	}
+
+	@Override
+	public long getRowsRead() {
+		return rowsRead.sum();
+	}
+
+	@Override
+	public long getEquipmentsProcessed() {
+		return equipmentsProcessed.sum();
+	}
+
+	@Override
+	public long getTriplesProduced() {
+		return triplesProduced.sum();
+	}
+
+	@Override
+	public double getRowsPerSecond() {
+		return perSecond(getRowsRead());
+	}
+
+	@Override
+	public double getTriplesPerSecond() {
+		return perSecond(getTriplesProduced());
+	}
+
+	@Override
+	public Map<String, Long> getStageMillis() {
+
+		Map<String, Long> stageMillis = new LinkedHashMap<>();
+		for (Stage stage : Stage.values()) stageMillis.put(stage.name().toLowerCase(), stageNanos[stage.ordinal()].sum() / 1000000);
+
+		return stageMillis;
+	}
+
+	@Override
+	public Map<String, Long> getChunkTriples() {
+
+		synchronized (chunkTriples) {
+			return new LinkedHashMap<>(chunkTriples);
+		}
+	}
+
+	@Override
+	public long getHeapUsed() {
+		return heapUsage().getUsed();
+	}
+
+	@Override
+	public long getHeapCommitted() {
+		return heapUsage().getCommitted();
+	}
+
+	@Override
+	public long getHeapMax() {
+		return heapUsage().getMax();
+	}
+
+	@Override
+	public long getPeakHeapUsed() {
+		return peakHeapUsed.get();
+	}
+
+	@Override
+	public long getGcCount() {
+
+		long count = 0;
+		for (long[] figures : getGcDeltas().values()) count += figures[0];
+		return count;
+	}
+
+	@Override
+	public long getGcMillis() {
+
+		long millis = 0;
+		for (long[] figures : getGcDeltas().values()) millis += figures[1];
+		return millis;
+	}
+
+	/**
+	 * Returns the metrics as a JSON object, with the chunks in the order in which they were recorded.
+	 *
+	 * @return The JSON text.
+	 */
+	@Override
+	public String toJSON() {
+
+		StringBuilder json = new StringBuilder("{\n");
+		json.append("  \"elapsedMillis\": ").append(getElapsedMillis()).append(",\n");
+		json.append("  \"rowsRead\": ").append(getRowsRead()).append(",\n");
+		json.append("  \"equipmentsProcessed\": ").append(getEquipmentsProcessed()).append(",\n");
+		json.append("  \"triplesProduced\": ").append(getTriplesProduced()).append(",\n");
+		json.append("  \"rowsPerSecond\": ").append(Math.round(getRowsPerSecond())).append(",\n");
+		json.append("  \"triplesPerSecond\": ").append(Math.round(getTriplesPerSecond())).append(",\n");
+		json.append("  \"stageMillis\": ");
+		appendObject(json, getStageMillis());
+		json.append(",\n  \"chunks\": {");
+		boolean first = true;
+		for (Map.Entry<String, Long> chunk : getChunkTriples().entrySet()) {
+			json.append(first ? "\n" : ",\n").append("    ");
+			appendString(json, chunk.getKey());
+			json.append(": {\"triples\": ").append(chunk.getValue());
+			if (chunkMillis.containsKey(chunk.getKey())) json.append(", \"millis\": ").append(chunkMillis.get(chunk.getKey()));
+			json.append("}");
+			first = false;
+		}
+		json.append(first ? "},\n" : "\n  },\n");
+		MemoryUsage heap = heapUsage();
+		json.append("  \"heap\": {\"used\": ").append(heap.getUsed()).append(", \"committed\": ").append(heap.getCommitted()).append(", \"max\": ").append(heap.getMax()).append(", \"peakUsed\": ").append(getPeakHeapUsed()).append("},\n");
+		json.append("  \"gc\": {\"count\": ").append(getGcCount()).append(", \"millis\": ").append(getGcMillis());
+		for (Map.Entry<String, long[]> collector : getGcDeltas().entrySet()) {
+			json.append(", ");
+			appendString(json, collector.getKey());
+			json.append(": {\"count\": ").append(collector.getValue()[0]).append(", \"millis\": ").append(collector.getValue()[1]).append("}");
+		}
+		json.append("}\n}\n");
+
+		return json.toString();
+	}
+
+	/**
+	 * Writes the metrics as JSON to a file, and logs a summary of the run.
+	 *
+	 * @param jsonFilePath The path of the file to write (which is replaced if it exists).
+	 * @throws IOException In case of problem writing the file.
+	 */
+	public void dumpJSON(Path jsonFilePath) throws IOException {
+
+		logger.info(getRowsRead() + " lines read and " + getTriplesProduced() + " triples produced in " + getElapsedMillis() + " ms, time by stage " + getStageMillis() + ", peak heap used " + (getPeakHeapUsed() >> 20) + " MB");
+		if (jsonFilePath.getParent() != null) Files.createDirectories(jsonFilePath.getParent());
+		Files.write(jsonFilePath, toJSON().getBytes(StandardCharsets.UTF_8));
+		logger.info("Run metrics written to " + jsonFilePath);
+	}
+
+	/**
+	 * Reads the numbers of triples of the chunks from a JSON file written by <code>dumpJSON</code>.
+	 *
+	 * @param jsonFilePath The path of the JSON file.
+	 * @return The numbers of triples, indexed by chunk name, empty if the file does not exist.
+	 * @throws IOException In case of problem reading the file.
+	 */
+	public static Map<String, Long> readChunkTriples(Path jsonFilePath) throws IOException {
+
+		Map<String, Long> triples = new LinkedHashMap<>();
+		if (!Files.exists(jsonFilePath)) return triples;
+		Matcher matcher = CHUNK_PATTERN.matcher(new String(Files.readAllBytes(jsonFilePath), StandardCharsets.UTF_8));
+		while (matcher.find()) triples.put(matcher.group(1).replaceAll("\\\\(.)", "$1"), Long.parseLong(matcher.group(2)));
+
+		return triples;
+	}
+
+	private double perSecond(long count) {
+
+		long elapsed = getElapsedMillis();
+		return (elapsed == 0) ? 0 : count * 1000.0 / elapsed;
+	}
+
+	private static MemoryUsage heapUsage() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+	}
+
+	// Count and time of the collections of each collector since the JVM start (undefined values are counted as zero)
+	private static Map<String, long[]> getGcFigures() {
+
+		Map<String, long[]> figures = new LinkedHashMap<>();
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			figures.put(collector.getName(), new long[] {Math.max(0, collector.getCollectionCount()), Math.max(0, collector.getCollectionTime())});
+		}
+		return figures;
+	}
+
+	// Count and time of the collections of each collector since the start of the run
+	private Map<String, long[]> getGcDeltas() {
+
+		Map<String, long[]> deltas = getGcFigures();
+		Map<String, long[]> start = startGc;
+		for (Map.Entry<String, long[]> delta : deltas.entrySet()) {
+			long[] initial = start.get(delta.getKey());
+			if (initial == null) continue;
+			delta.getValue()[0] -= initial[0];
+			delta.getValue()[1] -= initial[1];
+		}
+		return deltas;
+	}
+
+	private static void appendObject(StringBuilder json, Map<String, Long> values) {
+
+		json.append("{");
+		boolean first = true;
+		for (Map.Entry<String, Long> value : values.entrySet()) {
+			if (!first) json.append(", ");
+			appendString(json, value.getKey());
+			json.append(": ").append(value.getValue());
+			first = false;
+		}
+		json.append("}");
+	}
+
+	private static void appendString(StringBuilder json, String value) {
+
+		json.append('"');
+		for (char character : value.toCharArray()) {
+			if ((character == '"') || (character == '\\')) json.append('\\').append(character);
+			else if (character < 0x20) json.append(String.format("\\u%04x", (int) character));
+			else json.append(character);
+		}
+		json.append('"');
+	}
+}
@@ -0,0 +1,56 @@
+package fr.insee.semweb.bpe;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link RunMetrics}, exposed over JMX under the name <code>fr.insee.semweb.bpe:type=RunMetrics</code>.
+ *
+ * @author Franck
+ */
+public interface RunMetricsMXBean {
+
+	/** Returns the time elapsed since the start of the run (until its end if it is finished), in milliseconds */
+	long getElapsedMillis();
+
+	/** Returns the number of lines read from the source */
+	long getRowsRead();
+
+	/** Returns the number of equipments mapped (lines selected by at least one filter) */
+	long getEquipmentsProcessed();
+
+	/** Returns the number of triples sent to the target streams */
+	long getTriplesProduced();
+
+	/** Returns the average number of lines read per second since the start of the run */
+	double getRowsPerSecond();
+
+	/** Returns the average number of triples produced per second since the start of the run */
+	double getTriplesPerSecond();
+
+	/** Returns the time spent in each stage (summed over the threads), in milliseconds, indexed by stage name */
+	Map<String, Long> getStageMillis();
+
+	/** Returns the number of triples of each chunk, indexed by chunk name (filled when a chunk is completed) */
+	Map<String, Long> getChunkTriples();
+
+	/** Returns the heap memory currently used, in bytes */
+	long getHeapUsed();
+
+	/** Returns the heap memory currently committed, in bytes */
+	long getHeapCommitted();
+
+	/** Returns the maximum heap memory, in bytes (-1 if undefined) */
+	long getHeapMax();
+
+	/** Returns the highest heap memory used observed during the run, in bytes */
+	long getPeakHeapUsed();
+
+	/** Returns the number of garbage collections since the start of the run */
+	long getGcCount();
+
+	/** Returns the time spent in garbage collections since the start of the run, in milliseconds */
+	long getGcMillis();
+
+	/** Returns the metrics as a JSON object */
+	String toJSON();
+}
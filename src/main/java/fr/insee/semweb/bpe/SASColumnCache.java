@@ -0,0 +1,623 @@
+package fr.insee.semweb.bpe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * <code>SASColumnCache</code> is a binary columnar copy of the columns of the SAS database used by the model makers and the checks.
+ *
+ * The cache is created once by decoding the SAS database, and then read through memory mappings, which is much faster than decoding the SAS pages again.
+ * Each column is stored in a contiguous section of the file:
+ * <ul>
+ *   <li>character columns are dictionary-encoded, with 2 bits per line if there are at most 3 distinct values (features), 8, 16 or 32 bits otherwise;</li>
+ *   <li>character columns with too many distinct values (identifiers) are stored as UTF-8 text;</li>
+ *   <li>numeric columns are stored as doubles (NaN for missing values), dates as numbers of milliseconds.</li>
+ * </ul>
+ * Values read from the cache have the same Java types as those returned by the SAS parser (see {@link RowSource}).
+ *
+ * @author Franck
+ */
+public class SASColumnCache {
+
+	public static Logger logger = LogManager.getLogger(SASColumnCache.class);
+
+	final static int MAGIC = 0x42504543; // "BPEC"
+	final static int VERSION = 1;
+	final static int HEADER_SIZE = 24; // Magic, version, line count, offset of the directory
+	final static int MAX_DICTIONARY_SIZE = 1 << 16; // Character columns with more distinct values are stored as text
+	final static int PAGE_SIZE = 1 << 30; // Size of the mappings (a multiple of 8, so that numbers are never split between mappings)
+
+	// Storage kinds of the columns
+	static final byte NUMBER = 1, DATE = 2, DICTIONARY = 3, TEXT = 4;
+
+	private final long rowCount;
+	private final Map<String, CachedColumn> columns = new LinkedHashMap<>();
+
+	/**
+	 * Creates the cache of the columns of the SAS database that are used by the model makers, at the location given by the configuration.
+	 *
+	 * @return The number of lines in the cache.
+	 * @throws IOException In case of problem reading the database or writing the cache.
+	 */
+	public static long build() throws IOException {
+
+		List<String> columns = RowMapper.getRequiredColumns(Configuration.listFeaturesAndPropertiesByType(), true, true);
+		return build(Configuration.getSASDataFilePath(), Configuration.getSASCacheFilePath(), columns);
+	}
+
+	/**
+	 * Creates the cache of some columns of a SAS database.
+	 *
+	 * @param sasFilePath The path of the SAS database.
+	 * @param cacheFilePath The path of the cache file to create (an existing file is replaced).
+	 * @param columns The names of the columns to store (case is ignored).
+	 * @return The number of lines in the cache.
+	 * @throws IOException In case of problem reading the database or writing the cache.
+	 */
+	public static long build(Path sasFilePath, Path cacheFilePath, Collection<String> columns) throws IOException {
+
+		List<String> names = new ArrayList<>();
+		for (String column : columns) if (!names.contains(column.toLowerCase())) names.add(column.toLowerCase());
+		try (SASRowReader rowReader = SASRowReader.open(sasFilePath, names, null)) {
+			logger.info("Creating cache of " + names.size() + " columns for the " + rowReader.getRowCount() + " lines of " + sasFilePath);
+			return build(rowReader, names, cacheFilePath);
+		}
+	}
+
+	/**
+	 * Creates a cache from any source of lines (for example synthetic lines, see {@link SyntheticBPEGenerator}).
+	 * The values are first written column by column in temporary files, so that memory use does not depend on the number of lines.
+	 *
+	 * @param rows The source of lines.
+	 * @param columns The names of the columns of the lines (in lower case, without duplicates).
+	 * @param cacheFilePath The path of the cache file to create (an existing file is replaced).
+	 * @return The number of lines in the cache.
+	 * @throws IOException In case of problem reading the source or writing the cache.
+	 */
+	public static long build(RowSource rows, List<String> columns, Path cacheFilePath) throws IOException {
+
+		Path directory = cacheFilePath.toAbsolutePath().getParent();
+		Path tempDirectory = Files.createTempDirectory(directory, "cache");
+		List<ColumnWriter> writers = new ArrayList<>();
+		try {
+			for (String name : columns) writers.add(new ColumnWriter(name, tempDirectory));
+			long rowCount = 0;
+			Object[] values;
+			while ((values = rows.readNext()) != null) {
+				for (int index = 0; index < values.length; index++) writers.get(index).append(values[index]);
+				if (((++rowCount % SASModelMaker.LOGGING_STEP) == 0) && logger.isDebugEnabled()) logger.debug(rowCount + " lines decoded");
+			}
+			// Lay out the sections of the columns, aligned on 8 bytes
+			long offset = HEADER_SIZE;
+			for (ColumnWriter writer : writers) {
+				writer.finish(rowCount);
+				writer.offset = align(offset);
+				offset = writer.offset + writer.length;
+			}
+			long directoryOffset = align(offset);
+
+			Path tempCacheFile = tempDirectory.resolve("cache.bin");
+			try (CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(tempCacheFile), 1 << 16));
+				 DataOutputStream output = new DataOutputStream(counter)) {
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+				output.writeLong(rowCount);
+				output.writeLong(directoryOffset);
+				for (ColumnWriter writer : writers) {
+					while (counter.count < writer.offset) output.writeByte(0);
+					writer.writeData(output);
+				}
+				while (counter.count < directoryOffset) output.writeByte(0);
+				output.writeInt(writers.size());
+				for (ColumnWriter writer : writers) writer.writeDirectoryEntry(output);
+			}
+			Files.move(tempCacheFile, cacheFilePath, StandardCopyOption.REPLACE_EXISTING);
+			logger.info("Cache " + cacheFilePath + " created with " + rowCount + " lines (" + Files.size(cacheFilePath) + " bytes)");
+
+			return rowCount;
+		} finally {
+			for (ColumnWriter writer : writers) writer.delete();
+			try (DirectoryStream<Path> remaining = Files.newDirectoryStream(tempDirectory)) {
+				for (Path file : remaining) Files.deleteIfExists(file);
+			}
+			Files.deleteIfExists(tempDirectory);
+		}
+	}
+
+	/**
+	 * Indicates if a cache exists and is more recent than the SAS database.
+	 *
+	 * @param sasFilePath The path of the SAS database.
+	 * @param cacheFilePath The path of the cache file.
+	 * @return <code>true</code> if the cache can be used instead of the SAS database, <code>false</code> otherwise.
+	 * @throws IOException In case of problem reading the dates of the files.
+	 */
+	public static boolean isUpToDate(Path sasFilePath, Path cacheFilePath) throws IOException {
+
+		if (!Files.isRegularFile(cacheFilePath)) return false;
+		return !Files.exists(sasFilePath) || (Files.getLastModifiedTime(cacheFilePath).compareTo(Files.getLastModifiedTime(sasFilePath)) >= 0);
+	}
+
+	/**
+	 * Opens a cache file: its columns are mapped in memory.
+	 *
+	 * @param cacheFilePath The path of the cache file.
+	 * @return The cache.
+	 * @throws IOException In case of problem reading the file, or if it is not a valid cache file.
+	 */
+	public static SASColumnCache open(Path cacheFilePath) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(cacheFilePath, StandardOpenOption.READ)) {
+			return new SASColumnCache(channel, cacheFilePath);
+		}
+	}
+
+	/**
+	 * Opens a source on the lines of the SAS database specified in the configuration, reading the cache if it is up to date and contains the columns required.
+	 *
+	 * @param columns The names of the columns to read (in lower case), in the order of the values returned.
+	 * @param typeFilter The filter as a predicate on the equipment type code, or <code>null</code> to read all lines.
+	 * @return The source of lines.
+	 * @throws IOException In case of problem reading the cache or the database.
+	 */
+	public static RowSource openRows(List<String> columns, Predicate<String> typeFilter) throws IOException {
+
+		if (isUpToDate(Configuration.getSASDataFilePath(), Configuration.getSASCacheFilePath())) {
+			SASColumnCache cache = open(Configuration.getSASCacheFilePath());
+			if (cache.hasColumns(columns)) return cache.rows(columns, typeFilter, 0, cache.getRowCount());
+			logger.warn("Cache " + Configuration.getSASCacheFilePath() + " does not contain all the columns required, reading " + Configuration.getSASDataFilePath());
+		}
+		return SASRowReader.open(Configuration.getSASDataFilePath(), columns, typeFilter);
+	}
+
+	private SASColumnCache(FileChannel channel, Path cacheFilePath) throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		channel.read(header, 0);
+		header.flip();
+		if ((header.remaining() < HEADER_SIZE) || (header.getInt() != MAGIC)) throw new IOException("File " + cacheFilePath + " is not a cache file");
+		int version = header.getInt();
+		if (version != VERSION) throw new IOException("Version " + version + " of cache file " + cacheFilePath + " is not supported");
+		rowCount = header.getLong();
+		long directoryOffset = header.getLong();
+
+		ByteBuffer directoryBuffer = ByteBuffer.allocate((int) (channel.size() - directoryOffset));
+		channel.read(directoryBuffer, directoryOffset);
+		DataInputStream directory = new DataInputStream(new ByteArrayInputStream(directoryBuffer.array()));
+		int columnCount = directory.readInt();
+		for (int index = 0; index < columnCount; index++) {
+			CachedColumn column = new CachedColumn(directory, channel, rowCount);
+			columns.put(column.name, column);
+		}
+	}
+
+	/**
+	 * Returns the number of lines in the cache.
+	 *
+	 * @return The number of lines.
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Returns the names of the columns stored in the cache.
+	 *
+	 * @return The names of the columns (in lower case).
+	 */
+	public Set<String> getColumnNames() {
+		return Collections.unmodifiableSet(columns.keySet());
+	}
+
+	/**
+	 * Indicates if the cache contains some columns.
+	 *
+	 * @param names The names of the columns (case is ignored).
+	 * @return <code>true</code> if all the columns are in the cache, <code>false</code> otherwise.
+	 */
+	public boolean hasColumns(Collection<String> names) {
+
+		for (String name : names) if (!columns.containsKey(name.toLowerCase())) return false;
+		return true;
+	}
+
+	/**
+	 * Returns a source on a range of lines of the cache.
+	 * The range can be read in parallel with other ranges, each source being used by only one thread.
+	 *
+	 * @param names The names of the columns to read (case is ignored), in the order of the values returned.
+	 * @param typeFilter The filter as a predicate on the equipment type code, or <code>null</code> to read all lines.
+	 * @param fromRow The index of the first line of the range.
+	 * @param toRow The index following the last line of the range.
+	 * @return The source of lines.
+	 * @throws IOException If a column is not in the cache.
+	 */
+	public Rows rows(List<String> names, Predicate<String> typeFilter, long fromRow, long toRow) throws IOException {
+
+		CachedColumn[] projection = new CachedColumn[names.size()];
+		for (int index = 0; index < projection.length; index++) {
+			projection[index] = columns.get(names.get(index).toLowerCase());
+			if (projection[index] == null) throw new IOException("Column " + names.get(index) + " not found in cache");
+		}
+		CachedColumn typeColumn = null;
+		if (typeFilter != null) {
+			typeColumn = columns.get(SASRowReader.TYPE_COLUMN);
+			if (typeColumn == null) throw new IOException("Column " + SASRowReader.TYPE_COLUMN + " not found in cache");
+		}
+		return new Rows(projection, typeColumn, typeFilter, Math.max(0, fromRow), Math.min(rowCount, toRow));
+	}
+
+	/**
+	 * Source of the lines of a range of the cache.
+	 */
+	public static class Rows implements RowSource {
+
+		private final CachedColumn[] projection;
+		private final CachedColumn typeColumn;
+		private final Predicate<String> typeFilter;
+		private final boolean[] acceptedCodes; // The filter is evaluated once for each value of a dictionary-encoded type column
+		private final long toRow;
+		private long row;
+		private long linesSkipped = 0;
+
+		private Rows(CachedColumn[] projection, CachedColumn typeColumn, Predicate<String> typeFilter, long fromRow, long toRow) {
+
+			this.projection = projection;
+			this.typeColumn = typeColumn;
+			this.typeFilter = typeFilter;
+			this.row = fromRow;
+			this.toRow = toRow;
+			if ((typeColumn != null) && (typeColumn.kind == DICTIONARY)) {
+				acceptedCodes = new boolean[typeColumn.entries.length];
+				for (int code = 0; code < acceptedCodes.length; code++) {
+					acceptedCodes[code] = typeFilter.test((typeColumn.entries[code] == null) ? "" : typeColumn.entries[code].trim());
+				}
+			} else acceptedCodes = null;
+		}
+
+		@Override
+		public Object[] readNext() {
+
+			while (row < toRow) {
+				long current = row++;
+				if (typeColumn != null) {
+					boolean accepted;
+					if (acceptedCodes != null) accepted = acceptedCodes[typeColumn.code(current)];
+					else {
+						Object type = typeColumn.get(current);
+						accepted = typeFilter.test((type == null) ? "" : type.toString().trim());
+					}
+					if (!accepted) {
+						linesSkipped++;
+						continue;
+					}
+				}
+				Object[] values = new Object[projection.length];
+				for (int index = 0; index < projection.length; index++) values[index] = projection[index].get(current);
+				return values;
+			}
+			return null;
+		}
+
+		/**
+		 * Returns the number of lines rejected by the filter so far.
+		 *
+		 * @return The number of lines skipped.
+		 */
+		public long getLinesSkipped() {
+			return linesSkipped;
+		}
+
+		@Override
+		public void close() {
+			row = toRow;
+		}
+	}
+
+	/** Column of a cache file, mapped in memory */
+	private static class CachedColumn {
+
+		final String name;
+		final byte kind;
+		final int bits;
+		final String[] entries; // For dictionary-encoded columns, the value of each code (code 0 is for null)
+		final long rowCount;
+		final ByteBuffer[] pages;
+
+		CachedColumn(DataInputStream directory, FileChannel channel, long rowCount) throws IOException {
+
+			this.rowCount = rowCount;
+			name = directory.readUTF();
+			kind = directory.readByte();
+			long offset = directory.readLong();
+			long length = directory.readLong();
+			if (kind == DICTIONARY) {
+				bits = directory.readByte();
+				entries = new String[directory.readInt() + 1];
+				for (int code = 1; code < entries.length; code++) entries[code] = directory.readUTF();
+			} else {
+				bits = 0;
+				entries = null;
+			}
+			pages = new ByteBuffer[(int) ((length + PAGE_SIZE - 1) / PAGE_SIZE)];
+			for (int page = 0; page < pages.length; page++) {
+				long pageStart = (long) page * PAGE_SIZE;
+				pages[page] = channel.map(FileChannel.MapMode.READ_ONLY, offset + pageStart, Math.min(PAGE_SIZE, length - pageStart));
+			}
+		}
+
+		/** Returns the value of a line, with the Java type returned by the SAS parser */
+		Object get(long row) {
+
+			switch (kind) {
+				case NUMBER:
+					double number = page(8 * row).getDouble(position(8 * row));
+					if (Double.isNaN(number)) return null;
+					if ((number == Math.rint(number)) && (Math.abs(number) < 1e15)) return (long) number; // Numbers without decimals are of type Long
+					return number;
+				case DATE:
+					long time = page(8 * row).getLong(position(8 * row));
+					return (time == Long.MIN_VALUE) ? null : new Date(time);
+				case DICTIONARY:
+					return entries[code(row)];
+				default:
+					return text(row);
+			}
+		}
+
+		/** Returns the dictionary code of a line */
+		int code(long row) {
+
+			switch (bits) {
+				case 2: return (page(row >>> 2).get(position(row >>> 2)) >>> (2 * (int) (row & 3))) & 3;
+				case 8: return page(row).get(position(row)) & 0xFF;
+				case 16: return page(2 * row).getShort(position(2 * row)) & 0xFFFF;
+				default: return page(4 * row).getInt(position(4 * row));
+			}
+		}
+
+		// Text columns contain the end offsets of the values (negative for null values), then the bytes of the values
+		private String text(long row) {
+
+			long end = page(8 * row).getLong(position(8 * row));
+			if (end < 0) return null;
+			long start = (row == 0) ? 0 : page(8 * (row - 1)).getLong(position(8 * (row - 1)));
+			if (start < 0) start = -start - 1;
+			byte[] bytes = new byte[(int) (end - start)];
+			long base = 8 * rowCount;
+			for (int index = 0; index < bytes.length; index++) bytes[index] = page(base + start + index).get(position(base + start + index));
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		private ByteBuffer page(long bytePosition) {
+			return pages[(int) (bytePosition / PAGE_SIZE)];
+		}
+
+		private static int position(long bytePosition) {
+			return (int) (bytePosition % PAGE_SIZE);
+		}
+	}
+
+	/** Writer of a column, which stores the values in a temporary file until the layout of the cache is known */
+	private static class ColumnWriter {
+
+		final String name;
+		final Path tempDirectory;
+		Path tempFile = null;
+		DataOutputStream temp = null;
+		byte kind = 0; // Unknown until the first non null value
+		long leadingNulls = 0;
+		Map<String, Integer> dictionary = new HashMap<>();
+		List<String> entries = new ArrayList<>(Collections.singletonList(null));
+		long textLength = 0;
+		int bits = 0;
+		long offset;
+		long length;
+		long rowCount;
+
+		ColumnWriter(String name, Path tempDirectory) {
+			this.name = name;
+			this.tempDirectory = tempDirectory;
+		}
+
+		void append(Object value) throws IOException {
+
+			if (kind == 0) {
+				if (value == null) {
+					leadingNulls++;
+					return;
+				}
+				start((value instanceof Number) ? NUMBER : (value instanceof Date) ? DATE : DICTIONARY);
+			}
+			switch (kind) {
+				case NUMBER:
+					if ((value != null) && !(value instanceof Number)) throw new IOException("Value " + value + " of column " + name + " is not a number");
+					temp.writeDouble((value == null) ? Double.NaN : ((Number) value).doubleValue());
+					break;
+				case DATE:
+					if ((value != null) && !(value instanceof Date)) throw new IOException("Value " + value + " of column " + name + " is not a date");
+					temp.writeLong((value == null) ? Long.MIN_VALUE : ((Date) value).getTime());
+					break;
+				case DICTIONARY:
+					String string = (value == null) ? null : value.toString();
+					Integer code = (string == null) ? Integer.valueOf(0) : dictionary.get(string);
+					if (code == null) {
+						if (entries.size() >= MAX_DICTIONARY_SIZE) {
+							convertToText();
+							appendText(string);
+							return;
+						}
+						code = entries.size();
+						dictionary.put(string, code);
+						entries.add(string);
+					}
+					temp.writeInt(code);
+					break;
+				default:
+					appendText((value == null) ? null : value.toString());
+			}
+		}
+
+		private void start(byte kind) throws IOException {
+
+			this.kind = kind;
+			tempFile = Files.createTempFile(tempDirectory, name, ".tmp");
+			temp = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), 1 << 16));
+			for (long row = 0; row < leadingNulls; row++) append(null);
+		}
+
+		private void appendText(String value) throws IOException {
+
+			if (value == null) {
+				temp.writeInt(-1);
+				return;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			temp.writeInt(bytes.length);
+			temp.write(bytes);
+			textLength += bytes.length;
+		}
+
+		// Rewrites the values already encoded with the dictionary as text
+		private void convertToText() throws IOException {
+
+			logger.debug("Column " + name + " has more than " + MAX_DICTIONARY_SIZE + " distinct values, it is stored as text");
+			temp.close();
+			Path codesFile = tempFile;
+			tempFile = Files.createTempFile(tempDirectory, name, ".tmp");
+			temp = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), 1 << 16));
+			try (DataInputStream codes = new DataInputStream(new BufferedInputStream(Files.newInputStream(codesFile), 1 << 16))) {
+				for (long remaining = Files.size(codesFile) / 4; remaining > 0; remaining--) appendText(entries.get(codes.readInt()));
+			}
+			Files.delete(codesFile);
+			kind = TEXT;
+			dictionary = null;
+		}
+
+		void finish(long rowCount) throws IOException {
+
+			this.rowCount = rowCount;
+			if (kind == 0) start(DICTIONARY); // Only null values
+			temp.close();
+			switch (kind) {
+				case DICTIONARY:
+					int size = entries.size();
+					bits = (size <= 4) ? 2 : (size <= (1 << 8)) ? 8 : (size <= (1 << 16)) ? 16 : 32;
+					length = (rowCount * bits + 7) / 8;
+					break;
+				case TEXT:
+					length = 8 * rowCount + textLength;
+					break;
+				default:
+					length = 8 * rowCount;
+			}
+		}
+
+		void writeData(DataOutputStream output) throws IOException {
+
+			try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(tempFile), 1 << 16))) {
+				switch (kind) {
+					case DICTIONARY:
+						int packed = 0;
+						for (long row = 0; row < rowCount; row++) {
+							int code = input.readInt();
+							if (bits == 2) {
+								packed |= code << (2 * (int) (row & 3));
+								if ((row & 3) == 3) {
+									output.writeByte(packed);
+									packed = 0;
+								}
+							} else if (bits == 8) output.writeByte(code);
+							else if (bits == 16) output.writeShort(code);
+							else output.writeInt(code);
+						}
+						if ((bits == 2) && ((rowCount & 3) != 0)) output.writeByte(packed);
+						break;
+					case TEXT:
+						long end = 0;
+						for (long row = 0; row < rowCount; row++) {
+							int textSize = input.readInt();
+							if (textSize < 0) output.writeLong(-end - 1);
+							else {
+								end += textSize;
+								output.writeLong(end);
+								input.skipBytes(textSize);
+							}
+						}
+						break;
+					default:
+						for (long row = 0; row < rowCount; row++) output.writeLong(input.readLong());
+				}
+			}
+			if (kind == TEXT) { // Second pass for the bytes of the values
+				try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(tempFile), 1 << 16))) {
+					byte[] buffer = new byte[256];
+					for (long row = 0; row < rowCount; row++) {
+						int textSize = input.readInt();
+						if (textSize <= 0) continue;
+						if (buffer.length < textSize) buffer = new byte[textSize];
+						input.readFully(buffer, 0, textSize);
+						output.write(buffer, 0, textSize);
+					}
+				}
+			}
+		}
+
+		void writeDirectoryEntry(DataOutputStream output) throws IOException {
+
+			output.writeUTF(name);
+			output.writeByte(kind);
+			output.writeLong(offset);
+			output.writeLong(length);
+			if (kind == DICTIONARY) {
+				output.writeByte(bits);
+				output.writeInt(entries.size() - 1);
+				for (int code = 1; code < entries.size(); code++) output.writeUTF(entries.get(code));
+			}
+		}
+
+		void delete() throws IOException {
+
+			if (temp != null) temp.close();
+			if (tempFile != null) Files.deleteIfExists(tempFile);
+		}
+	}
+
+	/** Output stream counting the bytes written, in order to align the sections of the cache */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		long count = 0;
+
+		CountingOutputStream(OutputStream output) {
+			super(output);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+			count += length;
+		}
+	}
+
+	private static long align(long offset) {
+		return (offset + 7) & ~7L;
+	}
+}
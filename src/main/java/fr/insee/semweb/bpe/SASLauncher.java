@@ -1,14 +1,28 @@
 package fr.insee.semweb.bpe;
 
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.lang.StreamRDFCounting;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.riot.system.StreamRDFWriter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.BufferedOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.function.Predicate;
 
 /**
@@ -28,57 +42,282 @@ public class SASLauncher {
 	 */
 	public static void main(String... args) throws Exception {
 
-		SASModelMaker sasModelMaker = new SASModelMaker();
-
 		// The following parameters should be set before launching the process
-		final int SLEEP_DURATION = 20 * 1000; // Length of pause before starting the next chunk
+		final int PARALLELISM = Runtime.getRuntime().availableProcessors(); // Number of threads decoding the SAS file (1 for sequential reading)
+		final int CONCURRENT_CHUNKS = 2; // Maximum number of in-memory models created at the same time when not streaming nor in single pass (admitted according to the free heap)
 		boolean CREATE_MAIN_MODEL = true; // Create the main model if true
 		boolean CREATE_QUALITY_MODEL = true; // Create the quality model if true
+		boolean STREAMING = true; // Stream the triples to the output files as they are created (constant memory, block Turtle output) if true
+		boolean SINGLE_PASS = false; // When not streaming, read the SAS file once for all chunks if true (all chunk models are then held in memory together)
+		boolean AUTOMATIC_CHUNKS = true; // When creating the models in memory chunk by chunk, plan the chunks from the number of equipments of each type if true (additional reading of the SAS file), use the list below otherwise
+
+		// A stratified sample of the lines is read instead of all the lines if the sampling system properties are set (for example -Dbpe.sampling.rate=0.01)
+		SASModelMaker sasModelMaker = new SASModelMaker(PARALLELISM).setSampling(Sampling.fromSystemProperties());
 
 		// Specifies the partial models in terms of filters on the type of equipment
 		List<String> chunks = Arrays.asList("A1+A2", "A3", "A401+A402", "A403+A404", "A405+A406", "A501+A502+A503", "A504", "A505+A506+A507", "B1+B2", "B3", "C", "D-D2", "D2", "E", "F", "G");
 
-		// Calculate the predicate associated to each chunk expression
-		Map<String, Predicate<String>> predicates = new HashMap<>();
+		// The planned chunks are sized so that the models of the chunks created at the same time fit in the heap, which is useless when streaming or in single pass
+		Map<String, Long> estimatedTriples = new LinkedHashMap<>();
+		if (AUTOMATIC_CHUNKS && !STREAMING && !SINGLE_PASS) {
+			ChunkPlanner planner = new ChunkPlanner(SASUtils.countEquipmentsByType(), Configuration.listFeaturesAndPropertiesByType());
+			estimatedTriples = planner.planForHeap((long) (Runtime.getRuntime().maxMemory() * (1 - ChunkScheduler.HEAP_MARGIN) / CONCURRENT_CHUNKS));
+			chunks = new ArrayList<>(estimatedTriples.keySet());
+		}
+
+		// Compile the filter associated to each chunk expression
+		Map<String, Predicate<String>> predicates = new LinkedHashMap<>();
+		for (String chunk : chunks) predicates.put(chunk, TypeFilter.compile(chunk));
+
+		// The metrics of the run are available over JMX during the run and written as JSON at the end
+		RunMetrics metrics = RunMetrics.start();
+		try {
+			createModels(sasModelMaker, predicates, estimatedTriples, CONCURRENT_CHUNKS, CREATE_MAIN_MODEL, CREATE_QUALITY_MODEL, STREAMING, SINGLE_PASS);
+		} finally {
+			metrics.finish();
+			metrics.dumpJSON(Configuration.getRunMetricsFilePath());
+		}
+	}
+
+	/**
+	 * Creates the models or outputs with the method selected.
+	 *
+	 * @param sasModelMaker The model maker to use.
+	 * @param predicates The predicates on equipment types, indexed by chunk expression.
+	 * @param plannedTriples The estimated numbers of triples of the chunks, used when the metrics of a previous run do not give them (in-memory models created chunk by chunk only).
+	 * @param concurrentChunks The maximum number of models created at the same time (in-memory models created chunk by chunk only).
+	 * @param createMainModel Indicates if the main models should be created.
+	 * @param createQualityModel Indicates if the quality models should be created.
+	 * @param streaming Indicates if the triples are streamed to the output files.
+	 * @param singlePass When not streaming, indicates if the SAS file is read once for all chunks.
+	 * @throws Exception In case of problem.
+	 */
+	static void createModels(SASModelMaker sasModelMaker, Map<String, Predicate<String>> predicates, Map<String, Long> plannedTriples, int concurrentChunks,
+							 boolean createMainModel, boolean createQualityModel, boolean streaming, boolean singlePass) throws Exception {
+
+		if (streaming) {
+			createModelsStreaming(sasModelMaker, predicates, createMainModel, createQualityModel);
+			return;
+		}
+		if (singlePass) {
+			createModelsSinglePass(sasModelMaker, predicates, createMainModel, createQualityModel);
+			return;
+		}
+
+		// Now launch Jena models creation chunk by chunk, several chunks at a time if the heap allows it
+		Map<String, Long> previousTriples = RunMetrics.readChunkTriples(Configuration.getRunMetricsFilePath());
+		Map<String, ChunkScheduler.Chunk<Model>> tasks = new LinkedHashMap<>();
+		Map<String, Long> estimatedTriples = new LinkedHashMap<>();
+		List<String> chunks = new ArrayList<>(predicates.keySet());
 		for (String chunk : chunks) {
-			Predicate<String> predicate;
-			// First process the 'minus' patterns
-			final String[] componentsMinus = chunk.split("-"); // Must have final variables in the predicate expressions
-			if (componentsMinus.length == 2) { // Minus expressions should have exactly two components
-				predicate = type -> type.startsWith(componentsMinus[0]);
-				predicate = predicate.and(type -> !type.startsWith(componentsMinus[1]));
-			} else {
-				final String[] componentsPlus = chunk.split("\\+");
-				predicate  = type -> false;
-				for (final String filter : componentsPlus) {
-					predicate = predicate.or(type -> type.startsWith(filter));
+			if (createMainModel) tasks.put(chunk, modelChunk(chunk, () -> sasModelMaker.makeBPEModel(predicates.get(chunk)), "src/main/resources/data/facilities-"));
+			if (createQualityModel) tasks.put(chunk + " quality", modelChunk(chunk, () -> sasModelMaker.makeQualityModel(predicates.get(chunk)), "src/main/resources/data/geo-quality-"));
+			// The triples of a previous run are counted by chunk for the main and quality models together, which overestimates each model, as does the main model planned for the quality model
+			Long triples = previousTriples.containsKey(chunk) ? previousTriples.get(chunk) : plannedTriples.get(chunk);
+			if (triples != null) {
+				if (createMainModel) estimatedTriples.put(chunk, triples);
+				if (createQualityModel) estimatedTriples.put(chunk + " quality", triples);
+			}
+		}
+		Map<String, Long> tripleCounts = new ChunkScheduler(concurrentChunks).run(tasks, ChunkScheduler.estimateModelSizes(estimatedTriples));
+
+		long tripleCount = 0;
+		if (createMainModel) {
+			for (String chunk : chunks) {
+				logger.info("Model created for filter " + chunk + " with " + tripleCounts.get(chunk) + " triples");
+				tripleCount += tripleCounts.get(chunk);
+			}
+			logger.info(chunks.size() + " models created with a total of " + tripleCount + " triples");
+		}
+		if (createQualityModel) {
+			tripleCount = 0;
+			int modelCount = chunks.size();
+			for (String chunk : chunks) {
+				long chunkCount = tripleCounts.get(chunk + " quality");
+				if (chunkCount > 0) {
+					logger.info("Quality model created for filter " + chunk + " with " + chunkCount + " triples");
+					tripleCount += chunkCount;
+				} else { // Some types of equipments are not geocoded
+					logger.info("No quality metadata for filter " + chunk + ", no model created");
+					modelCount--;
+				}
+			}
+			logger.info(modelCount + " models created with a total of " + tripleCount + " triples");
+		}
+	}
+
+	/**
+	 * Defines the creation of an in-memory model for a chunk, and its writing in Turtle (empty models are not written).
+	 *
+	 * @param chunk The chunk expression.
+	 * @param maker The function creating the model.
+	 * @param filePrefix The beginning of the path of the file to write, which is completed by the chunk expression in lower case.
+	 * @return The chunk to run with the scheduler.
+	 */
+	private static ChunkScheduler.Chunk<Model> modelChunk(String chunk, Callable<Model> maker, String filePrefix) {
+
+		return new ChunkScheduler.Chunk<Model>() {
+			private long startTime;
+
+			@Override
+			public Model build() throws Exception {
+
+				logger.info("Launching model creation for " + filePrefix.substring(filePrefix.lastIndexOf('/') + 1) + chunk.toLowerCase());
+				startTime = System.nanoTime();
+				return maker.call();
+			}
+
+			@Override
+			public long write(Model model) throws Exception {
+
+				long size = model.size();
+				if (size > 0) {
+					long writeTime = System.nanoTime();
+					try (Writer writer = new FileWriter(filePrefix + chunk.toLowerCase() + ".ttl")) {
+						model.write(writer, "TTL");
+					}
+					RunMetrics.get().addTime(RunMetrics.Stage.SERIALIZATION, System.nanoTime() - writeTime);
 				}
+				model.close();
+				RunMetrics.get().recordChunk(chunk, size, System.nanoTime() - startTime);
+				return size;
 			}
-			predicates.put(chunk, predicate);
+		};
+	}
+
+	/**
+	 * Streams the data and quality triples of all the chunks to the output files with one single read of the SAS file.
+	 * No Jena model is created, so the memory used does not depend on the size of the chunks.
+	 * Output files are written in Turtle with blocks grouped by subject, which is less compact than the pretty format.
+	 *
+	 * @param sasModelMaker The model maker to use.
+	 * @param predicates The predicates on equipment types, indexed by chunk expression.
+	 * @param createMainModel Indicates if the main triples should be created.
+	 * @param createQualityModel Indicates if the quality triples should be created.
+	 * @throws IOException In case of problem reading the SAS file or writing the output files.
+	 */
+	static void createModelsStreaming(SASModelMaker sasModelMaker, Map<String, Predicate<String>> predicates, boolean createMainModel, boolean createQualityModel) throws IOException {
+
+		Map<String, Path> equipmentPaths = new LinkedHashMap<>();
+		Map<String, Path> qualityPaths = new LinkedHashMap<>();
+		for (String chunk : predicates.keySet()) {
+			if (createMainModel) equipmentPaths.put(chunk, Paths.get("src/main/resources/data/facilities-" + chunk.toLowerCase() + ".ttl"));
+			if (createQualityModel) qualityPaths.put(chunk, Paths.get("src/main/resources/data/geo-quality-" + chunk.toLowerCase() + ".ttl"));
+		}
+		List<OutputStream> outputs = new ArrayList<>();
+		Map<String, StreamRDFCounting> equipmentStreams = openStreams(equipmentPaths, outputs);
+		Map<String, StreamRDFCounting> qualityStreams = openStreams(qualityPaths, outputs);
+		equipmentStreams.values().forEach(sasModelMaker::initBPEStream);
+		qualityStreams.values().forEach(sasModelMaker::initQualityStream);
+
+		logger.info("Launching streaming creation for filters " + predicates.keySet());
+		try {
+			sasModelMaker.streamModels(predicates, createMainModel ? new LinkedHashMap<>(equipmentStreams) : null, createQualityModel ? new LinkedHashMap<>(qualityStreams) : null);
+		} finally {
+			long finishTime = System.nanoTime();
+			equipmentStreams.values().forEach(StreamRDF::finish);
+			qualityStreams.values().forEach(StreamRDF::finish);
+			for (OutputStream output : outputs) output.close();
+			RunMetrics.get().addTime(RunMetrics.Stage.SERIALIZATION, System.nanoTime() - finishTime);
+		}
+
+		long tripleCount = 0;
+		for (String chunk : equipmentStreams.keySet()) {
+			RunMetrics.get().recordChunk(chunk, equipmentStreams.get(chunk).countTriples(), 0);
+			logger.info("Output created for filter " + chunk + " with " + equipmentStreams.get(chunk).countTriples() + " triples");
+			tripleCount += equipmentStreams.get(chunk).countTriples();
+		}
+		if (createMainModel) logger.info(equipmentStreams.size() + " outputs created with a total of " + tripleCount + " triples");
+		tripleCount = 0;
+		int modelCount = qualityStreams.size();
+		for (String chunk : qualityStreams.keySet()) {
+			long chunkCount = qualityStreams.get(chunk).countTriples();
+			RunMetrics.get().recordChunk(chunk, chunkCount, 0);
+			if (chunkCount > 0) {
+				logger.info("Quality output created for filter " + chunk + " with " + chunkCount + " triples");
+				tripleCount += chunkCount;
+			} else { // Some types of equipments are not geocoded
+				logger.info("No quality metadata for filter " + chunk + ", no output created");
+				Files.delete(qualityPaths.get(chunk));
+				modelCount--;
+			}
+		}
+		if (createQualityModel) logger.info(modelCount + " quality outputs created with a total of " + tripleCount + " triples");
+	}
+
+	/**
+	 * Opens started Turtle writing streams on a list of files.
+	 *
+	 * @param paths The paths of the files to write, indexed by chunk.
+	 * @param outputs A list to which the underlying output streams are added, so that they can be closed by the caller.
+	 * @return The streams, indexed by chunk, counting the triples written.
+	 * @throws IOException In case of problem opening the files.
+	 */
+	private static Map<String, StreamRDFCounting> openStreams(Map<String, Path> paths, List<OutputStream> outputs) throws IOException {
+
+		Map<String, StreamRDFCounting> streams = new LinkedHashMap<>();
+		for (String chunk : paths.keySet()) {
+			OutputStream output = new BufferedOutputStream(Files.newOutputStream(paths.get(chunk)));
+			outputs.add(output);
+			StreamRDFCounting stream = StreamRDFLib.count(StreamRDFWriter.getWriterStream(output, RDFFormat.TURTLE_BLOCKS));
+			stream.start();
+			streams.put(chunk, stream);
 		}
+		return streams;
+	}
+
+	/**
+	 * Creates the data and quality models of all the chunks with one single read of the SAS file.
+	 *
+	 * @param sasModelMaker The model maker to use.
+	 * @param predicates The predicates on equipment types, indexed by chunk expression.
+	 * @param createMainModel Indicates if the main models should be created.
+	 * @param createQualityModel Indicates if the quality models should be created.
+	 * @throws IOException In case of problem reading the SAS file or writing the models.
+	 */
+	static void createModelsSinglePass(SASModelMaker sasModelMaker, Map<String, Predicate<String>> predicates, boolean createMainModel, boolean createQualityModel) throws IOException {
+
+		Map<String, Model> equipmentModels = null;
+		Map<String, Model> qualityModels = null;
+		if (createMainModel) {
+			equipmentModels = new LinkedHashMap<>();
+			for (String chunk : predicates.keySet()) equipmentModels.put(chunk, sasModelMaker.initBPEModel());
+		}
+		if (createQualityModel) {
+			qualityModels = new LinkedHashMap<>();
+			for (String chunk : predicates.keySet()) qualityModels.put(chunk, sasModelMaker.initQualityModel());
+		}
+		logger.info("Launching model creation for filters " + predicates.keySet());
+		sasModelMaker.makeModels(predicates, equipmentModels, qualityModels);
 
-		// Now launch Jena models creation chunk by chunk
 		int tripleCount = 0;
-		if (CREATE_MAIN_MODEL) {
-			for (String chunk : chunks) {
-				logger.info("Launching main model creation for filter " + chunk);
-				Model equipments = sasModelMaker.makeBPEModel(predicates.get(chunk));
-				equipments.write(new FileWriter("src/main/resources/data/facilities-" + chunk.toLowerCase() + ".ttl"), "TTL");
+		if (createMainModel) {
+			for (String chunk : equipmentModels.keySet()) {
+				Model equipments = equipmentModels.get(chunk);
+				long writeTime = System.nanoTime();
+				try (Writer writer = new FileWriter("src/main/resources/data/facilities-" + chunk.toLowerCase() + ".ttl")) {
+					equipments.write(writer, "TTL");
+				}
+				RunMetrics.get().addTime(RunMetrics.Stage.SERIALIZATION, System.nanoTime() - writeTime);
+				RunMetrics.get().recordChunk(chunk, equipments.size(), 0);
 				logger.info("Model created for filter " + chunk + " with " + equipments.size() + " triples");
 				tripleCount += equipments.size();
 				equipments.close();
-				Thread.sleep(SLEEP_DURATION); // Let the garbage collection proceed
 			}
-			logger.info(chunks.size() + " models created with a total of " + tripleCount + " triples");
+			logger.info(equipmentModels.size() + " models created with a total of " + tripleCount + " triples");
 		}
-		if (CREATE_QUALITY_MODEL) {
+		if (createQualityModel) {
 			tripleCount = 0;
-			int modelCount = chunks.size();
-			for (String chunk : chunks) {
-				logger.info("Launching quality model creation for filter " + chunk);
-				Model quality = sasModelMaker.makeQualityModel(predicates.get(chunk));
+			int modelCount = qualityModels.size();
+			for (String chunk : qualityModels.keySet()) {
+				Model quality = qualityModels.get(chunk);
 				if (quality.size() > 0) {
-					quality.write(new FileWriter("src/main/resources/data/geo-quality-" + chunk.toLowerCase() + ".ttl"), "TTL");
+					long writeTime = System.nanoTime();
+					try (Writer writer = new FileWriter("src/main/resources/data/geo-quality-" + chunk.toLowerCase() + ".ttl")) {
+						quality.write(writer, "TTL");
+					}
+					RunMetrics.get().addTime(RunMetrics.Stage.SERIALIZATION, System.nanoTime() - writeTime);
+					RunMetrics.get().recordChunk(chunk, quality.size(), 0);
 					logger.info("Quality model created for filter " + chunk + " with " + quality.size() + " triples");
 					tripleCount += quality.size();
 				} else { // Some types of equipments are not geocoded
@@ -86,7 +325,6 @@ public class SASLauncher {
 					modelCount--;
 				}
 				quality.close();
-				Thread.sleep(SLEEP_DURATION); // Let the garbage collection proceed
 			}
 			logger.info(modelCount + " models created with a total of " + tripleCount + " triples");
 		}
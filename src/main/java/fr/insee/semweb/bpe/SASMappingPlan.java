@@ -0,0 +1,186 @@
+package fr.insee.semweb.bpe;
+
+import fr.insee.semweb.bpe.Configuration.Domain;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <code>SASMappingPlan</code> is the mapping of the lines of the SAS database, compiled once from the types-features configuration and the list of columns read.
+ *
+ * Column names are resolved into indexes in the values of a line, and for each type of equipment the specialized columns are associated to emitters
+ * that create the triples for the feature or property, so that mapping a line does not involve any lookup or test on column names.
+ *
+ * @author Franck
+ */
+class SASMappingPlan {
+
+	public static Logger logger = LogManager.getLogger(SASMappingPlan.class);
+
+	/** Index of each general column in the values of a line, -1 if the column is not read */
+	final int idetabIndex, idserviceIndex, typequIndex, depcomIndex, dateIndex, xIndex, yIndex, qualityIndex;
+
+	private final SortedMap<String, SortedSet<String>> featuresAndPropertiesByType;
+	private final Map<String, Integer> colIndexes;
+	private final Map<String, TypePlan> typePlans = new ConcurrentHashMap<>();
+
+	// Nodes corresponding to the values of feature columns
+	private static final Map<String, Node> presenceNodes = new HashMap<>();
+	static {
+		Configuration.featurePresence.forEach((marker, property) -> presenceNodes.put(marker, property.asNode()));
+	}
+
+	private SASMappingPlan(SortedMap<String, SortedSet<String>> featuresAndPropertiesByType, Map<String, Integer> colIndexes) {
+
+		this.featuresAndPropertiesByType = featuresAndPropertiesByType;
+		this.colIndexes = colIndexes;
+		idetabIndex = colIndexes.getOrDefault("idetab", -1);
+		idserviceIndex = colIndexes.getOrDefault("idservice", -1);
+		typequIndex = colIndexes.getOrDefault("typequ", -1);
+		depcomIndex = colIndexes.getOrDefault("depcom", -1);
+		dateIndex = colIndexes.getOrDefault("date_creation", -1);
+		xIndex = colIndexes.getOrDefault("lambert_x", -1);
+		yIndex = colIndexes.getOrDefault("lambert_y", -1);
+		qualityIndex = colIndexes.getOrDefault("qualite_xy", -1);
+		// Types listed in the configuration are compiled upfront, other types will be compiled when met
+		for (String equipmentType : featuresAndPropertiesByType.keySet()) typePlans.put(equipmentType, compileType(equipmentType));
+	}
+
+	/**
+	 * Compiles the mapping plan for lines whose values are in the order of a list of columns (see <code>SASRowReader</code>).
+	 *
+	 * @param featuresAndPropertiesByType The columns to process for each type of equipment.
+	 * @param columns The names of the columns read, in lower case and without duplicates.
+	 * @return The mapping plan.
+	 */
+	static SASMappingPlan compile(SortedMap<String, SortedSet<String>> featuresAndPropertiesByType, List<String> columns) {
+
+		Map<String, Integer> colIndexes = new HashMap<>();
+		for (String column : columns) colIndexes.putIfAbsent(column, colIndexes.size());
+
+		return new SASMappingPlan(featuresAndPropertiesByType, colIndexes);
+	}
+
+	/**
+	 * Returns the type of the equipment contained in a line.
+	 *
+	 * @param values The values of the SAS line.
+	 * @return The equipment type code.
+	 */
+	String getEquipmentType(Object[] values) {
+		return values[typequIndex].toString().trim();
+	}
+
+	/**
+	 * Returns the compiled mapping for a type of equipment.
+	 *
+	 * @param equipmentType The equipment type code.
+	 * @return The mapping for this type.
+	 */
+	TypePlan getTypePlan(String equipmentType) {
+
+		TypePlan typePlan = typePlans.get(equipmentType);
+		if (typePlan == null) typePlan = typePlans.computeIfAbsent(equipmentType, this::compileType);
+
+		return typePlan;
+	}
+
+	private TypePlan compileType(String equipmentType) {
+
+		Domain domain = Configuration.getDomain(equipmentType);
+		Node domainClass = null;
+		if (domain == Domain.ENSEIGNEMENT) domainClass = BPEOnto.EquipementEnseignement.asNode();
+		else if (domain == Domain.SPORT_LOISIR) domainClass = BPEOnto.EquipementSportLoisir.asNode();
+
+		List<String> names = new ArrayList<>();
+		List<Integer> indexes = new ArrayList<>();
+		List<ValueEmitter> emitters = new ArrayList<>();
+		SortedSet<String> featuresAndProperties = featuresAndPropertiesByType.get(equipmentType);
+		if (featuresAndProperties != null) { // Would be null if no specialized features or properties exist for this type
+			for (String column : featuresAndProperties) {
+				Integer index = colIndexes.get(column);
+				if (index == null) continue; // Column not read (for example when only quality is produced)
+				ValueEmitter emitter = compileColumn(column, domain);
+				if (emitter == null) {
+					logger.debug("No mapping for column " + column + " of equipment type " + equipmentType);
+					continue;
+				}
+				names.add(column);
+				indexes.add(index);
+				emitters.add(emitter);
+			}
+		}
+
+		return new TypePlan(equipmentType, domainClass, names, indexes, emitters);
+	}
+
+	private static ValueEmitter compileColumn(String column, Domain domain) {
+
+		if (Configuration.sasFeatures.get(domain).contains(column)) {
+			// Case of a feature: value is 0 or 1 (for features, value object type is actually String)
+			Node featureNode = NodeCache.feature(column).asNode();
+			return (stream, equipmentNode, value, equipmentId, equipmentType) -> {
+				Node presence = presenceNodes.get(value.toString());
+				if (presence != null) stream.triple(Triple.create(equipmentNode, presence, featureNode));
+			};
+		}
+		// Case of a specialized property (capacity, sector, number of screens...)
+		switch (column) {
+			case "sect":
+				return (stream, equipmentNode, value, equipmentId, equipmentType) -> {
+					Resource sector = NodeCache.sector(value.toString());
+					if (sector == null) { // Sector should be "PU" or "PR"
+						logger.warn("Invalid sector value " + value + " for equipment " + equipmentId + " of type " + equipmentType);
+					} else {
+						stream.triple(Triple.create(equipmentNode, BPEOnto.secteurEquipement.asNode(), sector.asNode()));
+					}
+				};
+			case "capacite":
+				return countEmitter(BPEOnto.capacite.asNode());
+			case "nbsalles":
+				return countEmitter(BPEOnto.nombreSalles.asNode());
+			default:
+				return null;
+		}
+	}
+
+	// Capacity or screen/stage number (type java.lang.Long), only positive values are kept
+	private static ValueEmitter countEmitter(Node property) {
+
+		return (stream, equipmentNode, value, equipmentId, equipmentType) -> {
+			long count = (Long) value;
+			if (count > 0) stream.triple(Triple.create(equipmentNode, property, NodeCache.intLiteral((int) count)));
+		};
+	}
+
+	/** Creates the triples corresponding to the (non null) value of a column for an equipment */
+	@FunctionalInterface
+	interface ValueEmitter {
+		void emit(StreamRDF stream, Node equipmentNode, Object value, String equipmentId, String equipmentType);
+	}
+
+	/** Compiled mapping for a type of equipment */
+	static class TypePlan {
+
+		final Node typeNode;
+		/** Class corresponding to the domain of the type, null for the general domain */
+		final Node domainClass;
+		final String[] columns;
+		final int[] indexes;
+		final ValueEmitter[] emitters;
+
+		TypePlan(String equipmentType, Node domainClass, List<String> columns, List<Integer> indexes, List<ValueEmitter> emitters) {
+			this.typeNode = NodeCache.equipmentType(equipmentType).asNode();
+			this.domainClass = domainClass;
+			this.columns = columns.toArray(new String[0]);
+			this.indexes = indexes.stream().mapToInt(Integer::intValue).toArray();
+			this.emitters = emitters.toArray(new ValueEmitter[0]);
+		}
+	}
+}
@@ -1,24 +1,15 @@
 package fr.insee.semweb.bpe;
 
-import com.epam.parso.Column;
-import com.epam.parso.SasFileReader;
-import com.epam.parso.impl.SasFileReaderImpl;
-import fr.insee.semweb.bpe.Configuration.Domain;
-import fr.insee.semweb.bpe.Configuration.QualityLevel;
-import org.apache.jena.datatypes.xsd.XSDDatatype;
 import org.apache.jena.rdf.model.Model;
-import org.apache.jena.rdf.model.ModelFactory;
-import org.apache.jena.rdf.model.Resource;
-import org.apache.jena.rdf.model.ResourceFactory;
-import org.apache.jena.vocabulary.DCTerms;
-import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.riot.system.StreamRDF;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.function.Predicate;
 
 /**
@@ -30,10 +21,46 @@ public class SASModelMaker extends BPEModelMaker {
 
 	public static Logger logger = LogManager.getLogger(SASModelMaker.class);
 
-	static SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-
 	final static Long LINES_TO_READ = 0L; // Zero means read all lines
 	final static int LOGGING_STEP = 10000; // Should be strictly positive
+	final static int PARTITIONS_PER_THREAD = 4; // In parallel mode, smaller partitions balance the load between threads
+
+	/** Number of threads decoding the SAS database */
+	private final int parallelism;
+	/** Mapper of the lines into triples, with the threads of the model maker */
+	private final RowMapper rowMapper;
+	/** Sample of the lines read for development runs, null to read all lines */
+	private Sampling sampling = null;
+
+	/**
+	 * Creates a model maker that reads the SAS database sequentially.
+	 */
+	public SASModelMaker() {
+		this(1);
+	}
+
+	/**
+	 * Creates a model maker that decodes the SAS database with several threads, each one reading a range of data pages.
+	 * The order of the triples in the output then varies from one run to another.
+	 * 
+	 * @param parallelism The number of threads (1 for sequential reading).
+	 */
+	public SASModelMaker(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+		this.rowMapper = new RowMapper(this.parallelism);
+	}
+
+	/**
+	 * Sets the sampling of the lines (see {@link Sampling}): only a sample of the data pages of the SAS database is read, sequentially, and the lines are stratified by type and department.
+	 * 
+	 * @param sampling The sampling definition, or <code>null</code> to read all the lines.
+	 * @return This model maker.
+	 */
+	public SASModelMaker setSampling(Sampling sampling) {
+
+		this.sampling = sampling;
+		return this;
+	}
 
 	/**
 	 * Creates the BPE model with a custom filter on the type of equipments.
@@ -45,112 +72,241 @@ public class SASModelMaker extends BPEModelMaker {
 	@Override
 	public Model makeBPEModel(Predicate<String> typeFilter) throws IOException {
 
-		SasFileReader sasFileReader = new SasFileReaderImpl(new FileInputStream(Configuration.getSASDataFilePath().toString()));
-		// Build the map of column names to indexes
-		Map<String, Integer> colIndexes = new HashMap<>();
-		int index = 0;
-		for (Column column : sasFileReader.getColumns()) colIndexes.put(column.getName().toLowerCase(), index++);
+		return makeBPEModels(Collections.singletonMap("", typeFilter)).get("");
+	}
+
+	/**
+	 * Creates in one pass on the SAS database the BPE models corresponding to several filters on the type of equipments.
+	 * Each line is read once and its equipment is added to all the models whose filter accepts the equipment type.
+	 * 
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @return The BPE extracts as Jena models, indexed by chunk name (in the iteration order of the filters).
+	 * @throws IOException In case of problem reading the database.
+	 */
+	@Override
+	public Map<String, Model> makeBPEModels(Map<String, Predicate<String>> typeFilters) throws IOException {
+
+		Map<String, Model> bpeModels = new LinkedHashMap<>();
+		for (String chunk : typeFilters.keySet()) bpeModels.put(chunk, initBPEModel()); // Create empty models with prefixes needed
+		makeModels(typeFilters, bpeModels, null);
+
+		return bpeModels;
+	}
+
+	/**
+	 * Fills in one pass on the SAS database the BPE data and quality models corresponding to several filters on the type of equipments.
+	 * 
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @param bpeModels The Jena models that will receive the equipments, indexed by chunk name (can be null).
+	 * @param qualityModels The Jena models that will receive the quality annotations, indexed by chunk name (can be null).
+	 * @throws IOException In case of problem reading the database.
+	 */
+	@Override
+	public void makeModels(Map<String, Predicate<String>> typeFilters, Map<String, Model> bpeModels, Map<String, Model> qualityModels) throws IOException {
+
+		streamModels(typeFilters, toStreams(bpeModels), toStreams(qualityModels));
+		if (bpeModels != null) for (String chunk : bpeModels.keySet()) logger.info("Model for filter " + chunk + " contains " + bpeModels.get(chunk).size() + " triples");
+		if (qualityModels != null) for (String chunk : qualityModels.keySet()) logger.info("Quality model for filter " + chunk + " contains " + qualityModels.get(chunk).size() + " triples");
+	}
+
+	/**
+	 * Streams in one pass on the SAS database the BPE data and quality triples corresponding to several filters on the type of equipments.
+	 * Each line is read once: the triples describing its equipment are sent to the data streams and those of its quality annotation to the quality streams of all the chunks whose filter accepts the equipment type.
+	 * Triples are sent as soon as a line is mapped, so nothing is accumulated in memory.
+	 * In parallel mode, the streams receive blocks of triples from the different threads, one thread at a time.
+	 * 
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @param bpeStreams The streams that will receive the equipment triples, indexed by chunk name (can be null).
+	 * @param qualityStreams The streams that will receive the quality annotation triples, indexed by chunk name (can be null).
+	 * @throws IOException In case of problem reading the database.
+	 */
+	@Override
+	public void streamModels(Map<String, Predicate<String>> typeFilters, Map<String, StreamRDF> bpeStreams, Map<String, StreamRDF> qualityStreams) throws IOException {
 
 		// Read the list of columns to process for each type of equipment
 		SortedMap<String, SortedSet<String>> featuresAndPropertiesByType = Configuration.listFeaturesAndPropertiesByType();
+		List<String> columns = RowMapper.getRequiredColumns(featuresAndPropertiesByType, bpeStreams != null, qualityStreams != null);
+		ChunkRouter router = new ChunkRouter(typeFilters);
+
+		// If the SAS database has not been extracted from its archive, the entry is streamed
+		if (!Files.exists(Configuration.getSASDataFilePath()) && Files.exists(Configuration.getSASArchivePath())) {
+			streamModelsFromArchive(columns, featuresAndPropertiesByType, router, typeFilters, bpeStreams, qualityStreams);
+			return;
+		}
+
+		if (sampling != null) {
+			streamModelsSampled(columns, featuresAndPropertiesByType, router, typeFilters, bpeStreams, qualityStreams);
+			return;
+		}
 
-		Model bpeModel = initBPEModel(); // Create an empty model with prefixes needed
-
-		long linesToRead = sasFileReader.getSasFileProperties().getRowCount();
-		if ((LINES_TO_READ > 0) && (LINES_TO_READ < linesToRead)) linesToRead = LINES_TO_READ;
-		long equipmentCreated = 0L;
-		logger.debug("Reading " + linesToRead + " lines from " + Configuration.getSASDataFilePath() + " to create BPE model");
-		for (long line = 0; line < linesToRead; line++) {
-			if (line % LOGGING_STEP == 1) logger.debug("About to process line number " + line);
-			Object[] values = sasFileReader.readNext();
-			// Equipment identifier is first column + second column
-			String equipmentId = values[colIndexes.get("idetab")].toString().trim() + values[colIndexes.get("idservice")].toString().trim();
-			// Read equipment type and test conformance to filter predicate
-			String equipmentType = values[colIndexes.get("typequ")].toString().trim();
-			if (!typeFilter.test(equipmentType)) continue;
- 
-			// Create equipment resource with relevant types
-			Resource equipmentResource = bpeModel.createResource(Configuration.inseeEquipmentURI(equipmentId), BPEOnto.Equipement);
-			equipmentResource.addProperty(DCTerms.type, bpeModel.createResource(Configuration.inseeEquipmentTypeURI(equipmentType)));
-			Domain equipmentDomain = Configuration.getDomain(equipmentType);
-			if (equipmentDomain == Domain.ENSEIGNEMENT) {
-				equipmentResource.addProperty(RDF.type, BPEOnto.EquipementEnseignement);
-			} else if (equipmentDomain == Domain.SPORT_LOISIR) {
-				equipmentResource.addProperty(RDF.type, BPEOnto.EquipementSportLoisir);
+		// The columnar cache of the SAS database is much faster to read, if it is up to date
+		if (SASColumnCache.isUpToDate(Configuration.getSASDataFilePath(), Configuration.getSASCacheFilePath())) {
+			SASColumnCache cache = SASColumnCache.open(Configuration.getSASCacheFilePath());
+			if (cache.hasColumns(columns)) {
+				streamModelsFromCache(cache, columns, featuresAndPropertiesByType, router, typeFilters, bpeStreams, qualityStreams);
+				return;
 			}
-			// Add general properties (municipality code, creation date)
-			String municipalityCode = values[colIndexes.get("depcom")].toString();
-			equipmentResource.addProperty(BPEOnto.communeEquipement, ResourceFactory.createResource(Configuration.inseeMunicipalityURI(municipalityCode)));
-			// Add creation date (type java.util.Date)
-			Date dateValue = (Date) values[colIndexes.get("date_creation")];
-			if (dateValue != null) {
-				equipmentResource.addProperty(DCTerms.created, bpeModel.createTypedLiteral(dateFormat.format(dateValue), XSDDatatype.XSDdate));
+			logger.warn("Cache " + Configuration.getSASCacheFilePath() + " does not contain all the columns required, it will not be used");
+		}
+
+		if ((parallelism > 1) && (LINES_TO_READ == 0)) {
+			SASPartitionReader partitionReader = new SASPartitionReader(Configuration.getSASDataFilePath());
+			if (partitionReader.isPartitionable()) {
+				streamModelsParallel(partitionReader, columns, featuresAndPropertiesByType, router, typeFilters, bpeStreams, qualityStreams);
+				return;
 			}
-			// Add specialized properties and features for equipments of specific domains
-			SortedSet<String> featuresAndProperties = featuresAndPropertiesByType.get(equipmentType);
-			if (featuresAndProperties != null) { // Would be null if no specialized features or properties exist for this type
-				for (String column : featuresAndProperties) {
-					if (column == null) continue; // Not specialized
-					Object columnValue = values[colIndexes.get(column)];
-					if (columnValue == null) {
-						// Data checks indicate that this does not happen for 2018
-						logger.warn("Null value of column " + column + " for equipment " + equipmentId + " of type " + equipmentType);
-						continue;
-					}
-					if (Configuration.sasFeatures.get(equipmentDomain).contains(column)) {
-						// Case of a feature: value is 0 or 1
-						String featureMarker = columnValue.toString(); // For features, value object type is actually String
-						if (Configuration.featurePresence.containsKey(featureMarker)) {
-							equipmentResource.addProperty(Configuration.featurePresence.get(featureMarker), ResourceFactory.createResource(Configuration.inseeFeatureURI(column)));
-						}
-					} else { // Case of a specialized property (capacity, sector, number of screens...)
-						if ("sect".equals(column)) {
-							// Add sector
-							String sectorURI = Configuration.inseeSectorURI(columnValue.toString());
-							if (sectorURI == null) { // Sector should be "PU" or "PR"
-								logger.warn("Invalid sector value " + columnValue.toString() + " for equipment " + equipmentId + " of type " + equipmentType);
-							} else {
-								equipmentResource.addProperty(BPEOnto.secteurEquipement, ResourceFactory.createResource(sectorURI));
-							}
-						}
-						if ("capacite".equals(column)) {
-							// Add capacity (type java.lang.Long)
-							Long capacity = (Long) columnValue;
-							if ((capacity != null) && (capacity > 0)) {
-								equipmentResource.addProperty(BPEOnto.capacite, bpeModel.createTypedLiteral(capacity.intValue(), XSDDatatype.XSDint));
-							}
-						}
-						if ("nbsalles".equals(column)) {
-							// Add screen/stage number (type java.lang.Long)
-							Long rooms = (Long) columnValue;
-							if ((rooms != null) && (rooms > 0)) {
-								equipmentResource.addProperty(BPEOnto.nombreSalles, bpeModel.createTypedLiteral(rooms.intValue(), XSDDatatype.XSDint));
-							}
-						}
-					}
-				}
+			logger.warn("SAS file " + Configuration.getSASDataFilePath() + " cannot be partitioned, it will be read sequentially");
+		}
+
+		try (SASRowReader rowReader = SASRowReader.open(Configuration.getSASDataFilePath(), columns, router.getReadFilter()).limit(LINES_TO_READ)) {
+			logger.debug("Reading " + ((LINES_TO_READ > 0) ? Math.min(LINES_TO_READ, rowReader.getRowCount()) : rowReader.getRowCount()) + " lines from " + Configuration.getSASDataFilePath() + " to create models for " + typeFilters.size() + " filter(s)");
+			rowMapper.streamRows(rowReader, columns, featuresAndPropertiesByType, router, typeFilters, bpeStreams, qualityStreams);
+			logger.info(rowReader.getLinesSkipped() + " lines skipped by the filters");
+		}
+		NodeCache.logStatistics();
+	}
+
+	/**
+	 * Streams the BPE data and quality triples corresponding to the lines of any source (for example synthetic lines, see {@link SyntheticBPEGenerator}).
+	 * 
+	 * @param rows The source of lines, whose values are in the order of the columns.
+	 * @param columns The names of the columns of the lines (in lower case), including at least those returned by <code>RowMapper.getRequiredColumns</code>.
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @param bpeStreams The streams that will receive the equipment triples, indexed by chunk name (can be null).
+	 * @param qualityStreams The streams that will receive the quality annotation triples, indexed by chunk name (can be null).
+	 * @return The number of equipments processed.
+	 * @throws IOException In case of problem reading the source.
+	 */
+	public long streamRows(RowSource rows, List<String> columns, Map<String, Predicate<String>> typeFilters, Map<String, StreamRDF> bpeStreams, Map<String, StreamRDF> qualityStreams) throws IOException {
+
+		return rowMapper.streamRows(rows, columns, Configuration.listFeaturesAndPropertiesByType(), new ChunkRouter(typeFilters), typeFilters, bpeStreams, qualityStreams);
+	}
+
+	/**
+	 * Streams the BPE data and quality triples of a stratified sample of the lines of the SAS database.
+	 * Only the data pages selected by the sampling are read, unless the database cannot be partitioned, in which case all lines are read and stratified.
+	 * 
+	 * @param columns The names of the columns to decode.
+	 * @param featuresAndPropertiesByType The columns to process for each type of equipment.
+	 * @param router The router giving the chunks accepting each type.
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @param bpeStreams The streams that will receive the equipment triples, indexed by chunk name (can be null).
+	 * @param qualityStreams The streams that will receive the quality annotation triples, indexed by chunk name (can be null).
+	 * @throws IOException In case of problem reading the database.
+	 */
+	private void streamModelsSampled(List<String> columns, SortedMap<String, SortedSet<String>> featuresAndPropertiesByType, ChunkRouter router,
+									 Map<String, Predicate<String>> typeFilters, Map<String, StreamRDF> bpeStreams, Map<String, StreamRDF> qualityStreams) throws IOException {
+
+		// The strata are defined by type and department, so the municipality code is read even if it is not mapped
+		List<String> sampleColumns = new ArrayList<>(columns);
+		if (!sampleColumns.contains("depcom")) sampleColumns.add("depcom");
+		SASPartitionReader partitionReader = new SASPartitionReader(Configuration.getSASDataFilePath());
+		RowSource rows;
+		if (partitionReader.isPartitionable()) {
+			SASPartitionReader.Partition sample = partitionReader.sample(sampling);
+			logger.debug("Reading " + sample + " of " + Configuration.getSASDataFilePath());
+			rows = SASRowReader.open(partitionReader, sample, sampleColumns, router.getReadFilter());
+		} else {
+			logger.warn("SAS file " + Configuration.getSASDataFilePath() + " cannot be partitioned, all its lines will be read for the sample");
+			rows = SASRowReader.open(Configuration.getSASDataFilePath(), sampleColumns, router.getReadFilter());
+		}
+		try (RowSource sampleRows = sampling.stratify(rows, sampleColumns.indexOf("typequ"), sampleColumns.indexOf("depcom"))) {
+			rowMapper.streamRows(sampleRows, sampleColumns, featuresAndPropertiesByType, router, typeFilters, bpeStreams, qualityStreams);
+		}
+		NodeCache.logStatistics();
+	}
+
+	/**
+	 * Streams the BPE data and quality triples from the SAS database contained in its zip archive (see {@link BPEArchive}).
+	 * The entry can only be read sequentially: the cache and the partitions are not used, and all the lines are read and stratified for a sample.
+	 * 
+	 * @param columns The names of the columns to decode.
+	 * @param featuresAndPropertiesByType The columns to process for each type of equipment.
+	 * @param router The router giving the chunks accepting each type.
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @param bpeStreams The streams that will receive the equipment triples, indexed by chunk name (can be null).
+	 * @param qualityStreams The streams that will receive the quality annotation triples, indexed by chunk name (can be null).
+	 * @throws IOException In case of problem reading the archive.
+	 */
+	private void streamModelsFromArchive(List<String> columns, SortedMap<String, SortedSet<String>> featuresAndPropertiesByType, ChunkRouter router,
+										 Map<String, Predicate<String>> typeFilters, Map<String, StreamRDF> bpeStreams, Map<String, StreamRDF> qualityStreams) throws IOException {
+
+		Path archivePath = Configuration.getSASArchivePath();
+		String fileName = Configuration.getSASDataFilePath().getFileName().toString();
+		// The strata of a sample are defined by type and department, so the municipality code is read even if it is not mapped
+		List<String> readColumns = new ArrayList<>(columns);
+		if ((sampling != null) && !readColumns.contains("depcom")) readColumns.add("depcom");
+		try (BPEArchive archive = BPEArchive.open(archivePath)) {
+			String entryName = archive.findEntry(fileName);
+			if (entryName == null) throw new IOException("File " + fileName + " not found in archive " + archivePath);
+			logger.debug("Streaming " + entryName + " from archive " + archivePath + " to create models for " + typeFilters.size() + " filter(s)");
+			SASRowReader rowReader = archive.openSAS(entryName, readColumns, router.getReadFilter()).limit(LINES_TO_READ);
+			try (RowSource rows = (sampling == null) ? rowReader : sampling.stratify(rowReader, readColumns.indexOf("typequ"), readColumns.indexOf("depcom"))) {
+				rowMapper.streamRows(rows, readColumns, featuresAndPropertiesByType, router, typeFilters, bpeStreams, qualityStreams);
 			}
+			logger.info(rowReader.getLinesSkipped() + " lines skipped by the filters");
+		}
+		NodeCache.logStatistics();
+	}
+
+	/**
+	 * Streams the BPE data and quality triples by decoding ranges of pages of the SAS database in parallel.
+	 * 
+	 * @param partitionReader The partition reader on the SAS database.
+	 * @param columns The names of the columns to decode.
+	 * @param featuresAndPropertiesByType The columns to process for each type of equipment.
+	 * @param router The router giving the chunks accepting each type.
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @param bpeStreams The streams that will receive the equipment triples, indexed by chunk name (can be null).
+	 * @param qualityStreams The streams that will receive the quality annotation triples, indexed by chunk name (can be null).
+	 * @throws IOException In case of problem reading the database.
+	 */
+	private void streamModelsParallel(SASPartitionReader partitionReader, List<String> columns, SortedMap<String, SortedSet<String>> featuresAndPropertiesByType, ChunkRouter router,
+									  Map<String, Predicate<String>> typeFilters, Map<String, StreamRDF> bpeStreams, Map<String, StreamRDF> qualityStreams) throws IOException {
+
+		List<SASPartitionReader.Partition> partitions = partitionReader.split(parallelism * PARTITIONS_PER_THREAD);
+		logger.debug("Reading " + partitionReader.getSasFileProperties().getRowCount() + " lines from " + Configuration.getSASDataFilePath() + " in " + partitions.size() + " partitions with " + parallelism + " threads");
+
+		Map<String, Callable<RowSource>> sources = new LinkedHashMap<>();
+		for (SASPartitionReader.Partition partition : partitions) sources.put(partition.toString(), () -> SASRowReader.open(partitionReader, partition, columns, router.getReadFilter()));
+		rowMapper.streamRowsParallel(sources, columns, featuresAndPropertiesByType, router, typeFilters, bpeStreams, qualityStreams);
+		NodeCache.logStatistics();
+	}
+
+	/**
+	 * Streams the BPE data and quality triples from the columnar cache of the SAS database.
+	 * In parallel mode, the threads read ranges of lines of the cache.
+	 * 
+	 * @param cache The columnar cache.
+	 * @param columns The names of the columns to read.
+	 * @param featuresAndPropertiesByType The columns to process for each type of equipment.
+	 * @param router The router giving the chunks accepting each type.
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @param bpeStreams The streams that will receive the equipment triples, indexed by chunk name (can be null).
+	 * @param qualityStreams The streams that will receive the quality annotation triples, indexed by chunk name (can be null).
+	 * @throws IOException In case of problem reading the cache.
+	 */
+	private void streamModelsFromCache(SASColumnCache cache, List<String> columns, SortedMap<String, SortedSet<String>> featuresAndPropertiesByType, ChunkRouter router,
+									   Map<String, Predicate<String>> typeFilters, Map<String, StreamRDF> bpeStreams, Map<String, StreamRDF> qualityStreams) throws IOException {
 
-			// Add geometry (lambert_x and lambert_y are of type java.lang.Double, or java.lang.Long if no decimal)
-			Object xLambert = values[colIndexes.get("lambert_x")];
-			Object yLambert = values[colIndexes.get("lambert_y")];
-			if ((xLambert != null) && (yLambert != null)) {
-				double xLambertDouble = (xLambert instanceof Double) ? (Double) xLambert : (Long) xLambert; // Harmonize to double
-				double yLambertDouble = (yLambert instanceof Double) ? (Double) yLambert : (Long) yLambert;
-				// If creation of GeoSPARQL geometries is required, create the corresponding resource
-				if (Configuration.CREATE_GEOMETRY) {
-					equipmentResource.addProperty(RDF.type, GeoSPARQL.SpatialObject);
-					Resource geometryResource = bpeModel.createResource(Configuration.inseeEquipmentGeometryURI(equipmentId), GeoSPARQL.Geometry);
-					String wktLiteral = Configuration.getPointWKTLiteral(xLambertDouble, yLambertDouble, municipalityCode);
-					geometryResource.addProperty(GeoSPARQL.asWKT, bpeModel.createTypedLiteral(wktLiteral, GeoSPARQL.wktLiteral));
-					equipmentResource.addProperty(GeoSPARQL.hasGeometry, geometryResource);
-				}
-				// For now, we don't do anything in the 'else' case
+		long rowCount = (LINES_TO_READ > 0) ? Math.min(LINES_TO_READ, cache.getRowCount()) : cache.getRowCount();
+		logger.debug("Reading " + rowCount + " lines from cache " + Configuration.getSASCacheFilePath() + " to create models for " + typeFilters.size() + " filter(s)");
+		if (parallelism > 1) {
+			int rangeCount = parallelism * PARTITIONS_PER_THREAD;
+			Map<String, Callable<RowSource>> sources = new LinkedHashMap<>();
+			for (int range = 0; range < rangeCount; range++) {
+				long fromRow = rowCount * range / rangeCount;
+				long toRow = rowCount * (range + 1) / rangeCount;
+				sources.put("Lines " + fromRow + " to " + toRow, () -> cache.rows(columns, router.getReadFilter(), fromRow, toRow));
+			}
+			rowMapper.streamRowsParallel(sources, columns, featuresAndPropertiesByType, router, typeFilters, bpeStreams, qualityStreams);
+		} else {
+			try (SASColumnCache.Rows rows = cache.rows(columns, router.getReadFilter(), 0, rowCount)) {
+				rowMapper.streamRows(rows, columns, featuresAndPropertiesByType, router, typeFilters, bpeStreams, qualityStreams);
+				logger.info(rows.getLinesSkipped() + " lines skipped by the filters");
 			}
-			if (++equipmentCreated % LOGGING_STEP == 1) logger.debug("Just created equipment number " + equipmentCreated);
 		}
-		logger.info(equipmentCreated + " equipments created, the model contains " + bpeModel.size() + " triples");
-		return bpeModel;
+		NodeCache.logStatistics();
 	}
 
 	/**
@@ -164,50 +320,23 @@ public class SASModelMaker extends BPEModelMaker {
 	@Override
 	public Model makeQualityModel(Predicate<String> typeFilter) throws IOException {
 
-		SasFileReader sasFileReader = new SasFileReaderImpl(new FileInputStream(Configuration.getSASDataFilePath().toString()));
-		// Build the map of column indexes
-		Map<String, Integer> colIndexes = new HashMap<>();
-		int index = 0;
-		for (Column column : sasFileReader.getColumns()) colIndexes.put(column.getName().toLowerCase(), index++);
-
-		Model qualityModel = ModelFactory.createDefaultModel();
-		if (!Configuration.CREATE_GEOMETRY) qualityModel.setNsPrefix("ibpe-eq", "http://id.insee.fr/territoire/equipement/");
-		qualityModel.setNsPrefix("icod-qlt", Configuration.INSEE_QUALITY_CODES_BASE_URI);
-		qualityModel.setNsPrefix("oa", Annotations.getURI());
-		qualityModel.setNsPrefix("dqv", DQV.getURI());
-
-		long linesToRead = sasFileReader.getSasFileProperties().getRowCount();
-		if ((LINES_TO_READ > 0) && (LINES_TO_READ < linesToRead)) linesToRead = LINES_TO_READ;
-		logger.debug("Reading " + linesToRead + " lines from " + Configuration.getSASDataFilePath() + " to create quality model");
-		for (int line = 0; line < linesToRead; line++) {
-			if (line % LOGGING_STEP == 1) logger.debug("About to process line number " + line);
-			Object[] values = sasFileReader.readNext();
-			// First apply the filter on equipment type
-			String equipmentType = values[colIndexes.get("typequ")].toString().trim();
-			if (!typeFilter.test(equipmentType)) continue;
-			// Get the value of the quality level
-			QualityLevel qualityLevelValue;
-			try {
-				qualityLevelValue = QualityLevel.valueOf(values[colIndexes.get("qualite_xy")].toString().trim().toUpperCase());
-			} catch (IllegalArgumentException e) {
-				// Equipment is not geolocalized or quality value is invalid
-				continue;
-			}
-			if (qualityLevelValue == null) continue; // No quality information for this record
-			// Equipment identifier is first column + second column
-			String equipmentId = values[colIndexes.get("idetab")].toString().trim() + values[colIndexes.get("idservice")].toString().trim();
-			// The quality annotation target is the equipment or the geometry itself
-			Resource targetResource;
-			if (Configuration.CREATE_GEOMETRY) targetResource = qualityModel.createResource(Configuration.inseeEquipmentGeometryURI(equipmentId));
-			else targetResource = qualityModel.createResource(Configuration.inseeEquipmentURI(equipmentId));
-			// Create annotation instance
-			Resource qualityAnnotationResource = qualityModel.createResource(Configuration.inseeGeometryQualityAnnotationURI(equipmentId), DQV.QualityAnnotation);
-			targetResource.addProperty(DQV.hasQualityAnnotation, qualityAnnotationResource);
-			qualityAnnotationResource.addProperty(Annotations.hasTarget, targetResource);
-			qualityAnnotationResource.addProperty(Annotations.hasBody, QualityLevel.RESOURCE_MAP.get(qualityLevelValue));
-			qualityAnnotationResource.addProperty(Annotations.motivatedBy, DQV.qualityAssessment);
-		}
+		return makeQualityModels(Collections.singletonMap("", typeFilter)).get("");
+	}
+
+	/**
+	 * Creates in one pass on the SAS database the BPE quality models corresponding to several filters on the type of equipments.
+	 * 
+	 * @param typeFilters The filters as predicates on the equipment type code, indexed by chunk name.
+	 * @return The BPE quality extracts as Jena models, indexed by chunk name (in the iteration order of the filters).
+	 * @throws IOException In case of problem reading the database.
+	 */
+	@Override
+	public Map<String, Model> makeQualityModels(Map<String, Predicate<String>> typeFilters) throws IOException {
+
+		Map<String, Model> qualityModels = new LinkedHashMap<>();
+		for (String chunk : typeFilters.keySet()) qualityModels.put(chunk, initQualityModel());
+		makeModels(typeFilters, null, qualityModels);
 
-		return qualityModel;
+		return qualityModels;
 	}
 }
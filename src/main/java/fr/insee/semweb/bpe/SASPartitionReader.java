@@ -0,0 +1,253 @@
+package fr.insee.semweb.bpe;
+
+import com.epam.parso.SasFileProperties;
+import com.epam.parso.SasFileReader;
+import com.epam.parso.impl.SasFileReaderImpl;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <code>SASPartitionReader</code> splits the data pages of a SAS database into ranges that can be decoded independently.
+ *
+ * A sas7bdat file is made of a header followed by pages of fixed length: metadata pages (possibly ending with a 'mix' page containing metadata and rows), then data pages.
+ * A partition is read by presenting to the SAS parser the header and the metadata pages followed by a range of data pages, so that each partition can be decoded by a different thread.
+ * Compressed files, or files with deleted rows or unexpected page layouts, cannot be partitioned: they must be read sequentially.
+ *
+ * @author Franck
+ */
+public class SASPartitionReader {
+
+	public static Logger logger = LogManager.getLogger(SASPartitionReader.class);
+
+	// Page types, see com.epam.parso.impl.SasFileConstants
+	final static int PAGE_META_TYPE_1 = 0;
+	final static int PAGE_META_TYPE_2 = 16384;
+	final static int PAGE_DATA_TYPE = 256;
+	final static int PAGE_MIX_TYPE_1 = 512;
+	final static int PAGE_AMD_TYPE = 1024;
+
+	private final Path sasFilePath;
+	private final SasFileProperties properties;
+	private final int[] pageTypes;
+	/** Index of the first page containing only data */
+	private int dataStart = -1;
+	/** Number of rows stored in the metadata prefix (in a 'mix' page) */
+	private long prefixRowCount = 0;
+	private boolean partitionable = true;
+
+	/**
+	 * Creates a partition reader on a SAS database: reads the header and the type of each page.
+	 *
+	 * @param sasFilePath The path of the SAS database.
+	 * @throws IOException In case of problem reading the database.
+	 */
+	public SASPartitionReader(Path sasFilePath) throws IOException {
+
+		this.sasFilePath = sasFilePath;
+		try (InputStream sasStream = new RangesInputStream(sasFilePath, Collections.singletonList(new long[] {0, Long.MAX_VALUE}))) {
+			properties = new SasFileReaderImpl(sasStream).getSasFileProperties();
+		}
+		pageTypes = new int[(int) properties.getPageCount()];
+		ByteOrder order = (properties.getEndianness() == 1) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		int pageTypeOffset = properties.isU64() ? 32 : 16;
+		ByteBuffer buffer = ByteBuffer.allocate(2).order(order);
+		try (FileChannel channel = FileChannel.open(sasFilePath, StandardOpenOption.READ)) {
+			for (int page = 0; page < pageTypes.length; page++) {
+				buffer.clear();
+				channel.read(buffer, pageOffset(page) + pageTypeOffset);
+				pageTypes[page] = buffer.getShort(0) & 0xFFFF;
+			}
+		}
+		if (properties.isCompressed()) partitionable = false;
+		for (int page = 0; page < pageTypes.length && partitionable; page++) {
+			int pageType = pageTypes[page];
+			if (dataStart < 0) {
+				if (pageType == PAGE_DATA_TYPE) dataStart = page;
+				else if (pageType == PAGE_MIX_TYPE_1) prefixRowCount = Math.min(properties.getRowCount(), properties.getMixPageRowCount());
+				else if ((pageType != PAGE_META_TYPE_1) && (pageType != PAGE_META_TYPE_2) && (pageType != PAGE_AMD_TYPE)) partitionable = false;
+			} else if ((pageType != PAGE_DATA_TYPE) && (pageType != PAGE_AMD_TYPE)) partitionable = false;
+		}
+		if (dataStart < 0) partitionable = false;
+		logger.debug("SAS file " + sasFilePath + " has " + pageTypes.length + " pages, data starting at page " + dataStart + (partitionable ? "" : " (not partitionable)"));
+	}
+
+	/**
+	 * Indicates if the SAS database can be read by partitions.
+	 *
+	 * @return <code>true</code> if the database can be partitioned, <code>false</code> if it must be read sequentially.
+	 */
+	public boolean isPartitionable() {
+		return partitionable;
+	}
+
+	/**
+	 * Returns the properties of the SAS database.
+	 *
+	 * @return The properties read in the header of the database.
+	 */
+	public SasFileProperties getSasFileProperties() {
+		return properties;
+	}
+
+	/**
+	 * Splits the data pages into contiguous ranges of (almost) equal size.
+	 * The rows contained in the metadata prefix are attributed to the first partition.
+	 *
+	 * @param count The requested number of partitions.
+	 * @return The list of partitions (may be shorter than requested if there are less data pages).
+	 */
+	public List<Partition> split(int count) {
+
+		if (!partitionable) throw new IllegalStateException("SAS file " + sasFilePath + " cannot be partitioned");
+		List<Partition> partitions = new ArrayList<>();
+		int dataPages = pageTypes.length - dataStart;
+		count = Math.max(1, Math.min(count, dataPages));
+		for (int index = 0; index < count; index++) {
+			int firstPage = dataStart + (int) ((long) dataPages * index / count);
+			int endPage = dataStart + (int) ((long) dataPages * (index + 1) / count);
+			partitions.add(new Partition(index, firstPage, endPage));
+		}
+		return partitions;
+	}
+
+	/**
+	 * Selects a sample of the data pages (see {@link Sampling}), to be read as one partition.
+	 * The rows contained in the metadata prefix are included in the sample.
+	 *
+	 * @param sampling The sampling definition, whose blocks are the data pages.
+	 * @return The partition made of the pages selected.
+	 */
+	public Partition sample(Sampling sampling) {
+
+		if (!partitionable) throw new IllegalStateException("SAS file " + sasFilePath + " cannot be partitioned");
+		List<int[]> pageRanges = new ArrayList<>();
+		for (int[] blocks : sampling.selectBlocks(pageTypes.length - dataStart)) pageRanges.add(new int[] {dataStart + blocks[0], dataStart + blocks[1]});
+		Partition partition = new Partition(0, pageRanges);
+		logger.debug(partition + " selected among " + (pageTypes.length - dataStart) + " data pages of " + sasFilePath);
+
+		return partition;
+	}
+
+	/**
+	 * Opens a stream presenting a partition as a complete SAS database: header, metadata pages and the data pages of the partition.
+	 * A SAS reader created on this stream returns <code>null</code> from <code>readNext</code> after the last page of the partition.
+	 * The stream should be closed by the caller.
+	 *
+	 * @param partition The partition to read.
+	 * @return An input stream on the partition.
+	 * @throws IOException In case of problem opening the database.
+	 */
+	public InputStream openStream(Partition partition) throws IOException {
+
+		List<long[]> ranges = new ArrayList<>();
+		ranges.add(new long[] {0, pageOffset(dataStart)}); // Header and metadata pages
+		for (int[] pageRange : partition.pageRanges) ranges.add(new long[] {pageOffset(pageRange[0]), pageOffset(pageRange[1])});
+
+		return new RangesInputStream(sasFilePath, ranges);
+	}
+
+	/**
+	 * Skips the rows of the metadata prefix if they do not belong to a partition.
+	 * The rows contained in a 'mix' page are seen by the readers of all partitions, but are attributed to the first partition only.
+	 *
+	 * @param sasFileReader A SAS reader opened on the stream returned by <code>openStream</code> for the partition.
+	 * @param partition The partition read.
+	 * @throws IOException In case of problem reading the database.
+	 */
+	public void skipPrefixRows(SasFileReader sasFileReader, Partition partition) throws IOException {
+
+		if (partition.index == 0) return;
+		for (long row = 0; row < prefixRowCount; row++) sasFileReader.readNext(Collections.emptyList());
+	}
+
+	private long pageOffset(int page) {
+		return properties.getHeaderLength() + (long) page * properties.getPageLength();
+	}
+
+	/** A range of data pages, given by the index of the first page and the index of the page following the last one, or a sample made of several ranges */
+	public static class Partition {
+
+		final int index;
+		final int firstPage;
+		final int endPage;
+		final List<int[]> pageRanges;
+
+		Partition(int index, int firstPage, int endPage) {
+			this.index = index;
+			this.firstPage = firstPage;
+			this.endPage = endPage;
+			this.pageRanges = Collections.singletonList(new int[] {firstPage, endPage});
+		}
+
+		Partition(int index, List<int[]> pageRanges) {
+			this.index = index;
+			this.firstPage = pageRanges.isEmpty() ? 0 : pageRanges.get(0)[0];
+			this.endPage = pageRanges.isEmpty() ? 0 : pageRanges.get(pageRanges.size() - 1)[1];
+			this.pageRanges = pageRanges;
+		}
+
+		@Override
+		public String toString() {
+
+			if (pageRanges.size() == 1) return "Partition " + index + " (pages " + firstPage + " to " + (endPage - 1) + ")";
+			int pageCount = 0;
+			for (int[] pageRange : pageRanges) pageCount += pageRange[1] - pageRange[0];
+			return "Sample of " + pageCount + " pages in " + pageRanges.size() + " ranges";
+		}
+	}
+
+	/** Input stream reading a sequence of byte ranges of a file */
+	static class RangesInputStream extends InputStream {
+
+		private final FileChannel channel;
+		private final List<long[]> ranges;
+		private int currentRange = 0;
+		private long position;
+
+		RangesInputStream(Path path, List<long[]> ranges) throws IOException {
+			this.channel = FileChannel.open(path, StandardOpenOption.READ);
+			this.ranges = ranges;
+			this.position = ranges.get(0)[0];
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if (length == 0) return 0;
+			while (currentRange < ranges.size()) {
+				long end = Math.min(ranges.get(currentRange)[1], channel.size());
+				if (position < end) {
+					int toRead = (int) Math.min(length, end - position);
+					int read = channel.read(ByteBuffer.wrap(bytes, offset, toRead), position);
+					if (read > 0) {
+						position += read;
+						return read;
+					}
+				}
+				if (++currentRange < ranges.size()) position = ranges.get(currentRange)[0];
+			}
+			return -1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
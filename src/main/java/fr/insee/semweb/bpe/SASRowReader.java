@@ -0,0 +1,212 @@
+package fr.insee.semweb.bpe;
+
+import com.epam.parso.Column;
+import com.epam.parso.SasFileReader;
+import com.epam.parso.impl.SasFileReaderImpl;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * <code>SASRowReader</code> reads the lines of a SAS database, decoding only the columns required and the lines selected.
+ *
+ * Columns are projected: only the columns listed are decoded, and the values are returned in the order of the list.
+ * The filter on the equipment type is pushed down: a first reader decodes only the 'typequ' column, and a second reader, moving in step with the first,
+ * decodes the other columns only for the lines accepted by the filter. Pages are thus read twice, but the lines rejected are almost not decoded:
+ * the filter should only be given when it rejects a part of the lines (see <code>ChunkRouter.getReadFilter</code>).
+ *
+ * @author Franck
+ */
+public class SASRowReader implements RowSource {
+
+	final static String TYPE_COLUMN = "typequ";
+
+	private final List<InputStream> streams = new ArrayList<>();
+	private final SasFileReader dataReader;
+	private final SasFileReader typeReader; // Null if there is no filter
+	private final Predicate<String> typeFilter;
+	private final List<String> projection;
+	private final List<String> typeProjection;
+	private final Map<String, Integer> colIndexes = new HashMap<>();
+	private long lineLimit = 0;
+	private long linesRead = 0;
+	private long linesSkipped = 0;
+
+	/**
+	 * Opens a row reader on a whole SAS database.
+	 *
+	 * @param sasFilePath The path of the SAS database.
+	 * @param columns The names of the columns to decode (case is ignored), or <code>null</code> for all columns.
+	 * @param typeFilter The filter as a predicate on the equipment type code, or <code>null</code> to read all lines.
+	 * @return The row reader.
+	 * @throws IOException In case of problem reading the database, or if a column is not found.
+	 */
+	public static SASRowReader open(Path sasFilePath, Collection<String> columns, Predicate<String> typeFilter) throws IOException {
+
+		InputStream dataStream = new FileInputStream(sasFilePath.toString());
+		InputStream typeStream = (typeFilter == null) ? null : new FileInputStream(sasFilePath.toString());
+		return new SASRowReader(dataStream, typeStream, columns, typeFilter);
+	}
+
+	/**
+	 * Opens a row reader on streams of a SAS database, for example entries of an archive (see {@link BPEArchive}).
+	 * The streams are closed with the reader.
+	 *
+	 * @param dataStream A stream of the SAS database.
+	 * @param typeStream A second stream of the same database, used to read the types (ignored and can be null if there is no filter).
+	 * @param columns The names of the columns to decode (case is ignored), or <code>null</code> for all columns.
+	 * @param typeFilter The filter as a predicate on the equipment type code, or <code>null</code> to read all lines.
+	 * @return The row reader.
+	 * @throws IOException In case of problem reading the database, or if a column is not found.
+	 */
+	public static SASRowReader open(InputStream dataStream, InputStream typeStream, Collection<String> columns, Predicate<String> typeFilter) throws IOException {
+
+		if (typeFilter == null) {
+			if (typeStream != null) typeStream.close();
+			typeStream = null;
+		} else if (typeStream == null) {
+			dataStream.close();
+			throw new IOException("A second stream is needed to filter the lines");
+		}
+		return new SASRowReader(dataStream, typeStream, columns, typeFilter);
+	}
+
+	/**
+	 * Opens a row reader on a partition of a SAS database.
+	 *
+	 * @param partitionReader The partition reader on the SAS database.
+	 * @param partition The partition to read.
+	 * @param columns The names of the columns to decode (case is ignored), or <code>null</code> for all columns.
+	 * @param typeFilter The filter as a predicate on the equipment type code, or <code>null</code> to read all lines.
+	 * @return The row reader.
+	 * @throws IOException In case of problem reading the database, or if a column is not found.
+	 */
+	public static SASRowReader open(SASPartitionReader partitionReader, SASPartitionReader.Partition partition, Collection<String> columns, Predicate<String> typeFilter) throws IOException {
+
+		InputStream dataStream = partitionReader.openStream(partition);
+		InputStream typeStream = (typeFilter == null) ? null : partitionReader.openStream(partition);
+		SASRowReader rowReader = new SASRowReader(dataStream, typeStream, columns, typeFilter);
+		partitionReader.skipPrefixRows(rowReader.dataReader, partition);
+		if (rowReader.typeReader != null) partitionReader.skipPrefixRows(rowReader.typeReader, partition);
+
+		return rowReader;
+	}
+
+	private SASRowReader(InputStream dataStream, InputStream typeStream, Collection<String> columns, Predicate<String> typeFilter) throws IOException {
+
+		streams.add(dataStream);
+		dataReader = new SasFileReaderImpl(dataStream);
+		if (typeStream != null) {
+			streams.add(typeStream);
+			typeReader = new SasFileReaderImpl(typeStream);
+		} else typeReader = null;
+		this.typeFilter = typeFilter;
+
+		// Parso expects the exact column names, which can be in upper case in the SAS file
+		Map<String, String> actualNames = new LinkedHashMap<>();
+		for (Column column : dataReader.getColumns()) actualNames.put(column.getName().toLowerCase(), column.getName());
+		if (columns == null) columns = actualNames.keySet();
+		projection = new ArrayList<>();
+		for (String column : columns) {
+			String actualName = actualNames.get(column.toLowerCase());
+			if (actualName == null) {
+				close();
+				throw new IOException("Column " + column + " not found in SAS file");
+			}
+			if (colIndexes.containsKey(column.toLowerCase())) continue;
+			colIndexes.put(column.toLowerCase(), projection.size());
+			projection.add(actualName);
+		}
+		typeProjection = Collections.singletonList(actualNames.get(TYPE_COLUMN));
+		if ((typeFilter != null) && (typeProjection.get(0) == null)) {
+			close();
+			throw new IOException("Column " + TYPE_COLUMN + " not found in SAS file");
+		}
+	}
+
+	/**
+	 * Limits the number of lines read (for tests or development runs).
+	 *
+	 * @param lineLimit The maximum number of lines to read (lines skipped by the filter included), zero for no limit.
+	 * @return This reader.
+	 */
+	public SASRowReader limit(long lineLimit) {
+
+		this.lineLimit = lineLimit;
+		return this;
+	}
+
+	/**
+	 * Returns the values of the next line accepted by the filter.
+	 *
+	 * @return The values of the columns of the projection, in the order of the projection, or <code>null</code> if there are no more lines.
+	 * @throws IOException In case of problem reading the database.
+	 */
+	@Override
+	public Object[] readNext() throws IOException {
+
+		while ((lineLimit == 0) || (linesRead < lineLimit)) {
+			if (typeReader != null) {
+				Object[] typeValues = typeReader.readNext(typeProjection);
+				if (typeValues == null) return null;
+				linesRead++;
+				String equipmentType = (typeValues[0] == null) ? "" : typeValues[0].toString().trim();
+				if (!typeFilter.test(equipmentType)) {
+					dataReader.readNext(Collections.emptyList()); // Move data reader in step without decoding
+					linesSkipped++;
+					continue;
+				}
+				return dataReader.readNext(projection);
+			}
+			Object[] values = dataReader.readNext(projection);
+			if (values != null) linesRead++;
+			return values;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the map of column names (in lower case) to indexes in the values returned.
+	 *
+	 * @return The map of column names to indexes.
+	 */
+	public Map<String, Integer> getColumnIndexes() {
+		return colIndexes;
+	}
+
+	/**
+	 * Returns the total number of lines in the SAS database (not only in the partition read).
+	 *
+	 * @return The number of lines in the database.
+	 */
+	public long getRowCount() {
+		return dataReader.getSasFileProperties().getRowCount();
+	}
+
+	/**
+	 * Returns the number of lines read so far, including those rejected by the filter.
+	 *
+	 * @return The number of lines read.
+	 */
+	public long getLinesRead() {
+		return linesRead;
+	}
+
+	/**
+	 * Returns the number of lines rejected by the filter so far.
+	 *
+	 * @return The number of lines skipped.
+	 */
+	public long getLinesSkipped() {
+		return linesSkipped;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (InputStream stream : streams) stream.close();
+	}
+}
@@ -1,20 +1,19 @@
 package fr.insee.semweb.bpe;
 
-import com.epam.parso.CSVDataWriter;
 import com.epam.parso.Column;
-import com.epam.parso.SasFileProperties;
 import com.epam.parso.SasFileReader;
-import com.epam.parso.impl.CSVDataWriterImpl;
 import com.epam.parso.impl.SasFileReaderImpl;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.function.Predicate;
 
 /**
- * Performs counts and checks on the BPE SAS database.
+ * Performs counts and checks on the BPE SAS database (or on its columnar cache if it is up to date).
+ * Checks are run by a {@link RowValidator}, all together in one scan or one by one.
  * 
  * @author Franck
  */
@@ -22,91 +21,115 @@ public class SASUtils {
 
 	public static Logger logger = LogManager.getLogger(SASUtils.class);
 
+	/**
+	 * Runs all the checks on the BPE database in a single scan, and logs their results.
+	 * 
+	 * @param parallelism The number of threads (1 for a sequential scan).
+	 * @return The results of the checks, indexed by check name.
+	 * @throws IOException In case of problem reading the database.
+	 */
+	public static Map<String, CheckResult> runChecks(int parallelism) throws IOException {
+
+		RowValidator validator = new RowValidator(parallelism).register(featuresAndPropertiesCheck()).register(municipalityCodesCheck()).register(equipmentTypesCount());
+		Map<String, CheckResult> results = validator.run();
+		RowValidator.logResults(results);
+
+		return results;
+	}
+
 	/**
 	 * Checks that the values of columns for expected features and properties are not null.
 	 * 
+	 * @return The result of the check.
 	 * @throws IOException In case of problem reading the database.
 	 */
-	public static void checkFeaturesAndProperties() throws IOException {
+	public static CheckResult checkFeaturesAndProperties() throws IOException {
+
+		return runCheck(featuresAndPropertiesCheck());
+	}
+
+	/**
+	 * Returns the check that the values of columns for expected features and properties are not null.
+	 * 
+	 * @return The check, whose findings are categorized by column.
+	 */
+	public static RowCheck featuresAndPropertiesCheck() {
 
 		SortedMap<String, SortedSet<String>> featuresAndPropertiesByType = Configuration.listFeaturesAndPropertiesByType();
 
-		SasFileReader sasFileReader = new SasFileReaderImpl(new FileInputStream(Configuration.getSASDataFilePath().toString()));
-		// Build the map of column indexes
-		Map<String, Integer> colIndexes = new HashMap<>();
-		int index = 0;
-		for (Column column : sasFileReader.getColumns()) colIndexes.put(column.getName().toLowerCase(), index++);
-		long linesToRead = sasFileReader.getSasFileProperties().getRowCount();
-		for (long line = 0; line < linesToRead; line++) {
-			Object[] values = sasFileReader.readNext();
-			// Equipment identifier is first column + second column
-			String equipmentId = values[colIndexes.get("idetab")].toString().trim() + values[colIndexes.get("idservice")].toString().trim();
-			// Read equipment type
-			String equipmentType = values[colIndexes.get("typequ")].toString().trim();
-			// Expected features and properties for this type of equipment
-			if (featuresAndPropertiesByType.containsKey(equipmentType)) {
-				for (String column : featuresAndPropertiesByType.get(equipmentType)) {
-					Object columnValue = values[colIndexes.get(column)];
-					if (columnValue == null) {
-						logger.warn("Null value for column " + column + " for equipment " + equipmentId + " of type " + equipmentType);
-					}
+		// Only decode the identifiers, the type and the columns of the features and properties
+		Set<String> columnSet = new LinkedHashSet<>(RowMapper.getRequiredColumns(featuresAndPropertiesByType, false, false));
+		for (SortedSet<String> featuresAndProperties : featuresAndPropertiesByType.values()) columnSet.addAll(featuresAndProperties);
+		List<String> columns = new ArrayList<>(columnSet);
+
+		return new RowCheck() {
+			@Override
+			public String getName() {
+				return "features-and-properties";
+			}
+			@Override
+			public List<String> getColumns() {
+				return columns;
+			}
+			@Override
+			public Predicate<String> getTypeFilter() {
+				return featuresAndPropertiesByType::containsKey; // Other types have no features or properties to check
+			}
+			@Override
+			public void check(RowValidator.Row row, CheckResult result) {
+				// Read equipment type and expected features and properties for this type of equipment
+				String equipmentType = row.getString("typequ");
+				SortedSet<String> featuresAndProperties = featuresAndPropertiesByType.get(equipmentType);
+				if (featuresAndProperties == null) return;
+				for (String column : featuresAndProperties) {
+					if (row.get(column) == null) result.report("Null value for column " + column, () -> "Equipment " + getEquipmentId(row) + " of type " + equipmentType);
 				}
 			}
-		}
+		};
 	}
 
 	/**
-	 * Returns the list of columns in the SAS database.
+	 * Checks the values of the municipality codes (especially overseas).
 	 * 
-	 * @return A map indexed by column numbers, each value being a <code>Column</code> object.
+	 * @return The result of the check.
 	 * @throws IOException In case of problem reading the database.
 	 */
-	public static Map<Integer, Column> listColumns() throws IOException {
+	public static CheckResult checkMunicipalityCodes() throws IOException {
 
-		SasFileReader sasFileReader = new SasFileReaderImpl(new FileInputStream(Configuration.getSASDataFilePath().toString()));
-		// Build the map of columns by indexes
-		Map<Integer, Column> columns = new HashMap<>();
-		int index = 0;
-		for (Column column : sasFileReader.getColumns()) columns.put(index++, column);
-
-		return columns;
+		return runCheck(municipalityCodesCheck());
 	}
 
 	/**
-	 * Checks the values of the municipality codes (especially overseas).
+	 * Returns the check of the values of the municipality codes (especially overseas).
 	 * 
-	 * @throws IOException In case of problem reading the database.
+	 * @return The check.
 	 */
-	public static void checkMunicipalityCodes() throws IOException {
+	public static RowCheck municipalityCodesCheck() {
 
-		SasFileReader sasFileReader = new SasFileReaderImpl(new FileInputStream(Configuration.getSASDataFilePath().toString()));
-		// Build the map of column indexes
-		Map<String, Integer> colIndexes = new HashMap<>();
-		int index = 0;
-		for (Column column : sasFileReader.getColumns()) colIndexes.put(column.getName().toLowerCase(), index++);
-		long linesToRead = sasFileReader.getSasFileProperties().getRowCount();
-		for (long line = 0; line < linesToRead; line++) {
-			Object[] values = sasFileReader.readNext();
-			// Equipment identifier is first column + second column
-			String equipmentId = values[colIndexes.get("idetab")].toString().trim() + values[colIndexes.get("idservice")].toString().trim();
-			// Read equipment type
-			String equipmentType = values[colIndexes.get("typequ")].toString().trim();
-			// Municipality code
-			String municipalityCode = values[colIndexes.get("depcom")].toString().trim();
-			if ((municipalityCode == null) || (municipalityCode.length() != 5)) System.out.println("Invalid municipality code " + municipalityCode + " for equipment " + equipmentId + " of type " + equipmentType);
-			else {
-				if (municipalityCode.startsWith("97")) {
-					if ("1234".indexOf(municipalityCode.charAt(2)) < 0) {
-						// There are actually some equipments from Mayotte, let us check they are not geolocalized
-						if (municipalityCode.startsWith("976")) {
-							Object xLambert = values[colIndexes.get("lambert_x")];
-							Object yLambert = values[colIndexes.get("lambert_y")];
-							if ((xLambert != null) && (yLambert != null)) System.out.println("Equipment " + equipmentId + " of type " + equipmentType + " in Mayotte has coordinates");
-						} else System.out.println("Invalid municipality code " + municipalityCode + " for equipment " + equipmentId + " of type " + equipmentType);
-					}
+		List<String> columns = Arrays.asList("idetab", "idservice", "typequ", "depcom", "lambert_x", "lambert_y");
+
+		return new RowCheck() {
+			@Override
+			public String getName() {
+				return "municipality-codes";
+			}
+			@Override
+			public List<String> getColumns() {
+				return columns;
+			}
+			@Override
+			public void check(RowValidator.Row row, CheckResult result) {
+				String equipmentType = row.getString("typequ");
+				String municipalityCode = row.getString("depcom");
+				if ((municipalityCode == null) || (municipalityCode.length() != 5)) result.report("Invalid municipality code", () -> "Code " + municipalityCode + " for equipment " + getEquipmentId(row) + " of type " + equipmentType);
+				else if (municipalityCode.startsWith("97") && ("1234".indexOf(municipalityCode.charAt(2)) < 0)) {
+					// There are actually some equipments from Mayotte, let us check they are not geolocalized
+					if (municipalityCode.startsWith("976")) {
+						if ((row.get("lambert_x") != null) && (row.get("lambert_y") != null)) result.report("Coordinates in Mayotte", () -> "Equipment " + getEquipmentId(row) + " of type " + equipmentType);
+					} else result.report("Invalid municipality code", () -> "Code " + municipalityCode + " for equipment " + getEquipmentId(row) + " of type " + equipmentType);
 				}
 			}
-		}
+		};
 	}
 
 	/**
@@ -117,25 +140,83 @@ public class SASUtils {
 	 */
 	public static SortedMap<String, Integer> countEquipmentsByType() throws IOException {
 
+		SortedMap<String, Integer> countings = new TreeMap<>();
+
+		// Only the type column is decoded
+		CheckResult result = new RowValidator(1).register(equipmentTypesCount()).run().values().iterator().next();
+		for (Map.Entry<String, Long> count : result.getCounts().entrySet()) countings.put(count.getKey(), count.getValue().intValue());
+		logger.debug("There are " + result.getRowsChecked() + " lines in " + Configuration.getSASDataFilePath());
+
+		return countings;
+	}
+
+	/**
+	 * Returns the count of equipments by type, as a check without findings.
+	 * 
+	 * @return The check, whose counts are indexed by equipment type.
+	 */
+	public static RowCheck equipmentTypesCount() {
+
+		return new RowCheck() {
+			@Override
+			public String getName() {
+				return "equipment-types";
+			}
+			@Override
+			public List<String> getColumns() {
+				return Collections.singletonList("typequ");
+			}
+			@Override
+			public void check(RowValidator.Row row, CheckResult result) {
+				result.count(row.getString("typequ"));
+			}
+		};
+	}
+
+	// Runs one check sequentially and logs its result
+	private static CheckResult runCheck(RowCheck check) throws IOException {
+
+		Map<String, CheckResult> results = new RowValidator(1).register(check).run();
+		RowValidator.logResults(results);
+
+		return results.get(check.getName());
+	}
+
+	// Equipment identifier is first column + second column
+	private static String getEquipmentId(RowValidator.Row row) {
+		return row.getString("idetab") + row.getString("idservice");
+	}
+
+	/**
+	 * Returns the list of columns in the SAS database.
+	 * 
+	 * @return A map indexed by column numbers, each value being a <code>Column</code> object.
+	 * @throws IOException In case of problem reading the database.
+	 */
+	public static Map<Integer, Column> listColumns() throws IOException {
+
 		SasFileReader sasFileReader = new SasFileReaderImpl(new FileInputStream(Configuration.getSASDataFilePath().toString()));
-		// Build the map of column indexes
-		Map<String, Integer> colIndexes = new HashMap<>();
+		// Build the map of columns by indexes
+		Map<Integer, Column> columns = new HashMap<>();
 		int index = 0;
-		for (Column column : sasFileReader.getColumns()) colIndexes.put(column.getName().toLowerCase(), index++);
+		for (Column column : sasFileReader.getColumns()) columns.put(index++, column);
 
-		SortedMap<String, Integer> countings = new TreeMap<>();
+		return columns;
+	}
 
-		long linesToRead = sasFileReader.getSasFileProperties().getRowCount();
-		logger.debug("There are " + linesToRead + " lines in " + Configuration.getSASDataFilePath());
-		for (long line = 0; line < linesToRead; line++) {
-			Object[] values = sasFileReader.readNext();
-			// Equipment identifier is first column + second column
-			String equipmentType = values[colIndexes.get("typequ")].toString().trim();
-			countings.putIfAbsent(equipmentType, 0);
-			countings.put(equipmentType, countings.get(equipmentType) + 1);
-		}
+	/**
+	 * Profiles all the columns of the BPE database in one scan: missing values, minimum and maximum, estimated numbers of distinct values and most frequent values.
+	 * 
+	 * @param parallelism The number of threads (1 for a sequential scan).
+	 * @return The profiles, indexed by column name.
+	 * @throws IOException In case of problem reading the database.
+	 */
+	public static Map<String, ColumnProfile> profileColumns(int parallelism) throws IOException {
 
-		return countings;
+		Map<String, ColumnProfile> profiles = new ColumnProfiler(parallelism).profile();
+		for (ColumnProfile profile : profiles.values()) logger.info(profile);
+
+		return profiles;
 	}
 
 	/**
@@ -159,29 +240,35 @@ public class SASUtils {
 	}
 
 	/**
-	 * Utility function to export the SAS file as CSV.
+	 * Utility function to export the SAS file as CSV (all columns, compressed, see <code>Configuration.getCSVExportFilePath</code>).
 	 * 
 	 * @throws IOException In case of problem reading SAS file or writing CSV file.
 	 */
 	public static void convertToCSV() throws IOException {
-	
-		final String CSV_FILE_NAME = "src/main/resources/data/bpe.csv";
-	
-		InputStream sasStream = new FileInputStream(Configuration.getSASDataFilePath().toString());
-		SasFileReader sasFileReader = new SasFileReaderImpl(sasStream);
-	
-		SasFileProperties sasFileProperties = sasFileReader.getSasFileProperties();
-		long rowCount = sasFileProperties.getRowCount();
-		SASModelMaker.logger.info("Number of lines in dataset: " + rowCount);
-		SASModelMaker.logger.info("Character set: " + sasFileProperties.getEncoding());
-	
-		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(CSV_FILE_NAME), StandardCharsets.UTF_8));
-		CSVDataWriter csvDataWriter = new CSVDataWriterImpl(writer);
-		csvDataWriter.writeColumnNames(sasFileReader.getColumns());
-		int linesToRead = (int) Math.min(rowCount, SASModelMaker.LINES_TO_READ);
-		for (int i = 0; i < linesToRead; i++) {
-			csvDataWriter.writeRow(sasFileReader.getColumns(), sasFileReader.readNext());			
+
+		exportRows(null, Configuration.getCSVExportFilePath(), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Exports columns of the SAS file (or of its columnar cache if it is up to date) to a flat file.
+	 * The file is a TSV file if its name contains '.tsv', a CSV file otherwise, and is compressed with gzip if its name ends with '.gz'.
+	 * Only the first <code>SASModelMaker.LINES_TO_READ</code> lines are exported if this number is not zero.
+	 * 
+	 * @param columns The names of the columns to export, or <code>null</code> for all columns.
+	 * @param outputPath The path of the file to write.
+	 * @param parallelism The number of threads formatting the lines.
+	 * @return The number of lines exported.
+	 * @throws IOException In case of problem reading SAS file or writing the flat file.
+	 */
+	public static long exportRows(List<String> columns, Path outputPath, int parallelism) throws IOException {
+
+		if (columns == null) {
+			columns = new ArrayList<>();
+			for (Column column : listColumns().values()) columns.add(column.getName().toLowerCase());
+		}
+		char separator = outputPath.getFileName().toString().contains(".tsv") ? FlatExporter.TSV_SEPARATOR : FlatExporter.CSV_SEPARATOR;
+		try (RowSource rowReader = SASColumnCache.openRows(columns, null)) {
+			return new FlatExporter(columns, separator, parallelism).export(rowReader, outputPath, SASModelMaker.LINES_TO_READ);
 		}
-		writer.close();
 	}
-}
\ No newline at end of file
+}
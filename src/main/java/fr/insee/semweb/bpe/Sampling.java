@@ -0,0 +1,189 @@
+package fr.insee.semweb.bpe;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <code>Sampling</code> defines a stratified sample of the BPE lines for development runs, in two stages.
+ *
+ * First, blocks of lines (data pages of the SAS database, blocks of records of the DBF files) are selected systematically with a random start, and the other blocks are not read at all.
+ * Since the files are ordered by municipality, the blocks selected are spread over all the departments.
+ * Then, the lines of the blocks read are stratified by equipment type and department: at most a given number of lines is kept for each stratum,
+ * so that the frequent types do not crowd out the rare ones in the sample.
+ *
+ * The sampling is configured at runtime with system properties (for example <code>-Dbpe.sampling.rate=0.01</code>).
+ *
+ * @author Franck
+ */
+public class Sampling {
+
+	public static Logger logger = LogManager.getLogger(Sampling.class);
+
+	final static String RATE_PROPERTY = "bpe.sampling.rate"; // Fraction of the blocks read, between 0 and 1
+	final static String STRATUM_PROPERTY = "bpe.sampling.stratum"; // Maximum number of lines kept for each equipment type and department
+	final static String SEED_PROPERTY = "bpe.sampling.seed"; // Seed of the random start of the block selection
+	final static int DEFAULT_MAX_PER_STRATUM = 20;
+	final static long DEFAULT_SEED = 42;
+	final static int DBF_BLOCK_RECORDS = 64; // Number of records of a DBF block, about the number of lines of a SAS page
+
+	private final double rate;
+	private final int maxPerStratum;
+	private final long seed;
+
+	/**
+	 * Creates a sampling definition.
+	 *
+	 * @param rate The fraction of the blocks read, between 0 (excluded) and 1.
+	 * @param maxPerStratum The maximum number of lines kept for each stratum, zero for no limit.
+	 * @param seed The seed of the random start of the block selection.
+	 */
+	public Sampling(double rate, int maxPerStratum, long seed) {
+
+		if ((rate <= 0) || (rate > 1)) throw new IllegalArgumentException("Invalid sampling rate: " + rate);
+		this.rate = rate;
+		this.maxPerStratum = maxPerStratum;
+		this.seed = seed;
+	}
+
+	/**
+	 * Returns the sampling defined by the system properties, if any.
+	 *
+	 * @return The sampling, or <code>null</code> if the sampling rate property is not set.
+	 * @throws IllegalArgumentException If a property has an invalid value.
+	 */
+	public static Sampling fromSystemProperties() {
+
+		String rate = System.getProperty(RATE_PROPERTY);
+		if (rate == null) return null;
+		int maxPerStratum = Integer.parseInt(System.getProperty(STRATUM_PROPERTY, String.valueOf(DEFAULT_MAX_PER_STRATUM)));
+		long seed = Long.parseLong(System.getProperty(SEED_PROPERTY, String.valueOf(DEFAULT_SEED)));
+		Sampling sampling = new Sampling(Double.parseDouble(rate), maxPerStratum, seed);
+		logger.info("Sampling mode: " + sampling);
+
+		return sampling;
+	}
+
+	/**
+	 * Selects the blocks to read among a number of blocks: systematic selection with a random start, so that the blocks selected are evenly spread.
+	 *
+	 * @param blockCount The number of blocks.
+	 * @return The ranges of consecutive blocks selected, as arrays of the first block and the block following the last one, in increasing order.
+	 */
+	public List<int[]> selectBlocks(int blockCount) {
+
+		List<int[]> ranges = new ArrayList<>();
+		double start = new Random(seed).nextDouble();
+		for (int block = 0; block < blockCount; block++) {
+			// Block selected when the cumulated rate crosses an integer
+			if (Math.floor(start + (block + 1) * rate) == Math.floor(start + block * rate)) continue;
+			if (!ranges.isEmpty() && (ranges.get(ranges.size() - 1)[1] == block)) ranges.get(ranges.size() - 1)[1]++;
+			else ranges.add(new int[] {block, block + 1});
+		}
+		if (ranges.isEmpty() && (blockCount > 0)) ranges.add(new int[] {0, 1}); // At least one block is read
+		return ranges;
+	}
+
+	/**
+	 * Creates a new stratifier, which counts the lines kept in each stratum.
+	 *
+	 * @return The stratifier.
+	 */
+	public Stratifier newStratifier() {
+		return new Stratifier();
+	}
+
+	/**
+	 * Filters the lines of a source with a new stratifier.
+	 *
+	 * @param rows The source of lines.
+	 * @param typeIndex The index of the equipment type in the values of a line.
+	 * @param municipalityIndex The index of the municipality code in the values of a line.
+	 * @return The source of the lines kept.
+	 */
+	public RowSource stratify(RowSource rows, int typeIndex, int municipalityIndex) {
+
+		Stratifier stratifier = newStratifier();
+		return new RowSource() {
+			@Override
+			public Object[] readNext() throws IOException {
+
+				Object[] values;
+				while ((values = rows.readNext()) != null) {
+					if (stratifier.accept(toString(values[typeIndex]), toString(values[municipalityIndex]))) return values;
+				}
+				return null;
+			}
+
+			@Override
+			public void close() throws IOException {
+
+				logger.info(stratifier.toString());
+				rows.close();
+			}
+
+			private String toString(Object value) {
+				return (value == null) ? null : value.toString().trim();
+			}
+		};
+	}
+
+	/**
+	 * Returns the department of a municipality: three characters for overseas departments, two otherwise.
+	 *
+	 * @param municipalityCode The municipality code.
+	 * @return The department code, or an empty string if the municipality code is missing.
+	 */
+	public static String getDepartment(String municipalityCode) {
+
+		if ((municipalityCode == null) || (municipalityCode.length() < 2)) return "";
+		int length = (municipalityCode.startsWith("97") && (municipalityCode.length() >= 3)) ? 3 : 2;
+
+		return municipalityCode.substring(0, length);
+	}
+
+	@Override
+	public String toString() {
+		return "rate of blocks read " + rate + ", maximum " + ((maxPerStratum > 0) ? maxPerStratum : "unlimited") + " lines per equipment type and department, seed " + seed;
+	}
+
+	/**
+	 * Counter of the lines kept in each stratum (equipment type and department), to be used by one thread.
+	 */
+	public class Stratifier {
+
+		private final Map<String, int[]> counts = new HashMap<>();
+		private long accepted = 0;
+		private long rejected = 0;
+
+		/**
+		 * Indicates if a line is kept in the sample, and counts it if it is.
+		 *
+		 * @param equipmentType The equipment type of the line.
+		 * @param municipalityCode The municipality code of the line.
+		 * @return <code>true</code> if the stratum of the line is not full, <code>false</code> otherwise.
+		 */
+		public boolean accept(String equipmentType, String municipalityCode) {
+
+			int[] count = counts.computeIfAbsent(equipmentType + "/" + getDepartment(municipalityCode), stratum -> new int[1]);
+			if ((maxPerStratum > 0) && (count[0] >= maxPerStratum)) {
+				rejected++;
+				return false;
+			}
+			count[0]++;
+			accepted++;
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return "Sample of " + accepted + " lines in " + counts.size() + " strata, " + rejected + " lines of full strata left out";
+		}
+	}
+}
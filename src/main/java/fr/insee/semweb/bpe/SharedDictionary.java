@@ -0,0 +1,86 @@
+package fr.insee.semweb.bpe;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <code>SharedDictionary</code> assigns consecutive integer identifiers to values that are repeated across the equipments and the models,
+ * for example predicates, equipment types, municipalities or namespaces (see {@link CompactGraph}).
+ *
+ * The dictionary is thread-safe and bounded: beyond its limit, new values are not added any more, as in the tables of {@link NodeCache}.
+ *
+ * @param <T> The type of the values.
+ *
+ * @author Franck
+ */
+public class SharedDictionary<T> {
+
+	final static int INITIAL_CAPACITY = 1024;
+
+	private final int maxEntries;
+	private final ConcurrentHashMap<T, Integer> identifiers = new ConcurrentHashMap<>();
+	private volatile Object[] values = new Object[INITIAL_CAPACITY];
+	private int size = 0;
+
+	/**
+	 * Creates a dictionary.
+	 *
+	 * @param maxEntries The maximum number of values in the dictionary.
+	 */
+	public SharedDictionary(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Returns the identifier of a value, adding the value to the dictionary if it is absent and the dictionary is not full.
+	 *
+	 * @param value The value.
+	 * @return The identifier of the value, or -1 if the value is absent and the dictionary is full.
+	 */
+	public int encode(T value) {
+
+		Integer identifier = identifiers.get(value);
+		if (identifier != null) return identifier;
+		synchronized (this) {
+			identifier = identifiers.get(value);
+			if (identifier != null) return identifier;
+			if (size >= maxEntries) return -1;
+			if (size == values.length) values = Arrays.copyOf(values, 2 * size);
+			values[size] = value;
+			identifiers.put(value, size); // After the value is stored, so that a thread obtaining the identifier finds the value
+			return size++;
+		}
+	}
+
+	/**
+	 * Returns the identifier of a value without adding it to the dictionary.
+	 *
+	 * @param value The value.
+	 * @return The identifier of the value, or -1 if the value is not in the dictionary.
+	 */
+	public int lookup(T value) {
+
+		Integer identifier = identifiers.get(value);
+		return (identifier == null) ? -1 : identifier;
+	}
+
+	/**
+	 * Returns the value corresponding to an identifier.
+	 *
+	 * @param identifier The identifier, as returned by <code>encode</code>.
+	 * @return The value.
+	 */
+	@SuppressWarnings("unchecked")
+	public T decode(int identifier) {
+		return (T) values[identifier];
+	}
+
+	/**
+	 * Returns the number of values in the dictionary.
+	 *
+	 * @return The number of values.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+}
@@ -0,0 +1,227 @@
+package fr.insee.semweb.bpe;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+import org.apache.jena.dboe.base.file.Location;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.GraphBase;
+import org.apache.jena.query.TxnType;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.system.Txn;
+import org.apache.jena.tdb2.DatabaseMgr;
+import org.apache.jena.tdb2.sys.TDBInternal;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <code>SpillingGraph</code> is a Jena graph that stays in memory up to a number of triples, and is then moved to a temporary TDB2 store on disk.
+ *
+ * Once the graph has spilled, the triples added are buffered and written to the store in batches, each batch in its own write transaction.
+ * Reading the graph (for example when it is serialized by <code>Model.write</code>) is done in a read transaction opened in the calling thread by a call to <code>find</code>,
+ * and ended when the iterator returned is exhausted or closed. Other calls to <code>find</code> made by the same thread during the iteration share the transaction.
+ * A transaction left open by an iterator which is neither exhausted nor closed is ended by the next addition or by the closing of the graph.
+ * Closing the graph releases the store and deletes its directory: spilled graphs must be closed.
+ *
+ * @author Franck
+ */
+public class SpillingGraph extends GraphBase {
+
+	public static Logger logger = LogManager.getLogger(SpillingGraph.class);
+
+	final static int BATCH_SIZE = 10000; // Number of triples written to the store in one transaction
+	final static String DIRECTORY_PREFIX = "bpe-spill-"; // Prefix of the temporary directories of the stores
+
+	private final long threshold;
+	private Graph memoryGraph;
+	private long memoryAdditions = 0; // Number of triples added in memory, duplicates included
+	private Path directory = null;
+	private DatasetGraph store = null;
+	private Graph storeGraph = null;
+	private final List<Triple> pending = new ArrayList<>();
+
+	/**
+	 * Creates a graph that spills to disk when it exceeds a number of triples.
+	 *
+	 * @param threshold The maximum number of triples held in memory (zero or negative for a graph that never spills).
+	 */
+	public SpillingGraph(long threshold) {
+		this(threshold, GraphFactory.createGraphMem());
+	}
+
+	/**
+	 * Creates a graph that holds its triples in a given in-memory graph, and spills to disk when it exceeds a number of triples.
+	 *
+	 * @param threshold The maximum number of triples held in memory (zero or negative for a graph that never spills).
+	 * @param memoryGraph The empty in-memory graph, closed when the graph spills.
+	 */
+	public SpillingGraph(long threshold, Graph memoryGraph) {
+
+		this.threshold = threshold;
+		this.memoryGraph = memoryGraph;
+	}
+
+	/**
+	 * Indicates if the graph has been moved to disk.
+	 *
+	 * @return <code>true</code> if the triples are in the temporary store, <code>false</code> if they are in memory.
+	 */
+	public synchronized boolean isSpilled() {
+		return (store != null);
+	}
+
+	@Override
+	public synchronized void performAdd(Triple triple) {
+
+		if (store == null) {
+			memoryGraph.add(triple);
+			if ((threshold > 0) && (++memoryAdditions > threshold)) spill();
+			return;
+		}
+		pending.add(triple);
+		if (pending.size() >= BATCH_SIZE) flush();
+	}
+
+	@Override
+	public synchronized void performDelete(Triple triple) {
+
+		if (store == null) {
+			memoryGraph.delete(triple);
+			return;
+		}
+		flush();
+		Txn.executeWrite(store, () -> storeGraph.delete(triple));
+	}
+
+	@Override
+	protected synchronized ExtendedIterator<Triple> graphBaseFind(Triple pattern) {
+
+		if (store == null) return memoryGraph.find(pattern);
+		flush();
+		if (store.isInTransaction()) return storeGraph.find(pattern); // Nested call: the transaction belongs to the enclosing iteration
+		store.begin(TxnType.READ);
+		return new ReadIterator(storeGraph.find(pattern));
+	}
+
+	@Override
+	protected synchronized int graphBaseSize() {
+
+		if (store == null) return memoryGraph.size();
+		flush();
+		if (store.isInTransaction()) return storeGraph.size();
+		return Txn.calculateRead(store, () -> storeGraph.size());
+	}
+
+	@Override
+	public synchronized void close() {
+
+		if (store != null) {
+			if (store.isInTransaction()) store.end();
+			TDBInternal.expel(store, true); // Read transactions left open by other threads do not prevent the release
+			store = null;
+			storeGraph = null;
+			pending.clear();
+			deleteDirectory();
+		}
+		if (memoryGraph != null) memoryGraph.close();
+		super.close();
+	}
+
+	// Moves the triples held in memory to a new store in a temporary directory
+	private void spill() {
+
+		try {
+			directory = Files.createTempDirectory(DIRECTORY_PREFIX);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot create the directory of the temporary store", e);
+		}
+		long startTime = System.currentTimeMillis();
+		store = DatabaseMgr.connectDatasetGraph(Location.create(directory.toString()));
+		storeGraph = store.getDefaultGraph();
+		ExtendedIterator<Triple> memoryTriples = memoryGraph.find();
+		while (memoryTriples.hasNext()) {
+			pending.add(memoryTriples.next());
+			if (pending.size() >= BATCH_SIZE) flush();
+		}
+		memoryGraph.close();
+		memoryGraph = null;
+		flush();
+		logger.info("Graph of more than " + threshold + " triples moved to temporary store " + directory + " in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+
+	// Writes the buffered triples to the store in batches, after ending the read transaction of the current thread if there is one
+	private void flush() {
+
+		if (pending.isEmpty()) return;
+		if (store.isInTransaction()) store.end();
+		for (int start = 0; start < pending.size(); start += BATCH_SIZE) {
+			List<Triple> batch = pending.subList(start, Math.min(start + BATCH_SIZE, pending.size()));
+			Txn.executeWrite(store, () -> batch.forEach(storeGraph::add));
+		}
+		pending.clear();
+	}
+
+	// Ends the read transaction of the current thread, if it is still open on the current store
+	private synchronized void endRead(DatasetGraph readStore) {
+
+		if ((store == readStore) && (store != null) && store.isInTransaction()) store.end();
+	}
+
+	private void deleteDirectory() {
+
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		} catch (IOException e) {
+			logger.warn("Cannot delete temporary store " + directory + ": " + e.getMessage());
+		}
+		directory = null;
+	}
+
+	/** Iterator on the store that ends the read transaction opened for it when it is exhausted or closed */
+	private class ReadIterator extends NiceIterator<Triple> {
+
+		private final ExtendedIterator<Triple> base;
+		private final DatasetGraph readStore = store;
+		private boolean ended = false;
+
+		ReadIterator(ExtendedIterator<Triple> base) {
+			this.base = base;
+		}
+
+		@Override
+		public boolean hasNext() {
+
+			if (ended) return false;
+			if (base.hasNext()) return true;
+			close();
+			return false;
+		}
+
+		@Override
+		public Triple next() {
+
+			if (!hasNext()) throw new NoSuchElementException();
+			return base.next();
+		}
+
+		@Override
+		public void close() {
+
+			if (ended) return;
+			ended = true;
+			base.close();
+			endRead(readStore);
+		}
+	}
+}
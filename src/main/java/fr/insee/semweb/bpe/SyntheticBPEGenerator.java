@@ -0,0 +1,305 @@
+package fr.insee.semweb.bpe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <code>SyntheticBPEGenerator</code> generates synthetic BPE lines, for load tests and benchmarks that cannot use the actual (confidential) data.
+ *
+ * The lines contain the columns used by the model makers, with the Java types returned by the SAS parser:
+ * <ul>
+ *   <li>equipment types are drawn from the leaf codes of bpe2018-types.tsv, uniformly or according to given weights (for example the counts returned by <code>SASUtils.countEquipmentsByType</code>);</li>
+ *   <li>the feature and property columns of each type are filled according to bpe2018-types-features.tsv;</li>
+ *   <li>municipality codes are drawn in the metropolitan and overseas departments, with coordinates in the ranges of the corresponding coordinate reference systems (Mayotte is not geolocalized).</li>
+ * </ul>
+ * The lines can be mapped directly (the generator is a {@link RowSource}) or written to a CSV file.
+ *
+ * @author Franck
+ */
+public class SyntheticBPEGenerator implements RowSource {
+
+	public static Logger logger = LogManager.getLogger(SyntheticBPEGenerator.class);
+
+	/** Approximate number of lines in the 2018 vintage of the BPE, corresponding to scale 1 */
+	public final static long BASE_ROW_COUNT = 2500000L;
+	final static char CSV_SEPARATOR = ';';
+
+	// Overseas departments and their share of the equipments, the rest being in metropolitan France
+	private static final String[] OVERSEAS_DEPARTMENTS = {"971", "972", "973", "974", "976"};
+	private static final double OVERSEAS_SHARE = 0.03;
+	// Coordinate ranges (xMin, xMax, yMin, yMax): Lambert 93 for metropolitan France, UTM for overseas departments
+	private static final double[] METROPOLITAN_RANGE = {100000, 1250000, 6040000, 7120000};
+	private static final double[][] OVERSEAS_RANGES = {{620000, 700000, 1750000, 1830000}, {690000, 740000, 1590000, 1650000}, {150000, 400000, 240000, 630000}, {315000, 380000, 7635000, 7695000}, null};
+	private static final String[] QUALITY_LEVELS = {"BONNE", "ACCEPTABLE", "MAUVAISE"};
+	private static final double[] QUALITY_SHARES = {0.80, 0.95, 1.0}; // Cumulated
+
+	// Kinds of columns
+	private static final int ID_ETAB = 0, ID_SERVICE = 1, TYPE = 2, MUNICIPALITY = 3, DATE = 4, X = 5, Y = 6, QUALITY = 7, FEATURE = 8, SECTOR = 9, CAPACITY = 10, ROOMS = 11, OTHER = 12;
+
+	private final List<String> columns;
+	private final int[] columnKinds;
+	private final long rowCount;
+	private final SplittableRandom random;
+	private String[] types;
+	private long[] cumulatedWeights;
+	/** For each type, the positions of its feature and property columns */
+	private int[][] typeColumns;
+	private final String[] metropolitanDepartments;
+	private long rowsGenerated = 0;
+
+	/**
+	 * Creates a generator.
+	 *
+	 * @param columns The names of the columns to generate (in lower case), in the order of the values of the lines.
+	 * @param rowCount The number of lines to generate.
+	 * @param seed The seed of the random generator (the same seed gives the same lines).
+	 */
+	public SyntheticBPEGenerator(List<String> columns, long rowCount, long seed) {
+
+		this.columns = new ArrayList<>(columns);
+		this.rowCount = rowCount;
+		this.random = new SplittableRandom(seed);
+
+		columnKinds = new int[columns.size()];
+		for (int index = 0; index < columnKinds.length; index++) columnKinds[index] = columnKind(columns.get(index));
+
+		List<String> departments = new ArrayList<>();
+		for (int department = 1; department <= 95; department++) {
+			if (department == 20) departments.addAll(Arrays.asList("2A", "2B"));
+			else departments.add(String.format("%02d", department));
+		}
+		metropolitanDepartments = departments.toArray(new String[0]);
+
+		List<String> leafTypes = new ArrayList<>();
+		for (String code : TypeFilter.listTypeCodes()) if (code.length() == 4) leafTypes.add(code);
+		Map<String, Integer> uniformWeights = new LinkedHashMap<>();
+		for (String type : leafTypes) uniformWeights.put(type, 1);
+		setTypeWeights(uniformWeights);
+	}
+
+	/**
+	 * Creates a generator at a given scale of the 2018 vintage, for the columns used by the model makers.
+	 *
+	 * @param scale The scale (1 for about 2.5 million lines, 10, 100...).
+	 * @param seed The seed of the random generator.
+	 * @return The generator.
+	 */
+	public static SyntheticBPEGenerator atScale(double scale, long seed) {
+
+		List<String> columns = RowMapper.getRequiredColumns(Configuration.listFeaturesAndPropertiesByType(), true, true);
+		return new SyntheticBPEGenerator(columns, Math.round(BASE_ROW_COUNT * scale), seed);
+	}
+
+	/**
+	 * Sets the distribution of the equipment types.
+	 *
+	 * @param weights The relative weights of the types, for example the numbers of equipments of each type in an actual vintage.
+	 * @return This generator.
+	 */
+	public SyntheticBPEGenerator setTypeWeights(Map<String, Integer> weights) {
+
+		SortedMap<String, SortedSet<String>> featuresAndPropertiesByType = Configuration.listFeaturesAndPropertiesByType();
+		List<String> selectedTypes = new ArrayList<>();
+		List<Long> cumulated = new ArrayList<>();
+		long total = 0;
+		for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+			if ((weight.getValue() == null) || (weight.getValue() <= 0)) continue;
+			total += weight.getValue();
+			selectedTypes.add(weight.getKey());
+			cumulated.add(total);
+		}
+		if (total == 0) throw new IllegalArgumentException("No positive weight for the equipment types");
+		types = selectedTypes.toArray(new String[0]);
+		cumulatedWeights = cumulated.stream().mapToLong(Long::longValue).toArray();
+		typeColumns = new int[types.length][];
+		for (int typeIndex = 0; typeIndex < types.length; typeIndex++) {
+			SortedSet<String> featuresAndProperties = featuresAndPropertiesByType.getOrDefault(types[typeIndex], Collections.emptySortedSet());
+			typeColumns[typeIndex] = featuresAndProperties.stream().mapToInt(columns::indexOf).filter(position -> position >= 0).toArray();
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the names of the columns generated.
+	 *
+	 * @return The names of the columns, in the order of the values of the lines.
+	 */
+	public List<String> getColumns() {
+		return Collections.unmodifiableList(columns);
+	}
+
+	/**
+	 * Returns the number of lines to generate.
+	 *
+	 * @return The total number of lines of the generator.
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	@Override
+	public Object[] readNext() {
+
+		if (rowsGenerated >= rowCount) return null;
+		long line = rowsGenerated++;
+
+		Object[] values = new Object[columnKinds.length];
+		int typeIndex = drawType();
+		boolean overseas = random.nextDouble() < OVERSEAS_SHARE;
+		int department = overseas ? random.nextInt(OVERSEAS_DEPARTMENTS.length) : random.nextInt(metropolitanDepartments.length);
+		double[] range = overseas ? OVERSEAS_RANGES[department] : METROPOLITAN_RANGE;
+		boolean geolocalized = (range != null) && (random.nextDouble() < 0.97);
+
+		for (int index = 0; index < columnKinds.length; index++) {
+			switch (columnKinds[index]) {
+				case ID_ETAB: values[index] = formatNumber(line, 9) + " "; break; // Trailing space as in the SAS file
+				case ID_SERVICE: values[index] = String.valueOf(random.nextInt(10)); break;
+				case TYPE: values[index] = types[typeIndex]; break;
+				case MUNICIPALITY: values[index] = overseas ? OVERSEAS_DEPARTMENTS[department] + formatNumber(1 + random.nextInt(34), 2) : metropolitanDepartments[department] + formatNumber(1 + random.nextInt(900), 3); break;
+				case DATE: values[index] = (random.nextInt(10) < 4) ? new Date(86400000L * (7305 + random.nextInt(10592))) : null; break; // 1990 to 2018
+				case X: values[index] = geolocalized ? coordinate(range[0], range[1]) : null; break;
+				case Y: values[index] = geolocalized ? coordinate(range[2], range[3]) : null; break;
+				case QUALITY: values[index] = geolocalized ? drawQuality() : ""; break;
+				default: values[index] = null; // Feature and property columns are filled below for the relevant types
+			}
+		}
+		for (int position : typeColumns[typeIndex]) {
+			switch (columnKinds[position]) {
+				case SECTOR: values[position] = (random.nextInt(10) < 7) ? "PU" : "PR"; break;
+				case CAPACITY: values[position] = (long) (random.nextInt(4) == 0 ? 0 : random.nextInt(1, 2000)); break;
+				case ROOMS: values[position] = (long) random.nextInt(1, 20); break;
+				case FEATURE: values[position] = (random.nextInt(10) < 6) ? "1" : "0"; break;
+				default: values[position] = "0";
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Returns the remaining lines in a list, for example for benchmarks working on lines held in memory.
+	 *
+	 * @return The list of the remaining lines, each line being an array of values.
+	 */
+	public List<Object[]> readRemaining() {
+
+		List<Object[]> rows = new ArrayList<>((int) Math.min(Integer.MAX_VALUE, rowCount - rowsGenerated));
+		Object[] values;
+		while ((values = readNext()) != null) rows.add(values);
+
+		return rows;
+	}
+
+	/**
+	 * Writes the remaining lines in a CSV file (separator ';', column names in the first line, dates in ISO format, empty values for nulls).
+	 * The file is compressed with gzip if its name ends with '.gz'.
+	 *
+	 * @param csvFilePath The path of the CSV file to write.
+	 * @return The number of lines written.
+	 * @throws IOException In case of problem writing the file.
+	 */
+	public long writeCSV(Path csvFilePath) throws IOException {
+
+		OutputStream output = Files.newOutputStream(csvFilePath);
+		if (csvFilePath.toString().endsWith(".gz")) output = new GZIPOutputStream(output, 1 << 16);
+		long written = 0;
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), 1 << 16)) {
+			writer.write(String.join(String.valueOf(CSV_SEPARATOR), columns));
+			writer.write('\n');
+			Object[] values;
+			while ((values = readNext()) != null) {
+				for (int index = 0; index < values.length; index++) {
+					if (index > 0) writer.write(CSV_SEPARATOR);
+					if (values[index] instanceof Date) writer.write(RowFormatter.formatDate(((Date) values[index]).getTime()));
+					else if (values[index] != null) writer.write(values[index].toString());
+				}
+				writer.write('\n');
+				if (((++written % SASModelMaker.LOGGING_STEP) == 0) && logger.isDebugEnabled()) logger.debug(written + " lines written to " + csvFilePath);
+			}
+		}
+		logger.info(written + " synthetic lines written to " + csvFilePath);
+
+		return written;
+	}
+
+	@Override
+	public void close() {
+		rowsGenerated = rowCount;
+	}
+
+	/**
+	 * Writes a synthetic BPE file.
+	 *
+	 * @param args The scale (default 1) and the path of the CSV file to write (default 'bpe-synthetic-x[scale].csv.gz' in the output data directory).
+	 * @throws IOException In case of problem writing the file.
+	 */
+	public static void main(String... args) throws IOException {
+
+		double scale = (args.length > 0) ? Double.parseDouble(args[0]) : 1.0;
+		String scaleLabel = (scale == Math.rint(scale)) ? String.valueOf((long) scale) : String.valueOf(scale).replace('.', '_');
+		Path csvFilePath = (args.length > 1) ? Paths.get(args[1]) : Configuration.DATA_RESOURCE_PATH_OUT.resolve("bpe-synthetic-x" + scaleLabel + ".csv.gz");
+		try (SyntheticBPEGenerator generator = atScale(scale, 2018)) {
+			logger.info("Generating " + generator.getRowCount() + " synthetic lines");
+			generator.writeCSV(csvFilePath);
+		}
+	}
+
+	private int drawType() {
+
+		long draw = random.nextLong(cumulatedWeights[cumulatedWeights.length - 1]);
+		int index = Arrays.binarySearch(cumulatedWeights, draw + 1);
+		return (index >= 0) ? index : -index - 1;
+	}
+
+	private String drawQuality() {
+
+		double draw = random.nextDouble();
+		for (int level = 0; level < QUALITY_LEVELS.length; level++) if (draw < QUALITY_SHARES[level]) return QUALITY_LEVELS[level];
+		return QUALITY_LEVELS[QUALITY_LEVELS.length - 1];
+	}
+
+	// Coordinates are of type Double, or Long if there is no decimal (as returned by the SAS parser)
+	private Object coordinate(double min, double max) {
+
+		long tenths = (long) (min * 10) + random.nextLong((long) ((max - min) * 10));
+		if (tenths % 10 == 0) return tenths / 10;
+		return tenths / 10.0;
+	}
+
+	private static String formatNumber(long number, int width) {
+
+		char[] digits = new char[width];
+		for (int position = width - 1; position >= 0; position--) {
+			digits[position] = (char) ('0' + number % 10);
+			number /= 10;
+		}
+		return new String(digits);
+	}
+
+	private static int columnKind(String column) {
+
+		switch (column) {
+			case "idetab": return ID_ETAB;
+			case "idservice": return ID_SERVICE;
+			case "typequ": return TYPE;
+			case "depcom": return MUNICIPALITY;
+			case "date_creation": return DATE;
+			case "lambert_x": return X;
+			case "lambert_y": return Y;
+			case "qualite_xy": return QUALITY;
+			case "sect": return SECTOR;
+			case "capacite": return CAPACITY;
+			case "nbsalles": return ROOMS;
+			default:
+				for (List<String> features : Configuration.sasFeatures.values()) if (features.contains(column)) return FEATURE;
+				return OTHER;
+		}
+	}
+}
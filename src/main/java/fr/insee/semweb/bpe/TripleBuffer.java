@@ -0,0 +1,56 @@
+package fr.insee.semweb.bpe;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <code>TripleBuffer</code> is a stream that accumulates triples in a thread before sending them in one block to a shared target stream.
+ *
+ * The target stream is locked during the transfer, so that it can be shared by several threads.
+ *
+ * @author Franck
+ */
+class TripleBuffer extends StreamRDFBase {
+
+	private final StreamRDF target;
+	private final List<Triple> triples = new ArrayList<>();
+
+	/**
+	 * Creates a buffer for a shared target stream.
+	 *
+	 * @param target The stream that will receive the triples.
+	 */
+	TripleBuffer(StreamRDF target) {
+		this.target = target;
+	}
+
+	@Override
+	public void triple(Triple triple) {
+		triples.add(triple);
+	}
+
+	/**
+	 * Returns the number of triples waiting in the buffer.
+	 *
+	 * @return The number of triples in the buffer.
+	 */
+	int size() {
+		return triples.size();
+	}
+
+	/**
+	 * Sends the triples of the buffer to the target stream and empties the buffer.
+	 */
+	void flush() {
+
+		if (triples.isEmpty()) return;
+		synchronized (target) {
+			for (Triple triple : triples) target.triple(triple);
+		}
+		triples.clear();
+	}
+}
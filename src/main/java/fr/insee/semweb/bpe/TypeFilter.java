@@ -0,0 +1,155 @@
+package fr.insee.semweb.bpe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * <code>TypeFilter</code> is a filter on the equipment types compiled from a chunk expression like "A1+A2" or "D-D2".
+ *
+ * An expression is a sequence of type code prefixes separated by '+' (types added) or '-' (types removed), evaluated from left to right.
+ * The expression is resolved once against the code list of equipment types into a set of type indexes, so that testing a type is a table lookup.
+ * Types absent from the code list are tested directly against the prefixes.
+ *
+ * @author Franck
+ */
+public class TypeFilter implements Predicate<String> {
+
+	public static Logger logger = LogManager.getLogger(TypeFilter.class);
+
+	private final String expression;
+	private final List<String> prefixes = new ArrayList<>();
+	private final List<Boolean> additions = new ArrayList<>(); // True for '+' (or first prefix), false for '-'
+	private final BitSet types = new BitSet();
+
+	private TypeFilter(String expression) {
+
+		this.expression = expression;
+		int start = 0;
+		boolean addition = true;
+		for (int position = 0; position <= expression.length(); position++) {
+			if ((position < expression.length()) && (expression.charAt(position) != '+') && (expression.charAt(position) != '-')) continue;
+			String prefix = expression.substring(start, position).trim();
+			if (prefix.isEmpty()) throw new IllegalArgumentException("Invalid type filter expression: " + expression);
+			prefixes.add(prefix);
+			additions.add(addition);
+			if (position < expression.length()) addition = (expression.charAt(position) == '+');
+			start = position + 1;
+		}
+		String[] codes = getTypeCodes();
+		for (String prefix : prefixes) {
+			if (Arrays.stream(codes).noneMatch(code -> code.startsWith(prefix))) throw new IllegalArgumentException("Unknown equipment type " + prefix + " in type filter expression: " + expression);
+		}
+		for (int index = 0; index < codes.length; index++) if (matches(codes[index])) types.set(index);
+	}
+
+	/**
+	 * Compiles a chunk expression into a type filter.
+	 *
+	 * @param expression The expression, for example "A1+A2" or "D-D2".
+	 * @return The compiled filter.
+	 * @throws IllegalArgumentException If the expression is not valid, or if one of its terms is the prefix of no code of the code list.
+	 */
+	public static TypeFilter compile(String expression) {
+
+		TypeFilter filter = new TypeFilter(expression);
+		logger.debug("Filter " + expression + " selects " + filter.types.cardinality() + " codes of the equipment types code list");
+
+		return filter;
+	}
+
+	@Override
+	public boolean test(String equipmentType) {
+
+		Integer index = getTypeIndexes().get(equipmentType);
+		if (index != null) return types.get(index);
+		return matches(equipmentType); // Type not in the code list
+	}
+
+	/**
+	 * Returns the expression from which the filter was compiled.
+	 *
+	 * @return The filter expression.
+	 */
+	public String getExpression() {
+		return expression;
+	}
+
+	/**
+	 * Returns the set of the indexes (see <code>getTypeIndex</code>) of the types selected by the filter.
+	 *
+	 * @return A copy of the bitset of the types selected.
+	 */
+	public BitSet getTypes() {
+		return (BitSet) types.clone();
+	}
+
+	/**
+	 * Returns the index of a type in the code list of equipment types.
+	 *
+	 * @param equipmentType The equipment type code.
+	 * @return The index of the type, or -1 if the type is not in the code list.
+	 */
+	public static int getTypeIndex(String equipmentType) {
+
+		Integer index = getTypeIndexes().get(equipmentType);
+		return (index == null) ? -1 : index;
+	}
+
+	/**
+	 * Returns the codes of the code list of equipment types, in the order of their indexes.
+	 *
+	 * @return The (unmodifiable) list of codes.
+	 */
+	public static List<String> listTypeCodes() {
+		return Collections.unmodifiableList(Arrays.asList(getTypeCodes()));
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+	/** Evaluates the expression on a type code by testing the prefixes */
+	private boolean matches(String equipmentType) {
+
+		boolean selected = false;
+		for (int term = 0; term < prefixes.size(); term++) {
+			if (equipmentType.startsWith(prefixes.get(term))) selected = additions.get(term);
+		}
+		return selected;
+	}
+
+	private static String[] getTypeCodes() {
+		return CodeList.codes;
+	}
+
+	private static Map<String, Integer> getTypeIndexes() {
+		return CodeList.indexes;
+	}
+
+	/** Code list of equipment types, read when first used */
+	private static class CodeList {
+
+		static final String[] codes;
+		static final Map<String, Integer> indexes;
+		static {
+			SortedSet<String> sortedCodes = new TreeSet<>();
+			try (Stream<String> lines = Files.lines(Configuration.getTypesCodelistTSVFilePath())) {
+				lines.map(line -> line.split("\t")[0].trim()).filter(code -> !code.isEmpty()).forEach(sortedCodes::add);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Error reading " + Configuration.getTypesCodelistTSVFilePath(), e);
+			}
+			codes = sortedCodes.toArray(new String[0]);
+			Map<String, Integer> codeIndexes = new HashMap<>();
+			for (int index = 0; index < codes.length; index++) codeIndexes.put(codes[index], index);
+			indexes = Collections.unmodifiableMap(codeIndexes);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package fr.insee.semweb.bpe.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Property;
+import org.junit.jupiter.api.Test;
+
+import fr.insee.semweb.bpe.BPEOnto;
+import fr.insee.semweb.bpe.CSVModelMaker;
+import fr.insee.semweb.bpe.CSVRowReader;
+import fr.insee.semweb.bpe.Configuration;
+import fr.insee.semweb.bpe.SyntheticBPEGenerator;
+
+public class CSVModelMakerTest {
+
+	@Test
+	public void testMakeBPEModelFilter() throws Exception {
+
+		String filter = "D2";
+		Model equipments = new CSVModelMaker().makeBPEModel(type -> type.startsWith(filter));
+		equipments.write(new FileWriter(Configuration.DATA_RESOURCE_PATH_OUT.resolve("equipments-csv-" + filter.toLowerCase() + ".ttl").toString()), "TTL");
+	}
+
+	@Test
+	public void testMakeBPEModelFromArchive() throws Exception {
+
+		CSVModelMaker csvModelMaker = new CSVModelMaker(Configuration.getCSVArchivePath(), StandardCharsets.UTF_8, 1);
+		Model equipments = csvModelMaker.makeBPEModel(type -> type.startsWith("F"));
+		equipments.write(new FileWriter(Configuration.DATA_RESOURCE_PATH_OUT.resolve("equipments-csv-archive-f.ttl").toString()), "TTL");
+	}
+
+	@Test
+	public void testStreamSyntheticModelsParallel() throws Exception {
+
+		Path csvFilePath = Configuration.DATA_RESOURCE_PATH_OUT.resolve("bpe-synthetic.csv");
+		try (SyntheticBPEGenerator generator = SyntheticBPEGenerator.atScale(0.1, 42)) {
+			generator.writeCSV(csvFilePath);
+		}
+		CSVModelMaker csvModelMaker = new CSVModelMaker(csvFilePath, StandardCharsets.UTF_8, Runtime.getRuntime().availableProcessors());
+		try (OutputStream output = new FileOutputStream(Configuration.DATA_RESOURCE_PATH_OUT.resolve("equipments-synthetic.nt").toString())) {
+			StreamRDF stream = StreamRDFWriter.getWriterStream(output, RDFFormat.NTRIPLES);
+			stream.start();
+			csvModelMaker.streamModels(type -> true, stream, null);
+			stream.finish();
+		}
+	}
+
+	@Test
+	public void testLineNumbersAsIdentifiers() throws Exception {
+
+		// File without 'idetab' column, with a blank line: the identifiers are the numbers of the lines in the file, header included
+		Path csvFilePath = Configuration.DATA_RESOURCE_PATH_OUT.resolve("bpe-no-id.csv");
+		List<String> lines = new ArrayList<>();
+		lines.add("typequ;depcom;idservice");
+		List<String> expected = new ArrayList<>();
+		for (int line = 2; line <= 1001; line++) {
+			if (line == 500) lines.add("");
+			else {
+				lines.add("D201;75056;" + line);
+				expected.add(String.valueOf(line));
+			}
+		}
+		Files.write(csvFilePath, lines, StandardCharsets.UTF_8);
+		List<String> columns = Arrays.asList("idetab", "idservice", "typequ");
+
+		List<String> sequential = new ArrayList<>();
+		try (CSVRowReader rowReader = CSVRowReader.open(csvFilePath, columns, null)) {
+			Object[] values;
+			while ((values = rowReader.readNext()) != null) sequential.add(values[0].toString());
+		}
+		assertEquals(expected, sequential);
+
+		List<String> ranged = new ArrayList<>();
+		for (CSVRowReader.Range range : CSVRowReader.split(csvFilePath, 7)) {
+			try (CSVRowReader rowReader = CSVRowReader.open(csvFilePath, range, columns, null, StandardCharsets.UTF_8)) {
+				Object[] values;
+				while ((values = rowReader.readNext()) != null) {
+					assertEquals(values[1], values[0]); // The service column holds the expected line number
+					ranged.add(values[0].toString());
+				}
+			}
+		}
+		assertEquals(expected, ranged);
+	}
+
+	@Test
+	public void testHeaderWithoutSpecializedColumns() throws Exception {
+
+		// Like the public files, the header has no 'idetab', 'sect', 'capacite' or 'nbsalles' column: these must not be mapped, so no warning should be issued
+		Path csvFilePath = Configuration.DATA_RESOURCE_PATH_OUT.resolve("bpe-public.csv");
+		List<String> lines = new ArrayList<>();
+		lines.add("depcom;typequ;cantine;ep;lambert_x;lambert_y;qualite_xy");
+		for (int line = 0; line < 100; line++) lines.add("75056;" + ((line % 2 == 0) ? "C101" : "C201") + ";1;0;652469.5;6862035;Bonne");
+		Files.write(csvFilePath, lines, StandardCharsets.UTF_8);
+
+		List<String> warnings = new ArrayList<>();
+		Appender appender = new AbstractAppender("warnings", null, null, true, Property.EMPTY_ARRAY) {
+			@Override
+			public void append(LogEvent event) {
+				if (event.getLevel().isMoreSpecificThan(Level.WARN)) warnings.add(event.getMessage().getFormattedMessage());
+			}
+		};
+		appender.start();
+		List<Logger> loggers = Arrays.asList((Logger) LogManager.getLogger("fr.insee.semweb.bpe.RowMapper"), (Logger) LogManager.getLogger("fr.insee.semweb.bpe.SASMappingPlan"));
+		for (Logger logger : loggers) logger.addAppender(appender);
+		Model equipments;
+		try {
+			equipments = new CSVModelMaker(csvFilePath, StandardCharsets.UTF_8, 1).makeBPEModel(type -> true);
+		} finally {
+			for (Logger logger : loggers) logger.removeAppender(appender);
+			appender.stop();
+		}
+
+		assertEquals(Collections.emptyList(), warnings);
+		assertEquals(100, equipments.listSubjectsWithProperty(RDF.type, BPEOnto.Equipement).toList().size());
+		assertEquals(100, equipments.listStatements(null, BPEOnto.caracterePresent, (RDFNode) null).toList().size()); // 'cantine'
+		assertEquals(100, equipments.listStatements(null, BPEOnto.caractereAbsent, (RDFNode) null).toList().size()); // 'ep'
+		assertFalse(equipments.contains(null, BPEOnto.secteurEquipement));
+		assertFalse(equipments.contains(null, BPEOnto.capacite));
+	}
+}
@@ -0,0 +1,42 @@
+package fr.insee.semweb.bpe.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import fr.insee.semweb.bpe.CheckResult;
+
+public class CheckResultTest {
+
+	@Test
+	public void testReport() {
+
+		// Messages are only formatted while there are less than the maximum number of samples
+		CheckResult result = new CheckResult("test", 3);
+		AtomicInteger formatted = new AtomicInteger();
+		for (int finding = 0; finding < 10; finding++) {
+			int number = finding;
+			result.report("Category", () -> "Finding " + number + " (" + formatted.incrementAndGet() + ")");
+		}
+		assertEquals(3, formatted.get());
+		assertEquals(10, result.getFindingCount());
+		assertEquals(Arrays.asList("Finding 0 (1)", "Finding 1 (2)", "Finding 2 (3)"), result.getSamples("Category"));
+	}
+
+	@Test
+	public void testCount() {
+
+		CheckResult result = new CheckResult("test", 3);
+		CheckResult other = new CheckResult("test", 3);
+		result.count("B");
+		result.count(null);
+		other.count("A");
+		other.count("B");
+		other.count(null);
+		result.merge(other);
+		assertEquals("{(null)=2, A=1, B=2}", result.getCounts().toString());
+	}
+}
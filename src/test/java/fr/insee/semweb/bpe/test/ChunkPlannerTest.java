@@ -0,0 +1,52 @@
+package fr.insee.semweb.bpe.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+import fr.insee.semweb.bpe.ChunkPlanner;
+import fr.insee.semweb.bpe.TypeFilter;
+
+public class ChunkPlannerTest {
+
+	@Test
+	public void testPlan() {
+
+		Map<String, Integer> counts = new TreeMap<>();
+		counts.put("A101", 1000);
+		counts.put("A104", 500);
+		counts.put("A203", 800);
+		counts.put("D101", 200);
+		counts.put("D201", 3000);
+		counts.put("E107", 100);
+		counts.put("F101", 0); // Types without equipments are ignored
+		counts.put("Z999", 50); // Not in the code list
+		Map<String, SortedSet<String>> featuresAndProperties = Collections.emptyMap();
+		ChunkPlanner planner = new ChunkPlanner(counts, featuresAndProperties);
+		assertFalse(planner.getTriplesByType().containsKey("Z999"));
+		assertFalse(planner.getTriplesByType().containsKey("F101"));
+
+		// Without features and properties, all these types have the same estimate per equipment
+		long triples = ChunkPlanner.estimateTriplesPerEquipment("A101", null);
+		Map<String, Long> chunks = planner.plan(2500 * triples);
+
+		// Domain D exceeds the budget and is split: D2 still exceeds it and is split into types, then the groups are packed by decreasing size
+		Map<String, Long> expected = new LinkedHashMap<>();
+		expected.put("D201", 3000 * triples);
+		expected.put("A+D1", 2500 * triples);
+		expected.put("E", 100 * triples);
+		assertEquals(expected, chunks);
+
+		// Each type of the plan is selected by exactly one chunk
+		for (String type : planner.getTriplesByType().keySet()) {
+			assertEquals(1, chunks.keySet().stream().filter(chunk -> TypeFilter.compile(chunk).test(type)).count(), type);
+		}
+	}
+}
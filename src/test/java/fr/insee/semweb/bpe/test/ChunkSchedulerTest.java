@@ -0,0 +1,80 @@
+package fr.insee.semweb.bpe.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import fr.insee.semweb.bpe.ChunkScheduler;
+
+public class ChunkSchedulerTest {
+
+	@Test
+	public void testAdmission() throws Exception {
+
+		// The second chunk is larger than the whole heap: it can only be admitted alone, when the first chunk is written
+		Map<String, Long> events = new LinkedHashMap<>();
+		Map<String, ChunkScheduler.Chunk<Long>> chunks = new LinkedHashMap<>();
+		chunks.put("small", chunk("small", 10, 300, events));
+		chunks.put("large", chunk("large", 20, 0, events));
+		Map<String, Long> estimates = new LinkedHashMap<>();
+		estimates.put("small", 1L << 20);
+		estimates.put("large", 2 * Runtime.getRuntime().maxMemory());
+
+		Map<String, Long> counts = new ChunkScheduler(2).run(chunks, estimates);
+		System.out.println("Counts: " + counts + ", events: " + events);
+
+		assertEquals(Arrays.asList("small", "large"), Arrays.asList(counts.keySet().toArray()));
+		assertEquals(10L, (long) counts.get("small"));
+		assertEquals(20L, (long) counts.get("large"));
+		assertTrue(events.get("large build") >= events.get("small written"), "Large chunk built before the small chunk was written");
+	}
+
+	@Test
+	public void testConcurrentAdmission() throws Exception {
+
+		// Two small chunks fit together: the second one starts before the first one is written
+		Map<String, Long> events = new LinkedHashMap<>();
+		Map<String, ChunkScheduler.Chunk<Long>> chunks = new LinkedHashMap<>();
+		chunks.put("first", chunk("first", 1, 300, events));
+		chunks.put("second", chunk("second", 2, 0, events));
+		Map<String, Long> estimates = new LinkedHashMap<>();
+		estimates.put("first", 1L << 20);
+		estimates.put("second", 1L << 20);
+
+		Map<String, Long> counts = new ChunkScheduler(2).run(chunks, estimates);
+
+		assertEquals(1L, (long) counts.get("first"));
+		assertEquals(2L, (long) counts.get("second"));
+		assertTrue(events.get("second build") < events.get("first written"), "Second chunk waited for the first one");
+	}
+
+	// Chunk whose building lasts a given time and whose writing returns a given count, recording the start of the building and the end of the writing
+	private static ChunkScheduler.Chunk<Long> chunk(String name, long count, long buildMillis, Map<String, Long> events) {
+
+		return new ChunkScheduler.Chunk<Long>() {
+			@Override
+			public Long build() throws Exception {
+
+				synchronized (events) {
+					events.put(name + " build", System.nanoTime());
+				}
+				Thread.sleep(buildMillis);
+				return count;
+			}
+
+			@Override
+			public long write(Long built) {
+
+				synchronized (events) {
+					events.put(name + " written", System.nanoTime());
+				}
+				return built;
+			}
+		};
+	}
+}
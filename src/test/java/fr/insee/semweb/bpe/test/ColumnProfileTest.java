@@ -0,0 +1,174 @@
+package fr.insee.semweb.bpe.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import fr.insee.semweb.bpe.ColumnProfile;
+import fr.insee.semweb.bpe.CountMinSketch;
+import fr.insee.semweb.bpe.HyperLogLog;
+
+public class ColumnProfileTest {
+
+	@Test
+	public void testHyperLogLogError() {
+
+		// The standard error with 2^14 registers is about 0.8 %, the bound is five times larger so that the test is not sensitive to the hash function
+		for (int cardinality : new int[] {10, 1000, 50000, 1000000}) {
+			HyperLogLog sketch = new HyperLogLog();
+			for (int value = 0; value < cardinality; value++) {
+				sketch.add(HyperLogLog.hash("value-" + value));
+				sketch.add(HyperLogLog.hash("value-" + (value / 2))); // Repeated values are not counted
+			}
+			double error = Math.abs(sketch.estimate() - cardinality) / (double) cardinality;
+			assertTrue(error < 0.04, "Relative error " + error + " for " + cardinality + " distinct values");
+		}
+	}
+
+	@Test
+	public void testHyperLogLogMerge() {
+
+		// Sketches of overlapping parts merge into the sketch of the union
+		HyperLogLog whole = new HyperLogLog();
+		HyperLogLog first = new HyperLogLog();
+		HyperLogLog second = new HyperLogLog();
+		for (int value = 0; value < 100000; value++) {
+			long hash = HyperLogLog.hash((long) value);
+			whole.add(hash);
+			if (value < 60000) first.add(hash);
+			if (value >= 40000) second.add(hash);
+		}
+		first.merge(second);
+		assertEquals(whole.estimate(), first.estimate());
+
+		// Equal numbers have the same hash, whatever their type
+		assertEquals(HyperLogLog.hash(12L), HyperLogLog.hash(12.0));
+	}
+
+	@Test
+	public void testCountMinHeavyHitters() {
+
+		Map<String, Integer> frequencies = new LinkedHashMap<>();
+		List<String> stream = zipfStream(frequencies);
+		CountMinSketch sketch = new CountMinSketch(5);
+		for (String value : stream) sketch.add(value, HyperLogLog.hash(value));
+
+		assertEquals(stream.size(), sketch.getTotal());
+		// The five most frequent values are found, in order
+		Map<String, Long> heavyHitters = sketch.getHeavyHitters(5);
+		assertEquals(new ArrayList<>(frequencies.keySet()).subList(0, 5), new ArrayList<>(heavyHitters.keySet()));
+		// The estimates never underestimate the frequencies, and exceed them by at most e/width of the total (with high probability)
+		long errorBound = (long) (Math.E * stream.size() / (1 << 12));
+		for (Map.Entry<String, Integer> frequency : frequencies.entrySet()) {
+			long estimate = sketch.estimate(HyperLogLog.hash(frequency.getKey()));
+			assertTrue(estimate >= frequency.getValue(), "Underestimate " + estimate + " of " + frequency);
+			if (heavyHitters.containsKey(frequency.getKey())) {
+				assertTrue(estimate <= frequency.getValue() + errorBound, "Overestimate " + estimate + " of " + frequency);
+				assertEquals(estimate, heavyHitters.get(frequency.getKey()).longValue());
+			}
+		}
+	}
+
+	@Test
+	public void testCountMinMerge() {
+
+		Map<String, Integer> frequencies = new LinkedHashMap<>();
+		List<String> stream = zipfStream(frequencies);
+		CountMinSketch whole = new CountMinSketch(5);
+		List<CountMinSketch> parts = new ArrayList<>();
+		for (int part = 0; part < 4; part++) parts.add(new CountMinSketch(5));
+		for (int index = 0; index < stream.size(); index++) {
+			String value = stream.get(index);
+			whole.add(value, HyperLogLog.hash(value));
+			parts.get(index * parts.size() / stream.size()).add(value, HyperLogLog.hash(value));
+		}
+		CountMinSketch merged = parts.get(0);
+		for (CountMinSketch part : parts.subList(1, parts.size())) merged.merge(part);
+
+		assertEquals(whole.getTotal(), merged.getTotal());
+		for (String value : frequencies.keySet()) assertEquals(whole.estimate(HyperLogLog.hash(value)), merged.estimate(HyperLogLog.hash(value)));
+		assertEquals(whole.getHeavyHitters(5), merged.getHeavyHitters(5));
+	}
+
+	@Test
+	public void testProfileMerge() {
+
+		// Strings with missing values and numbers of integer and decimal types: half of the values are in a few frequent ones, the others in a flat tail
+		List<Object> strings = new ArrayList<>();
+		List<Object> numbers = new ArrayList<>();
+		Random random = new Random(42);
+		for (int line = 0; line < 20000; line++) {
+			int draw = random.nextInt(1000);
+			if (draw < 500) {
+				strings.add("D" + Integer.numberOfTrailingZeros(draw + 1));
+				numbers.add((long) Integer.numberOfTrailingZeros(draw + 1));
+			} else {
+				strings.add((draw < 510) ? null : (draw < 520) ? " " : "E" + (draw % 50));
+				numbers.add(draw + 0.5);
+			}
+		}
+		List<Object> dates = new ArrayList<>();
+		for (int day = 0; day < 1000; day++) dates.add(new Date(((day < 600) ? day % 3 : day) * 86400000L * 7));
+
+		checkMerge(strings);
+		checkMerge(numbers);
+		checkMerge(dates);
+
+		ColumnProfile profile = new ColumnProfile("typequ", 3);
+		for (Object value : strings) profile.add(value);
+		assertEquals(strings.size(), profile.getValueCount());
+		assertEquals(strings.stream().filter(value -> (value == null) || value.toString().trim().isEmpty()).count(), profile.getNullCount());
+		assertEquals("D0", profile.getMin());
+		assertEquals("E9", profile.getMax());
+		long distinctCount = strings.stream().filter(value -> (value != null) && !value.toString().trim().isEmpty()).distinct().count();
+		assertTrue(Math.abs(profile.getDistinctCount() - distinctCount) <= 1);
+		assertEquals(Arrays.asList("D0", "D1", "D2"), new ArrayList<>(profile.getTopValues().keySet()));
+	}
+
+	// Checks that the profiles of the parts of a list merge into the profile of the whole list
+	private static void checkMerge(List<Object> values) {
+
+		ColumnProfile whole = new ColumnProfile("column", 5);
+		for (Object value : values) whole.add(value);
+		ColumnProfile merged = new ColumnProfile("column", 5);
+		for (int part = 0; part < 3; part++) {
+			ColumnProfile partProfile = new ColumnProfile("column", 5);
+			for (Object value : values.subList(values.size() * part / 3, values.size() * (part + 1) / 3)) partProfile.add(value);
+			merged.merge(partProfile);
+		}
+		assertEquals(whole.getValueCount(), merged.getValueCount());
+		assertEquals(whole.getNullCount(), merged.getNullCount());
+		assertEquals(whole.getMin(), merged.getMin());
+		assertEquals(whole.getMax(), merged.getMax());
+		assertEquals(whole.getDistinctCount(), merged.getDistinctCount());
+		assertEquals(whole.getTopValues(), merged.getTopValues());
+	}
+
+	// Shuffled stream where the frequency of the value of rank k is proportional to 1/k, followed by a long tail of values seen once
+	private static List<String> zipfStream(Map<String, Integer> frequencies) {
+
+		List<String> stream = new ArrayList<>();
+		for (int rank = 1; rank <= 100; rank++) {
+			int frequency = 20000 / rank;
+			frequencies.put("H" + rank, frequency);
+			for (int occurrence = 0; occurrence < frequency; occurrence++) stream.add("H" + rank);
+		}
+		for (int value = 0; value < 50000; value++) {
+			frequencies.put("T" + value, 1);
+			stream.add("T" + value);
+		}
+		Collections.shuffle(stream, new Random(42));
+
+		return stream;
+	}
+}
@@ -1,12 +1,22 @@
 package fr.insee.semweb.bpe.test;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
 import java.io.FileWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 import fr.insee.semweb.bpe.Configuration;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
 import org.junit.jupiter.api.Test;
 
 import fr.insee.semweb.bpe.DBFModelMaker;
+import fr.insee.semweb.bpe.DBFRecordReader;
 import fr.insee.semweb.bpe.Configuration.Domain;
 
 public class DBFModelMakerTest {
@@ -38,4 +48,75 @@ public class DBFModelMakerTest {
 		Model qualityInfo = DBFModelMaker.makeQualityModel(Domain.ENSEIGNEMENT, true);
 		qualityInfo.write(new FileWriter(Configuration.DATA_RESOURCE_PATH_OUT.resolve("qualite-enseignement.ttl").toString()), "TTL");
 	}
+
+	@Test
+	public void testMakeModels() throws Exception {
+
+		Model equipments = ModelFactory.createDefaultModel();
+		Model qualityInfo = ModelFactory.createDefaultModel();
+		DBFModelMaker.makeModels(false, equipments, qualityInfo);
+		equipments.write(new FileWriter(Configuration.DATA_RESOURCE_PATH_OUT.resolve("all-equipments.ttl").toString()), "TTL");
+		qualityInfo.write(new FileWriter(Configuration.DATA_RESOURCE_PATH_OUT.resolve("qualite.ttl").toString()), "TTL");
+	}
+
+	@Test
+	public void testRecordReader() throws Exception {
+
+		try (DBFRecordReader reader = DBFRecordReader.open(Configuration.getDBFDataFilePath(Domain.ENSEIGNEMENT))) {
+			System.out.println(reader);
+			for (DBFRecordReader.Range range : reader.split(4)) {
+				int first = DBFRecordReader.firstSampledRecord(range, Configuration.SAMPLING_RATE);
+				if (first < range.getTo()) System.out.println(range + " - record #" + DBFRecordReader.getRecordNumber(first) + ": " + reader.getRecordMap(first));
+			}
+		}
+	}
+
+	@Test
+	public void testStreamReader() throws Exception {
+
+		// Small dBase file with two character fields, one of the records being deleted
+		String[] fields = {"TYPEQU", "DEPCOM"};
+		int recordLength = 1 + 4 + 5;
+		int headerLength = 32 + 32 * fields.length + 1;
+		int recordCount = 1000;
+		ByteBuffer bytes = ByteBuffer.allocate(headerLength + recordCount * recordLength).order(ByteOrder.LITTLE_ENDIAN);
+		bytes.put(0, (byte) 0x03).putInt(4, recordCount).putShort(8, (short) headerLength).putShort(10, (short) recordLength);
+		for (int field = 0; field < fields.length; field++) {
+			int descriptor = 32 + 32 * field;
+			byte[] name = fields[field].getBytes(StandardCharsets.US_ASCII);
+			for (int index = 0; index < name.length; index++) bytes.put(descriptor + index, name[index]);
+			bytes.put(descriptor + 11, (byte) 'C').put(descriptor + 16, (byte) ((field == 0) ? 4 : 5));
+		}
+		bytes.put(headerLength - 1, (byte) 0x0D);
+		for (int record = 0; record < recordCount; record++) {
+			byte[] values = (((record == 13) ? "*" : " ") + "D" + (200 + record % 50) + String.format("%05d", record)).getBytes(StandardCharsets.US_ASCII);
+			for (int index = 0; index < values.length; index++) bytes.put(headerLength + record * recordLength + index, values[index]);
+		}
+
+		// The sampled records read from a stream are the same as those read by random access
+		int samplingRate = 7;
+		List<String> expected = new ArrayList<>();
+		try (DBFRecordReader reader = new DBFRecordReader(bytes, "test", StandardCharsets.US_ASCII)) {
+			for (int record = DBFRecordReader.firstSampledRecord(reader.all(), samplingRate); record < reader.getRecordCount(); record += samplingRate) {
+				expected.add(reader.getRecordMap(record) + (reader.isDeleted(record) ? " deleted" : ""));
+			}
+		}
+		List<String> streamed = new ArrayList<>();
+		try (DBFRecordReader reader = DBFRecordReader.open(new ByteArrayInputStream(bytes.array()), "test", StandardCharsets.US_ASCII)) {
+			for (int record = DBFRecordReader.firstSampledRecord(reader.all(), samplingRate); reader.readRecord(record); record += samplingRate) {
+				streamed.add(reader.getRecordMap(record) + (reader.isDeleted(record) ? " deleted" : ""));
+			}
+		}
+		assertEquals(recordCount / samplingRate, expected.size());
+		assertEquals(expected, streamed);
+		assertEquals("{TYPEQU=D206, DEPCOM=00006}", streamed.get(0));
+		assertEquals("{TYPEQU=D213, DEPCOM=00013} deleted", streamed.get(1));
+
+		// A stream which ends before the number of records declared in the header
+		try (DBFRecordReader reader = DBFRecordReader.open(new ByteArrayInputStream(bytes.array(), 0, headerLength + 3 * recordLength + 2), "test", StandardCharsets.US_ASCII)) {
+			int recordsRead = 0;
+			while (reader.readRecord(recordsRead)) recordsRead++;
+			assertEquals(3, recordsRead);
+		}
+	}
 }
@@ -0,0 +1,49 @@
+package fr.insee.semweb.bpe.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import fr.insee.semweb.bpe.NodeCache;
+
+public class NodeCacheTest {
+
+	@Test
+	public void testDateLiterals() {
+
+		// The dates are formatted in the default time zone, as by SimpleDateFormat (run with -Duser.timezone=Europe/Paris to check summer time changes on any machine)
+		// Dates before 1950 are not checked: the local mean times of the nineteenth century are handled differently by the two APIs, and the BPE has no such creation dates
+		ZoneId zone = ZoneId.systemDefault();
+		ZoneRules rules = zone.getRules().getTransitions().isEmpty() && zone.getRules().getTransitionRules().isEmpty() ? ZoneId.of("Europe/Paris").getRules() : zone.getRules();
+		List<Long> instants = new ArrayList<>();
+		// Around the changes of offset
+		ZoneOffsetTransition transition = rules.nextTransition(Instant.parse("1950-01-01T00:00:00Z"));
+		while ((transition != null) && transition.getInstant().isBefore(Instant.parse("2040-01-01T00:00:00Z"))) {
+			long millis = transition.getInstant().toEpochMilli();
+			for (long delta : new long[] {-3600000L, -1L, 0L, 1L, 3600000L}) instants.add(millis + delta);
+			transition = rules.nextTransition(transition.getInstant());
+		}
+		// Around the beginning of the years, and at the start of the days around the beginning of the years
+		for (int year = 1950; year <= 2040; year++) {
+			long millis = LocalDate.of(year, 1, 1).atStartOfDay(zone).toInstant().toEpochMilli();
+			for (long delta : new long[] {-86400000L, -3600000L, -1L, 0L, 1L, 3600000L, 86400000L}) instants.add(millis + delta);
+		}
+
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+		for (long millis : instants) {
+			Date date = new Date(millis);
+			assertEquals(dateFormat.format(date), NodeCache.dateLiteral(date).getLiteralLexicalForm(), "Date " + date.toInstant());
+		}
+		System.out.println(instants.size() + " dates checked in zone " + zone);
+	}
+}
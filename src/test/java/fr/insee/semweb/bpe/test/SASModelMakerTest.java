@@ -1,12 +1,35 @@
 package fr.insee.semweb.bpe.test;
 
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
 
 import fr.insee.semweb.bpe.Configuration;
+import org.apache.jena.atlas.json.JSON;
+import org.apache.jena.atlas.json.JsonObject;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.riot.system.StreamRDFWriter;
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fr.insee.semweb.bpe.CompactGraph;
+import fr.insee.semweb.bpe.RunMetrics;
 import fr.insee.semweb.bpe.SASModelMaker;
+import fr.insee.semweb.bpe.Sampling;
+import fr.insee.semweb.bpe.SpillingGraph;
+import fr.insee.semweb.bpe.SyntheticBPEGenerator;
 
 public class SASModelMakerTest {
 
@@ -28,10 +51,160 @@ public class SASModelMakerTest {
 		equipments.write(new FileWriter(fileName), "TTL");
 	}
 
+	@Test
+	public void testMakeBPEModelsSinglePass() throws Exception {
+
+		Map<String, Predicate<String>> filters = new LinkedHashMap<>();
+		filters.put("D2", type -> type.startsWith("D2"));
+		filters.put("F1", type -> type.startsWith("F1"));
+		Map<String, Model> models = sasModelMaker.makeBPEModels(filters);
+		for (String filter : models.keySet()) {
+			String fileName = Configuration.DATA_RESOURCE_PATH_OUT.toString() + "/equipments-" + filter.toLowerCase() + ".ttl";
+			models.get(filter).write(new FileWriter(fileName), "TTL");
+		}
+	}
+
 	@Test
 	public void testMakeQualityModel() throws Exception {
 
 		Model quality = sasModelMaker.makeQualityModel();
 		quality.write(new FileWriter(Configuration.DATA_RESOURCE_PATH_OUT.resolve("quality.ttl").toString()), "TTL");
 	}
+
+	@Test
+	public void testMakeModels() throws Exception {
+
+		String filter = "D2";
+		Model equipments = ModelFactory.createDefaultModel();
+		Model quality = ModelFactory.createDefaultModel();
+		sasModelMaker.makeModels(type -> type.startsWith(filter), equipments, quality);
+		equipments.write(new FileWriter(Configuration.DATA_RESOURCE_PATH_OUT.resolve("equipments-" + filter.toLowerCase() + ".ttl").toString()), "TTL");
+		quality.write(new FileWriter(Configuration.DATA_RESOURCE_PATH_OUT.resolve("quality-" + filter.toLowerCase() + ".ttl").toString()), "TTL");
+	}
+
+	@Test
+	public void testMakeBPEModelSampled() throws Exception {
+
+		SASModelMaker sampledModelMaker = new SASModelMaker().setSampling(new Sampling(0.01, 20, 42));
+		Model equipments = sampledModelMaker.makeBPEModel();
+		equipments.write(new FileWriter(Configuration.DATA_RESOURCE_PATH_OUT.resolve("equipments-sample.ttl").toString()), "TTL");
+	}
+
+	@Test
+	public void testStreamModels() throws Exception {
+
+		try (OutputStream output = new FileOutputStream(Configuration.DATA_RESOURCE_PATH_OUT.resolve("equipments-stream.ttl").toString())) {
+			StreamRDF stream = StreamRDFWriter.getWriterStream(output, RDFFormat.TURTLE_BLOCKS);
+			stream.start();
+			sasModelMaker.initBPEStream(stream);
+			sasModelMaker.streamModels(type -> true, stream, null);
+			stream.finish();
+		}
+	}
+
+	@Test
+	public void testStreamModelsParallel() throws Exception {
+
+		SASModelMaker parallelModelMaker = new SASModelMaker(Runtime.getRuntime().availableProcessors());
+		try (OutputStream output = new FileOutputStream(Configuration.DATA_RESOURCE_PATH_OUT.resolve("equipments-parallel.nt").toString())) {
+			StreamRDF stream = StreamRDFWriter.getWriterStream(output, RDFFormat.NTRIPLES);
+			stream.start();
+			parallelModelMaker.streamModels(type -> true, stream, null);
+			stream.finish();
+		}
+	}
+
+	@Test
+	public void testStreamSyntheticRows() throws Exception {
+
+		Map<String, Predicate<String>> filters = new LinkedHashMap<>();
+		filters.put("D2", type -> type.startsWith("D2"));
+		filters.put("F1", type -> type.startsWith("F1"));
+		Map<String, Model> models = new LinkedHashMap<>();
+		Map<String, StreamRDF> streams = new LinkedHashMap<>();
+		for (String filter : filters.keySet()) {
+			models.put(filter, ModelFactory.createDefaultModel());
+			streams.put(filter, StreamRDFLib.graph(models.get(filter).getGraph()));
+		}
+		try (SyntheticBPEGenerator generator = SyntheticBPEGenerator.atScale(0.004, 42)) {
+			long equipments = sasModelMaker.streamRows(generator, generator.getColumns(), filters, streams, null);
+			System.out.println(equipments + " synthetic equipments processed");
+		}
+		for (String filter : models.keySet()) System.out.println("Model for filter " + filter + " contains " + models.get(filter).size() + " triples");
+	}
+
+	@Test
+	public void testRunMetrics() throws Exception {
+
+		Map<String, Predicate<String>> filters = new LinkedHashMap<>();
+		filters.put("D2", type -> type.startsWith("D2"));
+		Model model = ModelFactory.createDefaultModel();
+		RunMetrics metrics = RunMetrics.start();
+		try (SyntheticBPEGenerator generator = SyntheticBPEGenerator.atScale(0.004, 42)) {
+			sasModelMaker.streamRows(generator, generator.getColumns(), filters, Collections.singletonMap("D2", StreamRDFLib.graph(model.getGraph())), null);
+		}
+		metrics.recordChunk("D2", model.size(), 0);
+		metrics.finish();
+		System.out.println(metrics.toJSON());
+
+		// The metrics of the production runs are not overwritten, since they are used to estimate the size of the chunks
+		Path jsonFilePath = Files.createTempFile("bpe-metrics-", ".json");
+		try {
+			metrics.dumpJSON(jsonFilePath);
+			JsonObject json = JSON.read(jsonFilePath.toString());
+			assertEquals(metrics.getRowsRead(), json.get("rowsRead").getAsNumber().value().longValue());
+			assertEquals(metrics.getEquipmentsProcessed(), json.get("equipmentsProcessed").getAsNumber().value().longValue());
+			assertEquals(metrics.getTriplesProduced(), json.get("triplesProduced").getAsNumber().value().longValue());
+			assertTrue(metrics.getEquipmentsProcessed() > 0);
+			assertEquals(model.size(), json.get("chunks").getAsObject().get("D2").getAsObject().get("triples").getAsNumber().value().longValue());
+			assertTrue(json.get("stageMillis").isObject());
+			assertEquals(Collections.singletonMap("D2", model.size()), RunMetrics.readChunkTriples(jsonFilePath));
+		} finally {
+			Files.delete(jsonFilePath);
+		}
+	}
+
+	@Test
+	public void testSpillingModel() throws Exception {
+
+		Map<String, Predicate<String>> filters = new LinkedHashMap<>();
+		filters.put("D2", type -> type.startsWith("D2"));
+		SpillingGraph graph = new SpillingGraph(5000);
+		Model model = ModelFactory.createModelForGraph(graph);
+		try (SyntheticBPEGenerator generator = SyntheticBPEGenerator.atScale(0.004, 42)) {
+			sasModelMaker.streamRows(generator, generator.getColumns(), filters, Collections.singletonMap("D2", StreamRDFLib.graph(model.getGraph())), null);
+		}
+		System.out.println("Model for filter D2 contains " + model.size() + " triples, spilled to disk: " + graph.isSpilled());
+		model.write(new FileWriter(Configuration.DATA_RESOURCE_PATH_OUT.resolve("facilities-d2-spilled.ttl").toString()), "TTL");
+		model.close();
+	}
+
+	@Test
+	public void testCompactModel() throws Exception {
+
+		Map<String, Predicate<String>> filters = new LinkedHashMap<>();
+		filters.put("D2", type -> type.startsWith("D2"));
+		CompactGraph graph = new CompactGraph();
+		Model model = ModelFactory.createModelForGraph(graph);
+		Model defaultModel = ModelFactory.createDefaultModel();
+		Map<String, StreamRDF> streams = Collections.singletonMap("D2", StreamRDFLib.graph(model.getGraph()));
+		try (SyntheticBPEGenerator generator = SyntheticBPEGenerator.atScale(0.004, 42)) {
+			sasModelMaker.streamRows(generator, generator.getColumns(), filters, streams, null);
+		}
+		try (SyntheticBPEGenerator generator = SyntheticBPEGenerator.atScale(0.004, 42)) {
+			sasModelMaker.streamRows(generator, generator.getColumns(), filters, Collections.singletonMap("D2", StreamRDFLib.graph(defaultModel.getGraph())), null);
+		}
+		System.out.println("Compact model contains " + model.size() + " triples in " + graph.getMemorySize() + " bytes");
+		assertEquals(defaultModel.size(), model.size());
+		assertTrue(model.isIsomorphicWith(defaultModel));
+		model.write(new FileWriter(Configuration.DATA_RESOURCE_PATH_OUT.resolve("facilities-d2-compact.ttl").toString()), "TTL");
+	}
+
+	@Test
+	public void testWriteSyntheticCSV() throws Exception {
+
+		try (SyntheticBPEGenerator generator = SyntheticBPEGenerator.atScale(0.001, 42)) {
+			generator.writeCSV(Configuration.DATA_RESOURCE_PATH_OUT.resolve("bpe-synthetic.csv"));
+		}
+	}
 }
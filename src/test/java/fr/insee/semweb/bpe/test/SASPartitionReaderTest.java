@@ -0,0 +1,190 @@
+package fr.insee.semweb.bpe.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import fr.insee.semweb.bpe.SASPartitionReader;
+import fr.insee.semweb.bpe.SASRowReader;
+
+public class SASPartitionReaderTest {
+
+	// Layout of the generated SAS file: 32 bits, little endian, uncompressed
+	final static int HEADER_LENGTH = 1024;
+	final static int PAGE_LENGTH = 4096;
+	final static int ROW_LENGTH = 24; // nb (numeric) at 0, depcom (5 characters) at 8, typequ (4 characters) at 13
+	final static int MIX_PAGE_ROWS = 50; // Rows stored in the first page, after the metadata
+	final static int ROWS_PER_PAGE = (PAGE_LENGTH - 24) / ROW_LENGTH;
+	final static List<String> COLUMNS = Arrays.asList("depcom", "typequ", "nb");
+
+	@Test
+	public void testPartitionedRead() throws IOException {
+
+		Path sasFilePath = Files.createTempFile("bpe-partition-", ".sas7bdat");
+		try {
+			List<Object[]> expected = generateRows(5000);
+			writeSASFile(sasFilePath, expected);
+
+			List<Object[]> sequential = readRows(SASRowReader.open(sasFilePath, COLUMNS, null));
+			assertRowsEqual(expected, sequential);
+
+			SASPartitionReader partitionReader = new SASPartitionReader(sasFilePath);
+			assertTrue(partitionReader.isPartitionable());
+			for (int count : new int[] {1, 3, 7, 100}) {
+				List<SASPartitionReader.Partition> partitions = partitionReader.split(count);
+				assertEquals(Math.min(count, (int) partitionReader.getSasFileProperties().getPageCount() - 1), partitions.size());
+				List<Object[]> partitioned = new ArrayList<>();
+				for (SASPartitionReader.Partition partition : partitions) partitioned.addAll(readRows(SASRowReader.open(partitionReader, partition, COLUMNS, null)));
+				assertRowsEqual(sequential, partitioned);
+			}
+
+			// With a filter, each partition returns the lines of its pages which are accepted
+			List<Object[]> filtered = readRows(SASRowReader.open(sasFilePath, COLUMNS, type -> type.startsWith("A")));
+			List<Object[]> partitioned = new ArrayList<>();
+			for (SASPartitionReader.Partition partition : partitionReader.split(4)) partitioned.addAll(readRows(SASRowReader.open(partitionReader, partition, COLUMNS, type -> type.startsWith("A"))));
+			assertTrue(filtered.size() > 0);
+			assertRowsEqual(filtered, partitioned);
+		} finally {
+			Files.deleteIfExists(sasFilePath);
+		}
+	}
+
+	private static List<Object[]> generateRows(int count) {
+
+		List<Object[]> rows = new ArrayList<>();
+		for (int row = 0; row < count; row++) {
+			String depcom = String.format("%05d", 1001 + (row * 37) % 95000);
+			String typequ = "ABCDEF".charAt(row % 6) + String.valueOf(101 + row % 7);
+			rows.add(new Object[] {depcom, typequ, (long) (row % 13)});
+		}
+		return rows;
+	}
+
+	private static List<Object[]> readRows(SASRowReader rowReader) throws IOException {
+
+		List<Object[]> rows = new ArrayList<>();
+		try (SASRowReader reader = rowReader) {
+			Object[] values;
+			while ((values = reader.readNext()) != null) rows.add(values);
+		}
+		return rows;
+	}
+
+	private static void assertRowsEqual(List<Object[]> expected, List<Object[]> actual) {
+
+		assertEquals(expected.size(), actual.size());
+		for (int row = 0; row < expected.size(); row++) {
+			Object[] expectedRow = expected.get(row);
+			Object[] actualRow = actual.get(row);
+			assertEquals(expectedRow.length, actualRow.length);
+			for (int column = 0; column < expectedRow.length; column++) {
+				// Parso can return integer numbers as long or double
+				if (expectedRow[column] instanceof Number) assertEquals(((Number) expectedRow[column]).doubleValue(), ((Number) actualRow[column]).doubleValue(), "Row " + row);
+				else assertEquals(expectedRow[column], actualRow[column], "Row " + row);
+			}
+		}
+	}
+
+	/**
+	 * Writes a minimal SAS database: a 'mix' page with the metadata and the first rows, followed by data pages.
+	 * Only the subheaders needed by Parso are written (row size, column size, column text, column names, column attributes and formats).
+	 *
+	 * @param sasFilePath The path of the file to write.
+	 * @param rows The rows (depcom, typequ, nb).
+	 * @throws IOException In case of problem writing the file.
+	 */
+	private static void writeSASFile(Path sasFilePath, List<Object[]> rows) throws IOException {
+
+		int dataPages = (rows.size() - MIX_PAGE_ROWS + ROWS_PER_PAGE - 1) / ROWS_PER_PAGE;
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + (1 + dataPages) * PAGE_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+
+		// Header
+		byte[] magicNumber = {(byte) 0xc2, (byte) 0xea, (byte) 0x81, 0x60, (byte) 0xb3, 0x14, 0x11, (byte) 0xcf, (byte) 0xbd, (byte) 0x92, 0x08, 0x00, 0x09, (byte) 0xc7, 0x31, (byte) 0x8c, 0x18, 0x1f, 0x10, 0x11};
+		buffer.position(12);
+		buffer.put(magicNumber);
+		buffer.put(32, (byte) 0x22).put(35, (byte) 0x22); // No alignment, 32 bits
+		buffer.put(37, (byte) 1).put(39, (byte) '1'); // Little endian, Unix
+		buffer.put(70, (byte) 20); // UTF-8
+		putString(buffer, 84, "SAS FILE");
+		putString(buffer, 92, "BPE");
+		putString(buffer, 156, "DATA");
+		buffer.putInt(196, HEADER_LENGTH).putInt(200, PAGE_LENGTH).putInt(204, 1 + dataPages);
+		putString(buffer, 216, "9.0401M0");
+
+		// First page: subheader pointers, rows, then subheaders from the end of the page
+		int page = HEADER_LENGTH;
+		List<byte[]> subheaders = new ArrayList<>();
+		ByteBuffer rowSize = subheader(0xF7F7F7F7, 480);
+		rowSize.putInt(20, ROW_LENGTH).putInt(24, rows.size()).putInt(60, MIX_PAGE_ROWS);
+		subheaders.add(rowSize.array());
+		subheaders.add(subheader(0xF6F6F6F6, 24).putInt(4, COLUMNS.size()).array());
+		ByteBuffer columnText = subheader(0xFFFFFFFD, 4 + 32);
+		columnText.putShort(4, (short) 32);
+		for (int column = 0; column < COLUMNS.size(); column++) putString(columnText, 4 + 12 + 8 * column, COLUMNS.get(column));
+		subheaders.add(columnText.array());
+		ByteBuffer columnNames = subheader(0xFFFFFFFF, 20 + 8 * COLUMNS.size());
+		for (int column = 0; column < COLUMNS.size(); column++) columnNames.putShort(14 + 8 * column, (short) (12 + 8 * column)).putShort(16 + 8 * column, (short) COLUMNS.get(column).length());
+		subheaders.add(columnNames.array());
+		ByteBuffer columnAttributes = subheader(0xFFFFFFFC, 20 + 12 * COLUMNS.size());
+		int[][] attributes = {{8, 5, 2}, {13, 4, 2}, {0, 8, 1}}; // Offset, length and type (1 for numeric, 2 for character)
+		for (int column = 0; column < COLUMNS.size(); column++) {
+			columnAttributes.putInt(12 + 12 * column, attributes[column][0]).putInt(16 + 12 * column, attributes[column][1]);
+			columnAttributes.put(22 + 12 * column, (byte) attributes[column][2]);
+		}
+		subheaders.add(columnAttributes.array());
+		for (int column = 0; column < COLUMNS.size(); column++) subheaders.add(subheader(0xFFFFFBFE, 64).array());
+
+		buffer.putShort(page + 16, (short) 512).putShort(page + 18, (short) (subheaders.size() + MIX_PAGE_ROWS)).putShort(page + 20, (short) subheaders.size());
+		int subheaderOffset = PAGE_LENGTH;
+		for (int index = 0; index < subheaders.size(); index++) {
+			byte[] subheader = subheaders.get(index);
+			subheaderOffset -= subheader.length;
+			buffer.putInt(page + 24 + 12 * index, subheaderOffset).putInt(page + 28 + 12 * index, subheader.length);
+			buffer.position(page + subheaderOffset);
+			buffer.put(subheader);
+		}
+		int rowOffset = 24 + 12 * subheaders.size();
+		rowOffset += rowOffset % 8;
+		for (int row = 0; row < MIX_PAGE_ROWS; row++) putRow(buffer, page + rowOffset + row * ROW_LENGTH, rows.get(row));
+
+		// Data pages
+		for (int dataPage = 0; dataPage < dataPages; dataPage++) {
+			page = HEADER_LENGTH + (1 + dataPage) * PAGE_LENGTH;
+			int firstRow = MIX_PAGE_ROWS + dataPage * ROWS_PER_PAGE;
+			int pageRows = Math.min(ROWS_PER_PAGE, rows.size() - firstRow);
+			buffer.putShort(page + 16, (short) 256).putShort(page + 18, (short) pageRows);
+			for (int row = 0; row < pageRows; row++) putRow(buffer, page + 24 + row * ROW_LENGTH, rows.get(firstRow + row));
+		}
+
+		Files.write(sasFilePath, buffer.array());
+	}
+
+	private static ByteBuffer subheader(int signature, int length) {
+		return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN).putInt(0, signature);
+	}
+
+	private static void putRow(ByteBuffer buffer, int offset, Object[] row) {
+
+		buffer.putDouble(offset, ((Number) row[2]).doubleValue());
+		putString(buffer, offset + 8, (String) row[0]);
+		putString(buffer, offset + 13, (String) row[1]);
+	}
+
+	private static void putString(ByteBuffer buffer, int offset, String value) {
+
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		for (int index = 0; index < bytes.length; index++) buffer.put(offset + index, bytes[index]);
+	}
+}
@@ -1,6 +1,7 @@
 package fr.insee.semweb.bpe.test;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.SortedSet;
@@ -10,6 +11,11 @@ import org.junit.jupiter.api.Test;
 
 import com.epam.parso.Column;
 
+import fr.insee.semweb.bpe.CheckResult;
+import fr.insee.semweb.bpe.ChunkPlanner;
+import fr.insee.semweb.bpe.ColumnProfile;
+import fr.insee.semweb.bpe.SASColumnCache;
+import fr.insee.semweb.bpe.SASRowReader;
 import fr.insee.semweb.bpe.SASUtils;
 
 public class SASUtilsTest {
@@ -30,6 +36,14 @@ public class SASUtilsTest {
 		System.out.println("Total number of equipments: " + total);
 	}
 
+	@Test
+	public void testPlanChunks() throws Exception {
+
+		ChunkPlanner planner = new ChunkPlanner(SASUtils.countEquipmentsByType(), Configuration.listFeaturesAndPropertiesByType());
+		Map<String, Long> chunks = planner.plan(2000000);
+		for (String chunk : chunks.keySet()) System.out.println(chunk + "\t" + chunks.get(chunk));
+	}
+
 	@Test
 	public void testListFeaturesAndPropertiesByType() {
 		SortedMap<String, SortedSet<String>> featuresAndProperties = Configuration.listFeaturesAndPropertiesByType();
@@ -48,6 +62,27 @@ public class SASUtilsTest {
 		SASUtils.checkMunicipalityCodes();
 	}
 
+	@Test
+	public void testRunChecks() throws IOException {
+
+		Map<String, CheckResult> results = SASUtils.runChecks(Runtime.getRuntime().availableProcessors());
+		for (CheckResult result : results.values()) System.out.println(result);
+	}
+
+	@Test
+	public void testProfileColumns() throws IOException {
+
+		Map<String, ColumnProfile> profiles = SASUtils.profileColumns(Runtime.getRuntime().availableProcessors());
+		for (ColumnProfile profile : profiles.values()) System.out.println(profile);
+	}
+
+	@Test
+	public void testExportRows() throws IOException {
+
+		long lines = SASUtils.exportRows(Arrays.asList("idetab", "idservice", "typequ", "depcom", "lambert_x", "lambert_y"), Configuration.DATA_RESOURCE_PATH_OUT.resolve("bpe-xy.tsv.gz"), Runtime.getRuntime().availableProcessors());
+		System.out.println(lines + " lines exported");
+	}
+
 	@Test
 	public void testListColumns() throws IOException {
 
@@ -58,4 +93,25 @@ public class SASUtilsTest {
 			System.out.println(index + "\t\t" + column.getLabel() + "\t\t" + column.getName() + "\t\t" + column.getType() + "\t\t" + column.getFormat());
 		}
 	}
+
+	@Test
+	public void testSASRowReader() throws IOException {
+
+		try (SASRowReader rowReader = SASRowReader.open(Configuration.getSASDataFilePath(), Arrays.asList("idetab", "idservice", "typequ", "depcom"), type -> type.startsWith("A"))) {
+			Object[] values;
+			long selected = 0;
+			while ((values = rowReader.readNext()) != null) {
+				if (++selected % 10000 == 1) System.out.println(Arrays.toString(values));
+			}
+			System.out.println(selected + " lines selected, " + rowReader.getLinesSkipped() + " lines skipped out of " + rowReader.getLinesRead());
+		}
+	}
+
+	@Test
+	public void testBuildColumnCache() throws IOException {
+
+		long lines = SASColumnCache.build();
+		SASColumnCache cache = SASColumnCache.open(Configuration.getSASCacheFilePath());
+		System.out.println(lines + " lines written, " + cache.getRowCount() + " lines in cache, columns " + cache.getColumnNames());
+	}
 }
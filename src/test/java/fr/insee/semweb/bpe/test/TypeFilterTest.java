@@ -0,0 +1,76 @@
+package fr.insee.semweb.bpe.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.Test;
+
+import fr.insee.semweb.bpe.TypeFilter;
+
+public class TypeFilterTest {
+
+	@Test
+	public void testCompile() {
+
+		checkTypes("A1+A2", code -> code.startsWith("A1") || code.startsWith("A2"));
+		checkTypes("A504", code -> code.equals("A504"));
+		checkTypes("D-D2", code -> code.startsWith("D") && !code.startsWith("D2"));
+		checkTypes("C", code -> code.startsWith("C"));
+
+		BitSet types = TypeFilter.compile("A504").getTypes();
+		assertEquals(1, types.cardinality());
+		assertTrue(types.get(TypeFilter.getTypeIndex("A504")));
+		assertEquals(-1, TypeFilter.getTypeIndex("Z999"));
+	}
+
+	// Checks that the bitset compiled from an expression contains the indexes of the codes of the code list selected by the predicate
+	private static void checkTypes(String expression, Predicate<String> selected) {
+
+		List<String> codes = TypeFilter.listTypeCodes();
+		BitSet expected = new BitSet();
+		for (int index = 0; index < codes.size(); index++) if (selected.test(codes.get(index))) expected.set(index);
+		assertFalse(expected.isEmpty());
+		assertEquals(expected, TypeFilter.compile(expression).getTypes(), expression);
+	}
+
+	@Test
+	public void testMinusExpression() {
+
+		TypeFilter filter = TypeFilter.compile("D-D2");
+		for (String equipmentType : new String[] {"D101", "D201", "E101", "D999"}) { // D999 is not in the code list
+			System.out.println(equipmentType + "\t" + filter.test(equipmentType));
+		}
+		assertTrue(filter.test("D101"));
+		assertFalse(filter.test("D201"));
+		assertFalse(filter.test("E101"));
+		assertTrue(filter.test("D999")); // Types absent from the code list are evaluated on the terms of the expression
+		assertEquals(filter.getTypes().cardinality(), TypeFilter.listTypeCodes().stream().filter(filter).count());
+	}
+
+	@Test
+	public void testLeftToRight() {
+
+		// Terms are applied from left to right: the last term matching a type decides
+		TypeFilter filter = TypeFilter.compile("D-D2+D201");
+		assertTrue(filter.test("D101"));
+		assertTrue(filter.test("D201"));
+		assertFalse(filter.test("D202"));
+		filter = TypeFilter.compile("D201-D2");
+		assertFalse(filter.test("D201"));
+		assertFalse(filter.test("D101"));
+	}
+
+	@Test
+	public void testInvalidExpressions() {
+
+		assertThrows(IllegalArgumentException.class, () -> TypeFilter.compile("D-Z9")); // Z9 is the prefix of no code
+		assertThrows(IllegalArgumentException.class, () -> TypeFilter.compile("D+"));
+		assertThrows(IllegalArgumentException.class, () -> TypeFilter.compile(""));
+	}
+}